@@ -0,0 +1,136 @@
+package io.github.rerorero.kafka.connect.transform.encrypt;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.condition.Conditions;
+import io.github.rerorero.kafka.connect.transform.encrypt.config.Config;
+import io.github.rerorero.kafka.connect.transform.encrypt.config.FieldSelector;
+import io.github.rerorero.kafka.connect.transform.encrypt.plan.JsonPath;
+import io.github.rerorero.kafka.kms.CryptoConfig;
+import io.github.rerorero.kafka.kms.Item;
+import io.github.rerorero.kafka.kms.Service;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of the transform itself with a service which returns constant results.
+ * Run with {@code gradlew jmh}, which enables the gc profiler to report the allocation per record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransformBenchmark {
+    @Param({"200"})
+    public int fieldCount;
+
+    @Param({"10"})
+    public int encryptedCount;
+
+    private Transform<SinkRecord> structTransform;
+    private Transform<SinkRecord> mapTransform;
+    private SinkRecord structRecord;
+    private SinkRecord mapRecord;
+
+    private static class ConstantService implements Service {
+        private final Item result = new Item.CipherText("vault:v1:ciphertext");
+
+        @Override
+        public <F> Map<F, Item> doCrypto(Map<F, Object> items) {
+            final Map<F, Item> out = new HashMap<>();
+            items.keySet().forEach(f -> out.put(f, result));
+            return out;
+        }
+
+        @Override
+        public void doCrypto(Object[] values, Item[] results, int size) {
+            for (int i = 0; i < size; i++) {
+                results[i] = result;
+            }
+        }
+
+        @Override
+        public void init() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private Transform<SinkRecord> newTransform() {
+        final FieldSelector fieldSelector = new FieldSelector();
+        for (int i = 0; i < encryptedCount; i++) {
+            fieldSelector.paths.add(JsonPath.parse("$.field" + i));
+        }
+        final Config config = new Config() {
+            @Override
+            public Service cryptoService() {
+                return new ConstantService();
+            }
+
+            @Override
+            public FieldSelector fieldSelector() {
+                return fieldSelector;
+            }
+
+            @Override
+            public Conditions conditions() {
+                return new Conditions();
+            }
+
+            @Override
+            public CryptoConfig cryptoCOnfig() {
+                return new CryptoConfig(Item.Encoding.STRING);
+            }
+        };
+        final Transform<SinkRecord> transform = new Transform.Value<SinkRecord>() {
+            @Override
+            protected Config newConfig(Map<String, ?> props) {
+                return config;
+            }
+        };
+        transform.configure(new HashMap<>());
+        return transform;
+    }
+
+    @Setup
+    public void setUp() {
+        structTransform = newTransform();
+        mapTransform = newTransform();
+
+        final SchemaBuilder builder = SchemaBuilder.struct();
+        for (int i = 0; i < fieldCount; i++) {
+            builder.field("field" + i, Schema.STRING_SCHEMA);
+        }
+        final Schema schema = builder.build();
+        final Struct struct = new Struct(schema);
+        final Map<String, Object> map = new HashMap<>();
+        for (int i = 0; i < fieldCount; i++) {
+            struct.put("field" + i, "value" + i);
+            map.put("field" + i, "value" + i);
+        }
+        structRecord = new SinkRecord("topic", 0, null, null, schema, struct, 0);
+        mapRecord = new SinkRecord("topic", 0, null, null, null, map, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        structTransform.close();
+        mapTransform.close();
+    }
+
+    @Benchmark
+    public SinkRecord applyStruct() {
+        return structTransform.apply(structRecord);
+    }
+
+    @Benchmark
+    public SinkRecord applyMap() {
+        return mapTransform.apply(mapRecord);
+    }
+}
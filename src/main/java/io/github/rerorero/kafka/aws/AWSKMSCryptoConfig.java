@@ -4,6 +4,7 @@ import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import io.github.rerorero.kafka.kms.ExecutorConfig;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -16,6 +17,9 @@ public class AWSKMSCryptoConfig {
     private final Map<String, String> context;
     private final Optional<String> encryptionAlgorithm;
     private final Optional<String> kmsEndpoint;
+    private final Optional<DataKeyCache> dataKeyCache;
+    private final ExecutorConfig executorConfig;
+    private final Optional<String> recordKeyHeader;
 
     public AWSKMSCryptoConfig(
             Optional<AWSCredentials> creds,
@@ -24,6 +28,37 @@ public class AWSKMSCryptoConfig {
             Map<String, String> context,
             Optional<String> encryptionAlgorithm,
             Optional<String> kmsEndpoint
+    ) {
+        this(creds, region, keyID, context, encryptionAlgorithm, kmsEndpoint, Optional.empty(), ExecutorConfig.DEFAULT);
+    }
+
+    public AWSKMSCryptoConfig(
+            Optional<AWSCredentials> creds,
+            Optional<String> region,
+            String keyID,
+            Map<String, String> context,
+            Optional<String> encryptionAlgorithm,
+            Optional<String> kmsEndpoint,
+            Optional<DataKeyCache> dataKeyCache,
+            ExecutorConfig executorConfig
+    ) {
+        this(creds, region, keyID, context, encryptionAlgorithm, kmsEndpoint, dataKeyCache, executorConfig, Optional.empty());
+    }
+
+    /**
+     * @param recordKeyHeader The Connect header which holds the data key shared by the fields of a record,
+     *                        or empty to encrypt each field with the AWS Encryption SDK
+     */
+    public AWSKMSCryptoConfig(
+            Optional<AWSCredentials> creds,
+            Optional<String> region,
+            String keyID,
+            Map<String, String> context,
+            Optional<String> encryptionAlgorithm,
+            Optional<String> kmsEndpoint,
+            Optional<DataKeyCache> dataKeyCache,
+            ExecutorConfig executorConfig,
+            Optional<String> recordKeyHeader
     ) {
         this.creds = creds;
         this.region = region;
@@ -31,6 +66,9 @@ public class AWSKMSCryptoConfig {
         this.context = context != null ? context : new HashMap<>();
         this.encryptionAlgorithm = encryptionAlgorithm;
         this.kmsEndpoint = kmsEndpoint;
+        this.dataKeyCache = dataKeyCache;
+        this.executorConfig = executorConfig;
+        this.recordKeyHeader = recordKeyHeader;
     }
 
     String getKeyID() {
@@ -57,4 +95,49 @@ public class AWSKMSCryptoConfig {
     Optional<String> getKmsEndpoint() {
         return kmsEndpoint;
     }
+
+    Optional<DataKeyCache> getDataKeyCache() {
+        return dataKeyCache;
+    }
+
+    ExecutorConfig getExecutorConfig() {
+        return executorConfig;
+    }
+
+    Optional<String> getRecordKeyHeader() {
+        return recordKeyHeader;
+    }
+
+    /**
+     * Limits of the local data key cache. A cached data key is reused until any of the limits is reached.
+     */
+    public static class DataKeyCache {
+        private final int capacity;
+        private final long maxAgeMs;
+        private final long maxMessages;
+        private final long maxBytes;
+
+        public DataKeyCache(int capacity, long maxAgeMs, long maxMessages, long maxBytes) {
+            this.capacity = capacity;
+            this.maxAgeMs = maxAgeMs;
+            this.maxMessages = maxMessages;
+            this.maxBytes = maxBytes;
+        }
+
+        int getCapacity() {
+            return capacity;
+        }
+
+        long getMaxAgeMs() {
+            return maxAgeMs;
+        }
+
+        long getMaxMessages() {
+            return maxMessages;
+        }
+
+        long getMaxBytes() {
+            return maxBytes;
+        }
+    }
 }
@@ -4,25 +4,41 @@ import com.amazonaws.SdkClientException;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.encryptionsdk.AwsCrypto;
 import com.amazonaws.encryptionsdk.CryptoAlgorithm;
+import com.amazonaws.encryptionsdk.CryptoMaterialsManager;
 import com.amazonaws.encryptionsdk.CryptoResult;
-import com.amazonaws.encryptionsdk.kms.KmsMasterKey;
+import com.amazonaws.encryptionsdk.DefaultCryptoMaterialsManager;
+import com.amazonaws.encryptionsdk.caching.CachingCryptoMaterialsManager;
+import com.amazonaws.encryptionsdk.caching.LocalCryptoMaterialsCache;
 import com.amazonaws.encryptionsdk.kms.KmsMasterKeyProvider;
 import com.amazonaws.services.kms.AWSKMSClientBuilder;
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
-import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServiceException;
+import io.github.rerorero.kafka.kms.ExecutorConfig;
 import io.github.rerorero.kafka.kms.Item;
 import io.github.rerorero.kafka.kms.Service;
+import io.github.rerorero.kafka.util.CacheStats;
+import io.github.rerorero.kafka.util.Futures;
 import io.github.rerorero.kafka.util.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CompletionException;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public abstract class AWSKeyManagementService implements Service {
+    private final Logger log = LoggerFactory.getLogger(AWSKeyManagementService.class);
+
     protected final AwsCrypto client;
     protected final KmsMasterKeyProvider keyProvider;
+    protected final CryptoMaterialsManager materialsManager;
+    private final Optional<CountingCryptoMaterialsCache> dataKeyCache;
+    private ExecutorService executor;
     protected final AWSKMSCryptoConfig config;
 
     AWSKeyManagementService(AWSKMSCryptoConfig config) {
@@ -30,6 +46,30 @@ public abstract class AWSKeyManagementService implements Service {
         config.getEncryptionAlgorithm().ifPresent(a -> builder.withEncryptionAlgorithm(CryptoAlgorithm.valueOf(a)));
         this.client = builder.build();
 
+        final AWSKMSClientBuilder cliBuilder = kmsClientBuilder(config);
+        this.keyProvider = KmsMasterKeyProvider.builder()
+                .withCustomClientFactory(region -> cliBuilder.build())
+                .buildStrict(config.getKeyID());
+
+        // Data keys are reused across fields until one of the limits is reached if the cache is enabled,
+        // otherwise every field costs a data key generation (or decryption) by KMS.
+        // On decryption, the cache maps encrypted data keys to the unwrapped ones.
+        this.dataKeyCache = config.getDataKeyCache()
+                .map(c -> new CountingCryptoMaterialsCache(new LocalCryptoMaterialsCache(c.getCapacity())));
+        this.materialsManager = config.getDataKeyCache()
+                .<CryptoMaterialsManager>map(c -> CachingCryptoMaterialsManager.newBuilder()
+                        .withMasterKeyProvider(keyProvider)
+                        .withCache(dataKeyCache.get())
+                        .withMaxAge(c.getMaxAgeMs(), TimeUnit.MILLISECONDS)
+                        .withMessageUseLimit(c.getMaxMessages())
+                        .withByteUseLimit(c.getMaxBytes())
+                        .build())
+                .orElse(new DefaultCryptoMaterialsManager(keyProvider));
+
+        this.config = config;
+    }
+
+    static AWSKMSClientBuilder kmsClientBuilder(AWSKMSCryptoConfig config) {
         AWSKMSClientBuilder cliBuilder = AWSKMSClientBuilder.standard();
         cliBuilder.withCredentials(config.getCredentialProvider());
         config.getKmsEndpoint().ifPresent(endpoint ->
@@ -38,58 +78,78 @@ public abstract class AWSKeyManagementService implements Service {
         if (!config.getKmsEndpoint().isPresent()) {
             config.getRegion().ifPresent(r -> cliBuilder.withRegion(r));
         }
-
-        this.keyProvider = KmsMasterKeyProvider.builder()
-                .withCustomClientFactory(region -> cliBuilder.build())
-                .buildStrict(config.getKeyID());
-
-        this.config = config;
+        return cliBuilder;
     }
 
-
     @Override
     public void init() {
+        // the asynchronous path must not run a request on its caller, so a full queue rejects
+        executor = config.getExecutorConfig().newExecutor("awskms-crypto", false);
     }
 
     @Override
     public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        getDataKeyCacheStats().ifPresent(stats -> log.info("data key cache: {}", stats));
+    }
+
+    /**
+     * Returns the hit and miss counts of the data key cache, or empty if the cache is disabled.
+     */
+    public Optional<CacheStats> getDataKeyCacheStats() {
+        return dataKeyCache.map(CountingCryptoMaterialsCache::getStats);
     }
 
     @Override
     public <F> Map<F, Item> doCrypto(Map<F, Object> items) {
-        final List<CompletableFuture<Pair<F, Item>>> futureList = new ArrayList<>();
-        items.forEach((field, item) -> {
-            futureList.add(CompletableFuture.supplyAsync(() -> {
-                try {
-                    Item converted = callEndpoint(field.toString(), item);
-                    return new Pair(field, converted);
-                } catch (SdkClientException e) {
-                    throw new ServerErrorException(e);
-                }
-            }));
-        });
+        return Futures.join(cryptoAsync(items, true));
+    }
 
+    @Override
+    public <F> CompletionStage<Map<F, Item>> doCryptoAsync(Map<F, Object> items, Duration timeout) {
+        return Futures.withTimeout(cryptoAsync(items, false), timeout);
+    }
+
+    /**
+     * Runs a call for each field on the executor. Completing the result before them, e.g. cancelling it,
+     * cancels the calls which have not started yet.
+     *
+     * @param blocking Whether the caller waits for the result, so that it runs the calls which the executor is too
+     *                 full to take. Otherwise the result fails with {@link ServerErrorException}.
+     */
+    private <F> CompletableFuture<Map<F, Item>> cryptoAsync(Map<F, Object> items, boolean blocking) {
+        final List<CompletableFuture<Pair<F, Item>>> futureList = new ArrayList<>();
         try {
-            CompletableFuture.allOf(futureList.toArray(new CompletableFuture[futureList.size()])).join();
-        } catch (CompletionException e) {
-            if (e.getCause() instanceof ServiceException) {
-                throw (ServiceException) e.getCause();
-            } else {
-                throw new ServiceException(e);
+            if (executor == null) {
+                throw new ClientErrorException("service is not initialized");
             }
+            final Executor runner = blocking ? ExecutorConfig.callerRunsWhenFull(executor) : executor;
+            items.forEach((field, item) -> {
+                futureList.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        Item converted = callEndpoint(field.toString(), item);
+                        return new Pair<>(field, converted);
+                    } catch (SdkClientException e) {
+                        throw new ServerErrorException(e);
+                    }
+                }, runner));
+            });
+        } catch (RuntimeException e) {
+            futureList.forEach(f -> f.cancel(false));
+            final CompletableFuture<Map<F, Item>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e instanceof RejectedExecutionException
+                    ? new ServerErrorException("unable to schedule the request", e) : e);
+            return failed;
         }
 
-        final Map<F, Item> out = new HashMap<>();
-        futureList.forEach(result -> {
-            try {
-                Pair<F, Item> pair = result.get();
-                out.put(pair.key, pair.value);
-            } catch (ExecutionException | InterruptedException e) {
-                throw new ServerErrorException("failed to get concurrent results", e);
-            }
-        });
-
-        return out;
+        final CompletableFuture<List<Pair<F, Item>>> all = Futures.allAsList(futureList);
+        return Futures.cancelling(all.thenApply(pairs -> {
+            final Map<F, Item> out = new HashMap<>();
+            pairs.forEach(pair -> out.put(pair.key, pair.value));
+            return out;
+        }), all);
     }
 
     protected abstract Item callEndpoint(String field, Object item);
@@ -110,7 +170,7 @@ public abstract class AWSKeyManagementService implements Service {
                 throw new ClientErrorException("type '" + item.getClass().getTypeName() + "' for field '" + field + "' is not supported");
             }
 
-            CryptoResult<byte[], KmsMasterKey> res = client.encryptData(keyProvider, parameter, config.getContext());
+            CryptoResult<byte[], ?> res = client.encryptData(materialsManager, parameter, config.getContext());
 
             return new Item.CipherBytes(res.getResult());
         }
@@ -132,7 +192,7 @@ public abstract class AWSKeyManagementService implements Service {
                 throw new ClientErrorException("type '" + item.getClass().getTypeName() + "' for field '" + field + "' is not supported");
             }
 
-            final CryptoResult<byte[], KmsMasterKey> res = client.decryptData(keyProvider, parameter);
+            final CryptoResult<byte[], ?> res = client.decryptData(materialsManager, parameter);
 
             // verify decrypted key and context
             if (!res.getMasterKeyIds().get(0).equals(config.getKeyID())) {
@@ -0,0 +1,181 @@
+package io.github.rerorero.kafka.aws;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.services.kms.model.DataKeySpec;
+import com.amazonaws.services.kms.model.DecryptRequest;
+import com.amazonaws.services.kms.model.DecryptResult;
+import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyResult;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import io.github.rerorero.kafka.kms.Item;
+import io.github.rerorero.kafka.kms.RecordScopedService;
+import io.github.rerorero.kafka.kms.envelope.DataKey;
+import io.github.rerorero.kafka.kms.envelope.RecordEnvelope;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Encrypts or decrypts all the fields of a record with a single data key generated by AWS KMS, whose wrapped form
+ * is stored once in a Connect header of the record. Each field carries only its counter and the GCM tag, instead of
+ * the whole message header of the AWS Encryption SDK.
+ */
+public abstract class AWSRecordKeyService implements RecordScopedService {
+    private final Supplier<AWSKMS> kmsFactory;
+    private AWSKMS kms;
+    protected final AWSKMSCryptoConfig config;
+
+    AWSRecordKeyService(AWSKMSCryptoConfig config) {
+        this(config, () -> AWSKeyManagementService.kmsClientBuilder(config).build());
+    }
+
+    AWSRecordKeyService(AWSKMSCryptoConfig config, Supplier<AWSKMS> kmsFactory) {
+        this.kmsFactory = kmsFactory;
+        this.config = config;
+    }
+
+    @Override
+    public String getHeaderName() {
+        return config.getRecordKeyHeader().orElseThrow(() -> new ClientErrorException("record key header is not configured"));
+    }
+
+    @Override
+    public void init() {
+        kms = kmsFactory.get();
+    }
+
+    @Override
+    public void close() {
+        if (kms != null) {
+            kms.shutdown();
+        }
+    }
+
+    protected AWSKMS kms() {
+        if (kms == null) {
+            throw new ClientErrorException("service is not initialized");
+        }
+        return kms;
+    }
+
+    @Override
+    public <F> Map<F, Item> doCrypto(Map<F, Object> items) {
+        throw new ClientErrorException("the fields need the data key header of their record");
+    }
+
+    @Override
+    public void doCrypto(Object[] values, Item[] results, int size) {
+        throw new ClientErrorException("the fields need the data key header of their record");
+    }
+
+    protected static byte[] bytesOf(ByteBuffer buffer) {
+        final ByteBuffer b = buffer.duplicate();
+        final byte[] out = new byte[b.remaining()];
+        b.get(out);
+        return out;
+    }
+
+    public static class EncryptService extends AWSRecordKeyService {
+        public EncryptService(AWSKMSCryptoConfig config) {
+            super(config);
+        }
+
+        EncryptService(AWSKMSCryptoConfig config, Supplier<AWSKMS> kmsFactory) {
+            super(config, kmsFactory);
+        }
+
+        @Override
+        public byte[] doRecordCrypto(byte[] header, Object[] values, Item[] results, int size) {
+            final GenerateDataKeyResult res;
+            try {
+                res = kms().generateDataKey(new GenerateDataKeyRequest()
+                        .withKeyId(config.getKeyID())
+                        .withKeySpec(DataKeySpec.AES_256)
+                        .withEncryptionContext(config.getContext()));
+            } catch (SdkClientException e) {
+                throw new ServerErrorException(e);
+            }
+
+            final byte[] plaintext = bytesOf(res.getPlaintext());
+            final RecordEnvelope envelope;
+            try {
+                envelope = RecordEnvelope.of(new DataKey(plaintext, bytesOf(res.getCiphertextBlob())));
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+
+            for (int i = 0; i < size; i++) {
+                final Object item = values[i];
+                byte[] parameter;
+                if (item instanceof String) {
+                    parameter = ((String) item).getBytes();
+                } else if (item instanceof byte[]) {
+                    parameter = (byte[]) item;
+                } else {
+                    throw new ClientErrorException("type '" + item.getClass().getTypeName() + "' is not supported");
+                }
+                results[i] = new Item.CipherBytes(envelope.seal(parameter));
+            }
+            return envelope.getHeader();
+        }
+    }
+
+    public static class DecryptService extends AWSRecordKeyService {
+        public DecryptService(AWSKMSCryptoConfig config) {
+            super(config);
+        }
+
+        DecryptService(AWSKMSCryptoConfig config, Supplier<AWSKMS> kmsFactory) {
+            super(config, kmsFactory);
+        }
+
+        @Override
+        public byte[] doRecordCrypto(byte[] header, Object[] values, Item[] results, int size) {
+            if (header == null) {
+                throw new ClientErrorException("record has no data key header: " + getHeaderName());
+            }
+
+            final DecryptResult res;
+            try {
+                res = kms().decrypt(new DecryptRequest()
+                        .withKeyId(config.getKeyID())
+                        .withCiphertextBlob(ByteBuffer.wrap(RecordEnvelope.wrappedKeyOf(header)))
+                        .withEncryptionContext(config.getContext()));
+            } catch (SdkClientException e) {
+                throw new ServerErrorException(e);
+            }
+            // verify decrypted key
+            if (!config.getKeyID().equals(res.getKeyId())) {
+                throw new ClientErrorException("Master key id used to decrypt is not matched: " + res.getKeyId());
+            }
+
+            final byte[] plaintext = bytesOf(res.getPlaintext());
+            final RecordEnvelope envelope;
+            try {
+                envelope = RecordEnvelope.of(plaintext, header);
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+
+            for (int i = 0; i < size; i++) {
+                final Object item = values[i];
+                byte[] parameter;
+                if (item instanceof String) {
+                    parameter = Base64.getDecoder().decode((String) item);
+                } else if (item instanceof byte[]) {
+                    parameter = (byte[]) item;
+                } else {
+                    throw new ClientErrorException("type '" + item.getClass().getTypeName() + "' is not supported");
+                }
+                results[i] = new Item.PlainBytes(envelope.open(parameter));
+            }
+            // the key is of no use once the fields are decrypted
+            return null;
+        }
+    }
+}
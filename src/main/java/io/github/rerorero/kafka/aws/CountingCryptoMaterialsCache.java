@@ -0,0 +1,51 @@
+package io.github.rerorero.kafka.aws;
+
+import com.amazonaws.encryptionsdk.caching.CryptoMaterialsCache;
+import com.amazonaws.encryptionsdk.model.DecryptionMaterials;
+import com.amazonaws.encryptionsdk.model.EncryptionMaterials;
+import io.github.rerorero.kafka.util.CacheStats;
+
+/**
+ * {@link CryptoMaterialsCache} that delegates to another cache and counts its hits and misses.
+ */
+class CountingCryptoMaterialsCache implements CryptoMaterialsCache {
+    private final CryptoMaterialsCache delegate;
+    private final CacheStats stats = new CacheStats();
+
+    CountingCryptoMaterialsCache(CryptoMaterialsCache delegate) {
+        this.delegate = delegate;
+    }
+
+    CacheStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public EncryptCacheEntry getEntryForEncrypt(byte[] cacheId, UsageStats usageIncrement) {
+        return record(delegate.getEntryForEncrypt(cacheId, usageIncrement));
+    }
+
+    @Override
+    public EncryptCacheEntry putEntryForEncrypt(byte[] cacheId, EncryptionMaterials encryptionMaterials, CacheHint hint, UsageStats initialUsage) {
+        return delegate.putEntryForEncrypt(cacheId, encryptionMaterials, hint, initialUsage);
+    }
+
+    @Override
+    public DecryptCacheEntry getEntryForDecrypt(byte[] cacheId) {
+        return record(delegate.getEntryForDecrypt(cacheId));
+    }
+
+    @Override
+    public void putEntryForDecrypt(byte[] cacheId, DecryptionMaterials decryptionMaterials, CacheHint hint) {
+        delegate.putEntryForDecrypt(cacheId, decryptionMaterials, hint);
+    }
+
+    private <T> T record(T entry) {
+        if (entry == null) {
+            stats.recordMiss();
+        } else {
+            stats.recordHit();
+        }
+        return entry;
+    }
+}
@@ -1,26 +1,33 @@
 package io.github.rerorero.kafka.connect.transform.encrypt;
 
-import io.github.rerorero.kafka.connect.transform.encrypt.condition.Condition;
 import io.github.rerorero.kafka.connect.transform.encrypt.condition.Conditions;
 import io.github.rerorero.kafka.connect.transform.encrypt.config.Config;
 import io.github.rerorero.kafka.connect.transform.encrypt.config.FieldSelector;
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServiceException;
-import io.github.rerorero.kafka.jsonpath.Accessor;
+import io.github.rerorero.kafka.connect.transform.encrypt.plan.Fields;
+import io.github.rerorero.kafka.connect.transform.encrypt.plan.MapPlan;
+import io.github.rerorero.kafka.connect.transform.encrypt.plan.RecordPlan;
+import io.github.rerorero.kafka.connect.transform.encrypt.plan.StructPlan;
+import io.github.rerorero.kafka.connect.transform.encrypt.plan.StructPlanCache;
 import io.github.rerorero.kafka.jsonpath.JsonPathException;
 import io.github.rerorero.kafka.kms.CryptoConfig;
 import io.github.rerorero.kafka.kms.Item;
+import io.github.rerorero.kafka.kms.RecordScopedService;
 import io.github.rerorero.kafka.kms.Service;
-import io.github.rerorero.kafka.util.Pair;
 import org.apache.kafka.common.config.ConfigDef;
 import org.apache.kafka.connect.connector.ConnectRecord;
 import org.apache.kafka.connect.data.Schema;
 import org.apache.kafka.connect.data.Struct;
 import org.apache.kafka.connect.errors.DataException;
 import org.apache.kafka.connect.errors.RetriableException;
+import org.apache.kafka.connect.header.Header;
+import org.apache.kafka.connect.header.Headers;
 import org.apache.kafka.connect.transforms.Transformation;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
 import java.util.Map;
 
 import static org.apache.kafka.connect.transforms.util.Requirements.requireMap;
@@ -28,9 +35,19 @@ import static org.apache.kafka.connect.transforms.util.Requirements.requireStruc
 
 public abstract class Transform<R extends ConnectRecord<R>> implements Transformation<R> {
     private Service cryptoService;
+    // set if the fields of a record share a data key kept in a header of the record
+    private RecordScopedService recordScopedService;
     private CryptoConfig cryptoConfig;
     private FieldSelector fieldSelector;
     private Conditions conditions;
+    private MapPlan mapPlan;
+    private StructPlanCache structPlans;
+    // replaces the plans above in the whole-record mode
+    private RecordPlan recordPlan;
+    // slots of the fields reused across records
+    private final ThreadLocal<Fields> fieldSlots = ThreadLocal.withInitial(Fields::new);
+    // slots of the records of a batch, grown to the largest batch
+    private final ThreadLocal<List<Fields>> batchSlots = ThreadLocal.withInitial(ArrayList::new);
 
     @Override
     public ConfigDef config() {
@@ -44,6 +61,14 @@ public abstract class Transform<R extends ConnectRecord<R>> implements Transform
         this.fieldSelector = c.fieldSelector();
         this.cryptoConfig = c.cryptoCOnfig();
         this.conditions = c.conditions();
+        this.recordScopedService = cryptoService instanceof RecordScopedService ? (RecordScopedService) cryptoService : null;
+        if (fieldSelector.recordField != null) {
+            this.recordPlan = RecordPlan.compile(fieldSelector.recordField, fieldSelector.paths,
+                    cryptoConfig.getOutputEncoding(), fieldSelector.unpackRecord);
+        } else {
+            this.mapPlan = MapPlan.compile(fieldSelector.paths, cryptoConfig.getOutputEncoding());
+            this.structPlans = new StructPlanCache(fieldSelector.paths, cryptoConfig.getOutputEncoding());
+        }
 
         this.cryptoService.init();
     }
@@ -54,87 +79,204 @@ public abstract class Transform<R extends ConnectRecord<R>> implements Transform
 
     @Override
     public R apply(R record) {
-        final Object opValue = operatingValue(record);
-        if (opValue == null) {
-            return newRecord(record, null);
+        if (operatingValue(record) == null) {
+            return newRecord(record, operatingSchema(record), null);
         }
 
-        Object updated = null;
-        if (operatingSchema(record) == null) {
-            final Map<String, Object> org = requireMap(opValue, "encrypt/decrypt");
-            updated = doCrypto(org, fieldSelector.mapGetters, fieldSelector.mapUpdaters, conditions.mapCondition);
-        } else {
-            final Struct org = requireStruct(opValue, "encrypt/decrypt");
-            updated = doCrypto(org, fieldSelector.structGetters, fieldSelector.structUpdaters, conditions.structCondition);
+        final Fields fields = fieldSlots.get();
+        try {
+            if (extract(record, fields)) {
+                invokeService(fields);
+            }
+            return rewrite(record, fields);
+        } catch (ServerErrorException e) {
+            throw new RetriableException(e);
+        } catch (ServiceException e) {
+            throw new DataException(e);
+        } catch (JsonPathException e) {
+            throw new DataException(e);
+        } finally {
+            fields.clear();
         }
-        return newRecord(record, updated);
     }
 
-    @Override
-    public void close() {
-        if (cryptoService != null) {
-            cryptoService.close();
+    /**
+     * Transforms the records as {@link #apply} does, but calls the service once for the fields of all the records
+     * through {@link Service#doCryptoBatch}, so a provider which batches requests sends a batch per call instead of
+     * per record. Records with a data key header are still sent one by one, as each has its own key.
+     *
+     * @return The transformed records in the order of the given ones
+     */
+    public List<R> applyBatch(List<R> records) {
+        final List<Fields> slots = batchSlots.get();
+        while (slots.size() < records.size()) {
+            slots.add(new Fields());
         }
-    }
 
-    private <R> R doCrypto(
-            R value,
-            Map<String, Accessor.Getter<R>> getters,
-            Map<String, Accessor.Updater<R>> updaters,
-            Condition<R> condition
-    ) {
+        final Object[][] values = new Object[records.size()][];
+        final Item[][] results = new Item[records.size()][];
+        final int[] sizes = new int[records.size()];
         try {
-            if (!condition.accept(value)) {
-                return value;
+            int count = 0;
+            for (int r = 0; r < records.size(); r++) {
+                final R record = records.get(r);
+                final Fields fields = slots.get(r);
+                if (operatingValue(record) != null && extract(record, fields)) {
+                    if (recordScopedService != null) {
+                        invokeService(fields);
+                    } else {
+                        values[count] = fields.values();
+                        results[count] = fields.results();
+                        sizes[count++] = fields.size();
+                    }
+                }
             }
-
-            // Key of the map is a pair of JsonPath expression and the field path
-            final Map<Pair<String, String>, Object> params = new HashMap<>();
-            getters.forEach((jsonPathExp, getter) ->
-                    getter.run(value).forEach((fieldPath, fieldValue) ->
-                            params.put(new Pair(jsonPathExp, fieldPath), fieldValue)
-                    )
-            );
-
-            if (params.isEmpty()) {
-                return value;
+            if (count > 0) {
+                cryptoService.doCryptoBatch(values, results, sizes, count);
             }
 
-            Map<Pair<String, String>, Item> results = null;
-            results = cryptoService.doCrypto(params);
-
-            // Map from JsonPath expression to encrypted/decrypted values which is a map from field path to the new value.
-            final HashMap<String, Map<String, Object>> newValues = new HashMap<>();
-            results.forEach((pair, item) -> {
-                String jsonPathExp = pair.key;
-                String fieldPath = pair.value;
-                Object newVal = item.asObject(cryptoConfig.getOutputEncoding());
-                newValues.computeIfAbsent(jsonPathExp, exp -> new HashMap<>())
-                        .put(fieldPath, newVal);
-            });
-
-            // Apply Updater for each JsonPath
-            R updated = value;
-            for (Map.Entry<String, Map<String, Object>> kv : newValues.entrySet()) {
-                Accessor.Updater<R> updater = updaters.get(kv.getKey());
-                updated = updater.run(updated, kv.getValue());
+            final List<R> out = new ArrayList<>(records.size());
+            for (int r = 0; r < records.size(); r++) {
+                final R record = records.get(r);
+                out.add(operatingValue(record) == null
+                        ? newRecord(record, operatingSchema(record), null)
+                        : rewrite(record, slots.get(r)));
             }
-
-            return updated;
+            return out;
         } catch (ServerErrorException e) {
             throw new RetriableException(e);
         } catch (ServiceException e) {
             throw new DataException(e);
         } catch (JsonPathException e) {
             throw new DataException(e);
+        } finally {
+            for (int r = 0; r < records.size(); r++) {
+                slots.get(r).clear();
+            }
+        }
+    }
+
+    /**
+     * Extracts the target fields of the record, whose value must not be null.
+     *
+     * @return false if the service needn't be called for the record
+     */
+    private boolean extract(R record, Fields fields) {
+        if (recordScopedService != null) {
+            fields.setRecordHeader(recordHeaderOf(record));
+        }
+        if (operatingSchema(record) == null) {
+            return extract(requireMap(operatingValue(record), "encrypt/decrypt"), fields);
+        }
+        return extract(requireStruct(operatingValue(record), "encrypt/decrypt"), fields);
+    }
+
+    /**
+     * Builds the record with the results of the fields extracted by {@link #extract(ConnectRecord, Fields)}.
+     */
+    private R rewrite(R record, Fields fields) {
+        final R updated;
+        if (operatingSchema(record) == null) {
+            final Map<String, Object> org = requireMap(operatingValue(record), "encrypt/decrypt");
+            updated = newRecord(record, null, fields.isEmpty() ? org : rewrite(org, fields));
+        } else {
+            final Struct org = requireStruct(operatingValue(record), "encrypt/decrypt");
+            final Struct updatedValue = fields.isEmpty() ? org : rewrite(org, fields);
+            // the schema of the encrypted/decrypted fields may be changed
+            updated = newRecord(record, updatedValue.schema(), updatedValue);
+        }
+
+        // the header is updated only if the service is called for the record
+        if (recordScopedService != null && !fields.isEmpty()) {
+            final Headers headers = updated.headers();
+            headers.remove(recordScopedService.getHeaderName());
+            if (fields.getRecordHeader() != null) {
+                headers.addBytes(recordScopedService.getHeaderName(), fields.getRecordHeader());
+            }
+        }
+        return updated;
+    }
+
+    private byte[] recordHeaderOf(R record) {
+        final Header header = record.headers().lastWithName(recordScopedService.getHeaderName());
+        if (header == null || header.value() == null) {
+            return null;
+        }
+        if (header.value() instanceof byte[]) {
+            return (byte[]) header.value();
+        }
+        if (header.value() instanceof String) {
+            // header converters which don't keep the schema read the bytes as base64
+            try {
+                return Base64.getDecoder().decode((String) header.value());
+            } catch (IllegalArgumentException e) {
+                throw new DataException("invalid header " + header.key(), e);
+            }
+        }
+        throw new DataException("unsupported type of header " + header.key() + ": " + header.value().getClass());
+    }
+
+    private void invokeService(Fields fields) {
+        if (recordScopedService != null) {
+            fields.setRecordHeader(recordScopedService.doRecordCrypto(
+                    fields.getRecordHeader(), fields.values(), fields.results(), fields.size()));
+        } else {
+            cryptoService.doCrypto(fields.values(), fields.results(), fields.size());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (cryptoService != null) {
+            cryptoService.close();
+        }
+    }
+
+    private boolean extract(Struct value, Fields fields) {
+        if (!conditions.structCondition.accept(value)) {
+            return false;
+        }
+
+        if (recordPlan != null) {
+            recordPlan.extract(value, fields);
+        } else {
+            structPlans.get(value.schema()).extract(value, fields);
+        }
+        return !fields.isEmpty();
+    }
+
+    private Struct rewrite(Struct value, Fields fields) {
+        if (recordPlan != null) {
+            return recordPlan.rewrite(value, fields);
+        }
+        return structPlans.get(value.schema()).rewrite(value, fields);
+    }
+
+    private boolean extract(Map<String, Object> value, Fields fields) {
+        if (!conditions.mapCondition.accept(value)) {
+            return false;
+        }
+
+        if (recordPlan != null) {
+            recordPlan.extract(value, fields);
+        } else {
+            mapPlan.extract(value, fields);
+        }
+        return !fields.isEmpty();
+    }
+
+    private Map<String, Object> rewrite(Map<String, Object> value, Fields fields) {
+        if (recordPlan != null) {
+            return recordPlan.rewrite(value, fields);
         }
+        return mapPlan.rewrite(value, fields);
     }
 
     abstract Schema operatingSchema(R record);
 
     abstract Object operatingValue(R record);
 
-    abstract R newRecord(R base, Object value);
+    abstract R newRecord(R base, Schema schema, Object value);
 
     public static class Key<R extends ConnectRecord<R>> extends Transform<R> {
         @Override
@@ -148,8 +290,8 @@ public abstract class Transform<R extends ConnectRecord<R>> implements Transform
         }
 
         @Override
-        protected R newRecord(R record, Object updatedValue) {
-            return record.newRecord(record.topic(), record.kafkaPartition(), record.keySchema(), updatedValue, record.valueSchema(), record.value(), record.timestamp());
+        protected R newRecord(R record, Schema updatedSchema, Object updatedValue) {
+            return record.newRecord(record.topic(), record.kafkaPartition(), updatedSchema, updatedValue, record.valueSchema(), record.value(), record.timestamp());
         }
     }
 
@@ -165,8 +307,8 @@ public abstract class Transform<R extends ConnectRecord<R>> implements Transform
         }
 
         @Override
-        protected R newRecord(R record, Object updatedValue) {
-            return record.newRecord(record.topic(), record.kafkaPartition(), record.keySchema(), record.key(), record.valueSchema(), updatedValue, record.timestamp());
+        protected R newRecord(R record, Schema updatedSchema, Object updatedValue) {
+            return record.newRecord(record.topic(), record.kafkaPartition(), record.keySchema(), record.key(), updatedSchema, updatedValue, record.timestamp());
         }
     }
 }
\ No newline at end of file
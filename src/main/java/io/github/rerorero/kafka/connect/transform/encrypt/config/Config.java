@@ -7,17 +7,28 @@ import com.bettercloud.vault.VaultConfig;
 import com.bettercloud.vault.VaultException;
 import io.github.rerorero.kafka.aws.AWSKMSCryptoConfig;
 import io.github.rerorero.kafka.aws.AWSKeyManagementService;
+import io.github.rerorero.kafka.aws.AWSRecordKeyService;
 import io.github.rerorero.kafka.connect.transform.encrypt.condition.Conditions;
+import io.github.rerorero.kafka.connect.transform.encrypt.plan.JsonPath;
 import io.github.rerorero.kafka.gcp.GCPKMSCryptoConfig;
 import io.github.rerorero.kafka.gcp.GCPKeyManagementService;
 import io.github.rerorero.kafka.jsonpath.JsonPathException;
-import io.github.rerorero.kafka.jsonpath.MapAccessor;
-import io.github.rerorero.kafka.jsonpath.StructAccessor;
+import io.github.rerorero.kafka.kms.CachingDecryptService;
+import io.github.rerorero.kafka.kms.CachingEncryptService;
 import io.github.rerorero.kafka.kms.CryptoConfig;
+import io.github.rerorero.kafka.kms.ExecutorConfig;
 import io.github.rerorero.kafka.kms.Item;
+import io.github.rerorero.kafka.kms.RetryConfig;
 import io.github.rerorero.kafka.kms.Service;
+import io.github.rerorero.kafka.kms.envelope.EnvelopeConfig;
 import io.github.rerorero.kafka.vault.VaultCryptoConfig;
+import io.github.rerorero.kafka.vault.VaultEnvelopeService;
 import io.github.rerorero.kafka.vault.VaultService;
+import io.github.rerorero.kafka.vault.client.CoalescingVaultClient;
+import io.github.rerorero.kafka.vault.client.HttpConfig;
+import io.github.rerorero.kafka.vault.client.PooledHttpTransport;
+import io.github.rerorero.kafka.vault.client.RoutingVaultClient;
+import io.github.rerorero.kafka.vault.client.StreamingVaultClient;
 import io.github.rerorero.kafka.vault.client.VaultClient;
 import io.github.rerorero.kafka.vault.client.VaultClientImpl;
 import org.apache.kafka.common.config.ConfigDef;
@@ -27,6 +38,9 @@ import org.bouncycastle.util.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 public abstract class Config {
@@ -50,16 +64,52 @@ public abstract class Config {
     public static final String FIELD_ENCODING_BINARY = "binary";
     private static final OneOfValidator<String> encodingValidator = new OneOfValidator<>(FIELD_ENCODING_STRING, FIELD_ENCODING_BINARY);
 
+    public static final String RECORD_FIELD = "record.field";
+
     public static final String CONDITION_FIELD = "condition.field";
     public static final String CONDITION_EQUALS = "condition.equals";
 
     public static final String ASYMMETRIC = "asymmetric";
 
+    public static final String EXECUTOR_THREADS = "executor.threads";
+    public static final String EXECUTOR_QUEUE_SIZE = "executor.queue_size";
+
+    public static final String ENVELOPE = "envelope";
+    public static final String ENVELOPE_DATA_KEY_MAX_USES = "envelope.data_key.max_uses";
+    public static final String ENVELOPE_DATA_KEY_MAX_AGE_MS = "envelope.data_key.max_age_ms";
+    public static final String ENVELOPE_DATA_KEY_CACHE_CAPACITY = "envelope.data_key.cache.capacity";
+    public static final String ENVELOPE_DATA_KEY_CACHE_TTL_MS = "envelope.data_key.cache.ttl_ms";
+
+    public static final String ENCRYPT_CACHE_ENABLED = "encrypt.cache.enabled";
+    public static final String ENCRYPT_CACHE_CAPACITY = "encrypt.cache.capacity";
+    public static final String ENCRYPT_CACHE_TTL_MS = "encrypt.cache.ttl_ms";
+
+    public static final String DECRYPT_CACHE_ENABLED = "decrypt.cache.enabled";
+    public static final String DECRYPT_CACHE_MAX_BYTES = "decrypt.cache.max_bytes";
+    public static final String DECRYPT_CACHE_TTL_MS = "decrypt.cache.ttl_ms";
+
     // Vault
     public static final String VAULT_URL = "vault.url";
     public static final String VAULT_TOKEN = "vault.token";
     public static final String VAULT_KEY_NAME = "vault.key_name";
     public static final String VAULT_CONTEXT = "vault.context";
+    public static final String VAULT_BATCH_MAX_ITEMS = "vault.batch.max_items";
+    public static final String VAULT_BATCH_MAX_BYTES = "vault.batch.max_bytes";
+    public static final String VAULT_RETRY_MAX_RETRIES = "vault.retry.max_retries";
+    public static final String VAULT_RETRY_BACKOFF_MS = "vault.retry.backoff_ms";
+    public static final String VAULT_RETRY_MAX_BACKOFF_MS = "vault.retry.max_backoff_ms";
+    public static final String VAULT_CLIENT = "vault.client";
+    public static final String VAULT_CLIENT_DRIVER = "driver";
+    public static final String VAULT_CLIENT_STREAMING = "streaming";
+    public static final String VAULT_CLIENT_POOLED = "pooled";
+    private static final OneOfValidator<String> vaultClientValidator = new OneOfValidator<>(VAULT_CLIENT_DRIVER, VAULT_CLIENT_STREAMING, VAULT_CLIENT_POOLED);
+    public static final String VAULT_HTTP_MAX_CONNECTIONS = "vault.http.max_connections";
+    public static final String VAULT_HTTP_KEEP_ALIVE_MS = "vault.http.keep_alive_ms";
+    public static final String VAULT_HTTP_CONNECT_TIMEOUT_MS = "vault.http.connect_timeout_ms";
+    public static final String VAULT_HTTP_READ_TIMEOUT_MS = "vault.http.read_timeout_ms";
+    public static final String VAULT_ROUTING_EJECTION_MS = "vault.routing.ejection_ms";
+    public static final String VAULT_CIPHERTEXT_COMPACT = "vault.ciphertext.compact";
+    public static final String VAULT_COALESCE_WINDOW_MS = "vault.coalesce.window_ms";
 
     // AWS KMS
     public static final String AWSKMS_ACCESS_KEY_ID = "awskms.aws_access_key_id";
@@ -69,6 +119,12 @@ public abstract class Config {
     public static final String AWSKMS_CONTEXTS = "awskms.contexts";
     public static final String AWSKMS_ENCRYPTION_ALGORITHM = "awskms.encryption_algorithm";
     public static final String AWSKMS_ENDPOINT = "awskms.endpoint";
+    public static final String AWSKMS_DATA_KEY_CACHE_ENABLED = "awskms.data_key_cache.enabled";
+    public static final String AWSKMS_DATA_KEY_CACHE_CAPACITY = "awskms.data_key_cache.capacity";
+    public static final String AWSKMS_DATA_KEY_CACHE_MAX_AGE_MS = "awskms.data_key_cache.max_age_ms";
+    public static final String AWSKMS_DATA_KEY_CACHE_MAX_MESSAGES = "awskms.data_key_cache.max_messages";
+    public static final String AWSKMS_DATA_KEY_CACHE_MAX_BYTES = "awskms.data_key_cache.max_bytes";
+    public static final String AWSKMS_RECORD_KEY_HEADER = "awskms.record_key.header";
 
     // GCP Cloud KMS
     public static final String GCPKMS_KEY_PROJECT_ID = "gcpkms.key.project_id";
@@ -88,6 +144,9 @@ public abstract class Config {
                             + "Multiple paths can be specified separated by commas.")
             .define(FIELD_ENCODING_OUT, ConfigDef.Type.STRING, FIELD_ENCODING_STRING, encodingValidator,
                     ConfigDef.Importance.LOW, "Encoding of output field after encrypted or decrypted.")
+            .define(RECORD_FIELD, ConfigDef.Type.STRING, null,
+                    ConfigDef.Importance.MEDIUM, "Field into which the fields specified by " + FIELDS + ", or all the fields if it is empty, are packed and encrypted as a single item. "
+                            + "Only top-level fields can be specified by " + FIELDS + " when this is set. In " + MODE_DECRYPT + " mode the field is decrypted and unpacked into the original fields.")
             .define(CONDITION_FIELD, ConfigDef.Type.STRING, null,
                     ConfigDef.Importance.LOW, "(optional) Specifies the condition for the transform."
                             + "When condition.* are set, transform is performed only if the value of the JsonPath field specified by " + CONDITION_FIELD + " matches " + CONDITION_EQUALS)
@@ -96,15 +155,71 @@ public abstract class Config {
                             + "When condition.* are set, transform is performed only if the value of the JsonPath field specified by " + CONDITION_FIELD + " matches " + CONDITION_EQUALS)
             .define(ASYMMETRIC, ConfigDef.Type.BOOLEAN, false,
                     ConfigDef.Importance.LOW, "Specifies whether the key to crypt/decrypt is asymmetric. Default is false.")
+            .define(EXECUTOR_THREADS, ConfigDef.Type.INT, ExecutorConfig.DEFAULT_THREADS, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Maximum number of threads which send requests to the key management service concurrently.")
+            .define(EXECUTOR_QUEUE_SIZE, ConfigDef.Type.INT, ExecutorConfig.DEFAULT_QUEUE_SIZE, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Maximum number of requests waiting for a thread. When it is full, the request runs on the calling thread.")
+            .define(ENVELOPE, ConfigDef.Type.BOOLEAN, false,
+                    ConfigDef.Importance.MEDIUM, "Specifies whether fields are encrypted locally with data keys wrapped by the key management service. Default is false.")
+            .define(ENVELOPE_DATA_KEY_MAX_USES, ConfigDef.Type.LONG, 1000000L, ConfigDef.Range.between(1, 1L << 32),
+                    ConfigDef.Importance.LOW, "Maximum number of fields encrypted with a data key before it is rotated.")
+            .define(ENVELOPE_DATA_KEY_MAX_AGE_MS, ConfigDef.Type.LONG, 600000L, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Maximum time in milliseconds a data key is used for encryption before it is rotated.")
+            .define(ENVELOPE_DATA_KEY_CACHE_CAPACITY, ConfigDef.Type.INT, 1000, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Maximum number of unwrapped data keys cached for decryption.")
+            .define(ENVELOPE_DATA_KEY_CACHE_TTL_MS, ConfigDef.Type.LONG, 3600000L, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Time in milliseconds an unwrapped data key is cached for decryption.")
+            .define(ENCRYPT_CACHE_ENABLED, ConfigDef.Type.BOOLEAN, false,
+                    ConfigDef.Importance.MEDIUM, "Specifies whether the cipher text of each plaintext is cached in " + MODE_ENCRYPT + " mode. "
+                            + "Use this only with deterministic encryption such as Vault convergent encryption. Default is false.")
+            .define(ENCRYPT_CACHE_CAPACITY, ConfigDef.Type.INT, 10000, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Maximum number of cipher text cached in " + MODE_ENCRYPT + " mode.")
+            .define(ENCRYPT_CACHE_TTL_MS, ConfigDef.Type.LONG, 600000L, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Time in milliseconds a cipher text is cached in " + MODE_ENCRYPT + " mode.")
+            .define(DECRYPT_CACHE_ENABLED, ConfigDef.Type.BOOLEAN, false,
+                    ConfigDef.Importance.MEDIUM, "Specifies whether the plaintext of each cipher text is cached in " + MODE_DECRYPT + " mode. Default is false.")
+            .define(DECRYPT_CACHE_MAX_BYTES, ConfigDef.Type.LONG, 64L * 1024 * 1024, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Maximum memory in bytes used by the plaintext cached in " + MODE_DECRYPT + " mode.")
+            .define(DECRYPT_CACHE_TTL_MS, ConfigDef.Type.LONG, 600000L, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Time in milliseconds a plaintext is cached in " + MODE_DECRYPT + " mode.")
             // Vault
-            .define(VAULT_URL, ConfigDef.Type.STRING, null,
-                    ConfigDef.Importance.HIGH, "URL of the Vault server.")
+            .define(VAULT_URL, ConfigDef.Type.LIST, null,
+                    ConfigDef.Importance.HIGH, "URL of the Vault server, or comma separated URLs of the Vault nodes to spread the requests over.")
             .define(VAULT_TOKEN, ConfigDef.Type.PASSWORD, null,
                     ConfigDef.Importance.HIGH, "The token used to access Vault.")
             .define(VAULT_KEY_NAME, ConfigDef.Type.STRING, null,
                     ConfigDef.Importance.HIGH, "Name of the key to encrypt or decrypt")
             .define(VAULT_CONTEXT, ConfigDef.Type.STRING, null, Base64StringValidator.singleton,
                     ConfigDef.Importance.MEDIUM, "(optional) Specifies the Base64 context for key derivation. This is required if key derivation is enabled for the key.")
+            .define(VAULT_BATCH_MAX_ITEMS, ConfigDef.Type.INT, VaultCryptoConfig.DEFAULT_BATCH_MAX_ITEMS, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Maximum number of fields sent in a batch request. Larger batches are split and sent concurrently.")
+            .define(VAULT_BATCH_MAX_BYTES, ConfigDef.Type.INT, VaultCryptoConfig.DEFAULT_BATCH_MAX_BYTES, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Maximum size in bytes of the fields sent in a batch request. Larger batches are split and sent concurrently.")
+            .define(VAULT_RETRY_MAX_RETRIES, ConfigDef.Type.INT, RetryConfig.DEFAULT_MAX_RETRIES, ConfigDef.Range.atLeast(0),
+                    ConfigDef.Importance.LOW, "Maximum number of retries of the fields which failed with a server error, before the record fails.")
+            .define(VAULT_RETRY_BACKOFF_MS, ConfigDef.Type.LONG, RetryConfig.DEFAULT_BACKOFF_MS, ConfigDef.Range.atLeast(0),
+                    ConfigDef.Importance.LOW, "Time in milliseconds to wait before the first retry, which doubles on each retry.")
+            .define(VAULT_RETRY_MAX_BACKOFF_MS, ConfigDef.Type.LONG, RetryConfig.DEFAULT_MAX_BACKOFF_MS, ConfigDef.Range.atLeast(0),
+                    ConfigDef.Importance.LOW, "Maximum time in milliseconds to wait before a retry.")
+            .define(VAULT_CLIENT, ConfigDef.Type.STRING, VAULT_CLIENT_DRIVER, vaultClientValidator,
+                    ConfigDef.Importance.LOW, "The client which sends the requests to Vault. '" + VAULT_CLIENT_STREAMING + "' writes and reads the batches without building JSON documents of them, "
+                            + "and '" + VAULT_CLIENT_POOLED + "' does the same on a pool of keep-alive connections.")
+            .define(VAULT_HTTP_MAX_CONNECTIONS, ConfigDef.Type.INT, HttpConfig.DEFAULT_MAX_CONNECTIONS, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Maximum number of connections to Vault of the " + VAULT_CLIENT_POOLED + " client, which bounds the requests in flight at once.")
+            .define(VAULT_HTTP_KEEP_ALIVE_MS, ConfigDef.Type.LONG, HttpConfig.DEFAULT_KEEP_ALIVE_MS, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Time in milliseconds an idle connection of the " + VAULT_CLIENT_POOLED + " client is kept open to be reused.")
+            .define(VAULT_HTTP_CONNECT_TIMEOUT_MS, ConfigDef.Type.INT, HttpConfig.DEFAULT_CONNECT_TIMEOUT_MS, ConfigDef.Range.atLeast(0),
+                    ConfigDef.Importance.LOW, "Timeout in milliseconds of the " + VAULT_CLIENT_POOLED + " client to connect to Vault, or to wait for a free connection.")
+            .define(VAULT_HTTP_READ_TIMEOUT_MS, ConfigDef.Type.INT, HttpConfig.DEFAULT_READ_TIMEOUT_MS, ConfigDef.Range.atLeast(0),
+                    ConfigDef.Importance.LOW, "Timeout in milliseconds of the " + VAULT_CLIENT_POOLED + " client to wait for the response data.")
+            .define(VAULT_ROUTING_EJECTION_MS, ConfigDef.Type.LONG, 30000L, ConfigDef.Range.atLeast(0),
+                    ConfigDef.Importance.LOW, "Time in milliseconds a Vault node is skipped after it failed with a server error, when " + VAULT_URL + " has several URLs.")
+            .define(VAULT_COALESCE_WINDOW_MS, ConfigDef.Type.LONG, 0L, ConfigDef.Range.atLeast(0),
+                    ConfigDef.Importance.LOW, "Time in milliseconds the batch requests for the same key from all the tasks in the worker are collected to be sent to Vault as one request. "
+                            + "0 disables it, and each task sends its own requests.")
+            .define(VAULT_CIPHERTEXT_COMPACT, ConfigDef.Type.BOOLEAN, false,
+                    ConfigDef.Importance.LOW, "Whether the fields encrypted with " + FIELD_ENCODING_OUT + "=" + FIELD_ENCODING_BINARY + " take a compact binary form instead of the bytes of the Vault cipher text. "
+                            + "The " + MODE_DECRYPT + " mode reads both forms.")
             // AWS KMS
             .define(AWSKMS_ACCESS_KEY_ID, ConfigDef.Type.PASSWORD, null,
                     ConfigDef.Importance.MEDIUM, "AWS_ACCESS_KEY_ID of the AWS credentials to access KMS")
@@ -120,6 +235,19 @@ public abstract class Config {
                     ConfigDef.Importance.LOW, "The encryption algorithm.")
             .define(AWSKMS_ENDPOINT, ConfigDef.Type.STRING, null,
                     ConfigDef.Importance.LOW, "(optional) Overrides the URL of the default KMS endpoint with given URL.")
+            .define(AWSKMS_DATA_KEY_CACHE_ENABLED, ConfigDef.Type.BOOLEAN, false,
+                    ConfigDef.Importance.MEDIUM, "Specifies whether data keys are cached and reused across fields. Default is false.")
+            .define(AWSKMS_DATA_KEY_CACHE_CAPACITY, ConfigDef.Type.INT, 100, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Maximum number of data keys held in the cache.")
+            .define(AWSKMS_DATA_KEY_CACHE_MAX_AGE_MS, ConfigDef.Type.LONG, 60000L, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Maximum time in milliseconds a cached data key is used.")
+            .define(AWSKMS_DATA_KEY_CACHE_MAX_MESSAGES, ConfigDef.Type.LONG, 1000000L, ConfigDef.Range.between(1, 1L << 32),
+                    ConfigDef.Importance.LOW, "Maximum number of fields encrypted with a cached data key.")
+            .define(AWSKMS_DATA_KEY_CACHE_MAX_BYTES, ConfigDef.Type.LONG, Long.MAX_VALUE, ConfigDef.Range.atLeast(1),
+                    ConfigDef.Importance.LOW, "Maximum number of bytes encrypted with a cached data key.")
+            .define(AWSKMS_RECORD_KEY_HEADER, ConfigDef.Type.STRING, null,
+                    ConfigDef.Importance.LOW, "Name of the Connect header which holds a data key shared by all the fields of a record. "
+                            + "When this is set, a record costs a single data key generation (or decryption) by KMS, and each field carries only a counter and a tag.")
             // GCP Cloud KMS
             .define(GCPKMS_KEY_PROJECT_ID, ConfigDef.Type.STRING, null,
                     ConfigDef.Importance.HIGH, "GCP project ID for the key")
@@ -151,17 +279,31 @@ public abstract class Config {
     }
 
     protected static FieldSelector newFieldSelector(Set<String> jsonPaths) {
+        return newFieldSelector(jsonPaths, null, false);
+    }
+
+    protected static FieldSelector newFieldSelector(Set<String> jsonPaths, String recordField, boolean unpackRecord) {
         FieldSelector fs = new FieldSelector();
         jsonPaths.forEach(path -> {
+            final JsonPath parsed;
             try {
-                fs.mapGetters.put(path, new MapAccessor.Getter(path));
-                fs.mapUpdaters.put(path, new MapAccessor.Updater(path));
-                fs.structGetters.put(path, new StructAccessor.Getter(path));
-                fs.structUpdaters.put(path, new StructAccessor.Updater(path));
+                parsed = JsonPath.parse(path);
             } catch (JsonPathException e) {
                 throw new ConfigException(FIELDS, path, e.getMessage());
             }
+            if (recordField != null) {
+                final List<JsonPath.Segment> segments = parsed.getSegments();
+                if (segments.size() != 1 || !segments.get(0).isName()) {
+                    throw new ConfigException(FIELDS, path, "Only top-level fields can be specified when " + RECORD_FIELD + " is set");
+                }
+                if (segments.get(0).getName().equals(recordField)) {
+                    throw new ConfigException(FIELDS, path, "The field can't be packed into itself");
+                }
+            }
+            fs.paths.add(parsed);
         });
+        fs.recordField = recordField;
+        fs.unpackRecord = unpackRecord;
         return fs;
     }
 
@@ -180,6 +322,18 @@ public abstract class Config {
         throw new ConfigException("You need to specify both " + CONDITION_FIELD + " and " + CONDITION_EQUALS + " to set condition");
     }
 
+    protected static ExecutorConfig newExecutorConfig(SimpleConfig conf) {
+        return new ExecutorConfig(conf.getInt(EXECUTOR_THREADS), conf.getInt(EXECUTOR_QUEUE_SIZE));
+    }
+
+    protected static EnvelopeConfig newEnvelopeConfig(SimpleConfig conf) {
+        return new EnvelopeConfig(
+                conf.getLong(ENVELOPE_DATA_KEY_MAX_USES),
+                conf.getLong(ENVELOPE_DATA_KEY_MAX_AGE_MS),
+                conf.getInt(ENVELOPE_DATA_KEY_CACHE_CAPACITY),
+                conf.getLong(ENVELOPE_DATA_KEY_CACHE_TTL_MS));
+    }
+
     protected void ensureStringValueExists(SimpleConfig conf, String key, String message) {
         if (conf.getString(key) == null) {
             throw new ConfigException(key, null, message);
@@ -216,48 +370,136 @@ public abstract class Config {
             final SimpleConfig conf = new SimpleConfig(DEF, props);
 
             // general configurations
-            this.fieldSel = newFieldSelector(new HashSet<>(conf.getList(FIELDS)));
+            this.fieldSel = newFieldSelector(new HashSet<>(conf.getList(FIELDS)), conf.getString(RECORD_FIELD),
+                    conf.getString(MODE).equals(MODE_DECRYPT));
             this.conds = newConditions(conf.getString(CONDITION_FIELD), conf.getString(CONDITION_EQUALS));
             this.cryptoConf = new CryptoConfig(encodingOf(conf.getString(FIELD_ENCODING_OUT)));
 
+            final Service svc;
             if (conf.getString(SERVICE).equals(SERVICE_VAULT)) {
-                this.service = vaultService(conf);
+                svc = vaultService(conf);
             } else if (conf.getString(SERVICE).equals(SERVICE_AWSKMS)) {
-                this.service = awsKmsService(conf);
+                svc = awsKmsService(conf);
             } else if (conf.getString(SERVICE).equals(SERVICE_GCPKMS)) {
-                this.service = gcpKmsService(conf);
+                svc = gcpKmsService(conf);
             } else {
                 throw new ConfigException(SERVICE, conf.getString(SERVICE), "unknown service");
             }
+            this.service = withCache(conf, svc);
         }
 
-        private Service vaultService(SimpleConfig conf) {
-            ensureStringValueExists(conf, VAULT_URL, "Required parameter for " + SERVICE_VAULT + " service");
-            ensureStringValueExists(conf, VAULT_KEY_NAME, "Required parameter for " + SERVICE_VAULT + " service");
+        private Service withCache(SimpleConfig conf, Service svc) {
+            if (conf.getBoolean(ENCRYPT_CACHE_ENABLED)) {
+                if (!conf.getString(MODE).equals(MODE_ENCRYPT)) {
+                    throw new ConfigException(ENCRYPT_CACHE_ENABLED, true, "Available only in " + MODE_ENCRYPT + " mode");
+                }
+                return new CachingEncryptService(svc, keyNamespace(conf),
+                        conf.getInt(ENCRYPT_CACHE_CAPACITY), conf.getLong(ENCRYPT_CACHE_TTL_MS));
+            }
+            if (conf.getBoolean(DECRYPT_CACHE_ENABLED)) {
+                if (!conf.getString(MODE).equals(MODE_DECRYPT)) {
+                    throw new ConfigException(DECRYPT_CACHE_ENABLED, true, "Available only in " + MODE_DECRYPT + " mode");
+                }
+                return new CachingDecryptService(svc, conf.getLong(DECRYPT_CACHE_MAX_BYTES), conf.getLong(DECRYPT_CACHE_TTL_MS));
+            }
+            return svc;
+        }
 
-            final VaultConfig vc = new VaultConfig().address(conf.getString(VAULT_URL));
-            if (conf.getPassword(VAULT_TOKEN) != null) {
-                vc.token(conf.getPassword(VAULT_TOKEN).value());
+        // Identifies the key and the context of the service.
+        private String keyNamespace(SimpleConfig conf) {
+            final String service = conf.getString(SERVICE);
+            if (service.equals(SERVICE_VAULT)) {
+                return String.join("|", service, conf.getString(VAULT_KEY_NAME), String.valueOf(conf.getString(VAULT_CONTEXT)));
+            } else if (service.equals(SERVICE_AWSKMS)) {
+                return String.join("|", service, conf.getString(AWSKMS_CMK_KEYID), conf.getString(AWSKMS_CONTEXTS));
             }
+            return String.join("|", service, conf.getString(GCPKMS_KEY_PROJECT_ID), conf.getString(GCPKMS_KEY_LOCATION_ID),
+                    conf.getString(GCPKMS_KEY_RING_ID), conf.getString(GCPKMS_KEY_KEY_ID), String.valueOf(conf.getString(GCPKMS_KEY_KEY_VERSION_ID)));
+        }
 
-            VaultClient client = null;
-            try {
-                client = new VaultClientImpl(new Vault(vc.build(), 1));
-            } catch (VaultException e) {
-                throw new ConfigException("Unable to create Vault client: " + e.getMessage());
+        private Service vaultService(SimpleConfig conf) {
+            if (conf.getList(VAULT_URL) == null || conf.getList(VAULT_URL).isEmpty()) {
+                throw new ConfigException(VAULT_URL, null, "Required parameter for " + SERVICE_VAULT + " service");
             }
+            ensureStringValueExists(conf, VAULT_KEY_NAME, "Required parameter for " + SERVICE_VAULT + " service");
+
+            final VaultClient client = conf.getLong(VAULT_COALESCE_WINDOW_MS) > 0
+                    ? CoalescingVaultClient.shared(vaultTarget(conf), conf.getLong(VAULT_COALESCE_WINDOW_MS),
+                    conf.getInt(VAULT_BATCH_MAX_ITEMS), conf.getInt(VAULT_BATCH_MAX_BYTES), () -> newVaultClient(conf))
+                    : newVaultClient(conf);
 
             VaultCryptoConfig vaultConf = new VaultCryptoConfig(
                     conf.getString(VAULT_KEY_NAME),
-                    Optional.ofNullable(conf.getString(VAULT_CONTEXT))
+                    Optional.ofNullable(conf.getString(VAULT_CONTEXT)),
+                    conf.getInt(VAULT_BATCH_MAX_ITEMS),
+                    conf.getInt(VAULT_BATCH_MAX_BYTES),
+                    newExecutorConfig(conf),
+                    new RetryConfig(conf.getInt(VAULT_RETRY_MAX_RETRIES), conf.getLong(VAULT_RETRY_BACKOFF_MS), conf.getLong(VAULT_RETRY_MAX_BACKOFF_MS)),
+                    conf.getBoolean(VAULT_CIPHERTEXT_COMPACT)
             );
 
+            if (conf.getBoolean(ENVELOPE)) {
+                if (conf.getString(MODE).equals(MODE_ENCRYPT)) {
+                    return new VaultEnvelopeService.EncryptService(client, vaultConf, newEnvelopeConfig(conf));
+                }
+                return new VaultEnvelopeService.DecryptService(client, vaultConf, newEnvelopeConfig(conf));
+            }
+
             if (conf.getString(MODE).equals(MODE_ENCRYPT)) {
                 return new VaultService.EncryptService(client, vaultConf);
             }
             return new VaultService.DecryptService(client, vaultConf);
         }
 
+        private VaultClient newVaultClient(SimpleConfig conf) {
+            final List<VaultClient> clients = new ArrayList<>();
+            for (String url : conf.getList(VAULT_URL)) {
+                clients.add(newVaultClient(conf, url));
+            }
+            return clients.size() == 1 ? clients.get(0)
+                    : new RoutingVaultClient(clients, conf.getLong(VAULT_ROUTING_EJECTION_MS));
+        }
+
+        // Identifies the Vault client to be shared by the tasks, with a digest instead of the token itself.
+        private String vaultTarget(SimpleConfig conf) {
+            final String token = conf.getPassword(VAULT_TOKEN) == null ? "" : conf.getPassword(VAULT_TOKEN).value();
+            final String tokenDigest;
+            try {
+                tokenDigest = Base64.getEncoder().encodeToString(
+                        MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8)));
+            } catch (NoSuchAlgorithmException e) {
+                throw new ConfigException("Unable to digest Vault token: " + e.getMessage());
+            }
+            return String.join("|", String.join(",", conf.getList(VAULT_URL)), tokenDigest, conf.getString(VAULT_CLIENT),
+                    String.valueOf(conf.getInt(VAULT_HTTP_MAX_CONNECTIONS)), String.valueOf(conf.getLong(VAULT_HTTP_KEEP_ALIVE_MS)),
+                    String.valueOf(conf.getInt(VAULT_HTTP_CONNECT_TIMEOUT_MS)), String.valueOf(conf.getInt(VAULT_HTTP_READ_TIMEOUT_MS)),
+                    String.valueOf(conf.getLong(VAULT_ROUTING_EJECTION_MS)),
+                    String.valueOf(conf.getLong(VAULT_COALESCE_WINDOW_MS)), String.valueOf(conf.getInt(VAULT_BATCH_MAX_ITEMS)),
+                    String.valueOf(conf.getInt(VAULT_BATCH_MAX_BYTES)));
+        }
+
+        private VaultClient newVaultClient(SimpleConfig conf, String url) {
+            final VaultConfig vc = new VaultConfig().address(url);
+            if (conf.getPassword(VAULT_TOKEN) != null) {
+                vc.token(conf.getPassword(VAULT_TOKEN).value());
+            }
+
+            try {
+                if (conf.getString(VAULT_CLIENT).equals(VAULT_CLIENT_STREAMING)) {
+                    return new StreamingVaultClient(vc.build());
+                } else if (conf.getString(VAULT_CLIENT).equals(VAULT_CLIENT_POOLED)) {
+                    return new StreamingVaultClient(new PooledHttpTransport(vc.build(), new HttpConfig(
+                            conf.getInt(VAULT_HTTP_MAX_CONNECTIONS),
+                            conf.getLong(VAULT_HTTP_KEEP_ALIVE_MS),
+                            conf.getInt(VAULT_HTTP_CONNECT_TIMEOUT_MS),
+                            conf.getInt(VAULT_HTTP_READ_TIMEOUT_MS))));
+                }
+                return new VaultClientImpl(new Vault(vc.build(), 1));
+            } catch (VaultException e) {
+                throw new ConfigException("Unable to create Vault client: " + e.getMessage());
+            }
+        }
+
         private Service awsKmsService(SimpleConfig conf) {
             ensureStringValueExists(conf, AWSKMS_CMK_KEYID, "Required parameter for " + SERVICE_AWSKMS + " service");
 
@@ -287,8 +529,31 @@ public abstract class Config {
                 }
             }
 
+            Optional<AWSKMSCryptoConfig.DataKeyCache> dataKeyCache = Optional.empty();
+            if (conf.getBoolean(AWSKMS_DATA_KEY_CACHE_ENABLED)) {
+                dataKeyCache = Optional.of(new AWSKMSCryptoConfig.DataKeyCache(
+                        conf.getInt(AWSKMS_DATA_KEY_CACHE_CAPACITY),
+                        conf.getLong(AWSKMS_DATA_KEY_CACHE_MAX_AGE_MS),
+                        conf.getLong(AWSKMS_DATA_KEY_CACHE_MAX_MESSAGES),
+                        conf.getLong(AWSKMS_DATA_KEY_CACHE_MAX_BYTES)));
+            }
+
             AWSKMSCryptoConfig config = new AWSKMSCryptoConfig(creds, Optional.ofNullable(conf.getString(AWSKMS_REGION)), conf.getString(AWSKMS_CMK_KEYID),
-                    context, Optional.ofNullable(conf.getString(AWSKMS_ENCRYPTION_ALGORITHM)), Optional.ofNullable(conf.getString(AWSKMS_ENDPOINT)));
+                    context, Optional.ofNullable(conf.getString(AWSKMS_ENCRYPTION_ALGORITHM)), Optional.ofNullable(conf.getString(AWSKMS_ENDPOINT)),
+                    dataKeyCache, newExecutorConfig(conf), Optional.ofNullable(conf.getString(AWSKMS_RECORD_KEY_HEADER)));
+
+            if (conf.getString(AWSKMS_RECORD_KEY_HEADER) != null) {
+                // the data key of a record is neither shared with other records nor cached
+                for (String key : Arrays.asList(AWSKMS_DATA_KEY_CACHE_ENABLED, ENCRYPT_CACHE_ENABLED, DECRYPT_CACHE_ENABLED)) {
+                    if (conf.getBoolean(key)) {
+                        throw new ConfigException(key, true, "Not available with " + AWSKMS_RECORD_KEY_HEADER);
+                    }
+                }
+                if (conf.getString(MODE).equals(MODE_ENCRYPT)) {
+                    return new AWSRecordKeyService.EncryptService(config);
+                }
+                return new AWSRecordKeyService.DecryptService(config);
+            }
 
             if (conf.getString(MODE).equals(MODE_ENCRYPT)) {
                 return new AWSKeyManagementService.EncryptService(config);
@@ -307,16 +572,29 @@ public abstract class Config {
                     conf.getString(GCPKMS_KEY_LOCATION_ID),
                     conf.getString(GCPKMS_KEY_RING_ID),
                     conf.getString(GCPKMS_KEY_KEY_ID),
-                    Optional.ofNullable(conf.getString(GCPKMS_KEY_KEY_VERSION_ID))
+                    Optional.ofNullable(conf.getString(GCPKMS_KEY_KEY_VERSION_ID)),
+                    newExecutorConfig(conf)
             );
 
             if (conf.getBoolean(ASYMMETRIC)) {
                 ensureStringValueExists(conf, GCPKMS_KEY_KEY_VERSION_ID, "Required when " + ASYMMETRIC + " is true");
+                if (conf.getBoolean(ENVELOPE)) {
+                    if (conf.getString(MODE).equals(MODE_ENCRYPT)) {
+                        return new GCPKeyManagementService.AsymmetricEnvelopeEncryptService(cryptoConfig, newEnvelopeConfig(conf));
+                    }
+                    return new GCPKeyManagementService.AsymmetricEnvelopeDecryptService(cryptoConfig, newEnvelopeConfig(conf));
+                }
                 if (conf.getString(MODE).equals(MODE_ENCRYPT)) {
                     return new GCPKeyManagementService.AsymmetricEncryptService(cryptoConfig);
                 }
                 return new GCPKeyManagementService.AsymmetricDecryptService(cryptoConfig);
 
+            } else if (conf.getBoolean(ENVELOPE)) {
+                if (conf.getString(MODE).equals(MODE_ENCRYPT)) {
+                    return new GCPKeyManagementService.EnvelopeEncryptService(cryptoConfig, newEnvelopeConfig(conf));
+                }
+                return new GCPKeyManagementService.EnvelopeDecryptService(cryptoConfig, newEnvelopeConfig(conf));
+
             } else {
                 if (conf.getString(MODE).equals(MODE_ENCRYPT)) {
                     return new GCPKeyManagementService.EncryptService(cryptoConfig);
@@ -1,14 +1,15 @@
 package io.github.rerorero.kafka.connect.transform.encrypt.config;
 
-import io.github.rerorero.kafka.jsonpath.Accessor;
-import org.apache.kafka.connect.data.Struct;
+import io.github.rerorero.kafka.connect.transform.encrypt.plan.JsonPath;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 public class FieldSelector {
-    public Map<String, Accessor.Getter<Map<String, Object>>> mapGetters = new HashMap<>();
-    public Map<String, Accessor.Updater<Map<String, Object>>> mapUpdaters = new HashMap<>();
-    public Map<String, Accessor.Getter<Struct>> structGetters = new HashMap<>();
-    public Map<String, Accessor.Updater<Struct>> structUpdaters = new HashMap<>();
+    // compiled into plans for schemaless values and for each schema of Struct values
+    public List<JsonPath> paths = new ArrayList<>();
+    // field into which the selected fields are packed as a whole, or null to encrypt each field
+    public String recordField;
+    // whether the record field is unpacked into the fields instead
+    public boolean unpackRecord;
 }
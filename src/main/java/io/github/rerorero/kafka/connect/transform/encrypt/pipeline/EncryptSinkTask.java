@@ -0,0 +1,218 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.pipeline;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.Transform;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.connect.sink.ErrantRecordReporter;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.apache.kafka.connect.sink.SinkTask;
+import org.apache.kafka.connect.sink.SinkTaskContext;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Sink task which encrypts or decrypts each batch of records given to {@link #put} and passes it to the wrapped task.
+ * A batch is transformed while the previous one is put to the wrapped task, so the wrapped task receives it on the
+ * next call. Every batch in flight is put to the wrapped task before its offsets are committed or its partitions
+ * are closed. When the wrapped task resets the consumer offsets of partitions, the records of those partitions
+ * in flight are dropped, since the worker delivers them again from the new offsets.
+ */
+public class EncryptSinkTask extends SinkTask {
+    private SinkTask delegate;
+    private Pipeline<SinkRecord> pipeline;
+    // transformed records which are not yet accepted by the wrapped task
+    private List<SinkRecord> ready;
+    // partitions whose records in the batch in flight are dropped, since their offsets were reset
+    private final Set<TopicPartition> rewound = new HashSet<>();
+
+    @Override
+    public String version() {
+        return delegate != null ? delegate.version() : PipelineConfig.version();
+    }
+
+    @Override
+    public void start(Map<String, String> props) {
+        delegate = PipelineConfig.newDelegate(props, PipelineConfig.DELEGATE_TASK_CLASS, SinkTask.class);
+        delegate.initialize(new PipelineContext(context));
+        pipeline = new Pipeline<>(newTransform(props), "encrypt-sink-pipeline", false);
+        delegate.start(props);
+    }
+
+    protected Transform<SinkRecord> newTransform(Map<String, String> props) {
+        return PipelineConfig.newTransform(props);
+    }
+
+    @Override
+    public void put(Collection<SinkRecord> records) {
+        if (records.isEmpty()) {
+            // nothing to overlap with, so the wrapped task gets the batch in flight right away
+            drain();
+            delegate.put(Collections.emptyList());
+            return;
+        }
+
+        if (pipeline.isPending()) {
+            ready = awaitPipeline();
+        }
+        pipeline.submit(new ArrayList<>(records));
+        if (ready != null) {
+            try {
+                delegate.put(ready);
+            } catch (RuntimeException e) {
+                // the worker puts the same records again on a retriable error, so they must not be in flight
+                pipeline.cancel();
+                rewound.clear();
+                throw e;
+            }
+            ready = null;
+        }
+    }
+
+    private List<SinkRecord> awaitPipeline() {
+        final List<SinkRecord> out = pipeline.await();
+        if (rewound.isEmpty()) {
+            return out;
+        }
+        final List<SinkRecord> kept = without(out, rewound);
+        rewound.clear();
+        return kept;
+    }
+
+    private static List<SinkRecord> without(List<SinkRecord> records, Set<TopicPartition> partitions) {
+        final List<SinkRecord> out = new ArrayList<>(records.size());
+        for (SinkRecord r : records) {
+            if (!partitions.contains(new TopicPartition(r.topic(), r.kafkaPartition()))) {
+                out.add(r);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Puts all the records in flight to the wrapped task.
+     */
+    private void drain() {
+        if (pipeline.isPending()) {
+            ready = awaitPipeline();
+        }
+        if (ready != null) {
+            delegate.put(ready);
+            ready = null;
+        }
+    }
+
+    @Override
+    public void flush(Map<TopicPartition, OffsetAndMetadata> currentOffsets) {
+        drain();
+        delegate.flush(currentOffsets);
+    }
+
+    @Override
+    public Map<TopicPartition, OffsetAndMetadata> preCommit(Map<TopicPartition, OffsetAndMetadata> currentOffsets) {
+        drain();
+        return delegate.preCommit(currentOffsets);
+    }
+
+    @Override
+    public void open(Collection<TopicPartition> partitions) {
+        delegate.open(partitions);
+    }
+
+    @Override
+    public void close(Collection<TopicPartition> partitions) {
+        try {
+            drain();
+        } finally {
+            delegate.close(partitions);
+        }
+    }
+
+    @Override
+    public void stop() {
+        // records in flight are not committed, so they are consumed again after restart
+        try {
+            if (pipeline != null) {
+                pipeline.close();
+            }
+        } finally {
+            if (delegate != null) {
+                delegate.stop();
+            }
+        }
+    }
+
+    /**
+     * Context of the wrapped task, which drops the records in flight of the partitions whose consumer offsets
+     * are reset. The wrapped task calls it on the task thread, so the pipeline is not accessed concurrently.
+     */
+    private class PipelineContext implements SinkTaskContext {
+        private final SinkTaskContext context;
+
+        PipelineContext(SinkTaskContext context) {
+            this.context = context;
+        }
+
+        private void dropInFlight(Set<TopicPartition> partitions) {
+            if (ready != null) {
+                ready = without(ready, partitions);
+            }
+            if (pipeline != null && pipeline.isPending()) {
+                rewound.addAll(partitions);
+            }
+        }
+
+        @Override
+        public Map<String, String> configs() {
+            return context.configs();
+        }
+
+        @Override
+        public void offset(Map<TopicPartition, Long> offsets) {
+            dropInFlight(offsets.keySet());
+            context.offset(offsets);
+        }
+
+        @Override
+        public void offset(TopicPartition tp, long offset) {
+            dropInFlight(Collections.singleton(tp));
+            context.offset(tp, offset);
+        }
+
+        @Override
+        public void timeout(long timeoutMs) {
+            context.timeout(timeoutMs);
+        }
+
+        @Override
+        public Set<TopicPartition> assignment() {
+            return context.assignment();
+        }
+
+        @Override
+        public void pause(TopicPartition... partitions) {
+            context.pause(partitions);
+        }
+
+        @Override
+        public void resume(TopicPartition... partitions) {
+            context.resume(partitions);
+        }
+
+        // preCommit puts the records in flight before the offsets are committed, so they are kept
+        @Override
+        public void requestCommit() {
+            context.requestCommit();
+        }
+
+        @Override
+        public ErrantRecordReporter errantRecordReporter() {
+            return context.errantRecordReporter();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.pipeline;
+
+import org.apache.kafka.common.config.Config;
+import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.connect.connector.Task;
+import org.apache.kafka.connect.source.SourceConnector;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Source connector which wraps the connector given by {@value PipelineConfig#DELEGATE_CONNECTOR_CLASS}, and runs
+ * its tasks in {@link EncryptSourceTask} to encrypt or decrypt their records in batches.
+ */
+public class EncryptSourceConnector extends SourceConnector {
+    private SourceConnector delegate;
+    private Map<String, String> props;
+
+    @Override
+    public void start(Map<String, String> props) {
+        this.props = props;
+        delegate = PipelineConfig.newDelegate(props, PipelineConfig.DELEGATE_CONNECTOR_CLASS, SourceConnector.class);
+        delegate.initialize(context);
+        delegate.start(props);
+    }
+
+    @Override
+    public Class<? extends Task> taskClass() {
+        return EncryptSourceTask.class;
+    }
+
+    @Override
+    public List<Map<String, String>> taskConfigs(int maxTasks) {
+        return PipelineConfig.taskConfigs(props, delegate.taskConfigs(maxTasks), delegate.taskClass());
+    }
+
+    @Override
+    public void stop() {
+        if (delegate != null) {
+            delegate.stop();
+        }
+    }
+
+    @Override
+    public Config validate(Map<String, String> connectorConfigs) {
+        return PipelineConfig.validate(super.validate(connectorConfigs), connectorConfigs, SourceConnector.class);
+    }
+
+    @Override
+    public ConfigDef config() {
+        return PipelineConfig.DEF;
+    }
+
+    @Override
+    public String version() {
+        return delegate != null ? delegate.version() : PipelineConfig.version();
+    }
+}
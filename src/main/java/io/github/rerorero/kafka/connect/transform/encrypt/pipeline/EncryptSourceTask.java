@@ -0,0 +1,90 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.pipeline;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.Transform;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.connect.errors.RetriableException;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.apache.kafka.connect.source.SourceTask;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Source task which encrypts or decrypts each batch of records polled from the wrapped task.
+ * A batch is transformed while the previous one is sent by the worker, so it's returned on the next {@link #poll}.
+ * The transformed records keep the source partitions and offsets of the original ones, and the offsets of
+ * a batch in flight are never committed since the worker has not received it yet. The wrapped task is notified of
+ * the commit of its own records rather than the transformed ones.
+ */
+public class EncryptSourceTask extends SourceTask {
+    private SourceTask delegate;
+    private Pipeline<SourceRecord> pipeline;
+    // transformed records which are not yet returned to the worker
+    private List<SourceRecord> ready;
+
+    @Override
+    public String version() {
+        return delegate != null ? delegate.version() : PipelineConfig.version();
+    }
+
+    @Override
+    public void start(Map<String, String> props) {
+        delegate = PipelineConfig.newDelegate(props, PipelineConfig.DELEGATE_TASK_CLASS, SourceTask.class);
+        delegate.initialize(context);
+        pipeline = new Pipeline<>(newTransform(props), "encrypt-source-pipeline", true);
+        delegate.start(props);
+    }
+
+    protected Transform<SourceRecord> newTransform(Map<String, String> props) {
+        return PipelineConfig.newTransform(props);
+    }
+
+    @Override
+    public List<SourceRecord> poll() throws InterruptedException {
+        // a batch which failed with a retriable error is still in flight, and the next poll waits for it again
+        if (ready == null) {
+            ready = pipeline.await();
+        }
+
+        final List<SourceRecord> records;
+        try {
+            records = delegate.poll();
+        } catch (RetriableException e) {
+            if (ready == null) {
+                throw e;
+            }
+            // the worker gets the transformed batch now, and the wrapped task is polled again next time
+            return takeReady();
+        }
+        // the transformed batch is kept for the next poll if the wrapped task fails otherwise
+        if (records != null && !records.isEmpty()) {
+            pipeline.submit(records);
+        }
+        return takeReady();
+    }
+
+    private List<SourceRecord> takeReady() {
+        final List<SourceRecord> out = ready;
+        ready = null;
+        return out;
+    }
+
+    @Override
+    public void commit() throws InterruptedException {
+        delegate.commit();
+    }
+
+    @Override
+    public void commitRecord(SourceRecord record, RecordMetadata metadata) throws InterruptedException {
+        delegate.commitRecord(pipeline.originalOf(record), metadata);
+    }
+
+    @Override
+    public void stop() {
+        try {
+            delegate.stop();
+        } finally {
+            pipeline.close();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.pipeline;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.Transform;
+import io.github.rerorero.kafka.kms.ExecutorConfig;
+import org.apache.kafka.connect.connector.ConnectRecord;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.errors.RetriableException;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Transforms a batch of records in the background while the previous batch is delivered. At most one batch is
+ * in flight, so the batches come out in the order they go in. Not thread-safe, it's meant to be used by a task thread,
+ * except for {@link #originalOf}.
+ */
+final class Pipeline<R extends ConnectRecord<R>> {
+    private final Transform<R> transform;
+    private final ExecutorService executor;
+    private List<R> pendingRecords;
+    private CompletableFuture<List<R>> pending;
+    // original record of each transformed one taken by await(), until it's looked up by originalOf()
+    private final Map<R, R> originals;
+
+    /**
+     * @param keepOriginals Whether the original record of each transformed one is kept for {@link #originalOf}
+     */
+    Pipeline(Transform<R> transform, String name, boolean keepOriginals) {
+        this.transform = transform;
+        this.executor = new ExecutorConfig(1, 1).newExecutor(name);
+        this.originals = keepOriginals ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+    }
+
+    boolean isPending() {
+        return pending != null;
+    }
+
+    /**
+     * Starts transforming the records. The previous batch must have been taken by {@link #await()}.
+     */
+    void submit(List<R> records) {
+        if (pending != null) {
+            throw new IllegalStateException("a batch is already in flight");
+        }
+        pendingRecords = records;
+        pending = CompletableFuture.supplyAsync(() -> transform.applyBatch(records), executor);
+    }
+
+    /**
+     * Waits for the batch in flight and returns its transformed records, or null if there is none.
+     * If the batch failed with a retriable error, it's submitted again so that the next call waits for it once more.
+     */
+    List<R> await() {
+        if (pending == null) {
+            return null;
+        }
+        try {
+            final List<R> out = pending.get();
+            if (originals != null) {
+                for (int i = 0; i < out.size(); i++) {
+                    if (out.get(i) != pendingRecords.get(i)) {
+                        originals.put(out.get(i), pendingRecords.get(i));
+                    }
+                }
+            }
+            pending = null;
+            pendingRecords = null;
+            return out;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RetriableException("interrupted while waiting for the records to be transformed", e);
+        } catch (ExecutionException e) {
+            final List<R> records = pendingRecords;
+            pending = null;
+            pendingRecords = null;
+            if (e.getCause() instanceof RetriableException) {
+                submit(records);
+                throw (RetriableException) e.getCause();
+            }
+            if (e.getCause() instanceof ConnectException) {
+                throw (ConnectException) e.getCause();
+            }
+            throw new ConnectException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the record which the transformed one was made from, and forgets it. Records which were not
+     * transformed or are looked up twice are returned as they are. This can be called from any thread.
+     */
+    R originalOf(R transformed) {
+        if (originals == null) {
+            return transformed;
+        }
+        final R original = originals.remove(transformed);
+        return original != null ? original : transformed;
+    }
+
+    /**
+     * Abandons the batch in flight.
+     */
+    void cancel() {
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        pending = null;
+        pendingRecords = null;
+    }
+
+    void close() {
+        cancel();
+        if (originals != null) {
+            originals.clear();
+        }
+        executor.shutdown();
+        transform.close();
+    }
+}
@@ -0,0 +1,115 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.pipeline;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.Transform;
+import org.apache.kafka.common.config.Config;
+import org.apache.kafka.common.config.ConfigDef;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.config.ConfigValue;
+import org.apache.kafka.common.utils.Utils;
+import org.apache.kafka.connect.connector.ConnectRecord;
+import org.apache.kafka.connect.connector.Connector;
+import org.apache.kafka.connect.transforms.util.SimpleConfig;
+
+import java.util.*;
+
+/**
+ * Configurations of the connectors which wrap another connector and encrypt or decrypt the records of its tasks.
+ * The configurations of the transform are given with the {@code encrypt.} prefix, and all the configurations
+ * are passed to the wrapped connector as they are.
+ */
+public final class PipelineConfig {
+    public static final String DELEGATE_CONNECTOR_CLASS = "delegate.connector.class";
+    // set by the connector to the configurations of its tasks
+    public static final String DELEGATE_TASK_CLASS = "delegate.task.class";
+
+    public static final String TRANSFORM_PREFIX = "encrypt.";
+    public static final String TARGET = TRANSFORM_PREFIX + "target";
+    public static final String TARGET_KEY = "key";
+    public static final String TARGET_VALUE = "value";
+
+    public static final ConfigDef DEF = new ConfigDef()
+            .define(DELEGATE_CONNECTOR_CLASS, ConfigDef.Type.STRING, ConfigDef.NO_DEFAULT_VALUE, ConfigDef.Importance.HIGH,
+                    "Class name of the connector to be wrapped.")
+            .define(TARGET, ConfigDef.Type.STRING, TARGET_VALUE, ConfigDef.ValidString.in(TARGET_KEY, TARGET_VALUE), ConfigDef.Importance.MEDIUM,
+                    "Either the key or the value of the records to be encrypted or decrypted.");
+
+    static {
+        DEF.embed(TRANSFORM_PREFIX, "encrypt", 0, io.github.rerorero.kafka.connect.transform.encrypt.config.Config.DEF);
+    }
+
+    private PipelineConfig() {
+    }
+
+    static String version() {
+        final String version = PipelineConfig.class.getPackage().getImplementationVersion();
+        return version != null ? version : "unknown";
+    }
+
+    /**
+     * Instantiates the wrapped connector or task named by the configuration.
+     */
+    static <T> T newDelegate(Map<String, String> props, String key, Class<T> base) {
+        final String className = props.get(key);
+        if (className == null) {
+            throw new ConfigException(key, null, "is required");
+        }
+        try {
+            return Utils.newInstance(className, base);
+        } catch (ClassNotFoundException e) {
+            throw new ConfigException(key, className, "class is not found");
+        }
+    }
+
+    /**
+     * Adds the results of the validation by the wrapped connector, if it's given, to the ones of this connector.
+     */
+    static Config validate(Config own, Map<String, String> props, Class<? extends Connector> base) {
+        final Connector delegate;
+        try {
+            delegate = newDelegate(props, DELEGATE_CONNECTOR_CLASS, base);
+        } catch (ConfigException e) {
+            // reported by the validation of this connector
+            return own;
+        }
+        final List<ConfigValue> values = new ArrayList<>(own.configValues());
+        values.addAll(delegate.validate(props).configValues());
+        return new Config(values);
+    }
+
+    /**
+     * Adds the wrapped task class to the configurations of the wrapped connector for each task.
+     * The configurations of the transform are added unless the wrapped connector sets them.
+     */
+    static List<Map<String, String>> taskConfigs(Map<String, String> props, List<Map<String, String>> delegateConfigs, Class<?> delegateTaskClass) {
+        final List<Map<String, String>> out = new ArrayList<>(delegateConfigs.size());
+        for (Map<String, String> c : delegateConfigs) {
+            final Map<String, String> taskConfig = new HashMap<>();
+            props.forEach((k, v) -> {
+                if (k.startsWith(TRANSFORM_PREFIX)) {
+                    taskConfig.put(k, v);
+                }
+            });
+            taskConfig.putAll(c);
+            taskConfig.put(DELEGATE_TASK_CLASS, delegateTaskClass.getName());
+            out.add(taskConfig);
+        }
+        return out;
+    }
+
+    /**
+     * Builds the transform from the configurations with the {@code encrypt.} prefix.
+     */
+    static <R extends ConnectRecord<R>> Transform<R> newTransform(Map<String, String> props) {
+        final SimpleConfig conf = new SimpleConfig(new ConfigDef().define(TARGET, ConfigDef.Type.STRING, TARGET_VALUE,
+                ConfigDef.ValidString.in(TARGET_KEY, TARGET_VALUE), ConfigDef.Importance.MEDIUM, ""), props);
+        final Transform<R> transform = TARGET_KEY.equals(conf.getString(TARGET)) ? new Transform.Key<>() : new Transform.Value<>();
+        final Map<String, String> transformProps = new HashMap<>();
+        props.forEach((k, v) -> {
+            if (k.startsWith(TRANSFORM_PREFIX)) {
+                transformProps.put(k.substring(TRANSFORM_PREFIX.length()), v);
+            }
+        });
+        transform.configure(transformProps);
+        return transform;
+    }
+}
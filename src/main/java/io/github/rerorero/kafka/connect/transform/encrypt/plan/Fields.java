@@ -0,0 +1,90 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.plan;
+
+import io.github.rerorero.kafka.kms.Item;
+
+import java.util.Arrays;
+
+/**
+ * Reusable slots of the target fields of a record. A plan stores the value of each field at the index it is
+ * visited, and reads back the result at the same index, so no keys are built for the fields.
+ * An instance is meant to be reused across records by a single thread, and {@link #clear()}ed after each record.
+ */
+public final class Fields {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private Object[] values;
+    private Item[] results;
+    private int size;
+    private int position;
+    // header of the record for the services which keep a data key per record
+    private byte[] recordHeader;
+
+    public Fields() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public Fields(int capacity) {
+        values = new Object[capacity];
+        results = new Item[capacity];
+    }
+
+    void add(Object value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+            results = Arrays.copyOf(results, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    /**
+     * Returns the result of the next field in the order the fields were added, or null if it is missing.
+     */
+    Item nextResult() {
+        return results[position++];
+    }
+
+    void rewind() {
+        position = 0;
+    }
+
+    /**
+     * Values of the fields, valid up to {@link #size()}.
+     */
+    public Object[] values() {
+        return values;
+    }
+
+    /**
+     * Slots for the results of the fields, to be filled at the index of each value.
+     */
+    public Item[] results() {
+        return results;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public byte[] getRecordHeader() {
+        return recordHeader;
+    }
+
+    public void setRecordHeader(byte[] recordHeader) {
+        this.recordHeader = recordHeader;
+    }
+
+    /**
+     * Releases the values and the results so that they can be collected.
+     */
+    public void clear() {
+        Arrays.fill(values, 0, size, null);
+        Arrays.fill(results, 0, size, null);
+        size = 0;
+        position = 0;
+        recordHeader = null;
+    }
+}
@@ -0,0 +1,157 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.plan;
+
+import io.github.rerorero.kafka.jsonpath.JsonPathException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Parsed JsonPath expression, supporting only the syntax listed in the README:
+ * {@code $}, {@code .<name>}, {@code ['name']}, {@code [<number>]} and {@code [*]}.
+ */
+public final class JsonPath {
+    private final String expression;
+    private final List<Segment> segments;
+
+    private JsonPath(String expression, List<Segment> segments) {
+        this.expression = expression;
+        this.segments = segments;
+    }
+
+    public static JsonPath parse(String expression) {
+        if (expression == null || !expression.startsWith("$")) {
+            throw new JsonPathException("JsonPath has to start with '$': " + expression);
+        }
+
+        final List<Segment> segments = new ArrayList<>();
+        int i = 1;
+        while (i < expression.length()) {
+            final char c = expression.charAt(i);
+            if (c == '.') {
+                int end = i + 1;
+                while (end < expression.length() && expression.charAt(end) != '.' && expression.charAt(end) != '[') {
+                    end++;
+                }
+                final String name = expression.substring(i + 1, end);
+                if (name.isEmpty() || name.equals("*")) {
+                    throw new JsonPathException("unsupported child at " + i + ": " + expression);
+                }
+                segments.add(Segment.name(name));
+                i = end;
+            } else if (c == '[') {
+                final int end = expression.indexOf(']', i);
+                if (end < 0) {
+                    throw new JsonPathException("unclosed bracket at " + i + ": " + expression);
+                }
+                segments.add(bracketSegment(expression, expression.substring(i + 1, end).trim()));
+                i = end + 1;
+            } else {
+                throw new JsonPathException("unexpected character '" + c + "' at " + i + ": " + expression);
+            }
+        }
+        return new JsonPath(expression, Collections.unmodifiableList(segments));
+    }
+
+    private static Segment bracketSegment(String expression, String inner) {
+        if (inner.equals("*")) {
+            return Segment.WILDCARD;
+        }
+        if (inner.length() >= 2 && inner.startsWith("'") && inner.endsWith("'")) {
+            final String name = inner.substring(1, inner.length() - 1);
+            if (name.contains("'")) {
+                throw new JsonPathException("multiple names are not supported: " + expression);
+            }
+            return Segment.name(name);
+        }
+        try {
+            final int index = Integer.parseInt(inner);
+            if (index < 0) {
+                throw new JsonPathException("negative index is not supported: " + expression);
+            }
+            return Segment.index(index);
+        } catch (NumberFormatException e) {
+            throw new JsonPathException("unsupported array index '" + inner + "': " + expression);
+        }
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        JsonPath that = (JsonPath) o;
+        return expression.equals(that.expression);
+    }
+
+    @Override
+    public int hashCode() {
+        return expression.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    public static final class Segment {
+        static final Segment WILDCARD = new Segment(null, -1);
+
+        private final String name;
+        private final int index;
+
+        private Segment(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        static Segment name(String name) {
+            return new Segment(name, -1);
+        }
+
+        static Segment index(int index) {
+            return new Segment(null, index);
+        }
+
+        public boolean isName() {
+            return name != null;
+        }
+
+        public boolean isWildcard() {
+            return this == WILDCARD;
+        }
+
+        public boolean isIndex() {
+            return index >= 0;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Segment that = (Segment) o;
+            return index == that.index && Objects.equals(name, that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, index);
+        }
+    }
+}
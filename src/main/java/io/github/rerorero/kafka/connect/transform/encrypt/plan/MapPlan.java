@@ -0,0 +1,173 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.plan;
+
+import io.github.rerorero.kafka.kms.Item;
+
+import java.util.*;
+
+/**
+ * Extraction and rewrite plan of the configured JsonPath fields for schemaless values, which are maps and lists.
+ * All the paths are merged into a tree, so a record is traversed once for all the paths.
+ */
+public final class MapPlan {
+    private final Node root;
+    private final Item.Encoding encoding;
+
+    private MapPlan(Node root, Item.Encoding encoding) {
+        this.root = root;
+        this.encoding = encoding;
+    }
+
+    /**
+     * @param encoding The encoding of the values written by {@link #rewrite}
+     */
+    public static MapPlan compile(Collection<JsonPath> paths, Item.Encoding encoding) {
+        final List<Suffix> suffixes = new ArrayList<>();
+        paths.forEach(path -> suffixes.add(new Suffix(path, 0)));
+        return new MapPlan(compile(suffixes), encoding);
+    }
+
+    private static Node compile(List<Suffix> suffixes) {
+        final Node node = new Node();
+        node.leaf = suffixes.stream().anyMatch(Suffix::isEnd);
+        if (node.leaf) {
+            return node;
+        }
+
+        final Map<String, List<Suffix>> groups = Suffix.groupByName(suffixes);
+        node.names = groups.keySet().toArray(new String[0]);
+        node.children = new Node[node.names.length];
+        for (int i = 0; i < node.names.length; i++) {
+            node.children[i] = compile(groups.get(node.names[i]));
+        }
+
+        final List<Suffix> wildcards = new ArrayList<>();
+        final SortedMap<Integer, List<Suffix>> indices = new TreeMap<>();
+        suffixes.forEach(s -> {
+            if (s.head().isWildcard()) {
+                wildcards.add(s.tail());
+            } else if (s.head().isIndex()) {
+                indices.computeIfAbsent(s.head().getIndex(), i -> new ArrayList<>()).add(s.tail());
+            }
+        });
+        node.wildcard = wildcards.isEmpty() ? null : compile(wildcards);
+        node.indices = new Node[indices.isEmpty() ? 0 : indices.lastKey() + 1];
+        indices.forEach((index, group) -> {
+            // paths with a wildcard apply to the element too
+            final List<Suffix> merged = new ArrayList<>(group);
+            merged.addAll(wildcards);
+            node.indices[index] = compile(merged);
+        });
+        return node;
+    }
+
+    /**
+     * Adds the values of the target fields to the slots in the order they are visited. Null values are skipped,
+     * and a field selected by several paths is added once.
+     */
+    public void extract(Map<String, Object> value, Fields fields) {
+        root.extract(value, fields);
+    }
+
+    /**
+     * Returns the value in which the target fields are replaced with the results. A field whose result is missing
+     * keeps its value. Only the maps and lists on the way to a replaced field are copied, and the others are shared
+     * with the given value, which is never modified.
+     *
+     * @param fields Fields extracted from the value by {@link #extract}, whose results are filled
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> rewrite(Map<String, Object> value, Fields fields) {
+        if (fields.isEmpty()) {
+            return value;
+        }
+        fields.rewind();
+        return (Map<String, Object>) root.rewrite(value, fields, encoding);
+    }
+
+    /**
+     * Node of the tree, which is either a leaf selected by paths or has children by names and indices.
+     */
+    private static final class Node {
+        boolean leaf;
+        // children by names, and by indices which fall back to the wildcard
+        String[] names = new String[0];
+        Node[] children = new Node[0];
+        Node wildcard;
+        Node[] indices = new Node[0];
+
+        private Node childAt(int index) {
+            final Node child = index < indices.length ? indices[index] : null;
+            return child == null ? wildcard : child;
+        }
+
+        void extract(Object value, Fields fields) {
+            if (value == null) {
+                return;
+            }
+            if (leaf) {
+                fields.add(value);
+                return;
+            }
+
+            if (value instanceof Map) {
+                final Map<?, ?> map = (Map<?, ?>) value;
+                for (int i = 0; i < names.length; i++) {
+                    children[i].extract(map.get(names[i]), fields);
+                }
+            } else if (value instanceof List) {
+                final List<?> list = (List<?>) value;
+                for (int i = 0; i < list.size(); i++) {
+                    final Node child = childAt(i);
+                    if (child != null) {
+                        child.extract(list.get(i), fields);
+                    }
+                }
+            }
+        }
+
+        Object rewrite(Object value, Fields fields, Item.Encoding encoding) {
+            if (value == null) {
+                return null;
+            }
+            if (leaf) {
+                final Item result = fields.nextResult();
+                return result == null ? value : result.asObject(encoding);
+            }
+
+            if (value instanceof Map) {
+                final Map<?, ?> map = (Map<?, ?>) value;
+                Map<Object, Object> out = null;
+                for (int i = 0; i < names.length; i++) {
+                    final Object org = map.get(names[i]);
+                    final Object updated = children[i].rewrite(org, fields, encoding);
+                    if (updated != org) {
+                        if (out == null) {
+                            out = new HashMap<>(map);
+                        }
+                        out.put(names[i], updated);
+                    }
+                }
+                return out == null ? map : out;
+            } else if (value instanceof List) {
+                final List<?> list = (List<?>) value;
+                List<Object> out = null;
+                for (int i = 0; i < list.size(); i++) {
+                    final Node child = childAt(i);
+                    if (child == null) {
+                        continue;
+                    }
+                    final Object org = list.get(i);
+                    final Object updated = child.rewrite(org, fields, encoding);
+                    if (updated != org) {
+                        if (out == null) {
+                            out = new ArrayList<>(list);
+                        }
+                        out.set(i, updated);
+                    }
+                }
+                return out == null ? list : out;
+            }
+            return value;
+        }
+    }
+}
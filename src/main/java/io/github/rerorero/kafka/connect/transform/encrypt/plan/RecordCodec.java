@@ -0,0 +1,510 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.plan;
+
+import org.apache.kafka.connect.data.Field;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.errors.DataException;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact binary encoding of Connect values and schemas, in which every value is a tag byte followed by its payload.
+ * The encoding is deterministic: the entries of a map are written in the order of their keys and the fields of a
+ * struct in the order of its schema, so the same value is always written to the same bytes.
+ */
+final class RecordCodec {
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INT8 = 3;
+    private static final byte INT16 = 4;
+    private static final byte INT32 = 5;
+    private static final byte INT64 = 6;
+    private static final byte FLOAT32 = 7;
+    private static final byte FLOAT64 = 8;
+    private static final byte STRING = 9;
+    private static final byte BYTES = 10;
+    private static final byte ARRAY = 11;
+    private static final byte MAP = 12;
+    private static final byte STRUCT = 13;
+    private static final byte DECIMAL = 14;
+    private static final byte DATE = 15;
+
+    // schema types by their code, which must not be reordered
+    private static final Schema.Type[] TYPES = {
+            Schema.Type.INT8, Schema.Type.INT16, Schema.Type.INT32, Schema.Type.INT64, Schema.Type.FLOAT32,
+            Schema.Type.FLOAT64, Schema.Type.BOOLEAN, Schema.Type.STRING, Schema.Type.BYTES, Schema.Type.ARRAY,
+            Schema.Type.MAP, Schema.Type.STRUCT};
+
+    private static final int OPTIONAL = 1;
+    private static final int NAME = 1 << 1;
+    private static final int VERSION = 1 << 2;
+    private static final int DOC = 1 << 3;
+    private static final int PARAMETERS = 1 << 4;
+    private static final int DEFAULT = 1 << 5;
+
+    private RecordCodec() {
+    }
+
+    static void writeValue(Writer w, Object value) {
+        if (value == null) {
+            w.writeByte(NULL);
+        } else if (value instanceof Boolean) {
+            w.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Byte) {
+            w.writeByte(INT8);
+            w.writeByte((Byte) value);
+        } else if (value instanceof Short) {
+            w.writeByte(INT16);
+            w.writeVarlong(zigZag((Short) value));
+        } else if (value instanceof Integer) {
+            w.writeByte(INT32);
+            w.writeVarlong(zigZag((Integer) value));
+        } else if (value instanceof Long) {
+            w.writeByte(INT64);
+            w.writeVarlong(zigZag((Long) value));
+        } else if (value instanceof Float) {
+            w.writeByte(FLOAT32);
+            w.writeFixed(Float.floatToIntBits((Float) value), 4);
+        } else if (value instanceof Double) {
+            w.writeByte(FLOAT64);
+            w.writeFixed(Double.doubleToLongBits((Double) value), 8);
+        } else if (value instanceof String) {
+            w.writeByte(STRING);
+            w.writeString((String) value);
+        } else if (value instanceof byte[]) {
+            w.writeByte(BYTES);
+            w.writeBytes((byte[]) value);
+        } else if (value instanceof ByteBuffer) {
+            w.writeByte(BYTES);
+            w.writeBytes((ByteBuffer) value);
+        } else if (value instanceof List) {
+            final List<?> list = (List<?>) value;
+            w.writeByte(ARRAY);
+            w.writeVarlong(list.size());
+            for (Object element : list) {
+                writeValue(w, element);
+            }
+        } else if (value instanceof Map) {
+            w.writeByte(MAP);
+            writeEntries(w, ((Map<?, ?>) value).entrySet());
+        } else if (value instanceof Struct) {
+            final Struct struct = (Struct) value;
+            w.writeByte(STRUCT);
+            for (Field field : struct.schema().fields()) {
+                writeValue(w, struct.getWithoutDefault(field.name()));
+            }
+        } else if (value instanceof BigDecimal) {
+            final BigDecimal decimal = (BigDecimal) value;
+            w.writeByte(DECIMAL);
+            w.writeVarlong(zigZag(decimal.scale()));
+            w.writeBytes(decimal.unscaledValue().toByteArray());
+        } else if (value instanceof Date) {
+            w.writeByte(DATE);
+            w.writeVarlong(zigZag(((Date) value).getTime()));
+        } else {
+            throw new DataException("unsupported value type to encode: " + value.getClass());
+        }
+    }
+
+    /**
+     * Writes the number of entries and the entries in the order of the keys, which are compared as strings if all
+     * of them are strings, or by their encoded bytes otherwise.
+     */
+    static void writeEntries(Writer w, Collection<? extends Map.Entry<?, ?>> entries) {
+        w.writeVarlong(entries.size());
+
+        boolean stringKeys = true;
+        for (Map.Entry<?, ?> e : entries) {
+            if (!(e.getKey() instanceof String)) {
+                stringKeys = false;
+                break;
+            }
+        }
+
+        if (stringKeys) {
+            final List<Map.Entry<?, ?>> sorted = new ArrayList<>(entries);
+            sorted.sort((a, b) -> ((String) a.getKey()).compareTo((String) b.getKey()));
+            for (Map.Entry<?, ?> e : sorted) {
+                w.writeByte(STRING);
+                w.writeString((String) e.getKey());
+                writeValue(w, e.getValue());
+            }
+            return;
+        }
+
+        final List<Map.Entry<byte[], Object>> sorted = new ArrayList<>(entries.size());
+        for (Map.Entry<?, ?> e : entries) {
+            final Writer key = new Writer(16);
+            writeValue(key, e.getKey());
+            sorted.add(new AbstractMap.SimpleImmutableEntry<>(key.toByteArray(), e.getValue()));
+        }
+        sorted.sort((a, b) -> compareUnsigned(a.getKey(), b.getKey()));
+        for (Map.Entry<byte[], Object> e : sorted) {
+            w.writeRaw(e.getKey());
+            writeValue(w, e.getValue());
+        }
+    }
+
+    /**
+     * Reads a value written by {@link #writeValue}.
+     *
+     * @param schema The schema of the value, which is needed to read a struct, or null for schemaless values
+     */
+    static Object readValue(Reader r, Schema schema) {
+        final byte tag = r.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case FALSE:
+                return false;
+            case TRUE:
+                return true;
+            case INT8:
+                return r.readByte();
+            case INT16:
+                return (short) unZigZag(r.readVarlong());
+            case INT32:
+                return (int) unZigZag(r.readVarlong());
+            case INT64:
+                return unZigZag(r.readVarlong());
+            case FLOAT32:
+                return Float.intBitsToFloat((int) r.readFixed(4));
+            case FLOAT64:
+                return Double.longBitsToDouble(r.readFixed(8));
+            case STRING:
+                return r.readString();
+            case BYTES:
+                return r.readBytes();
+            case ARRAY: {
+                final Schema valueSchema = schema == null ? null : schema.valueSchema();
+                final int size = r.readLength();
+                final List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(r, valueSchema));
+                }
+                return list;
+            }
+            case MAP: {
+                final Schema keySchema = schema == null ? null : schema.keySchema();
+                final Schema valueSchema = schema == null ? null : schema.valueSchema();
+                final int size = r.readLength();
+                final Map<Object, Object> map = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    final Object key = readValue(r, keySchema);
+                    map.put(key, readValue(r, valueSchema));
+                }
+                return map;
+            }
+            case STRUCT: {
+                if (schema == null || schema.type() != Schema.Type.STRUCT) {
+                    throw new DataException("struct is encoded without its schema");
+                }
+                final Struct struct = new Struct(schema);
+                for (Field field : schema.fields()) {
+                    struct.put(field, readValue(r, field.schema()));
+                }
+                return struct;
+            }
+            case DECIMAL: {
+                final int scale = (int) unZigZag(r.readVarlong());
+                return new BigDecimal(new BigInteger(r.readBytes()), scale);
+            }
+            case DATE:
+                return new Date(unZigZag(r.readVarlong()));
+        }
+        throw new DataException("unknown value tag: " + tag);
+    }
+
+    /**
+     * Writes the schema with its children, and its default value after them.
+     */
+    static void writeSchema(Writer w, Schema schema) {
+        w.writeByte(typeCode(schema.type()));
+        final int flags = (schema.isOptional() ? OPTIONAL : 0)
+                | (schema.name() != null ? NAME : 0)
+                | (schema.version() != null ? VERSION : 0)
+                | (schema.doc() != null ? DOC : 0)
+                | (schema.parameters() != null ? PARAMETERS : 0)
+                | (schema.defaultValue() != null ? DEFAULT : 0);
+        w.writeByte((byte) flags);
+        if (schema.name() != null) {
+            w.writeString(schema.name());
+        }
+        if (schema.version() != null) {
+            w.writeVarlong(zigZag(schema.version()));
+        }
+        if (schema.doc() != null) {
+            w.writeString(schema.doc());
+        }
+        if (schema.parameters() != null) {
+            final SortedMap<String, String> params = new TreeMap<>(schema.parameters());
+            w.writeVarlong(params.size());
+            params.forEach((k, v) -> {
+                w.writeString(k);
+                w.writeString(v);
+            });
+        }
+
+        switch (schema.type()) {
+            case ARRAY:
+                writeSchema(w, schema.valueSchema());
+                break;
+            case MAP:
+                writeSchema(w, schema.keySchema());
+                writeSchema(w, schema.valueSchema());
+                break;
+            case STRUCT:
+                w.writeVarlong(schema.fields().size());
+                for (Field field : schema.fields()) {
+                    w.writeString(field.name());
+                    writeSchema(w, field.schema());
+                }
+                break;
+            default:
+                break;
+        }
+
+        if (schema.defaultValue() != null) {
+            writeValue(w, schema.defaultValue());
+        }
+    }
+
+    static Schema readSchema(Reader r) {
+        final byte code = r.readByte();
+        if (code < 0 || code >= TYPES.length) {
+            throw new DataException("unknown schema type code: " + code);
+        }
+        final Schema.Type type = TYPES[code];
+        final int flags = r.readByte();
+
+        final String name = (flags & NAME) != 0 ? r.readString() : null;
+        final Integer version = (flags & VERSION) != 0 ? (int) unZigZag(r.readVarlong()) : null;
+        final String doc = (flags & DOC) != 0 ? r.readString() : null;
+        final Map<String, String> params = new LinkedHashMap<>();
+        if ((flags & PARAMETERS) != 0) {
+            final int size = r.readLength();
+            for (int i = 0; i < size; i++) {
+                final String key = r.readString();
+                params.put(key, r.readString());
+            }
+        }
+
+        // the children of arrays and maps are needed to create their builders
+        final SchemaBuilder b;
+        if (type == Schema.Type.ARRAY) {
+            b = SchemaBuilder.array(readSchema(r));
+        } else if (type == Schema.Type.MAP) {
+            final Schema keySchema = readSchema(r);
+            b = SchemaBuilder.map(keySchema, readSchema(r));
+        } else {
+            b = new SchemaBuilder(type);
+            if (type == Schema.Type.STRUCT) {
+                final int size = r.readLength();
+                for (int i = 0; i < size; i++) {
+                    final String fieldName = r.readString();
+                    b.field(fieldName, readSchema(r));
+                }
+            }
+        }
+
+        if ((flags & OPTIONAL) != 0) {
+            b.optional();
+        }
+        if (name != null) {
+            b.name(name);
+        }
+        if (version != null) {
+            b.version(version);
+        }
+        if (doc != null) {
+            b.doc(doc);
+        }
+        if ((flags & PARAMETERS) != 0) {
+            b.parameters(params);
+        }
+        if ((flags & DEFAULT) != 0) {
+            b.defaultValue(readValue(r, b));
+        }
+        return b.build();
+    }
+
+    private static byte typeCode(Schema.Type type) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i] == type) {
+                return (byte) i;
+            }
+        }
+        throw new DataException("unsupported schema type to encode: " + type);
+    }
+
+    private static long zigZag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unZigZag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static int compareUnsigned(byte[] a, byte[] b) {
+        final int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            final int c = Integer.compare(a[i] & 0xff, b[i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+    /**
+     * Growable buffer to encode into.
+     */
+    static final class Writer {
+        private byte[] buf;
+        private int size;
+
+        Writer(int capacity) {
+            buf = new byte[Math.max(capacity, 16)];
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+
+        void writeByte(byte b) {
+            ensure(1);
+            buf[size++] = b;
+        }
+
+        void writeVarlong(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                buf[size++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        void writeFixed(long v, int bytes) {
+            ensure(bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                buf[size++] = (byte) (v >>> (i * 8));
+            }
+        }
+
+        void writeRaw(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarlong(bytes.length);
+            writeRaw(bytes);
+        }
+
+        void writeBytes(ByteBuffer bytes) {
+            final ByteBuffer b = bytes.duplicate();
+            writeVarlong(b.remaining());
+            ensure(b.remaining());
+            final int n = b.remaining();
+            b.get(buf, size, n);
+            size += n;
+        }
+
+        void writeString(String s) {
+            writeBytes(s.getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    /**
+     * Cursor over encoded bytes, which throws {@link DataException} if they are truncated.
+     */
+    static final class Reader {
+        private final byte[] buf;
+        private int pos;
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        private void require(int n) {
+            if (n < 0 || pos + n > buf.length) {
+                throw new DataException("truncated record blob");
+            }
+        }
+
+        byte readByte() {
+            require(1);
+            return buf[pos++];
+        }
+
+        long readVarlong() {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final byte b = readByte();
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new DataException("malformed varint in record blob");
+        }
+
+        int readLength() {
+            final long n = readVarlong();
+            if (n < 0 || n > buf.length - pos) {
+                throw new DataException("truncated record blob");
+            }
+            return (int) n;
+        }
+
+        long readFixed(int bytes) {
+            require(bytes);
+            long v = 0;
+            for (int i = 0; i < bytes; i++) {
+                v = (v << 8) | (buf[pos++] & 0xff);
+            }
+            return v;
+        }
+
+        byte[] readBytes() {
+            final int n = readLength();
+            final byte[] out = Arrays.copyOfRange(buf, pos, pos + n);
+            pos += n;
+            return out;
+        }
+
+        String readString() {
+            final int n = readLength();
+            final String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+            pos += n;
+            return s;
+        }
+
+        int position() {
+            return pos;
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        void skip(int n) {
+            require(n);
+            pos += n;
+        }
+    }
+}
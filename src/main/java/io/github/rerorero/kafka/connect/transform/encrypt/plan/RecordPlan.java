@@ -0,0 +1,417 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.plan;
+
+import io.github.rerorero.kafka.kms.Item;
+import org.apache.kafka.connect.data.Field;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.errors.DataException;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Plan of the whole-record mode, in which the selected top-level fields, or all the fields, of a record are packed
+ * into a single blob with {@link RecordCodec}, which is encrypted as one item into the envelope field. Decrypting
+ * unpacks the blob and puts the fields back in place of the envelope field.
+ * <p>
+ * The blob is the format byte, the kind of the value and the packed entries. For Struct values it carries the
+ * original positions and the schemas of the packed fields, so the schema of the record is restored as it was.
+ */
+public final class RecordPlan {
+    static final byte FORMAT = 1;
+    private static final byte KIND_MAP = 0;
+    private static final byte KIND_STRUCT = 1;
+
+    private final String envelopeField;
+    // names of the packed fields, or empty to pack all the fields
+    private final Set<String> names;
+    private final Item.Encoding encoding;
+    private final boolean unpack;
+    private final Map<Object, Layout> layouts;
+    private volatile Layout last;
+
+    private RecordPlan(String envelopeField, Set<String> names, Item.Encoding encoding, boolean unpack, int capacity) {
+        this.envelopeField = envelopeField;
+        this.names = names;
+        this.encoding = encoding;
+        this.unpack = unpack;
+        this.layouts = new LinkedHashMap<Object, Layout>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Layout> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param envelopeField The field which holds the encrypted blob
+     * @param paths         The top-level fields to pack, or empty to pack all the fields
+     * @param encoding      The encoding of the envelope field written when packing
+     * @param unpack        Whether the plan unpacks the envelope field instead of packing the fields into it
+     */
+    public static RecordPlan compile(String envelopeField, Collection<JsonPath> paths, Item.Encoding encoding, boolean unpack) {
+        final Set<String> names = new HashSet<>();
+        for (JsonPath path : paths) {
+            final List<JsonPath.Segment> segments = path.getSegments();
+            if (segments.size() != 1 || !segments.get(0).isName()) {
+                throw new IllegalArgumentException("only top-level fields can be packed into a record field: " + path);
+            }
+            names.add(segments.get(0).getName());
+        }
+        if (names.contains(envelopeField)) {
+            throw new IllegalArgumentException("the record field can't be packed into itself: " + envelopeField);
+        }
+        return new RecordPlan(envelopeField, names, encoding, unpack, StructPlanCache.DEFAULT_CAPACITY);
+    }
+
+    private boolean packs(String name) {
+        return names.isEmpty() ? !name.equals(envelopeField) : names.contains(name);
+    }
+
+    /**
+     * Adds the blob of the packed fields, or the envelope field when unpacking, to the slots.
+     * Nothing is added if there is no field to pack or to unpack.
+     *
+     * @throws DataException if the envelope field already exists when packing
+     */
+    public void extract(Map<String, Object> value, Fields fields) {
+        if (unpack) {
+            final Object blob = value.get(envelopeField);
+            if (blob != null) {
+                fields.add(blob);
+            }
+            return;
+        }
+
+        if (value.containsKey(envelopeField)) {
+            throw new DataException("record field already exists: " + envelopeField);
+        }
+        final List<Map.Entry<String, Object>> packed = new ArrayList<>(value.size());
+        for (Map.Entry<String, Object> e : value.entrySet()) {
+            if (packs(e.getKey())) {
+                packed.add(e);
+            }
+        }
+        if (packed.isEmpty()) {
+            return;
+        }
+
+        final RecordCodec.Writer w = new RecordCodec.Writer(64);
+        w.writeByte(FORMAT);
+        w.writeByte(KIND_MAP);
+        RecordCodec.writeEntries(w, packed);
+        fields.add(w.toByteArray());
+    }
+
+    /**
+     * Returns the value in which the packed fields are replaced with the envelope field, or the envelope field is
+     * replaced with the unpacked fields. The value is returned as it is if the result is missing.
+     *
+     * @param fields Fields extracted from the value by {@link #extract}, whose results are filled
+     */
+    public Map<String, Object> rewrite(Map<String, Object> value, Fields fields) {
+        if (fields.isEmpty()) {
+            return value;
+        }
+        fields.rewind();
+        final Item result = fields.nextResult();
+        if (result == null) {
+            return value;
+        }
+
+        final Map<String, Object> out = new HashMap<>(value);
+        if (unpack) {
+            final RecordCodec.Reader r = readerOf(result, KIND_MAP);
+            final int size = r.readLength();
+            out.remove(envelopeField);
+            for (int i = 0; i < size; i++) {
+                final Object key = RecordCodec.readValue(r, null);
+                if (!(key instanceof String)) {
+                    throw new DataException("record blob has a non-string field name: " + key);
+                }
+                out.put((String) key, RecordCodec.readValue(r, null));
+            }
+        } else {
+            out.keySet().removeIf(this::packs);
+            out.put(envelopeField, result.asObject(encoding));
+        }
+        return out;
+    }
+
+    public void extract(Struct value, Fields fields) {
+        if (unpack) {
+            final Field field = value.schema().field(envelopeField);
+            final Object blob = field == null ? null : value.get(field);
+            if (blob != null) {
+                fields.add(blob);
+            }
+            return;
+        }
+
+        final PackLayout layout = packLayout(value.schema());
+        if (layout.packed.length == 0) {
+            return;
+        }
+        final RecordCodec.Writer w = new RecordCodec.Writer(64 + layout.section.length);
+        w.writeByte(FORMAT);
+        w.writeByte(KIND_STRUCT);
+        w.writeBytes(layout.section);
+        for (Field field : layout.packed) {
+            RecordCodec.writeValue(w, value.getWithoutDefault(field.name()));
+        }
+        fields.add(w.toByteArray());
+    }
+
+    public Struct rewrite(Struct value, Fields fields) {
+        if (fields.isEmpty()) {
+            return value;
+        }
+        fields.rewind();
+        final Item result = fields.nextResult();
+        if (result == null) {
+            return value;
+        }
+
+        if (unpack) {
+            final RecordCodec.Reader r = readerOf(result, KIND_STRUCT);
+            final int sectionLength = r.readLength();
+            final UnpackLayout layout = unpackLayout(value.schema(), r.buffer(), r.position(), sectionLength);
+            r.skip(sectionLength);
+
+            final Struct out = new Struct(layout.outputSchema);
+            for (int i = 0; i < layout.kept.length; i++) {
+                out.put(layout.keptOut[i], value.getWithoutDefault(layout.kept[i].name()));
+            }
+            for (Field field : layout.packedOut) {
+                out.put(field, RecordCodec.readValue(r, field.schema()));
+            }
+            return out;
+        }
+
+        final PackLayout layout = packLayout(value.schema());
+        final Struct out = new Struct(layout.outputSchema);
+        for (int i = 0; i < layout.kept.length; i++) {
+            out.put(layout.keptOut[i], value.getWithoutDefault(layout.kept[i].name()));
+        }
+        out.put(layout.envelope, result.asObject(encoding));
+        return out;
+    }
+
+    private RecordCodec.Reader readerOf(Item result, byte kind) {
+        final RecordCodec.Reader r = new RecordCodec.Reader((byte[]) result.asObject(Item.Encoding.BINARY));
+        final byte format = r.readByte();
+        if (format != FORMAT) {
+            throw new DataException("unknown record blob format: " + format);
+        }
+        final byte actual = r.readByte();
+        if (actual != kind) {
+            throw new DataException(kind == KIND_MAP
+                    ? "record blob of a Struct can't be unpacked into a schemaless value"
+                    : "record blob of a schemaless value can't be unpacked into a Struct");
+        }
+        return r;
+    }
+
+    private PackLayout packLayout(Schema schema) {
+        final Layout l = last;
+        if (l instanceof PackLayout && l.inputSchema == schema) {
+            return (PackLayout) l;
+        }
+        final PackLayout layout;
+        synchronized (layouts) {
+            layout = (PackLayout) layouts.computeIfAbsent(new SchemaKey(schema, null), k -> new PackLayout(schema));
+        }
+        last = layout;
+        return layout;
+    }
+
+    private UnpackLayout unpackLayout(Schema schema, byte[] blob, int offset, int length) {
+        final ByteBuffer section = ByteBuffer.wrap(blob, offset, length);
+        final Layout l = last;
+        if (l instanceof UnpackLayout && l.inputSchema == schema && ((UnpackLayout) l).section.equals(section)) {
+            return (UnpackLayout) l;
+        }
+        UnpackLayout layout;
+        synchronized (layouts) {
+            layout = (UnpackLayout) layouts.get(new SchemaKey(schema, section));
+            if (layout == null) {
+                final byte[] copy = Arrays.copyOfRange(blob, offset, offset + length);
+                layout = new UnpackLayout(schema, ByteBuffer.wrap(copy));
+                layouts.put(new SchemaKey(schema, layout.section), layout);
+            }
+        }
+        last = layout;
+        return layout;
+    }
+
+    private static SchemaBuilder structBuilderOf(Schema schema) {
+        final SchemaBuilder builder = SchemaBuilder.struct();
+        if (schema.isOptional()) {
+            builder.optional();
+        }
+        if (schema.name() != null) {
+            builder.name(schema.name());
+        }
+        if (schema.version() != null) {
+            builder.version(schema.version());
+        }
+        if (schema.doc() != null) {
+            builder.doc(schema.doc());
+        }
+        if (schema.parameters() != null) {
+            builder.parameters(schema.parameters());
+        }
+        return builder;
+    }
+
+    private abstract static class Layout {
+        final Schema inputSchema;
+        Schema outputSchema;
+        // fields of the input kept as they are, and the same fields in the output
+        Field[] kept;
+        Field[] keptOut;
+
+        Layout(Schema inputSchema) {
+            this.inputSchema = inputSchema;
+        }
+    }
+
+    /**
+     * Fields of a schema to pack, with their encoded schemas and the schema of the output.
+     */
+    private final class PackLayout extends Layout {
+        final Field[] packed;
+        final byte[] section;
+        final Field envelope;
+
+        PackLayout(Schema schema) {
+            super(schema);
+            if (schema.field(envelopeField) != null) {
+                throw new DataException("record field already exists: " + envelopeField);
+            }
+
+            final List<Field> packedFields = new ArrayList<>();
+            final List<Field> keptFields = new ArrayList<>();
+            final SchemaBuilder builder = structBuilderOf(schema);
+            for (Field field : schema.fields()) {
+                if (packs(field.name())) {
+                    packedFields.add(field);
+                } else {
+                    keptFields.add(field);
+                    builder.field(field.name(), field.schema());
+                }
+            }
+            builder.field(envelopeField, encoding == Item.Encoding.BINARY ? Schema.BYTES_SCHEMA : Schema.STRING_SCHEMA);
+
+            final RecordCodec.Writer w = new RecordCodec.Writer(64);
+            w.writeVarlong(packedFields.size());
+            for (Field field : packedFields) {
+                w.writeVarlong(field.index());
+                w.writeString(field.name());
+                RecordCodec.writeSchema(w, field.schema());
+            }
+
+            this.packed = packedFields.toArray(new Field[0]);
+            this.section = w.toByteArray();
+            this.outputSchema = builder.build();
+            this.kept = keptFields.toArray(new Field[0]);
+            this.keptOut = new Field[kept.length];
+            for (int i = 0; i < kept.length; i++) {
+                keptOut[i] = outputSchema.field(kept[i].name());
+            }
+            this.envelope = outputSchema.field(envelopeField);
+        }
+    }
+
+    /**
+     * Schema of the output of a schema, restored from the encoded schemas of the packed fields.
+     */
+    private final class UnpackLayout extends Layout {
+        final ByteBuffer section;
+        final Field[] packedOut;
+
+        UnpackLayout(Schema schema, ByteBuffer section) {
+            super(schema);
+            this.section = section;
+
+            final RecordCodec.Reader r = new RecordCodec.Reader(section.array());
+            final int size = r.readLength();
+            final int[] indices = new int[size];
+            final String[] packedNames = new String[size];
+            final Schema[] packedSchemas = new Schema[size];
+            for (int i = 0; i < size; i++) {
+                indices[i] = (int) r.readVarlong();
+                packedNames[i] = r.readString();
+                packedSchemas[i] = RecordCodec.readSchema(r);
+            }
+
+            final List<Field> keptFields = new ArrayList<>();
+            for (Field field : schema.fields()) {
+                if (!field.name().equals(envelopeField)) {
+                    keptFields.add(field);
+                }
+            }
+
+            // the packed fields go back to their original positions, and the kept fields fill the others in order
+            final int total = keptFields.size() + size;
+            final SchemaBuilder builder = structBuilderOf(schema);
+            int next = 0;
+            int kept = 0;
+            for (int position = 0; position < total; position++) {
+                if (next < size && indices[next] == position) {
+                    builder.field(packedNames[next], packedSchemas[next]);
+                    next++;
+                } else if (kept < keptFields.size()) {
+                    final Field field = keptFields.get(kept++);
+                    builder.field(field.name(), field.schema());
+                } else {
+                    builder.field(packedNames[next], packedSchemas[next]);
+                    next++;
+                }
+            }
+
+            this.outputSchema = builder.build();
+            this.kept = keptFields.toArray(new Field[0]);
+            this.keptOut = new Field[this.kept.length];
+            for (int i = 0; i < this.kept.length; i++) {
+                keptOut[i] = outputSchema.field(this.kept[i].name());
+            }
+            this.packedOut = new Field[size];
+            for (int i = 0; i < size; i++) {
+                packedOut[i] = outputSchema.field(packedNames[i]);
+            }
+        }
+    }
+
+    /**
+     * Key of a layout by the schema, and the encoded schemas of the packed fields when unpacking. The schemas are
+     * compared by {@link Schema#equals}, since the last layout is already looked up by the identity of the schema.
+     */
+    private static final class SchemaKey {
+        private final Schema schema;
+        private final ByteBuffer section;
+        private final int hash;
+
+        SchemaKey(Schema schema, ByteBuffer section) {
+            this.schema = schema;
+            this.section = section;
+            this.hash = 31 * schema.hashCode() + (section == null ? 0 : section.hashCode());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SchemaKey)) {
+                return false;
+            }
+            final SchemaKey that = (SchemaKey) o;
+            return that.hash == hash && (that.schema == schema || that.schema.equals(schema))
+                    && Objects.equals(that.section, section);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
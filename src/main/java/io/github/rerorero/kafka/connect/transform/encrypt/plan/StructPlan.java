@@ -0,0 +1,442 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.plan;
+
+import io.github.rerorero.kafka.kms.Item;
+import org.apache.kafka.connect.data.Field;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.errors.DataException;
+
+import java.util.*;
+
+/**
+ * Extraction and rewrite plan of the configured JsonPath fields, compiled for a {@link Schema}.
+ * Field positions, array indices and the schema of the output are resolved when compiled, so that
+ * extracting the fields of a record is plain field access, and the record is rebuilt once for all the paths.
+ */
+public final class StructPlan {
+    private final Node root;
+    private final Schema inputSchema;
+    private final Schema outputSchema;
+
+    private StructPlan(Node root, Schema inputSchema, Schema outputSchema) {
+        this.root = root;
+        this.inputSchema = inputSchema;
+        this.outputSchema = outputSchema;
+    }
+
+    /**
+     * Compiles the plan of the paths for the schema.
+     *
+     * @param encoding The encoding of the values written by {@link #rewrite}, which determines the schema of the output
+     * @throws DataException if the schema of the output can not be derived
+     */
+    public static StructPlan compile(Schema schema, Collection<JsonPath> paths, Item.Encoding encoding) {
+        final List<Suffix> suffixes = new ArrayList<>();
+        paths.forEach(path -> suffixes.add(new Suffix(path, 0)));
+        final Node root = compile(schema, suffixes, new Compiler(encoding), "$");
+        return new StructPlan(root, schema, root == null ? schema : root.outSchema);
+    }
+
+    public Schema getInputSchema() {
+        return inputSchema;
+    }
+
+    public Schema getOutputSchema() {
+        return outputSchema;
+    }
+
+    /**
+     * Adds the values of the target fields to the slots in the order they are visited. Null values are skipped,
+     * and a field selected by several paths is added once.
+     */
+    public void extract(Struct value, Fields fields) {
+        if (root != null) {
+            root.extract(value, fields);
+        }
+    }
+
+    /**
+     * Returns the Struct of the output schema, in which the target fields are replaced with the results.
+     * A field whose result is missing keeps its value. Only the Structs, arrays and maps on the way to a replaced
+     * field are copied, and the others are shared with the given value, which is never modified.
+     *
+     * @param fields Fields extracted from the value by {@link #extract}, whose results are filled
+     */
+    public Struct rewrite(Struct value, Fields fields) {
+        if (root == null || fields.isEmpty()) {
+            return value;
+        }
+        fields.rewind();
+        return (Struct) root.rewrite(value, fields);
+    }
+
+    private static final class Compiler {
+        final Item.Encoding encoding;
+
+        Compiler(Item.Encoding encoding) {
+            this.encoding = encoding;
+        }
+
+        Schema leafSchema(Schema schema) {
+            final Schema.Type type = encoding == Item.Encoding.BINARY ? Schema.Type.BYTES : Schema.Type.STRING;
+            if (schema.type() == type) {
+                return schema;
+            }
+            final SchemaBuilder builder = new SchemaBuilder(type);
+            if (schema.isOptional()) {
+                builder.optional();
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * @param fieldPath The field path of the node, which is used in error messages
+     */
+    private static Node compile(Schema schema, List<Suffix> suffixes, Compiler compiler, String fieldPath) {
+        if (suffixes.stream().anyMatch(Suffix::isEnd)) {
+            return new Leaf(schema, compiler.leafSchema(schema), compiler.encoding);
+        }
+
+        switch (schema.type()) {
+            case STRUCT:
+                return compileStruct(schema, suffixes, compiler, fieldPath);
+            case ARRAY:
+                return compileArray(schema, suffixes, compiler, fieldPath);
+            case MAP:
+                return compileMap(schema, suffixes, compiler, fieldPath);
+            default:
+                return null;
+        }
+    }
+
+    private static Node compileStruct(Schema schema, List<Suffix> suffixes, Compiler compiler, String fieldPath) {
+        final List<Field> fields = new ArrayList<>();
+        final List<Node> children = new ArrayList<>();
+        Suffix.groupByName(suffixes).forEach((name, group) -> {
+            final Field field = schema.field(name);
+            if (field == null) {
+                return;
+            }
+            final Node child = compile(field.schema(), group, compiler, fieldPath + "." + name);
+            if (child != null) {
+                fields.add(field);
+                children.add(child);
+            }
+        });
+        if (children.isEmpty()) {
+            return null;
+        }
+
+        boolean changed = false;
+        for (int i = 0; i < children.size(); i++) {
+            changed |= children.get(i).outSchema != fields.get(i).schema();
+        }
+        Schema outSchema = schema;
+        if (changed) {
+            final SchemaBuilder builder = builderOf(schema, SchemaBuilder.struct());
+            for (Field f : schema.fields()) {
+                final int i = fields.indexOf(f);
+                builder.field(f.name(), i < 0 ? f.schema() : children.get(i).outSchema);
+            }
+            outSchema = builder.build();
+        }
+
+        final Field[] outFields = new Field[fields.size()];
+        for (int i = 0; i < outFields.length; i++) {
+            outFields[i] = outSchema.field(fields.get(i).name());
+        }
+        return new StructNode(schema, outSchema, fields.toArray(new Field[0]), outFields, children.toArray(new Node[0]));
+    }
+
+    private static Node compileArray(Schema schema, List<Suffix> suffixes, Compiler compiler, String fieldPath) {
+        final List<Suffix> wildcards = new ArrayList<>();
+        final SortedMap<Integer, List<Suffix>> indices = new TreeMap<>();
+        suffixes.forEach(s -> {
+            if (s.head().isWildcard()) {
+                wildcards.add(s.tail());
+            } else if (s.head().isIndex()) {
+                indices.computeIfAbsent(s.head().getIndex(), i -> new ArrayList<>()).add(s.tail());
+            }
+        });
+        if (wildcards.isEmpty() && indices.isEmpty()) {
+            return null;
+        }
+
+        final Schema valueSchema = schema.valueSchema();
+        final Node wildcardChild = wildcards.isEmpty() ? null : compile(valueSchema, wildcards, compiler, fieldPath + "[*]");
+        final Node[] indexChildren = new Node[indices.isEmpty() ? 0 : indices.lastKey() + 1];
+        indices.forEach((index, group) -> {
+            // paths with a wildcard apply to the element too
+            final List<Suffix> merged = new ArrayList<>(group);
+            merged.addAll(wildcards);
+            indexChildren[index] = compile(valueSchema, merged, compiler, fieldPath + "[" + index + "]");
+        });
+
+        if (wildcardChild == null && Arrays.stream(indexChildren).allMatch(Objects::isNull)) {
+            return null;
+        }
+        final Schema outValueSchema = elementSchema(valueSchema, wildcardChild, indexChildren, fieldPath);
+        final Schema outSchema = outValueSchema == valueSchema ? schema : builderOf(schema, SchemaBuilder.array(outValueSchema)).build();
+        return new ArrayNode(schema, outSchema, wildcardChild, indexChildren);
+    }
+
+    private static Node compileMap(Schema schema, List<Suffix> suffixes, Compiler compiler, String fieldPath) {
+        if (schema.keySchema().type() != Schema.Type.STRING) {
+            return null;
+        }
+        final List<String> keys = new ArrayList<>();
+        final List<Node> children = new ArrayList<>();
+        Suffix.groupByName(suffixes).forEach((key, group) -> {
+            final Node child = compile(schema.valueSchema(), group, compiler, fieldPath + "." + key);
+            if (child != null) {
+                keys.add(key);
+                children.add(child);
+            }
+        });
+        if (children.isEmpty()) {
+            return null;
+        }
+
+        final Node[] childArray = children.toArray(new Node[0]);
+        final Schema outValueSchema = elementSchema(schema.valueSchema(), null, childArray, fieldPath);
+        final Schema outSchema = outValueSchema == schema.valueSchema() ? schema
+                : builderOf(schema, SchemaBuilder.map(schema.keySchema(), outValueSchema)).build();
+        return new MapNode(schema, outSchema, keys.toArray(new String[0]), childArray);
+    }
+
+    /**
+     * Returns the schema of the elements of the output, which must be the same for all the elements.
+     */
+    private static Schema elementSchema(Schema valueSchema, Node wildcardChild, Node[] children, String fieldPath) {
+        // elements which are not selected keep the schema unless all the elements are selected by a wildcard
+        final Schema out = wildcardChild == null ? valueSchema : wildcardChild.outSchema;
+        for (Node child : children) {
+            if (child != null && child.outSchema != out && !child.outSchema.equals(out)) {
+                throw new DataException("elements of " + fieldPath + " would have different schemas");
+            }
+        }
+        return out;
+    }
+
+    private static SchemaBuilder builderOf(Schema schema, SchemaBuilder builder) {
+        if (schema.isOptional()) {
+            builder.optional();
+        }
+        if (schema.name() != null) {
+            builder.name(schema.name());
+        }
+        if (schema.version() != null) {
+            builder.version(schema.version());
+        }
+        if (schema.doc() != null) {
+            builder.doc(schema.doc());
+        }
+        if (schema.parameters() != null) {
+            builder.parameters(schema.parameters());
+        }
+        return builder;
+    }
+
+    private abstract static class Node {
+        final Schema inSchema;
+        final Schema outSchema;
+
+        Node(Schema inSchema, Schema outSchema) {
+            this.inSchema = inSchema;
+            this.outSchema = outSchema;
+        }
+
+        abstract void extract(Object value, Fields fields);
+
+        abstract Object rewrite(Object value, Fields fields);
+    }
+
+    private static final class Leaf extends Node {
+        private final Item.Encoding encoding;
+
+        Leaf(Schema inSchema, Schema outSchema, Item.Encoding encoding) {
+            super(inSchema, outSchema);
+            this.encoding = encoding;
+        }
+
+        @Override
+        void extract(Object value, Fields fields) {
+            if (value != null) {
+                fields.add(value);
+            }
+        }
+
+        @Override
+        Object rewrite(Object value, Fields fields) {
+            if (value == null) {
+                return null;
+            }
+            final Item result = fields.nextResult();
+            return result == null ? value : result.asObject(encoding);
+        }
+    }
+
+    private static final class StructNode extends Node {
+        private final Field[] inFields;
+        private final Field[] outFields;
+        private final Node[] children;
+        private final boolean[] selected;
+
+        StructNode(Schema inSchema, Schema outSchema, Field[] inFields, Field[] outFields, Node[] children) {
+            super(inSchema, outSchema);
+            this.inFields = inFields;
+            this.outFields = outFields;
+            this.children = children;
+            this.selected = new boolean[inSchema.fields().size()];
+            for (Field f : inFields) {
+                selected[f.index()] = true;
+            }
+        }
+
+        @Override
+        void extract(Object value, Fields fields) {
+            if (!(value instanceof Struct)) {
+                return;
+            }
+            final Struct struct = (Struct) value;
+            for (int i = 0; i < children.length; i++) {
+                children[i].extract(struct.get(inFields[i]), fields);
+            }
+        }
+
+        @Override
+        Object rewrite(Object value, Fields fields) {
+            if (!(value instanceof Struct)) {
+                return value;
+            }
+            final Struct struct = (Struct) value;
+            // the Struct is copied once a selected field is changed
+            Struct out = outSchema == inSchema ? null : copyUnselected(struct);
+            for (int i = 0; i < children.length; i++) {
+                // selected fields are visited in the order of the extraction
+                final Object org = struct.get(inFields[i]);
+                final Object updated = children[i].rewrite(org, fields);
+                if (out == null && updated != org) {
+                    out = copyUnselected(struct);
+                    for (int j = 0; j < i; j++) {
+                        out.put(outFields[j], struct.get(inFields[j]));
+                    }
+                }
+                if (out != null) {
+                    out.put(outFields[i], updated);
+                }
+            }
+            return out == null ? struct : out;
+        }
+
+        private Struct copyUnselected(Struct struct) {
+            final Struct out = new Struct(outSchema);
+            final List<Field> all = inSchema.fields();
+            final List<Field> outAll = outSchema.fields();
+            for (int i = 0; i < all.size(); i++) {
+                if (!selected[i]) {
+                    out.put(outAll.get(i), struct.get(all.get(i)));
+                }
+            }
+            return out;
+        }
+    }
+
+    private static final class ArrayNode extends Node {
+        private final Node wildcardChild;
+        private final Node[] indexChildren;
+
+        ArrayNode(Schema inSchema, Schema outSchema, Node wildcardChild, Node[] indexChildren) {
+            super(inSchema, outSchema);
+            this.wildcardChild = wildcardChild;
+            this.indexChildren = indexChildren;
+        }
+
+        private Node childAt(int index) {
+            final Node child = index < indexChildren.length ? indexChildren[index] : null;
+            return child == null ? wildcardChild : child;
+        }
+
+        @Override
+        void extract(Object value, Fields fields) {
+            if (!(value instanceof List)) {
+                return;
+            }
+            final List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                final Node child = childAt(i);
+                if (child != null) {
+                    child.extract(list.get(i), fields);
+                }
+            }
+        }
+
+        @Override
+        Object rewrite(Object value, Fields fields) {
+            if (!(value instanceof List)) {
+                return value;
+            }
+            final List<?> list = (List<?>) value;
+            List<Object> out = null;
+            for (int i = 0; i < list.size(); i++) {
+                final Node child = childAt(i);
+                if (child == null) {
+                    continue;
+                }
+                final Object org = list.get(i);
+                final Object updated = child.rewrite(org, fields);
+                if (updated != org) {
+                    if (out == null) {
+                        out = new ArrayList<>(list);
+                    }
+                    out.set(i, updated);
+                }
+            }
+            return out == null ? list : out;
+        }
+    }
+
+    private static final class MapNode extends Node {
+        private final String[] keys;
+        private final Node[] children;
+
+        MapNode(Schema inSchema, Schema outSchema, String[] keys, Node[] children) {
+            super(inSchema, outSchema);
+            this.keys = keys;
+            this.children = children;
+        }
+
+        @Override
+        void extract(Object value, Fields fields) {
+            if (!(value instanceof Map)) {
+                return;
+            }
+            final Map<?, ?> map = (Map<?, ?>) value;
+            for (int i = 0; i < children.length; i++) {
+                children[i].extract(map.get(keys[i]), fields);
+            }
+        }
+
+        @Override
+        Object rewrite(Object value, Fields fields) {
+            if (!(value instanceof Map)) {
+                return value;
+            }
+            final Map<?, ?> map = (Map<?, ?>) value;
+            Map<Object, Object> out = null;
+            for (int i = 0; i < children.length; i++) {
+                final Object org = map.get(keys[i]);
+                final Object updated = children[i].rewrite(org, fields);
+                if (updated != org) {
+                    if (out == null) {
+                        out = new HashMap<>(map);
+                    }
+                    out.put(keys[i], updated);
+                }
+            }
+            return out == null ? map : out;
+        }
+    }
+}
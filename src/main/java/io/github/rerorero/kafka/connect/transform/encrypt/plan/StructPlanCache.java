@@ -0,0 +1,86 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.plan;
+
+import io.github.rerorero.kafka.kms.Item;
+import org.apache.kafka.connect.data.Schema;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of {@link StructPlan}s keyed by the schema.
+ * Converters usually reuse the schema instance across records, so the plan of the last schema is looked up by
+ * identity first, which avoids hashing the whole schema for each record. Other lookups compare the schemas by
+ * {@link Schema#equals}, so that converters which build a new instance for each record share a plan.
+ */
+public class StructPlanCache {
+    public static final int DEFAULT_CAPACITY = 128;
+
+    private final Collection<JsonPath> paths;
+    private final Item.Encoding encoding;
+    private final Map<SchemaKey, StructPlan> plans;
+    private volatile StructPlan last;
+
+    public StructPlanCache(Collection<JsonPath> paths, Item.Encoding encoding) {
+        this(paths, encoding, DEFAULT_CAPACITY);
+    }
+
+    public StructPlanCache(Collection<JsonPath> paths, Item.Encoding encoding, int capacity) {
+        this.paths = paths;
+        this.encoding = encoding;
+        this.plans = new LinkedHashMap<SchemaKey, StructPlan>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SchemaKey, StructPlan> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the plan for the schema, compiling it if it is not cached.
+     */
+    public StructPlan get(Schema schema) {
+        final StructPlan l = last;
+        if (l != null && l.getInputSchema() == schema) {
+            return l;
+        }
+
+        final StructPlan plan;
+        synchronized (plans) {
+            plan = plans.computeIfAbsent(new SchemaKey(schema), k -> StructPlan.compile(schema, paths, encoding));
+        }
+        last = plan;
+        return plan;
+    }
+
+    public int size() {
+        synchronized (plans) {
+            return plans.size();
+        }
+    }
+
+    private static final class SchemaKey {
+        private final Schema schema;
+        // hashing a schema walks all of its fields, so it's done once per lookup
+        private final int hash;
+
+        SchemaKey(Schema schema) {
+            this.schema = schema;
+            this.hash = schema.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SchemaKey)) {
+                return false;
+            }
+            final SchemaKey that = (SchemaKey) o;
+            return that.hash == hash && (that.schema == schema || that.schema.equals(schema));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
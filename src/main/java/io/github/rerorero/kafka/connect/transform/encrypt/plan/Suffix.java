@@ -0,0 +1,44 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.plan;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remaining segments of a path from a node of a plan.
+ */
+final class Suffix {
+    final JsonPath path;
+    final int position;
+
+    Suffix(JsonPath path, int position) {
+        this.path = path;
+        this.position = position;
+    }
+
+    boolean isEnd() {
+        return position == path.getSegments().size();
+    }
+
+    JsonPath.Segment head() {
+        return path.getSegments().get(position);
+    }
+
+    Suffix tail() {
+        return new Suffix(path, position + 1);
+    }
+
+    /**
+     * Groups the tails of the suffixes starting with a name by the name.
+     */
+    static Map<String, List<Suffix>> groupByName(List<Suffix> suffixes) {
+        final Map<String, List<Suffix>> groups = new LinkedHashMap<>();
+        suffixes.forEach(s -> {
+            if (s.head().isName()) {
+                groups.computeIfAbsent(s.head().getName(), n -> new ArrayList<>()).add(s.tail());
+            }
+        });
+        return groups;
+    }
+}
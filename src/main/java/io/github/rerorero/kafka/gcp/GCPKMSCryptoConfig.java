@@ -1,6 +1,7 @@
 package io.github.rerorero.kafka.gcp;
 
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import io.github.rerorero.kafka.kms.ExecutorConfig;
 import com.google.api.resourcenames.ResourceName;
 import com.google.cloud.kms.v1.CryptoKeyName;
 import com.google.cloud.kms.v1.CryptoKeyVersionName;
@@ -22,6 +23,7 @@ public class GCPKMSCryptoConfig {
     private final String keyRingID;
     private final String keyID;
     private final Optional<String> keyVersionID;
+    private final ExecutorConfig executorConfig;
 
     public GCPKMSCryptoConfig(
             String keyProjectID,
@@ -29,12 +31,24 @@ public class GCPKMSCryptoConfig {
             String keyRingID,
             String keyID,
             Optional<String> keyVersionID
+    ) {
+        this(keyProjectID, keyLocationID, keyRingID, keyID, keyVersionID, ExecutorConfig.DEFAULT);
+    }
+
+    public GCPKMSCryptoConfig(
+            String keyProjectID,
+            String keyLocationID,
+            String keyRingID,
+            String keyID,
+            Optional<String> keyVersionID,
+            ExecutorConfig executorConfig
     ) {
         this.keyProjectID = keyProjectID;
         this.keyLocationID = keyLocationID;
         this.keyRingID = keyRingID;
         this.keyID = keyID;
         this.keyVersionID = keyVersionID;
+        this.executorConfig = executorConfig;
     }
 
     CryptoKeyName getKeyName() {
@@ -49,6 +63,10 @@ public class GCPKMSCryptoConfig {
         return keyVersionID.map(version -> CryptoKeyVersionName.of(keyProjectID, keyLocationID, keyRingID, keyID, version));
     }
 
+    ExecutorConfig getExecutorConfig() {
+        return executorConfig;
+    }
+
     KeyFactory getAsymmetricKeyFactory() {
         try {
             return KeyFactory.getInstance("RSA");
@@ -1,86 +1,165 @@
 package io.github.rerorero.kafka.gcp;
 
-import com.amazonaws.SdkClientException;
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServiceException;
+import io.github.rerorero.kafka.kms.ExecutorConfig;
 import io.github.rerorero.kafka.kms.Item;
 import io.github.rerorero.kafka.kms.Service;
+import io.github.rerorero.kafka.kms.envelope.DataKey;
+import io.github.rerorero.kafka.kms.envelope.DataKeyCache;
+import io.github.rerorero.kafka.kms.envelope.Envelope;
+import io.github.rerorero.kafka.kms.envelope.EnvelopeConfig;
+import io.github.rerorero.kafka.kms.envelope.RotatingDataKey;
+import io.github.rerorero.kafka.util.CacheStats;
+import io.github.rerorero.kafka.util.Futures;
 import io.github.rerorero.kafka.util.Pair;
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
 import com.google.api.gax.rpc.ApiException;
 import com.google.api.resourcenames.ResourceName;
 import com.google.cloud.kms.v1.*;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import java.io.BufferedReader;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.CompletionException;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public abstract class GCPKeyManagementService implements Service {
     protected KeyManagementServiceClient client;
+    private final ExecutorConfig executorConfig;
+    private ExecutorService executor;
 
     protected GCPKeyManagementService(GCPKMSCryptoConfig config) {
         this.client = config.getKMSClient();
+        this.executorConfig = config.getExecutorConfig();
     }
 
     @Override
     public void init() {
+        // the asynchronous path must not run an operation on its caller, so a full queue rejects
+        executor = executorConfig.newExecutor("gcpkms-crypto", false);
     }
 
     @Override
     public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
         client.close();
     }
 
     @Override
     public <F> Map<F, Item> doCrypto(Map<F, Object> items) {
-        final List<CompletableFuture<Pair<F, Item>>> futureList = new ArrayList<>();
-        items.forEach((field, item) -> {
-            futureList.add(CompletableFuture.supplyAsync(() -> {
-                try {
-                    Item converted = callEndpoint(field.toString(), item);
-                    return new Pair(field, converted);
-                } catch (SdkClientException e) {
-                    throw new ServerErrorException(e);
-                }
-            }));
-        });
+        return Futures.join(cryptoAsync(items, true));
+    }
+
+    @Override
+    public <F> CompletionStage<Map<F, Item>> doCryptoAsync(Map<F, Object> items, Duration timeout) {
+        return Futures.withTimeout(cryptoAsync(items, false), timeout);
+    }
 
+    /**
+     * Requests to Cloud KMS are multiplexed over the gRPC channel without holding a thread for each,
+     * only local crypto operations run on the executor. Completing the result before them, e.g. cancelling it,
+     * cancels the calls in flight.
+     *
+     * @param blocking Whether the caller waits for the result, so that it runs the operations which the executor is too
+     *                 full to take. Otherwise the result fails with {@link ServerErrorException}.
+     */
+    private <F> CompletableFuture<Map<F, Item>> cryptoAsync(Map<F, Object> items, boolean blocking) {
+        final List<CompletableFuture<Pair<F, Item>>> futureList = new ArrayList<>();
         try {
-            CompletableFuture.allOf(futureList.toArray(new CompletableFuture[futureList.size()])).join();
-        } catch (CompletionException e) {
-            if (e.getCause() instanceof ServiceException) {
-                throw (ServiceException) e.getCause();
-            } else {
-                throw new ServiceException(e);
+            if (executor == null) {
+                throw new ClientErrorException("service is not initialized");
             }
+            final Executor runner = blocking ? ExecutorConfig.callerRunsWhenFull(executor) : executor;
+            items.forEach((field, item) -> {
+                final CompletableFuture<Item> call = callEndpointAsync(field.toString(), item, runner);
+                futureList.add(Futures.cancelling(call.thenApply(converted -> new Pair<>(field, converted)), call));
+            });
+        } catch (RuntimeException e) {
+            futureList.forEach(f -> f.cancel(true));
+            final CompletableFuture<Map<F, Item>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
         }
 
-        final Map<F, Item> out = new HashMap<>();
-        futureList.forEach(result -> {
-            try {
-                Pair<F, Item> pair = result.get();
-                out.put(pair.key, pair.value);
-            } catch (ExecutionException | InterruptedException e) {
-                throw new ServerErrorException("failed to get concurrent results", e);
+        final CompletableFuture<List<Pair<F, Item>>> all = Futures.allAsList(futureList);
+        return Futures.cancelling(all.thenApply(pairs -> {
+            final Map<F, Item> out = new HashMap<>();
+            pairs.forEach(pair -> out.put(pair.key, pair.value));
+            return out;
+        }), all);
+    }
+
+    /**
+     * @param executor Runs the local crypto operations of the call
+     */
+    protected abstract CompletableFuture<Item> callEndpointAsync(String field, Object item, Executor executor);
+
+    /**
+     * Runs the local crypto operation on the executor.
+     */
+    protected static CompletableFuture<Item> supplyAsync(Supplier<Item> supplier, Executor executor) {
+        try {
+            return CompletableFuture.supplyAsync(supplier, executor);
+        } catch (RejectedExecutionException e) {
+            throw new ServerErrorException("unable to schedule the request", e);
+        }
+    }
+
+    /**
+     * Converts the future of the gRPC call, mapping API errors to {@link ServiceException}.
+     * Completing the result before the call, e.g. cancelling it, cancels the call.
+     */
+    protected static <T> CompletableFuture<T> toCompletableFuture(ApiFuture<T> future) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        ApiFutures.addCallback(future, new ApiFutureCallback<T>() {
+            @Override
+            public void onFailure(Throwable t) {
+                if (t instanceof ApiException && !((ApiException) t).isRetryable()) {
+                    result.completeExceptionally(new ClientErrorException("Cloud KMS respond error", t));
+                } else {
+                    result.completeExceptionally(new ServerErrorException("Cloud KMS respond error", t));
+                }
             }
-        });
 
-        return out;
+            @Override
+            public void onSuccess(T response) {
+                result.complete(response);
+            }
+        }, MoreExecutors.directExecutor());
+        return Futures.cancelling(result, future);
     }
 
-    protected abstract Item callEndpoint(String field, Object item);
+    /**
+     * Converts the future of the gRPC call and maps its response, keeping the call cancellable from the mapped future.
+     */
+    protected static <T, R> CompletableFuture<R> toCompletableFuture(ApiFuture<T> future, Function<T, R> mapper) {
+        final CompletableFuture<T> result = toCompletableFuture(future);
+        return Futures.cancelling(result.thenApply(mapper), result);
+    }
 
     public static class EncryptService extends GCPKeyManagementService {
         private final ResourceName keyName;
@@ -91,24 +170,76 @@ public abstract class GCPKeyManagementService implements Service {
         }
 
         @Override
-        protected Item callEndpoint(String field, Object item) {
+        protected CompletableFuture<Item> callEndpointAsync(String field, Object item, Executor executor) {
             ByteString bs;
             if (item instanceof String) {
                 bs = ByteString.copyFromUtf8((String) item);
             } else if (item instanceof byte[]) {
-                bs = ByteString.copyFrom((byte[]) item);
+                // the record is not modified while it is transformed
+                bs = UnsafeByteOperations.unsafeWrap((byte[]) item);
             } else {
                 throw new ClientErrorException("type '" + item.getClass().getTypeName() + "' for field '" + field + "' is not supported");
             }
 
-            EncryptResponse response = client.encrypt(keyName, bs);
-            return new Item.CipherBytes(response.getCiphertext().toByteArray());
+            final EncryptRequest request = EncryptRequest.newBuilder()
+                    .setName(keyName.toString())
+                    .setPlaintext(bs)
+                    .build();
+            return toCompletableFuture(client.encryptCallable().futureCall(request),
+                    response -> new Item.CipherBytes(response.getCiphertext().asReadOnlyByteBuffer()));
+        }
+    }
+
+    /**
+     * Encrypts fields locally with AES-GCM data keys, each of which is wrapped once by Cloud KMS
+     * and embedded in the header of the ciphertext.
+     */
+    public static class EnvelopeEncryptService extends GCPKeyManagementService {
+        private final ResourceName keyName;
+        private final RotatingDataKey dataKey;
+
+        public EnvelopeEncryptService(GCPKMSCryptoConfig config, EnvelopeConfig envelopeConfig) {
+            super(config);
+            keyName = config.getEncryptKeyName();
+            dataKey = envelopeConfig.newRotatingDataKey(this::newDataKey);
+        }
+
+        private DataKey newDataKey() {
+            final byte[] plaintext = DataKey.newPlaintextKey();
+            try {
+                final EncryptResponse response = client.encrypt(keyName, UnsafeByteOperations.unsafeWrap(plaintext));
+                return new DataKey(plaintext, response.getCiphertext().toByteArray());
+            } catch (ApiException e) {
+                throw new ServerErrorException("unable to wrap data key due to API error", e);
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        }
+
+        @Override
+        protected CompletableFuture<Item> callEndpointAsync(String field, Object item, Executor executor) {
+            return supplyAsync(() -> callEndpoint(field, item), executor);
+        }
+
+        private Item callEndpoint(String field, Object item) {
+            byte[] bytes;
+            if (item instanceof String) {
+                bytes = ((String) item).getBytes(StandardCharsets.UTF_8);
+            } else if (item instanceof byte[]) {
+                bytes = (byte[]) item;
+            } else {
+                throw new ClientErrorException("type '" + item.getClass().getTypeName() + "' for field '" + field + "' is not supported");
+            }
+
+            return new Item.CipherBytes(Envelope.seal(dataKey.acquire(), bytes));
         }
     }
 
     public static class AsymmetricEncryptService extends GCPKeyManagementService {
         private final GCPKMSCryptoConfig config;
         private java.security.PublicKey publicKey;
+        // Cipher is not thread-safe, so each thread keeps its own one initialized with the public key.
+        private ThreadLocal<Cipher> ciphers;
 
         public AsymmetricEncryptService(GCPKMSCryptoConfig config) {
             super(config);
@@ -117,6 +248,7 @@ public abstract class GCPKeyManagementService implements Service {
 
         @Override
         public void init() {
+            super.init();
             try {
                 final CryptoKeyVersionName keyName = config.getVersionedKeyName()
                         .orElseThrow(() -> new ClientErrorException("key version is required for asymmetric encryption"));
@@ -129,6 +261,17 @@ public abstract class GCPKeyManagementService implements Service {
             } catch (ApiException e) {
                 throw new ServerErrorException("unable to get public key due to API error", e);
             }
+            ciphers = ThreadLocal.withInitial(this::newCipher);
+        }
+
+        private Cipher newCipher() {
+            final Cipher cipher = config.getAsymmetricCipher();
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, publicKey, config.getOAEPSpec());
+            } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+                throw new ClientErrorException("unable to initialize cipher with the public key", e);
+            }
+            return cipher;
         }
 
         // Converts a base64-encoded PEM certificate like the one returned from Cloud
@@ -143,8 +286,20 @@ public abstract class GCPKeyManagementService implements Service {
             return Base64.getDecoder().decode(encoded);
         }
 
+        /**
+         * Encrypts the bytes with the public key. The cipher returns to its initialized state after doFinal,
+         * so it is reused without another init.
+         */
+        protected byte[] encryptWithPublicKey(byte[] bytes) throws IllegalBlockSizeException, BadPaddingException {
+            return ciphers.get().doFinal(bytes);
+        }
+
         @Override
-        protected Item callEndpoint(String field, Object item) {
+        protected CompletableFuture<Item> callEndpointAsync(String field, Object item, Executor executor) {
+            return supplyAsync(() -> callEndpoint(field, item), executor);
+        }
+
+        private Item callEndpoint(String field, Object item) {
             byte[] bytes;
             if (item instanceof String) {
                 bytes = ((String) item).getBytes();
@@ -154,17 +309,57 @@ public abstract class GCPKeyManagementService implements Service {
                 throw new ClientErrorException("type '" + item.getClass().getTypeName() + "' for field '" + field + "' is not supported");
             }
 
-            final Cipher cipher = config.getAsymmetricCipher(); // Cipher is not thread-safe.
             try {
-                cipher.init(Cipher.ENCRYPT_MODE, publicKey, config.getOAEPSpec());
-                final byte[] ciphertext = cipher.doFinal(bytes);
-                return new Item.CipherBytes(ciphertext);
-            } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+                return new Item.CipherBytes(encryptWithPublicKey(bytes));
+            } catch (IllegalBlockSizeException | BadPaddingException e) {
                 throw new ClientErrorException("unable to encrypt the field:" + field + " with the public key", e);
             }
         }
     }
 
+    /**
+     * Encrypts fields locally with AES-GCM data keys, each of which is wrapped by the public key of the asymmetric key
+     * and embedded in the header of the ciphertext. Unlike {@link AsymmetricEncryptService}, the size of fields is
+     * not limited by the RSA key size and RSA encryption runs only once per data key.
+     */
+    public static class AsymmetricEnvelopeEncryptService extends AsymmetricEncryptService {
+        private final RotatingDataKey dataKey;
+
+        public AsymmetricEnvelopeEncryptService(GCPKMSCryptoConfig config, EnvelopeConfig envelopeConfig) {
+            super(config);
+            dataKey = envelopeConfig.newRotatingDataKey(this::newDataKey);
+        }
+
+        private DataKey newDataKey() {
+            final byte[] plaintext = DataKey.newPlaintextKey();
+            try {
+                return new DataKey(plaintext, encryptWithPublicKey(plaintext));
+            } catch (IllegalBlockSizeException | BadPaddingException e) {
+                throw new ClientErrorException("unable to wrap data key with the public key", e);
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        }
+
+        @Override
+        protected CompletableFuture<Item> callEndpointAsync(String field, Object item, Executor executor) {
+            return supplyAsync(() -> callEndpoint(field, item), executor);
+        }
+
+        private Item callEndpoint(String field, Object item) {
+            byte[] bytes;
+            if (item instanceof String) {
+                bytes = ((String) item).getBytes(StandardCharsets.UTF_8);
+            } else if (item instanceof byte[]) {
+                bytes = (byte[]) item;
+            } else {
+                throw new ClientErrorException("type '" + item.getClass().getTypeName() + "' for field '" + field + "' is not supported");
+            }
+
+            return new Item.CipherBytes(Envelope.seal(dataKey.acquire(), bytes));
+        }
+    }
+
     public static class DecryptService extends GCPKeyManagementService {
         private final CryptoKeyName keyName;
 
@@ -174,10 +369,73 @@ public abstract class GCPKeyManagementService implements Service {
         }
 
         @Override
-        protected Item callEndpoint(String field, Object item) {
-            final ByteString bs = itemToByteStringForDecrypt(field, item);
-            DecryptResponse response = client.decrypt(keyName, bs);
-            return new Item.PlainBytes(response.getPlaintext().toByteArray());
+        protected CompletableFuture<Item> callEndpointAsync(String field, Object item, Executor executor) {
+            final DecryptRequest request = DecryptRequest.newBuilder()
+                    .setName(keyName.toString())
+                    .setCiphertext(itemToByteStringForDecrypt(field, item))
+                    .build();
+            return toCompletableFuture(client.decryptCallable().futureCall(request),
+                    response -> new Item.PlainBytes(response.getPlaintext().asReadOnlyByteBuffer()));
+        }
+    }
+
+    /**
+     * Decrypts fields encrypted by {@link EnvelopeEncryptService}. Each wrapped data key is unwrapped once by Cloud KMS
+     * and cached.
+     */
+    public static class EnvelopeDecryptService extends GCPKeyManagementService {
+        private final CryptoKeyName keyName;
+        private final DataKeyCache dataKeys;
+
+        public EnvelopeDecryptService(GCPKMSCryptoConfig config, EnvelopeConfig envelopeConfig) {
+            super(config);
+            keyName = config.getKeyName();
+            dataKeys = envelopeConfig.newDataKeyCache();
+        }
+
+        @Override
+        protected CompletableFuture<Item> callEndpointAsync(String field, Object item, Executor executor) {
+            return supplyAsync(() -> callEndpoint(field, item), executor);
+        }
+
+        private Item callEndpoint(String field, Object item) {
+            final Envelope envelope = Envelope.parse(itemToBytesForDecrypt(field, item));
+            return new Item.PlainBytes(envelope.open(dataKeys.unwrap(envelope.getWrappedKey(), this::unwrap)));
+        }
+
+        protected byte[] unwrap(byte[] wrapped) {
+            try {
+                return client.decrypt(keyName, UnsafeByteOperations.unsafeWrap(wrapped)).getPlaintext().toByteArray();
+            } catch (ApiException e) {
+                throw new ServerErrorException("unable to unwrap data key due to API error", e);
+            }
+        }
+
+        public CacheStats getDataKeyCacheStats() {
+            return dataKeys.getStats();
+        }
+    }
+
+    /**
+     * Decrypts fields encrypted by {@link AsymmetricEnvelopeEncryptService}. Each wrapped data key is unwrapped once
+     * by Cloud KMS with the private key and cached.
+     */
+    public static class AsymmetricEnvelopeDecryptService extends EnvelopeDecryptService {
+        private final CryptoKeyVersionName versionedKeyName;
+
+        public AsymmetricEnvelopeDecryptService(GCPKMSCryptoConfig config, EnvelopeConfig envelopeConfig) {
+            super(config, envelopeConfig);
+            versionedKeyName = config.getVersionedKeyName()
+                    .orElseThrow(() -> new ClientErrorException("key version is required for asymmetric encryption"));
+        }
+
+        @Override
+        protected byte[] unwrap(byte[] wrapped) {
+            try {
+                return client.asymmetricDecrypt(versionedKeyName, UnsafeByteOperations.unsafeWrap(wrapped)).getPlaintext().toByteArray();
+            } catch (ApiException e) {
+                throw new ServerErrorException("unable to unwrap data key due to API error", e);
+            }
         }
     }
 
@@ -191,18 +449,26 @@ public abstract class GCPKeyManagementService implements Service {
         }
 
         @Override
-        protected Item callEndpoint(String field, Object item) {
-            final ByteString bs = itemToByteStringForDecrypt(field, item);
-            AsymmetricDecryptResponse response = client.asymmetricDecrypt(keyName, bs);
-            return new Item.PlainBytes(response.getPlaintext().toByteArray());
+        protected CompletableFuture<Item> callEndpointAsync(String field, Object item, Executor executor) {
+            final AsymmetricDecryptRequest request = AsymmetricDecryptRequest.newBuilder()
+                    .setName(keyName.toString())
+                    .setCiphertext(itemToByteStringForDecrypt(field, item))
+                    .build();
+            return toCompletableFuture(client.asymmetricDecryptCallable().futureCall(request),
+                    response -> new Item.PlainBytes(response.getPlaintext().asReadOnlyByteBuffer()));
         }
     }
 
     private static ByteString itemToByteStringForDecrypt(String field, Object item) {
+        // the bytes are either decoded for the request or the record, which is not modified while it is transformed
+        return UnsafeByteOperations.unsafeWrap(itemToBytesForDecrypt(field, item));
+    }
+
+    private static byte[] itemToBytesForDecrypt(String field, Object item) {
         if (item instanceof String) {
-            return ByteString.copyFrom(Base64.getDecoder().decode((String) item));
+            return Base64.getDecoder().decode((String) item);
         } else if (item instanceof byte[]) {
-            return ByteString.copyFrom((byte[]) item);
+            return (byte[]) item;
         } else {
             throw new ClientErrorException("type '" + item.getClass().getTypeName() + "' for field '" + field + "' is not supported");
         }
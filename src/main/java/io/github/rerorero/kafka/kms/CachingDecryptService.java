@@ -0,0 +1,258 @@
+package io.github.rerorero.kafka.kms;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import io.github.rerorero.kafka.util.CacheStats;
+import io.github.rerorero.kafka.util.ExpiringCache;
+import io.github.rerorero.kafka.util.Futures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Decorator of a decryption {@link Service} that caches the plaintext of each cipher text, independently of the
+ * key management service. The cache is bounded by the total size of the cached plaintext, and the plaintext
+ * is zeroed when it is evicted or expires. Callers always receive a copy of the cached plaintext, and the stats of
+ * the cache are logged periodically.
+ */
+public class CachingDecryptService implements Service {
+    private final Logger log = LoggerFactory.getLogger(CachingDecryptService.class);
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    // approximate memory of an entry apart from the plaintext: the digest key, the map entry and the array headers
+    static final int ENTRY_OVERHEAD_BYTES = 128;
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_BYTES = 1;
+    static final long STATS_LOG_INTERVAL_MS = 60_000;
+
+    private final Service delegate;
+    private final ExpiringCache<ByteBuffer, byte[]> cache;
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new ClientErrorException("unable to create " + DIGEST_ALGORITHM, e);
+        }
+    });
+
+    /**
+     * @param delegate The service which decrypts the cipher text on cache miss
+     * @param maxBytes Maximum approximate memory in bytes used by the cache
+     * @param ttlMs    Time in milliseconds a plaintext is cached
+     */
+    public CachingDecryptService(Service delegate, long maxBytes, long ttlMs) {
+        this.delegate = delegate;
+        this.cache = new ExpiringCache<>(maxBytes, ttlMs,
+                (digest, plaintext) -> ENTRY_OVERHEAD_BYTES + plaintext.length,
+                (digest, plaintext) -> Arrays.fill(plaintext, (byte) 0));
+    }
+
+    @Override
+    public <F> Map<F, Item> doCrypto(Map<F, Object> items) {
+        final Lookup<F> lookup = lookup(items);
+        if (lookup.misses.isEmpty()) {
+            return lookup.out;
+        }
+        return lookup.complete(delegate.doCrypto(lookup.misses));
+    }
+
+    /**
+     * Sends only the cache misses to {@link Service#doCrypto(Object[], Item[], int)} of the delegate.
+     */
+    @Override
+    public void doCrypto(Object[] values, Item[] results, int size) {
+        final BatchLookup lookup = new BatchLookup(new Item[][]{results}, 1);
+        lookup.add(0, values, size);
+        if (lookup.count > 0) {
+            delegate.doCrypto(lookup.values[0], lookup.results[0], lookup.sizes[0]);
+            lookup.complete();
+        }
+    }
+
+    /**
+     * Sends only the cache misses to {@link Service#doCryptoBatch} of the delegate, keeping the records which
+     * have any apart.
+     */
+    @Override
+    public void doCryptoBatch(Object[][] values, Item[][] results, int[] sizes, int count) {
+        final BatchLookup lookup = new BatchLookup(results, count);
+        for (int r = 0; r < count; r++) {
+            lookup.add(r, values[r], sizes[r]);
+        }
+        if (lookup.count > 0) {
+            delegate.doCryptoBatch(lookup.values, lookup.results, lookup.sizes, lookup.count);
+            lookup.complete();
+        }
+    }
+
+    /**
+     * Sends only the cache misses to {@link Service#doCryptoAsync} of the delegate, so the delegate applies
+     * the timeout and cancelling the result cancels its requests.
+     */
+    @Override
+    public <F> CompletionStage<Map<F, Item>> doCryptoAsync(Map<F, Object> items, Duration timeout) {
+        final Lookup<F> lookup;
+        try {
+            lookup = lookup(items);
+        } catch (RuntimeException e) {
+            final CompletableFuture<Map<F, Item>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        if (lookup.misses.isEmpty()) {
+            return CompletableFuture.completedFuture(lookup.out);
+        }
+        final CompletableFuture<Map<F, Item>> source = delegate.doCryptoAsync(lookup.misses, timeout).toCompletableFuture();
+        return Futures.cancelling(source.thenApply(lookup::complete), source);
+    }
+
+    private <F> Lookup<F> lookup(Map<F, Object> items) {
+        final Lookup<F> lookup = new Lookup<>();
+        items.forEach((field, item) -> {
+            final ByteBuffer digest = digestOf(item);
+            final byte[] cached = cache.get(digest, byte[]::clone);
+            if (cached != null) {
+                lookup.out.put(field, new Item.PlainBytes(cached));
+            } else {
+                lookup.misses.put(field, item);
+                lookup.missDigests.put(field, digest);
+            }
+        });
+        reportStats();
+        return lookup;
+    }
+
+    /**
+     * Cache hits of a call and the fields to be decrypted by the delegate.
+     */
+    private final class Lookup<F> {
+        final Map<F, Item> out = new HashMap<>();
+        final Map<F, Object> misses = new HashMap<>();
+        final Map<F, ByteBuffer> missDigests = new HashMap<>();
+
+        Map<F, Item> complete(Map<F, Item> decrypted) {
+            decrypted.forEach((field, item) -> {
+                final byte[] plaintext = (byte[]) item.asObject(Item.Encoding.BINARY);
+                cache.put(missDigests.get(field), plaintext.clone());
+                out.put(field, item);
+            });
+            return out;
+        }
+    }
+
+    /**
+     * Index-addressed counterpart of {@link Lookup}, which stores the cache hits in the results of the caller and
+     * gathers the misses of each record into the arrays to be passed to the delegate. Records without misses
+     * are left out of them.
+     */
+    private final class BatchLookup {
+        private final Item[][] out;
+        final Object[][] values;
+        final Item[][] results;
+        final int[] sizes;
+        private final ByteBuffer[][] digests;
+        // the index of each miss in the results of the caller
+        private final int[][] indices;
+        private final int[] records;
+        int count;
+
+        BatchLookup(Item[][] out, int records) {
+            this.out = out;
+            this.values = new Object[records][];
+            this.results = new Item[records][];
+            this.sizes = new int[records];
+            this.digests = new ByteBuffer[records][];
+            this.indices = new int[records][];
+            this.records = new int[records];
+        }
+
+        void add(int record, Object[] items, int size) {
+            Object[] missValues = null;
+            ByteBuffer[] missDigests = null;
+            int[] missIndices = null;
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                final ByteBuffer digest = digestOf(items[i]);
+                final byte[] cached = cache.get(digest, byte[]::clone);
+                if (cached != null) {
+                    out[record][i] = new Item.PlainBytes(cached);
+                    continue;
+                }
+                if (missValues == null) {
+                    missValues = new Object[size - i];
+                    missDigests = new ByteBuffer[size - i];
+                    missIndices = new int[size - i];
+                }
+                missValues[n] = items[i];
+                missDigests[n] = digest;
+                missIndices[n++] = i;
+            }
+            if (n > 0) {
+                values[count] = missValues;
+                results[count] = new Item[n];
+                sizes[count] = n;
+                digests[count] = missDigests;
+                indices[count] = missIndices;
+                records[count] = record;
+                count++;
+            }
+            reportStats();
+        }
+
+        void complete() {
+            for (int r = 0; r < count; r++) {
+                for (int i = 0; i < sizes[r]; i++) {
+                    final Item item = results[r][i];
+                    final byte[] plaintext = (byte[]) item.asObject(Item.Encoding.BINARY);
+                    cache.put(digests[r][i], plaintext.clone());
+                    out[records[r]][indices[r][i]] = item;
+                }
+            }
+        }
+    }
+
+    private void reportStats() {
+        if (cache.getStats().reportDue(STATS_LOG_INTERVAL_MS)) {
+            log.info("decrypt cache stats: {}", cache.getStats());
+        }
+    }
+
+    private ByteBuffer digestOf(Object item) {
+        final MessageDigest md = digests.get();
+        if (item instanceof String) {
+            md.update(TYPE_STRING);
+            md.update(((String) item).getBytes(StandardCharsets.UTF_8));
+        } else if (item instanceof byte[]) {
+            md.update(TYPE_BYTES);
+            md.update((byte[]) item);
+        } else {
+            throw new ClientErrorException("not supported field type: " + item.getClass());
+        }
+        return ByteBuffer.wrap(md.digest());
+    }
+
+    public CacheStats getStats() {
+        return cache.getStats();
+    }
+
+    @Override
+    public void init() {
+        delegate.init();
+    }
+
+    @Override
+    public void close() {
+        log.info("decrypt cache stats: {}", cache.getStats());
+        cache.clear();
+        delegate.close();
+    }
+}
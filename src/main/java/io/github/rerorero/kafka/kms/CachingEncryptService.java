@@ -0,0 +1,280 @@
+package io.github.rerorero.kafka.kms;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import io.github.rerorero.kafka.util.CacheStats;
+import io.github.rerorero.kafka.util.ExpiringCache;
+import io.github.rerorero.kafka.util.Futures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Decorator of an encryption {@link Service} that memoizes the cipher text of each plaintext.
+ * This is only meaningful for deterministic encryption, such as Vault convergent encryption, since otherwise
+ * the cached cipher text reveals that the plaintexts are equal while a fresh encryption would not.
+ * <p>
+ * Cache keys are HMAC-SHA256 digests of the namespace (the key and context) and the plaintext, keyed by a random
+ * secret of this instance, so the plaintext cannot be recovered from them.
+ * Callers always receive a copy of the cached cipher text, and the stats of the cache are logged periodically.
+ */
+public class CachingEncryptService implements Service {
+    private final Logger log = LoggerFactory.getLogger(CachingEncryptService.class);
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte TYPE_STRING = 0;
+    private static final byte TYPE_BYTES = 1;
+    static final long STATS_LOG_INTERVAL_MS = 60_000;
+
+    private final Service delegate;
+    private final byte[] namespace;
+    private final ExpiringCache<ByteBuffer, Item> cache;
+    private final ThreadLocal<Mac> macs;
+
+    /**
+     * @param delegate  The service which encrypts the plaintext on cache miss
+     * @param namespace Identifies the key and the context, so that the same plaintext under different keys never collides
+     * @param capacity  Maximum number of cached cipher text
+     * @param ttlMs     Time in milliseconds a cipher text is cached
+     */
+    public CachingEncryptService(Service delegate, String namespace, int capacity, long ttlMs) {
+        this.delegate = delegate;
+        this.namespace = namespace.getBytes(StandardCharsets.UTF_8);
+        this.cache = new ExpiringCache<>(capacity, ttlMs);
+
+        final byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        final SecretKeySpec macKey = new SecretKeySpec(secret, MAC_ALGORITHM);
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(macKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new ClientErrorException("unable to create " + MAC_ALGORITHM, e);
+            }
+        });
+    }
+
+    @Override
+    public <F> Map<F, Item> doCrypto(Map<F, Object> items) {
+        final Lookup<F> lookup = lookup(items);
+        if (lookup.misses.isEmpty()) {
+            return lookup.out;
+        }
+        return lookup.complete(delegate.doCrypto(lookup.misses));
+    }
+
+    /**
+     * Sends only the cache misses to {@link Service#doCrypto(Object[], Item[], int)} of the delegate.
+     */
+    @Override
+    public void doCrypto(Object[] values, Item[] results, int size) {
+        final BatchLookup lookup = new BatchLookup(new Item[][]{results}, 1);
+        lookup.add(0, values, size);
+        if (lookup.count > 0) {
+            delegate.doCrypto(lookup.values[0], lookup.results[0], lookup.sizes[0]);
+            lookup.complete();
+        }
+    }
+
+    /**
+     * Sends only the cache misses to {@link Service#doCryptoBatch} of the delegate, keeping the records which
+     * have any apart.
+     */
+    @Override
+    public void doCryptoBatch(Object[][] values, Item[][] results, int[] sizes, int count) {
+        final BatchLookup lookup = new BatchLookup(results, count);
+        for (int r = 0; r < count; r++) {
+            lookup.add(r, values[r], sizes[r]);
+        }
+        if (lookup.count > 0) {
+            delegate.doCryptoBatch(lookup.values, lookup.results, lookup.sizes, lookup.count);
+            lookup.complete();
+        }
+    }
+
+    /**
+     * Sends only the cache misses to {@link Service#doCryptoAsync} of the delegate, so the delegate applies
+     * the timeout and cancelling the result cancels its requests.
+     */
+    @Override
+    public <F> CompletionStage<Map<F, Item>> doCryptoAsync(Map<F, Object> items, Duration timeout) {
+        final Lookup<F> lookup;
+        try {
+            lookup = lookup(items);
+        } catch (RuntimeException e) {
+            final CompletableFuture<Map<F, Item>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        if (lookup.misses.isEmpty()) {
+            return CompletableFuture.completedFuture(lookup.out);
+        }
+        final CompletableFuture<Map<F, Item>> source = delegate.doCryptoAsync(lookup.misses, timeout).toCompletableFuture();
+        return Futures.cancelling(source.thenApply(lookup::complete), source);
+    }
+
+    private <F> Lookup<F> lookup(Map<F, Object> items) {
+        final Lookup<F> lookup = new Lookup<>();
+        final Map<ByteBuffer, F> firstFields = new HashMap<>();
+
+        items.forEach((field, item) -> {
+            final ByteBuffer digest = digestOf(item);
+            final Item cached = cache.get(digest, Item::copy);
+            if (cached != null) {
+                lookup.out.put(field, cached);
+                return;
+            }
+            final F first = firstFields.putIfAbsent(digest, field);
+            if (first != null) {
+                lookup.duplicates.put(field, first);
+                return;
+            }
+            lookup.misses.put(field, item);
+            lookup.missDigests.put(field, digest);
+        });
+        reportStats();
+        return lookup;
+    }
+
+    /**
+     * Cache hits of a call and the fields to be encrypted by the delegate, deduplicated by their digest.
+     * The cache keeps the items of the delegate, and every field receives a copy of them.
+     */
+    private final class Lookup<F> {
+        final Map<F, Item> out = new HashMap<>();
+        final Map<F, Object> misses = new HashMap<>();
+        final Map<F, ByteBuffer> missDigests = new HashMap<>();
+        final Map<F, F> duplicates = new HashMap<>();
+
+        Map<F, Item> complete(Map<F, Item> encrypted) {
+            encrypted.forEach((field, item) -> {
+                cache.put(missDigests.get(field), item);
+                out.put(field, item.copy());
+            });
+            duplicates.forEach((field, first) -> out.put(field, encrypted.get(first).copy()));
+            return out;
+        }
+    }
+
+    /**
+     * Index-addressed counterpart of {@link Lookup}, which stores the cache hits in the results of the caller and
+     * gathers the misses of each record into the arrays to be passed to the delegate. Records without misses
+     * are left out of them.
+     */
+    private final class BatchLookup {
+        private final Item[][] out;
+        final Object[][] values;
+        final Item[][] results;
+        final int[] sizes;
+        private final ByteBuffer[][] digests;
+        int count;
+        // the miss record and index of the first field of each digest
+        private final Map<ByteBuffer, int[]> firsts = new HashMap<>();
+        // the record, index, miss record and miss index of each field which is not cached
+        private final List<int[]> pending = new ArrayList<>();
+
+        BatchLookup(Item[][] out, int records) {
+            this.out = out;
+            this.values = new Object[records][];
+            this.results = new Item[records][];
+            this.sizes = new int[records];
+            this.digests = new ByteBuffer[records][];
+        }
+
+        void add(int record, Object[] items, int size) {
+            Object[] missValues = null;
+            ByteBuffer[] missDigests = null;
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                final ByteBuffer digest = digestOf(items[i]);
+                final Item cached = cache.get(digest, Item::copy);
+                if (cached != null) {
+                    out[record][i] = cached;
+                    continue;
+                }
+                int[] first = firsts.get(digest);
+                if (first == null) {
+                    if (missValues == null) {
+                        missValues = new Object[size - i];
+                        missDigests = new ByteBuffer[size - i];
+                    }
+                    missValues[n] = items[i];
+                    missDigests[n] = digest;
+                    first = new int[]{count, n++};
+                    firsts.put(digest, first);
+                }
+                pending.add(new int[]{record, i, first[0], first[1]});
+            }
+            if (n > 0) {
+                values[count] = missValues;
+                results[count] = new Item[n];
+                sizes[count] = n;
+                digests[count] = missDigests;
+                count++;
+            }
+            reportStats();
+        }
+
+        void complete() {
+            for (int r = 0; r < count; r++) {
+                for (int i = 0; i < sizes[r]; i++) {
+                    cache.put(digests[r][i], results[r][i]);
+                }
+            }
+            for (int[] p : pending) {
+                out[p[0]][p[1]] = results[p[2]][p[3]].copy();
+            }
+        }
+    }
+
+    private void reportStats() {
+        if (cache.getStats().reportDue(STATS_LOG_INTERVAL_MS)) {
+            log.info("encrypt cache stats: {}", cache.getStats());
+        }
+    }
+
+    private ByteBuffer digestOf(Object item) {
+        final Mac mac = macs.get();
+        mac.update(namespace);
+        if (item instanceof String) {
+            mac.update(TYPE_STRING);
+            mac.update(((String) item).getBytes(StandardCharsets.UTF_8));
+        } else if (item instanceof byte[]) {
+            mac.update(TYPE_BYTES);
+            mac.update((byte[]) item);
+        } else {
+            throw new ClientErrorException("not supported field type: " + item.getClass());
+        }
+        return ByteBuffer.wrap(mac.doFinal());
+    }
+
+    public CacheStats getStats() {
+        return cache.getStats();
+    }
+
+    @Override
+    public void init() {
+        delegate.init();
+    }
+
+    @Override
+    public void close() {
+        log.info("encrypt cache stats: {}", cache.getStats());
+        cache.clear();
+        delegate.close();
+    }
+}
@@ -0,0 +1,100 @@
+package io.github.rerorero.kafka.kms;
+
+import java.util.Objects;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Settings of the bounded executor which runs blocking requests to the key management service.
+ */
+public class ExecutorConfig {
+    public static final int DEFAULT_THREADS = 16;
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+    public static final ExecutorConfig DEFAULT = new ExecutorConfig(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final int threads;
+    private final int queueSize;
+
+    public ExecutorConfig(int threads, int queueSize) {
+        this.threads = threads;
+        this.queueSize = queueSize;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * Creates a new executor whose threads are named with the given prefix.
+     * When the queue is full, the task runs on the submitting thread to apply back pressure.
+     * Tasks submitted after shutdown are rejected with {@link RejectedExecutionException}.
+     */
+    public ExecutorService newExecutor(String name) {
+        return newExecutor(name, true);
+    }
+
+    /**
+     * Creates a new executor whose threads are named with the given prefix.
+     *
+     * @param callerRuns Whether a task runs on the submitting thread when the queue is full, instead of being rejected
+     *                   with {@link RejectedExecutionException}. The submitting thread must be allowed to block.
+     */
+    public ExecutorService newExecutor(String name, boolean callerRuns) {
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    final Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                (r, e) -> {
+                    if (e.isShutdown()) {
+                        throw new RejectedExecutionException(name + " executor has been shut down");
+                    }
+                    if (!callerRuns) {
+                        throw new RejectedExecutionException(name + " executor is full");
+                    }
+                    r.run();
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Returns an executor which runs a task on the submitting thread when the given executor is full, for the callers
+     * which are allowed to block. Tasks are still rejected after shutdown.
+     */
+    public static Executor callerRunsWhenFull(ExecutorService executor) {
+        return task -> {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                if (executor.isShutdown()) {
+                    throw e;
+                }
+                task.run();
+            }
+        };
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ExecutorConfig that = (ExecutorConfig) o;
+        return threads == that.threads && queueSize == that.queueSize;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(threads, queueSize);
+    }
+}
@@ -1,6 +1,7 @@
 package io.github.rerorero.kafka.kms;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
 import java.util.Objects;
 
@@ -20,43 +21,120 @@ public abstract class Item {
         return asString();
     }
 
+    /**
+     * Returns a read-only view of the bytes of the item, without copying them if possible.
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(asBytes()).asReadOnlyBuffer();
+    }
+
     protected abstract String asString();
 
     protected abstract byte[] asBytes();
 
-    static public class CipherBytes extends Item {
-        private final byte[] value;
+    /**
+     * Returns an equal item which shares no mutable state with this one, such as the array returned by
+     * {@link #asObject(Encoding)}, so that a shared item can be handed out without being modified through it.
+     */
+    public abstract Item copy();
 
-        public CipherBytes(byte[] value) {
-            this.value = value;
+    /**
+     * Item backed by a buffer, which is copied into an array at most once, when the item is read as bytes.
+     * Each encoding of the item is computed lazily and kept, so reading it again does not copy or encode it again.
+     */
+    abstract static class BufferItem extends Item {
+        private final ByteBuffer value;
+        private volatile byte[] bytes;
+        private volatile String string;
+
+        BufferItem(byte[] value) {
+            this.value = ByteBuffer.wrap(value);
+            this.bytes = value;
+        }
+
+        /**
+         * Wraps the remaining bytes of the buffer without copying them. The buffer must not be modified afterwards.
+         */
+        BufferItem(ByteBuffer value) {
+            this.value = value.slice();
+        }
+
+        protected abstract String encode(ByteBuffer value);
+
+        protected byte[] copyOfValue() {
+            final byte[] b = new byte[value.remaining()];
+            value.duplicate().get(b);
+            return b;
+        }
+
+        @Override
+        public ByteBuffer asByteBuffer() {
+            return value.asReadOnlyBuffer();
         }
 
         @Override
         protected String asString() {
-            return Base64.getEncoder().encodeToString(value);
+            String s = string;
+            if (s == null) {
+                s = encode(value.duplicate());
+                string = s;
+            }
+            return s;
         }
 
         @Override
         protected byte[] asBytes() {
-            return value;
+            byte[] b = bytes;
+            if (b == null) {
+                if (value.hasArray() && value.arrayOffset() == 0 && value.remaining() == value.array().length) {
+                    b = value.array();
+                } else {
+                    b = new byte[value.remaining()];
+                    value.duplicate().get(b);
+                }
+                bytes = b;
+            }
+            return b;
         }
 
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
-            CipherBytes that = (CipherBytes) o;
-            return Arrays.equals(value, that.value);
+            BufferItem that = (BufferItem) o;
+            return value.equals(that.value);
         }
 
         @Override
         public int hashCode() {
-            return Arrays.hashCode(value);
+            return value.hashCode();
+        }
+    }
+
+    static public class CipherBytes extends BufferItem {
+        public CipherBytes(byte[] value) {
+            super(value);
+        }
+
+        public CipherBytes(ByteBuffer value) {
+            super(value);
+        }
+
+        @Override
+        public Item copy() {
+            return new CipherBytes(copyOfValue());
+        }
+
+        @Override
+        protected String encode(ByteBuffer value) {
+            final ByteBuffer encoded = Base64.getEncoder().encode(value);
+            return new String(encoded.array(), encoded.arrayOffset(), encoded.remaining(), StandardCharsets.ISO_8859_1);
         }
     }
 
     public static class CipherText extends Item {
         private final String value;
+        private volatile byte[] bytes;
 
         public CipherText(String value) {
             this.value = value;
@@ -69,7 +147,17 @@ public abstract class Item {
 
         @Override
         protected byte[] asBytes() {
-            return value.getBytes();
+            byte[] b = bytes;
+            if (b == null) {
+                b = value.getBytes();
+                bytes = b;
+            }
+            return b;
+        }
+
+        @Override
+        public Item copy() {
+            return new CipherText(value);
         }
 
         @Override
@@ -86,34 +174,26 @@ public abstract class Item {
         }
     }
 
-    public static class PlainBytes extends Item {
-        private final byte[] value;
-
+    public static class PlainBytes extends BufferItem {
         public PlainBytes(byte[] value) {
-            this.value = value;
+            super(value);
         }
 
-        @Override
-        protected String asString() {
-            return new String(value);
-        }
-
-        @Override
-        protected byte[] asBytes() {
-            return value;
+        public PlainBytes(ByteBuffer value) {
+            super(value);
         }
 
         @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-            PlainBytes that = (PlainBytes) o;
-            return Arrays.equals(value, that.value);
+        public Item copy() {
+            return new PlainBytes(copyOfValue());
         }
 
         @Override
-        public int hashCode() {
-            return Arrays.hashCode(value);
+        protected String encode(ByteBuffer value) {
+            if (value.hasArray()) {
+                return new String(value.array(), value.arrayOffset() + value.position(), value.remaining());
+            }
+            return new String(asBytes());
         }
     }
 }
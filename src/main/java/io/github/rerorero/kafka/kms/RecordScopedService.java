@@ -0,0 +1,20 @@
+package io.github.rerorero.kafka.kms;
+
+/**
+ * Service which encrypts all the fields of a record with a single data key. The wrapped data key is stored once
+ * per record in a Connect header instead of in each field, so a record costs one call to the key management service.
+ */
+public interface RecordScopedService extends Service {
+    /**
+     * Name of the Connect header which holds the wrapped data key of the record.
+     */
+    String getHeaderName();
+
+    /**
+     * Encrypts or decrypts the fields of a single record as {@link #doCrypto(Object[], Item[], int)} does.
+     *
+     * @param header The header of the record, or null if the record has none
+     * @return The header to be stored with the record, or null if the header is to be removed from the record
+     */
+    byte[] doRecordCrypto(byte[] header, Object[] values, Item[] results, int size);
+}
@@ -0,0 +1,50 @@
+package io.github.rerorero.kafka.kms;
+
+import java.util.Objects;
+
+/**
+ * Settings of the retries of failed requests to the key management service, which backs off exponentially.
+ */
+public class RetryConfig {
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final long DEFAULT_BACKOFF_MS = 100;
+    public static final long DEFAULT_MAX_BACKOFF_MS = 1000;
+    public static final RetryConfig DEFAULT = new RetryConfig(DEFAULT_MAX_RETRIES, DEFAULT_BACKOFF_MS, DEFAULT_MAX_BACKOFF_MS);
+
+    private final int maxRetries;
+    private final long backoffMs;
+    private final long maxBackoffMs;
+
+    public RetryConfig(int maxRetries, long backoffMs, long maxBackoffMs) {
+        this.maxRetries = maxRetries;
+        this.backoffMs = backoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Returns the time in milliseconds to wait before the given retry, starting from 0.
+     */
+    public long backoffMs(int retry) {
+        if (retry >= 63 || backoffMs << retry >>> retry != backoffMs) {
+            return maxBackoffMs;
+        }
+        return Math.min(backoffMs << retry, maxBackoffMs);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RetryConfig that = (RetryConfig) o;
+        return maxRetries == that.maxRetries && backoffMs == that.backoffMs && maxBackoffMs == that.maxBackoffMs;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxRetries, backoffMs, maxBackoffMs);
+    }
+}
@@ -1,10 +1,77 @@
 package io.github.rerorero.kafka.kms;
 
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+
+import java.time.Duration;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 public interface Service {
     <F> Map<F, Item> doCrypto(Map<F, Object> items);
 
+    /**
+     * Index-addressed variant of {@link #doCrypto(Map)}, which stores the result of {@code values[i]}
+     * in {@code results[i]} for each {@code i < size}. The arrays are owned by the caller and reused across calls,
+     * so implementations must not keep them.
+     * The default implementation delegates to {@link #doCrypto(Map)} keyed by the indices.
+     */
+    default void doCrypto(Object[] values, Item[] results, int size) {
+        final Map<Integer, Object> items = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            items.put(i, values[i]);
+        }
+        doCrypto(items).forEach((i, item) -> results[i] = item);
+    }
+
+    /**
+     * Multi-record variant of {@link #doCrypto(Object[], Item[], int)}, which stores the result of
+     * {@code values[r][i]} in {@code results[r][i]} for each {@code r < count} and {@code i < sizes[r]}.
+     * The default implementation packs the fields of all the records into a single call of
+     * {@link #doCrypto(Object[], Item[], int)} and scatters the results back to the records.
+     */
+    default void doCryptoBatch(Object[][] values, Item[][] results, int[] sizes, int count) {
+        int total = 0;
+        for (int r = 0; r < count; r++) {
+            total += sizes[r];
+        }
+        final Object[] packed = new Object[total];
+        final Item[] packedResults = new Item[total];
+        for (int r = 0, offset = 0; r < count; offset += sizes[r++]) {
+            System.arraycopy(values[r], 0, packed, offset, sizes[r]);
+        }
+
+        doCrypto(packed, packedResults, total);
+
+        for (int r = 0, offset = 0; r < count; offset += sizes[r++]) {
+            System.arraycopy(packedResults, offset, results[r], 0, sizes[r]);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #doCrypto(Map)}. The returned stage fails with
+     * {@link ServerErrorException} once the timeout
+     * elapses, and cancelling its {@link CompletableFuture} abandons the requests in flight as far as the provider can.
+     * The default implementation blocks the calling thread on {@link #doCrypto(Map)}, and fails the stage afterwards
+     * if the call took longer than the timeout, so services which make remote calls should override it.
+     */
+    default <F> CompletionStage<Map<F, Item>> doCryptoAsync(Map<F, Object> items, Duration timeout) {
+        final CompletableFuture<Map<F, Item>> result = new CompletableFuture<>();
+        final long start = System.nanoTime();
+        try {
+            final Map<F, Item> out = doCrypto(items);
+            if (System.nanoTime() - start > timeout.toNanos()) {
+                result.completeExceptionally(new ServerErrorException("timed out after " + timeout.toMillis() + " ms"));
+            } else {
+                result.complete(out);
+            }
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
     void init();
     void close();
 }
@@ -0,0 +1,44 @@
+package io.github.rerorero.kafka.kms.envelope;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-256 data key with its form wrapped by the key management service.
+ */
+public class DataKey {
+    public static final int KEY_BYTES = 32;
+
+    private final SecretKey key;
+    private final byte[] wrapped;
+
+    /**
+     * @param plaintextKey The raw key bytes. It is copied, so the caller can clear it afterwards.
+     * @param wrappedKey   The key encrypted by the key management service.
+     */
+    public DataKey(byte[] plaintextKey, byte[] wrappedKey) {
+        this.key = secretKeyOf(plaintextKey);
+        this.wrapped = wrappedKey;
+    }
+
+    /**
+     * Generates a random AES-256 key.
+     */
+    public static byte[] newPlaintextKey() {
+        final byte[] key = new byte[KEY_BYTES];
+        Envelope.RANDOM.nextBytes(key);
+        return key;
+    }
+
+    static SecretKey secretKeyOf(byte[] plaintextKey) {
+        return new SecretKeySpec(plaintextKey, "AES");
+    }
+
+    SecretKey getKey() {
+        return key;
+    }
+
+    byte[] getWrapped() {
+        return wrapped;
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.rerorero.kafka.kms.envelope;
+
+import io.github.rerorero.kafka.util.CacheStats;
+import io.github.rerorero.kafka.util.ExpiringCache;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * Cache from wrapped data keys to unwrapped ones, so that each data key is unwrapped by the key management
+ * service only once while it is cached. Concurrent lookups for the same wrapped key share a single unwrap call.
+ */
+public class DataKeyCache {
+    private final ExpiringCache<ByteBuffer, SecretKey> keys;
+    private final ConcurrentHashMap<ByteBuffer, CompletableFuture<SecretKey>> pending = new ConcurrentHashMap<>();
+
+    public DataKeyCache(int capacity, long ttlMs) {
+        this.keys = new ExpiringCache<>(capacity, ttlMs);
+    }
+
+    /**
+     * Returns the unwrapped data key.
+     *
+     * @param wrapped   The wrapped data key.
+     * @param unwrapper Function that unwraps the key with the key management service on cache miss.
+     */
+    public SecretKey unwrap(byte[] wrapped, UnaryOperator<byte[]> unwrapper) {
+        final ByteBuffer id = ByteBuffer.wrap(wrapped);
+        final SecretKey cached = keys.get(id);
+        if (cached != null) {
+            return cached;
+        }
+
+        final CompletableFuture<SecretKey> future = new CompletableFuture<>();
+        final CompletableFuture<SecretKey> inflight = pending.putIfAbsent(id, future);
+        if (inflight != null) {
+            try {
+                return inflight.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        try {
+            // another thread may have cached the key since the lookup above
+            final SecretKey raced = keys.peek(id);
+            if (raced != null) {
+                future.complete(raced);
+                return raced;
+            }
+            final byte[] plaintext = unwrapper.apply(wrapped);
+            final SecretKey key = DataKey.secretKeyOf(plaintext);
+            Arrays.fill(plaintext, (byte) 0);
+            keys.put(id, key);
+            future.complete(key);
+            return key;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            pending.remove(id);
+        }
+    }
+
+    public CacheStats getStats() {
+        return keys.getStats();
+    }
+}
@@ -0,0 +1,108 @@
+package io.github.rerorero.kafka.kms.envelope;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Ciphertext encrypted locally with AES-GCM by a data key, which embeds the wrapped data key in its header.
+ * <pre>
+ * version (1 byte) | wrapped key length (2 bytes) | wrapped key | IV (12 bytes) | ciphertext and tag
+ * </pre>
+ * The header, from the version to the wrapped key, is authenticated as additional data.
+ */
+public class Envelope {
+    static final SecureRandom RANDOM = new SecureRandom();
+
+    static final byte VERSION = 1;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    static final int IV_BYTES = 12;
+    static final int TAG_BITS = 128;
+    private static final int MAX_WRAPPED_KEY_BYTES = 0xFFFF;
+
+    // Cipher is not thread-safe, so each thread keeps its own one to save the provider lookup. It is initialized
+    // with a fresh IV for every message.
+    static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new ClientErrorException("unable to create cipher for " + TRANSFORMATION, e);
+        }
+    });
+
+    private final byte[] data;
+    private final int headerLength;
+
+    private Envelope(byte[] data, int headerLength) {
+        this.data = data;
+        this.headerLength = headerLength;
+    }
+
+    /**
+     * Encrypts the plaintext with the data key.
+     */
+    public static byte[] seal(DataKey key, byte[] plaintext) {
+        final byte[] wrapped = key.getWrapped();
+        if (wrapped.length > MAX_WRAPPED_KEY_BYTES) {
+            throw new ClientErrorException("wrapped data key is too long: " + wrapped.length);
+        }
+
+        final byte[] iv = new byte[IV_BYTES];
+        RANDOM.nextBytes(iv);
+
+        try {
+            final Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key.getKey(), new GCMParameterSpec(TAG_BITS, iv));
+
+            final int headerLength = 3 + wrapped.length;
+            final ByteBuffer buf = ByteBuffer.allocate(headerLength + IV_BYTES + cipher.getOutputSize(plaintext.length));
+            buf.put(VERSION).putShort((short) wrapped.length).put(wrapped);
+            cipher.updateAAD(buf.array(), 0, headerLength);
+            buf.put(iv);
+            cipher.doFinal(ByteBuffer.wrap(plaintext), buf);
+            return buf.array();
+        } catch (GeneralSecurityException e) {
+            throw new ClientErrorException("unable to encrypt with the data key", e);
+        }
+    }
+
+    /**
+     * Parses the header of the ciphertext produced by {@link #seal(DataKey, byte[])}.
+     */
+    public static Envelope parse(byte[] data) {
+        if (data.length < 3 || data[0] != VERSION) {
+            throw new ClientErrorException("unsupported envelope format");
+        }
+        final int wrappedLength = ((data[1] & 0xFF) << 8) | (data[2] & 0xFF);
+        final int headerLength = 3 + wrappedLength;
+        if (data.length < headerLength + IV_BYTES + TAG_BITS / 8) {
+            throw new ClientErrorException("envelope is truncated");
+        }
+        return new Envelope(data, headerLength);
+    }
+
+    public byte[] getWrappedKey() {
+        return Arrays.copyOfRange(data, 3, headerLength);
+    }
+
+    /**
+     * Decrypts the ciphertext with the unwrapped data key.
+     */
+    public byte[] open(SecretKey key) {
+        try {
+            final Cipher cipher = CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, data, headerLength, IV_BYTES));
+            cipher.updateAAD(data, 0, headerLength);
+            final int offset = headerLength + IV_BYTES;
+            return cipher.doFinal(data, offset, data.length - offset);
+        } catch (GeneralSecurityException e) {
+            throw new ClientErrorException("unable to decrypt with the data key", e);
+        }
+    }
+}
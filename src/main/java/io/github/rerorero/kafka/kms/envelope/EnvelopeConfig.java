@@ -0,0 +1,44 @@
+package io.github.rerorero.kafka.kms.envelope;
+
+import java.util.function.Supplier;
+
+/**
+ * Rotation and caching settings of data keys for envelope encryption.
+ */
+public class EnvelopeConfig {
+    private final long dataKeyMaxUses;
+    private final long dataKeyMaxAgeMs;
+    private final int dataKeyCacheCapacity;
+    private final long dataKeyCacheTtlMs;
+
+    public EnvelopeConfig(long dataKeyMaxUses, long dataKeyMaxAgeMs, int dataKeyCacheCapacity, long dataKeyCacheTtlMs) {
+        this.dataKeyMaxUses = dataKeyMaxUses;
+        this.dataKeyMaxAgeMs = dataKeyMaxAgeMs;
+        this.dataKeyCacheCapacity = dataKeyCacheCapacity;
+        this.dataKeyCacheTtlMs = dataKeyCacheTtlMs;
+    }
+
+    public RotatingDataKey newRotatingDataKey(Supplier<DataKey> generator) {
+        return new RotatingDataKey(generator, dataKeyMaxUses, dataKeyMaxAgeMs);
+    }
+
+    public DataKeyCache newDataKeyCache() {
+        return new DataKeyCache(dataKeyCacheCapacity, dataKeyCacheTtlMs);
+    }
+
+    public long getDataKeyMaxUses() {
+        return dataKeyMaxUses;
+    }
+
+    public long getDataKeyMaxAgeMs() {
+        return dataKeyMaxAgeMs;
+    }
+
+    public int getDataKeyCacheCapacity() {
+        return dataKeyCacheCapacity;
+    }
+
+    public long getDataKeyCacheTtlMs() {
+        return dataKeyCacheTtlMs;
+    }
+}
@@ -0,0 +1,141 @@
+package io.github.rerorero.kafka.kms.envelope;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Fields of a single record encrypted with AES-GCM by a data key of the record, whose wrapped form is kept once
+ * in a header of the record instead of in every field.
+ * <pre>
+ * header: version (1 byte) | wrapped key
+ * field:  counter (unsigned varint) | ciphertext and tag
+ * </pre>
+ * The data key is used for a single record, so the counter of the field within the record makes a unique IV.
+ * The header is authenticated as additional data of every field, which binds the fields to their header.
+ */
+public class RecordEnvelope {
+    static final byte VERSION = 1;
+
+    private final SecretKey key;
+    private final byte[] header;
+    private int counter;
+
+    private RecordEnvelope(SecretKey key, byte[] header) {
+        this.key = key;
+        this.header = header;
+    }
+
+    /**
+     * Starts a record to be encrypted with the data key, which must not be used for any other record.
+     */
+    public static RecordEnvelope of(DataKey key) {
+        final byte[] wrapped = key.getWrapped();
+        final byte[] header = new byte[1 + wrapped.length];
+        header[0] = VERSION;
+        System.arraycopy(wrapped, 0, header, 1, wrapped.length);
+        return new RecordEnvelope(key.getKey(), header);
+    }
+
+    /**
+     * Starts a record to be decrypted with the data key unwrapped from the header.
+     *
+     * @param plaintextKey The raw key bytes. It is copied, so the caller can clear it afterwards.
+     */
+    public static RecordEnvelope of(byte[] plaintextKey, byte[] header) {
+        wrappedKeyOf(header);
+        return new RecordEnvelope(DataKey.secretKeyOf(plaintextKey), header);
+    }
+
+    /**
+     * Returns the wrapped data key in the header.
+     */
+    public static byte[] wrappedKeyOf(byte[] header) {
+        if (header.length < 2 || header[0] != VERSION) {
+            throw new ClientErrorException("unsupported record key header format");
+        }
+        return Arrays.copyOfRange(header, 1, header.length);
+    }
+
+    public byte[] getHeader() {
+        return header;
+    }
+
+    /**
+     * Encrypts a field of the record.
+     */
+    public byte[] seal(byte[] plaintext) {
+        final int n = counter++;
+        final byte[] iv = ivOf(n);
+        try {
+            final Cipher cipher = Envelope.CIPHERS.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(Envelope.TAG_BITS, iv));
+            cipher.updateAAD(header);
+
+            final int prefix = varintSize(n);
+            final byte[] out = new byte[prefix + cipher.getOutputSize(plaintext.length)];
+            int i = 0;
+            int v = n;
+            while ((v & ~0x7f) != 0) {
+                out[i++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            out[i] = (byte) v;
+            cipher.doFinal(plaintext, 0, plaintext.length, out, prefix);
+            return out;
+        } catch (GeneralSecurityException e) {
+            throw new ClientErrorException("unable to encrypt with the data key", e);
+        }
+    }
+
+    /**
+     * Decrypts a field of the record.
+     */
+    public byte[] open(byte[] field) {
+        int n = 0;
+        int i = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (i >= field.length || shift > 28) {
+                throw new ClientErrorException("malformed record field");
+            }
+            final byte b = field[i++];
+            n |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (field.length - i < Envelope.TAG_BITS / 8) {
+            throw new ClientErrorException("record field is truncated");
+        }
+
+        try {
+            final Cipher cipher = Envelope.CIPHERS.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(Envelope.TAG_BITS, ivOf(n)));
+            cipher.updateAAD(header);
+            return cipher.doFinal(field, i, field.length - i);
+        } catch (GeneralSecurityException e) {
+            throw new ClientErrorException("unable to decrypt with the data key", e);
+        }
+    }
+
+    private static byte[] ivOf(int counter) {
+        final byte[] iv = new byte[Envelope.IV_BYTES];
+        iv[Envelope.IV_BYTES - 4] = (byte) (counter >>> 24);
+        iv[Envelope.IV_BYTES - 3] = (byte) (counter >>> 16);
+        iv[Envelope.IV_BYTES - 2] = (byte) (counter >>> 8);
+        iv[Envelope.IV_BYTES - 1] = (byte) counter;
+        return iv;
+    }
+
+    private static int varintSize(int v) {
+        int size = 1;
+        for (v >>>= 7; v != 0; v >>>= 7) {
+            size++;
+        }
+        return size;
+    }
+}
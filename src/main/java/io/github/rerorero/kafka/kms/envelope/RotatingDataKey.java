@@ -0,0 +1,151 @@
+package io.github.rerorero.kafka.kms.envelope;
+
+import io.github.rerorero.kafka.util.Futures;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Holds the data key currently used for encryption, and replaces it with a new one
+ * once it has been used the given number of times or has become older than the given age.
+ * <p>
+ * Data keys are generated outside the lock, which only guards swapping the key. A new key is generated in the
+ * background once the current one reaches three quarters of either limit, so that the encryption path rarely
+ * waits for the key management service. Callers which find the key exhausted wait for a single generation.
+ */
+public class RotatingDataKey {
+    private static final Logger log = LoggerFactory.getLogger(RotatingDataKey.class);
+
+    // shared by the instances in the JVM, its idle threads exit after a while
+    private static final ExecutorService GENERATOR = Executors.newCachedThreadPool(r -> {
+        final Thread t = new Thread(r, "data-key-generator");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Supplier<DataKey> generator;
+    private final long maxUses;
+    private final long maxAgeMs;
+    private final long prefetchUses;
+    private final long prefetchAgeMs;
+    private final LongSupplier clock;
+    private final Executor executor;
+
+    private DataKey current;
+    private long uses;
+    private long createdAt;
+    // generation in progress, whose key replaces the current one
+    private CompletableFuture<DataKey> next;
+
+    public RotatingDataKey(Supplier<DataKey> generator, long maxUses, long maxAgeMs) {
+        this(generator, maxUses, maxAgeMs, System::currentTimeMillis, GENERATOR);
+    }
+
+    RotatingDataKey(Supplier<DataKey> generator, long maxUses, long maxAgeMs, LongSupplier clock) {
+        this(generator, maxUses, maxAgeMs, clock, GENERATOR);
+    }
+
+    RotatingDataKey(Supplier<DataKey> generator, long maxUses, long maxAgeMs, LongSupplier clock, Executor executor) {
+        this.generator = generator;
+        this.maxUses = maxUses;
+        this.maxAgeMs = maxAgeMs;
+        this.prefetchUses = maxUses - maxUses / 4;
+        this.prefetchAgeMs = maxAgeMs - maxAgeMs / 4;
+        this.clock = clock;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the data key to encrypt a field, waiting for a new one if the current one is exhausted.
+     */
+    public DataKey acquire() {
+        while (true) {
+            final CompletableFuture<DataKey> generation;
+            final boolean owner;
+            synchronized (this) {
+                final long now = clock.getAsLong();
+                if (current != null && uses < maxUses && now - createdAt < maxAgeMs) {
+                    uses++;
+                    if (next == null && (uses >= prefetchUses || now - createdAt >= prefetchAgeMs)) {
+                        prefetch();
+                    }
+                    return current;
+                }
+                owner = next == null;
+                if (owner) {
+                    next = new CompletableFuture<>();
+                }
+                generation = next;
+            }
+            if (owner) {
+                generate(generation);
+            }
+            // the new key may be used up by others before this thread takes it, then another one is generated
+            Futures.join(generation);
+        }
+    }
+
+    // called with the lock held
+    private void prefetch() {
+        final CompletableFuture<DataKey> generation = new CompletableFuture<>();
+        next = generation;
+        try {
+            executor.execute(() -> generate(generation));
+        } catch (RejectedExecutionException e) {
+            next = null;
+            return;
+        }
+        generation.whenComplete((key, t) -> {
+            if (t != null) {
+                log.warn("failed to generate the next data key, it will be retried", t);
+            }
+        });
+    }
+
+    private void generate(CompletableFuture<DataKey> generation) {
+        final DataKey key;
+        try {
+            key = generator.get();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                if (next == generation) {
+                    next = null;
+                }
+            }
+            generation.completeExceptionally(e);
+            return;
+        }
+        synchronized (this) {
+            if (next == generation) {
+                next = null;
+            }
+            swap(key);
+        }
+        generation.complete(key);
+    }
+
+    // called with the lock held
+    private void swap(DataKey key) {
+        current = key;
+        uses = 0;
+        createdAt = clock.getAsLong();
+    }
+
+    /**
+     * Replaces the current data key with a new one. The new key is generated without blocking {@link #acquire()},
+     * so this can be called ahead of the rotation to keep key generation off the encryption path.
+     */
+    public void refresh() {
+        final DataKey key = generator.get();
+        synchronized (this) {
+            swap(key);
+        }
+    }
+}
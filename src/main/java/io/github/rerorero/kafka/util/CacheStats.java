@@ -0,0 +1,55 @@
+package io.github.rerorero.kafka.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe hit and miss counters of a cache.
+ */
+public class CacheStats {
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong lastReportNanos = new AtomicLong(System.nanoTime());
+
+    public void recordHit() {
+        hits.increment();
+    }
+
+    public void recordMiss() {
+        misses.increment();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public double hitRate() {
+        final long h = hits();
+        final long total = h + misses();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    /**
+     * Returns true at most once per interval across the threads, so that the caller of a cache reports the stats
+     * periodically without a thread of its own. The first interval starts when the stats are created.
+     */
+    public boolean reportDue(long intervalMs) {
+        final long now = System.nanoTime();
+        final long last = lastReportNanos.get();
+        return now - last >= TimeUnit.MILLISECONDS.toNanos(intervalMs) && lastReportNanos.compareAndSet(last, now);
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "hits=" + hits() +
+                ", misses=" + misses() +
+                ", hitRate=" + hitRate() +
+                '}';
+    }
+}
@@ -0,0 +1,147 @@
+package io.github.rerorero.kafka.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Thread-safe LRU cache bounded by the total weight of entries, whose entries expire after the given time to live.
+ * By default each entry weighs 1, so the cache is bounded by the number of entries.
+ */
+public class ExpiringCache<K, V> {
+    private final long maxWeight;
+    private final long ttlMs;
+    private final ToLongBiFunction<K, V> weigher;
+    private final BiConsumer<K, V> onRemoval;
+    private final LongSupplier clock;
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final CacheStats stats = new CacheStats();
+    private long weight;
+
+    public ExpiringCache(int capacity, long ttlMs) {
+        this(capacity, ttlMs, System::currentTimeMillis);
+    }
+
+    ExpiringCache(int capacity, long ttlMs, LongSupplier clock) {
+        this(capacity, ttlMs, (k, v) -> 1, (k, v) -> {
+        }, clock);
+    }
+
+    /**
+     * @param maxWeight Maximum total weight of the entries
+     * @param weigher   Returns the weight of an entry, e.g. its size in bytes
+     * @param onRemoval Called with the entry removed by eviction, expiry, replacement or {@link #clear()}, while holding the lock
+     */
+    public ExpiringCache(long maxWeight, long ttlMs, ToLongBiFunction<K, V> weigher, BiConsumer<K, V> onRemoval) {
+        this(maxWeight, ttlMs, weigher, onRemoval, System::currentTimeMillis);
+    }
+
+    ExpiringCache(long maxWeight, long ttlMs, ToLongBiFunction<K, V> weigher, BiConsumer<K, V> onRemoval, LongSupplier clock) {
+        this.maxWeight = maxWeight;
+        this.ttlMs = ttlMs;
+        this.weigher = weigher;
+        this.onRemoval = onRemoval;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the cached value, or null if it is absent or expired.
+     */
+    public synchronized V get(K key) {
+        return get(key, Function.identity());
+    }
+
+    /**
+     * Applies the reader to the cached value while holding the lock, so that the value can be copied before
+     * it is passed to the removal listener. Returns null if the value is absent or expired.
+     */
+    public synchronized <R> R get(K key, Function<? super V, ? extends R> reader) {
+        final Entry<V> e = entries.get(key);
+        if (e == null) {
+            stats.recordMiss();
+            return null;
+        }
+        if (clock.getAsLong() - e.createdAt >= ttlMs) {
+            entries.remove(key);
+            removed(key, e);
+            stats.recordMiss();
+            return null;
+        }
+        stats.recordHit();
+        return reader.apply(e.value);
+    }
+
+    /**
+     * Same as {@link #get(Object)} but does not record the lookup in the statistics.
+     */
+    public synchronized V peek(K key) {
+        final Entry<V> e = entries.get(key);
+        if (e == null || clock.getAsLong() - e.createdAt >= ttlMs) {
+            return null;
+        }
+        return e.value;
+    }
+
+    /**
+     * Caches the value, evicting the least recently used entries to keep the total weight within the limit.
+     * A value heavier than the limit is not cached.
+     */
+    public synchronized void put(K key, V value) {
+        final Entry<V> entry = new Entry<>(value, clock.getAsLong(), weigher.applyAsLong(key, value));
+        if (entry.weight > maxWeight) {
+            onRemoval.accept(key, value);
+            return;
+        }
+
+        final Entry<V> old = entries.put(key, entry);
+        weight += entry.weight;
+        if (old != null) {
+            removed(key, old);
+        }
+
+        final Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            final Map.Entry<K, Entry<V>> eldest = it.next();
+            it.remove();
+            removed(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public synchronized void clear() {
+        entries.forEach(this::removed);
+        entries.clear();
+    }
+
+    public CacheStats getStats() {
+        return stats;
+    }
+
+    private void removed(K key, Entry<V> e) {
+        weight -= e.weight;
+        onRemoval.accept(key, e.value);
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long createdAt;
+        final long weight;
+
+        Entry(V value, long createdAt, long weight) {
+            this.value = value;
+            this.createdAt = createdAt;
+            this.weight = weight;
+        }
+    }
+}
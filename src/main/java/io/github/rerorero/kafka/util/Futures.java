@@ -0,0 +1,121 @@
+package io.github.rerorero.kafka.util;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServiceException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Helpers of {@link CompletableFuture} for the asynchronous services, whose timers run on a single daemon thread
+ * shared in the JVM. The timers only complete futures, so they never block the thread.
+ */
+public final class Futures {
+    private static final ScheduledThreadPoolExecutor TIMER;
+
+    static {
+        TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+            final Thread t = new Thread(r, "kms-future-timer");
+            t.setDaemon(true);
+            return t;
+        });
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    private Futures() {
+    }
+
+    /**
+     * Completes the future exceptionally with {@link ServerErrorException} if it is not completed within the timeout.
+     *
+     * @return The given future
+     */
+    public static <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, Duration timeout) {
+        if (future.isDone()) {
+            return future;
+        }
+        final ScheduledFuture<?> timer = TIMER.schedule(() -> {
+            future.completeExceptionally(new ServerErrorException("timed out after " + timeout.toMillis() + " ms"));
+        }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        future.whenComplete((r, t) -> timer.cancel(false));
+        return future;
+    }
+
+    /**
+     * Returns a future which is completed after the delay. Cancelling it cancels the timer.
+     */
+    public static CompletableFuture<Void> delay(long delayMs) {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final ScheduledFuture<?> timer = TIMER.schedule(() -> future.complete(null), delayMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((r, t) -> timer.cancel(false));
+        return future;
+    }
+
+    /**
+     * Cancels the source when the dependent future is completed before it, e.g. the dependent one is cancelled
+     * or timed out, since a future derived with {@code thenApply} and the like does not cancel its source.
+     *
+     * @return The dependent future
+     */
+    public static <T> CompletableFuture<T> cancelling(CompletableFuture<T> dependent, Future<?> source) {
+        dependent.whenComplete((r, t) -> {
+            if (!source.isDone()) {
+                source.cancel(true);
+            }
+        });
+        return dependent;
+    }
+
+    /**
+     * Returns a future of the results in the order of the futures. It fails as soon as one of them fails, and
+     * completing it in any way before them, e.g. cancelling it, cancels the others.
+     */
+    public static <T> CompletableFuture<List<T>> allAsList(List<CompletableFuture<T>> futures) {
+        final CompletableFuture<List<T>> all = new CompletableFuture<>();
+        for (CompletableFuture<T> f : futures) {
+            f.whenComplete((r, t) -> {
+                if (t != null) {
+                    all.completeExceptionally(unwrap(t));
+                }
+            });
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenRun(() -> {
+            final List<T> results = new ArrayList<>(futures.size());
+            futures.forEach(f -> results.add(f.join()));
+            all.complete(results);
+        });
+        all.whenComplete((r, t) -> {
+            if (t != null) {
+                futures.forEach(f -> f.cancel(true));
+            }
+        });
+        return all;
+    }
+
+    /**
+     * Returns the cause of the exception thrown by a future, as {@link ServiceException} unless it is a cancellation.
+     */
+    public static RuntimeException unwrap(Throwable t) {
+        Throwable cause = t;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof ServiceException || cause instanceof CancellationException) {
+            return (RuntimeException) cause;
+        }
+        return new ServiceException(cause);
+    }
+
+    /**
+     * Waits for the result of the future, throwing the cause of its failure as {@link #unwrap} does.
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            throw unwrap(e);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package io.github.rerorero.kafka.vault;
+
+import io.github.rerorero.kafka.kms.Item;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Objects;
+
+/**
+ * Transit cipher text {@code vault:v<version>:<base64>}, whose binary form is the marker byte {@code 0x00},
+ * the key version as an unsigned varint and the raw cipher text, instead of the bytes of the text.
+ * The marker tells it apart from the bytes of a text, which start with {@code v}.
+ */
+public class CompactCipherText extends Item {
+    static final byte MARKER = 0;
+    private static final String PREFIX = "vault:v";
+
+    private final String text;
+    private volatile byte[] bytes;
+
+    public CompactCipherText(String text) {
+        this.text = text;
+    }
+
+    @Override
+    protected String asString() {
+        return text;
+    }
+
+    @Override
+    protected byte[] asBytes() {
+        byte[] b = bytes;
+        if (b == null) {
+            b = encode(text);
+            bytes = b;
+        }
+        return b;
+    }
+
+    @Override
+    public Item copy() {
+        return new CompactCipherText(text);
+    }
+
+    /**
+     * Returns the compact form of the cipher text, or the bytes of the text if it is not in the transit format.
+     */
+    static byte[] encode(String text) {
+        final int colon = text.indexOf(':', PREFIX.length());
+        if (!text.startsWith(PREFIX) || colon < 0) {
+            return text.getBytes(StandardCharsets.UTF_8);
+        }
+
+        final String versionText = text.substring(PREFIX.length(), colon);
+        final int version;
+        final byte[] raw;
+        try {
+            version = Integer.parseInt(versionText);
+            raw = Base64.getDecoder().decode(text.substring(colon + 1));
+        } catch (IllegalArgumentException e) {
+            return text.getBytes(StandardCharsets.UTF_8);
+        }
+        // the version must be written back as it is
+        if (version < 0 || !String.valueOf(version).equals(versionText)) {
+            return text.getBytes(StandardCharsets.UTF_8);
+        }
+
+        int varintSize = 1;
+        for (int v = version >>> 7; v != 0; v >>>= 7) {
+            varintSize++;
+        }
+        final byte[] out = new byte[1 + varintSize + raw.length];
+        out[0] = MARKER;
+        int i = 1;
+        int v = version;
+        while ((v & ~0x7f) != 0) {
+            out[i++] = (byte) ((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out[i++] = (byte) v;
+        System.arraycopy(raw, 0, out, i, raw.length);
+        return out;
+    }
+
+    /**
+     * Returns the transit cipher text of the bytes, which are either in the compact form or the bytes of the text.
+     *
+     * @throws IllegalArgumentException if the compact form is truncated
+     */
+    static String decode(byte[] bytes) {
+        if (bytes.length == 0 || bytes[0] != MARKER) {
+            return new String(bytes, Charset.defaultCharset());
+        }
+
+        int version = 0;
+        int i = 1;
+        for (int shift = 0; ; shift += 7) {
+            if (i >= bytes.length || shift > 28) {
+                throw new IllegalArgumentException("malformed compact cipher text");
+            }
+            final byte b = bytes[i++];
+            version |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+
+        final byte[] raw = new byte[bytes.length - i];
+        System.arraycopy(bytes, i, raw, 0, raw.length);
+        return PREFIX + version + ":" + Base64.getEncoder().encodeToString(raw);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        CompactCipherText that = (CompactCipherText) o;
+        return Objects.equals(text, that.text);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(text);
+    }
+}
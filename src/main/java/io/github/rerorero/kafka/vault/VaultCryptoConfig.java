@@ -1,14 +1,55 @@
 package io.github.rerorero.kafka.vault;
 
+import io.github.rerorero.kafka.kms.ExecutorConfig;
+import io.github.rerorero.kafka.kms.RetryConfig;
+
 import java.util.Optional;
 
 public class VaultCryptoConfig {
+    public static final int DEFAULT_BATCH_MAX_ITEMS = 256;
+    public static final int DEFAULT_BATCH_MAX_BYTES = 1024 * 1024;
+
     private String keyName;
     private Optional<String> context;
+    private final int batchMaxItems;
+    private final int batchMaxBytes;
+    private final ExecutorConfig executorConfig;
+    private final RetryConfig retryConfig;
+    private final boolean compactCipherText;
 
     public VaultCryptoConfig(String keyName, Optional<String> context) {
+        this(keyName, context, DEFAULT_BATCH_MAX_ITEMS, DEFAULT_BATCH_MAX_BYTES, ExecutorConfig.DEFAULT);
+    }
+
+    /**
+     * @param batchMaxItems Maximum number of items sent in a batch request
+     * @param batchMaxBytes Maximum estimated size in bytes of the items sent in a batch request
+     * @param executorConfig The executor which sends the chunks of an oversized batch concurrently
+     */
+    public VaultCryptoConfig(String keyName, Optional<String> context, int batchMaxItems, int batchMaxBytes, ExecutorConfig executorConfig) {
+        this(keyName, context, batchMaxItems, batchMaxBytes, executorConfig, RetryConfig.DEFAULT);
+    }
+
+    /**
+     * @param retryConfig The retries of the items which failed with a server error
+     */
+    public VaultCryptoConfig(String keyName, Optional<String> context, int batchMaxItems, int batchMaxBytes, ExecutorConfig executorConfig,
+                             RetryConfig retryConfig) {
+        this(keyName, context, batchMaxItems, batchMaxBytes, executorConfig, retryConfig, false);
+    }
+
+    /**
+     * @param compactCipherText Whether the encrypted fields written in binary take the compact form of {@link CompactCipherText}
+     */
+    public VaultCryptoConfig(String keyName, Optional<String> context, int batchMaxItems, int batchMaxBytes, ExecutorConfig executorConfig,
+                             RetryConfig retryConfig, boolean compactCipherText) {
         this.keyName = keyName;
         this.context = context;
+        this.batchMaxItems = batchMaxItems;
+        this.batchMaxBytes = batchMaxBytes;
+        this.executorConfig = executorConfig;
+        this.retryConfig = retryConfig;
+        this.compactCipherText = compactCipherText;
     }
 
     String getKeyName() {
@@ -18,4 +59,24 @@ public class VaultCryptoConfig {
     Optional<String> getContext() {
         return context;
     }
+
+    int getBatchMaxItems() {
+        return batchMaxItems;
+    }
+
+    int getBatchMaxBytes() {
+        return batchMaxBytes;
+    }
+
+    ExecutorConfig getExecutorConfig() {
+        return executorConfig;
+    }
+
+    RetryConfig getRetryConfig() {
+        return retryConfig;
+    }
+
+    boolean isCompactCipherText() {
+        return compactCipherText;
+    }
 }
@@ -0,0 +1,188 @@
+package io.github.rerorero.kafka.vault;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import io.github.rerorero.kafka.kms.Item;
+import io.github.rerorero.kafka.kms.Service;
+import io.github.rerorero.kafka.kms.envelope.DataKey;
+import io.github.rerorero.kafka.kms.envelope.DataKeyCache;
+import io.github.rerorero.kafka.kms.envelope.Envelope;
+import io.github.rerorero.kafka.kms.envelope.EnvelopeConfig;
+import io.github.rerorero.kafka.kms.envelope.RotatingDataKey;
+import io.github.rerorero.kafka.util.CacheStats;
+import io.github.rerorero.kafka.util.Futures;
+import io.github.rerorero.kafka.vault.client.DataKeyResponse;
+import io.github.rerorero.kafka.vault.client.DecryptParameter;
+import io.github.rerorero.kafka.vault.client.VaultClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypts or decrypts fields locally with AES-GCM data keys generated by the transit datakey api,
+ * so the plaintext of the fields is never sent to Vault.
+ */
+public abstract class VaultEnvelopeService implements Service {
+    private static final Logger log = LoggerFactory.getLogger(VaultEnvelopeService.class);
+
+    protected final VaultClient client;
+    protected final VaultCryptoConfig config;
+    private ExecutorService executor;
+
+    public VaultEnvelopeService(VaultClient client, VaultCryptoConfig config) {
+        this.client = client;
+        this.config = config;
+    }
+
+    protected abstract Item callEndpoint(Object item);
+
+    @Override
+    public void init() {
+        // the asynchronous path must not run the fields on its caller, so a full queue rejects
+        executor = config.getExecutorConfig().newExecutor("vault-envelope", false);
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        client.close();
+    }
+
+    @Override
+    public <F> Map<F, Item> doCrypto(Map<F, Object> items) {
+        final Map<F, Item> results = new HashMap<>();
+        items.forEach((key, item) -> results.put(key, callEndpoint(item)));
+        return results;
+    }
+
+    /**
+     * Runs {@link #doCrypto(Map)} on the executor, since the fields may wait for Vault to generate or unwrap
+     * a data key. The result fails with {@link ServerErrorException} when the executor is full.
+     */
+    @Override
+    public <F> CompletionStage<Map<F, Item>> doCryptoAsync(Map<F, Object> items, Duration timeout) {
+        final CompletableFuture<Map<F, Item>> result;
+        try {
+            if (executor == null) {
+                throw new ClientErrorException("service is not initialized");
+            }
+            result = CompletableFuture.supplyAsync(() -> doCrypto(items), executor);
+        } catch (RuntimeException e) {
+            final CompletableFuture<Map<F, Item>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e instanceof RejectedExecutionException
+                    ? new ServerErrorException("unable to schedule the request", e) : e);
+            return failed;
+        }
+        return Futures.withTimeout(result, timeout);
+    }
+
+    public static final class EncryptService extends VaultEnvelopeService {
+        private final EnvelopeConfig envelopeConfig;
+        private final RotatingDataKey dataKey;
+        private ScheduledExecutorService refresher;
+
+        public EncryptService(VaultClient client, VaultCryptoConfig config, EnvelopeConfig envelopeConfig) {
+            super(client, config);
+            this.envelopeConfig = envelopeConfig;
+            this.dataKey = envelopeConfig.newRotatingDataKey(this::newDataKey);
+        }
+
+        private DataKey newDataKey() {
+            final DataKeyResponse res = client.generateDataKey(config.getKeyName(), config.getContext(), DataKey.KEY_BYTES * 8);
+            final byte[] plaintext = Base64.getDecoder().decode(res.getPlainTextBase64());
+            try {
+                return new DataKey(plaintext, res.getCipherText().getBytes(StandardCharsets.UTF_8));
+            } finally {
+                Arrays.fill(plaintext, (byte) 0);
+            }
+        }
+
+        @Override
+        public void init() {
+            super.init();
+            dataKey.refresh();
+
+            // Refresh the data key at half of its max age, so that it is rotated before it expires on the encryption path.
+            final long period = Math.max(1, envelopeConfig.getDataKeyMaxAgeMs() / 2);
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                final Thread t = new Thread(r, "vault-data-key-refresher");
+                t.setDaemon(true);
+                return t;
+            });
+            refresher.scheduleAtFixedRate(() -> {
+                try {
+                    dataKey.refresh();
+                } catch (RuntimeException e) {
+                    log.warn("failed to refresh the data key, it will be retried", e);
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void close() {
+            if (refresher != null) {
+                refresher.shutdownNow();
+            }
+            super.close();
+        }
+
+        @Override
+        protected Item callEndpoint(Object item) {
+            byte[] bytes;
+            if (item instanceof String) {
+                bytes = ((String) item).getBytes(StandardCharsets.UTF_8);
+            } else if (item instanceof byte[]) {
+                bytes = (byte[]) item;
+            } else {
+                throw new ClientErrorException("not supported field type: " + item.getClass());
+            }
+            return new Item.CipherBytes(Envelope.seal(dataKey.acquire(), bytes));
+        }
+    }
+
+    public static final class DecryptService extends VaultEnvelopeService {
+        private final DataKeyCache dataKeys;
+
+        public DecryptService(VaultClient client, VaultCryptoConfig config, EnvelopeConfig envelopeConfig) {
+            super(client, config);
+            this.dataKeys = envelopeConfig.newDataKeyCache();
+        }
+
+        @Override
+        protected Item callEndpoint(Object item) {
+            byte[] bytes;
+            if (item instanceof String) {
+                bytes = Base64.getDecoder().decode((String) item);
+            } else if (item instanceof byte[]) {
+                bytes = (byte[]) item;
+            } else {
+                throw new ClientErrorException("not supported field type: " + item.getClass());
+            }
+
+            final Envelope envelope = Envelope.parse(bytes);
+            return new Item.PlainBytes(envelope.open(dataKeys.unwrap(envelope.getWrappedKey(), this::unwrap)));
+        }
+
+        private byte[] unwrap(byte[] wrapped) {
+            final DecryptParameter param = new DecryptParameter(new String(wrapped, StandardCharsets.UTF_8), config.getContext());
+            final List<String> res = client.decrypt(config.getKeyName(), Collections.singletonList(param));
+            return Base64.getDecoder().decode(res.get(0));
+        }
+
+        public CacheStats getDataKeyCacheStats() {
+            return dataKeys.getStats();
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package io.github.rerorero.kafka.vault;
 
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServiceException;
 import io.github.rerorero.kafka.kms.Item;
+import io.github.rerorero.kafka.kms.RetryConfig;
 import io.github.rerorero.kafka.kms.Service;
-import io.github.rerorero.kafka.util.Pair;
+import io.github.rerorero.kafka.util.Futures;
+import io.github.rerorero.kafka.vault.client.BatchResult;
 import io.github.rerorero.kafka.vault.client.DecryptParameter;
 import io.github.rerorero.kafka.vault.client.EncryptParameter;
 import io.github.rerorero.kafka.vault.client.VaultClient;
@@ -11,14 +15,25 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.charset.Charset;
+import java.time.Duration;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public abstract class VaultService<Param> implements Service {
     private final Logger log = LoggerFactory.getLogger(VaultService.class);
 
     protected final VaultClient client;
     protected final VaultCryptoConfig config;
+    private ExecutorService executor;
+    // notified on close, so that a retry waiting for its backoff gives up instead of holding the task
+    private final Object closing = new Object();
+    private volatile boolean closed;
 
     public VaultService(VaultClient client, VaultCryptoConfig config) {
         this.client = client;
@@ -27,39 +42,349 @@ public abstract class VaultService<Param> implements Service {
 
     protected abstract Param newParameter(Object item);
 
+    protected abstract int estimatedSize(Param param);
+
     protected abstract Item newItemResult(String result);
 
-    protected abstract List<String> invokeCrypto(List<Param> params);
+    protected abstract List<BatchResult> invokeCrypto(List<Param> params);
 
     @Override
     public void init() {
+        // the asynchronous path must not run a request on its caller, e.g. the timer thread, so a full queue rejects
+        executor = config.getExecutorConfig().newExecutor("vault-batch", false);
     }
 
     @Override
     public void close() {
+        synchronized (closing) {
+            closed = true;
+            closing.notifyAll();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+        client.close();
     }
 
     @Override
     public <F> Map<F, Item> doCrypto(Map<F, Object> items) {
-        List<Pair<F, Object>> list = new ArrayList<>();
+        final List<F> keys = new ArrayList<>(items.size());
+        final Object[] values = new Object[items.size()];
         items.forEach((key, item) -> {
-            list.add(new Pair(key, item));
+            values[keys.size()] = item;
+            keys.add(key);
         });
 
-        List<Param> params = list.stream()
-                .map(pair -> newParameter(pair.value))
-                .collect(Collectors.toList());
+        final Item[] results = new Item[values.length];
+        doCrypto(values, results, values.length);
+
+        final Map<F, Item> out = new HashMap<>();
+        for (int i = 0; i < results.length; i++) {
+            out.put(keys.get(i), results[i]);
+        }
+        return out;
+    }
+
+    @Override
+    public void doCrypto(Object[] values, Item[] results, int size) {
+        final List<Param> params = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            params.add(newParameter(values[i]));
+        }
+
+        final List<String> res = invokeWithRetry(params);
+        for (int i = 0; i < size; i++) {
+            results[i] = newItemResult(res.get(i));
+        }
+    }
+
+    /**
+     * Sends the fields of all the records in as few transit calls as the batch limits allow, instead of one per record.
+     */
+    @Override
+    public void doCryptoBatch(Object[][] values, Item[][] results, int[] sizes, int count) {
+        final List<Param> params = new ArrayList<>();
+        for (int r = 0; r < count; r++) {
+            for (int i = 0; i < sizes[r]; i++) {
+                params.add(newParameter(values[r][i]));
+            }
+        }
+
+        final List<String> res = invokeWithRetry(params);
+        int n = 0;
+        for (int r = 0; r < count; r++) {
+            for (int i = 0; i < sizes[r]; i++) {
+                results[r][i] = newItemResult(res.get(n++));
+            }
+        }
+    }
+
+    @Override
+    public <F> CompletionStage<Map<F, Item>> doCryptoAsync(Map<F, Object> items, Duration timeout) {
+        final CompletableFuture<List<String>> result = new CompletableFuture<>();
+        final List<F> keys = new ArrayList<>(items.size());
+        final List<Param> params = new ArrayList<>(items.size());
+        try {
+            if (executor == null) {
+                throw new ClientErrorException("service is not initialized");
+            }
+            items.forEach((key, item) -> {
+                params.add(newParameter(item));
+                keys.add(key);
+            });
+        } catch (RuntimeException e) {
+            final CompletableFuture<Map<F, Item>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        final long deadlineMs = System.currentTimeMillis() + timeout.toMillis();
+        Futures.withTimeout(result, timeout);
+        attemptAsync(params, new String[params.size()], allIndices(params.size()), 0, deadlineMs, result);
+
+        return Futures.cancelling(result.thenApply(res -> {
+            final Map<F, Item> out = new HashMap<>();
+            for (int i = 0; i < res.size(); i++) {
+                out.put(keys.get(i), newItemResult(res.get(i)));
+            }
+            return out;
+        }), result);
+    }
+
+    /**
+     * Sends the parameters and retries only the items which failed with a server error, within the retry budget.
+     */
+    private List<String> invokeWithRetry(List<Param> params) {
+        final RetryConfig retryConfig = config.getRetryConfig();
+        final String[] out = new String[params.size()];
+        List<Integer> pending = allIndices(params.size());
+
+        for (int retry = 0; ; retry++) {
+            final Outcome outcome = collect(invokeChunked(select(params, pending)), pending, out);
+            if (outcome.failed.isEmpty()) {
+                return Arrays.asList(out);
+            }
+            if (retry >= retryConfig.getMaxRetries()) {
+                throw outcome.exhausted(params.size(), retry);
+            }
+
+            final long backoff = retryConfig.backoffMs(retry);
+            log.debug("retrying {} of {} items in {} ms: {}", outcome.failed.size(), params.size(), backoff, outcome.lastError);
+            awaitBackoff(backoff);
+            pending = outcome.failed;
+        }
+    }
 
-        List<String> res = invokeCrypto(params);
+    /**
+     * Waits for the backoff on the calling thread, which ends early when the service is closed.
+     *
+     * @throws ServerErrorException if the service is closed or the thread is interrupted
+     */
+    private void awaitBackoff(long backoffMs) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMs);
+        synchronized (closing) {
+            try {
+                long remaining;
+                while (!closed && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(closing, remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ServerErrorException("interrupted while waiting for retry", e);
+            }
+        }
+        if (closed) {
+            throw new ServerErrorException("service is closed while waiting for retry");
+        }
+    }
 
-        Map<F, Item> results = new HashMap<>();
-        for (int i = 0; i < res.size(); i++) {
-            results.put(list.get(i).key, newItemResult(res.get(i)));
+    /**
+     * Asynchronous counterpart of {@link #invokeWithRetry}, which sends every chunk on the executor and waits for
+     * the backoff on a timer instead of a thread. It gives up without another attempt once the result is completed,
+     * e.g. cancelled or timed out, or the backoff would pass the deadline. A request is never run on the caller, so the
+     * result fails with {@link ServerErrorException} when the executor is full.
+     */
+    private void attemptAsync(List<Param> params, String[] out, List<Integer> pending, int retry, long deadlineMs,
+                              CompletableFuture<List<String>> result) {
+        if (result.isDone()) {
+            return;
         }
 
+        final List<CompletableFuture<List<BatchResult>>> futures = new ArrayList<>();
+        try {
+            for (List<Param> chunk : chunk(select(params, pending))) {
+                // a chunk which has not started yet is skipped when the result is given up
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    if (result.isDone()) {
+                        throw new CancellationException();
+                    }
+                    return invokeChunk(chunk);
+                }, executor));
+            }
+        } catch (RejectedExecutionException e) {
+            futures.forEach(f -> f.cancel(false));
+            result.completeExceptionally(new ServerErrorException("unable to schedule the request", e));
+            return;
+        }
+
+        final CompletableFuture<List<List<BatchResult>>> all = Futures.allAsList(futures);
+        Futures.cancelling(result, all);
+        all.whenComplete((chunks, t) -> {
+            if (t != null) {
+                result.completeExceptionally(Futures.unwrap(t));
+                return;
+            }
+            try {
+                final List<BatchResult> results = new ArrayList<>(pending.size());
+                chunks.forEach(results::addAll);
+                final Outcome outcome = collect(results, pending, out);
+                if (outcome.failed.isEmpty()) {
+                    result.complete(Arrays.asList(out));
+                    return;
+                }
+
+                final RetryConfig retryConfig = config.getRetryConfig();
+                final long backoff = retryConfig.backoffMs(retry);
+                if (retry >= retryConfig.getMaxRetries() || System.currentTimeMillis() + backoff >= deadlineMs) {
+                    result.completeExceptionally(outcome.exhausted(params.size(), retry));
+                    return;
+                }
+
+                log.debug("retrying {} of {} items in {} ms: {}", outcome.failed.size(), params.size(), backoff, outcome.lastError);
+                final CompletableFuture<Void> delay = Futures.delay(backoff);
+                Futures.cancelling(result, delay);
+                // the retry is started off the timer thread, which is shared by all the timers in the JVM
+                delay.thenRunAsync(() -> attemptAsync(params, out, outcome.failed, retry + 1, deadlineMs, result), executor)
+                        .whenComplete((r, e) -> {
+                            if (e != null) {
+                                result.completeExceptionally(new ServerErrorException("unable to schedule the retry", e));
+                            }
+                        });
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+    }
+
+    private static List<Integer> allIndices(int size) {
+        final List<Integer> indices = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            indices.add(i);
+        }
+        return indices;
+    }
+
+    private static <T> List<T> select(List<T> params, List<Integer> indices) {
+        final List<T> selected = new ArrayList<>(indices.size());
+        indices.forEach(i -> selected.add(params.get(i)));
+        return selected;
+    }
+
+    /**
+     * Stores the successful results of the pending items into {@code out} and returns the ones to be retried.
+     *
+     * @throws ClientErrorException if any item failed without being retriable
+     */
+    private static Outcome collect(List<BatchResult> results, List<Integer> pending, String[] out) {
+        final Outcome outcome = new Outcome();
+        for (int i = 0; i < results.size(); i++) {
+            final BatchResult r = results.get(i);
+            if (r.isSuccess()) {
+                out[pending.get(i)] = r.getValue().get();
+            } else if (!r.isRetriable()) {
+                throw new ClientErrorException("Vault respond error: " + r.getError().orElse(""));
+            } else {
+                outcome.failed.add(pending.get(i));
+                outcome.lastError = r.getError().orElse("");
+            }
+        }
+        return outcome;
+    }
+
+    private static final class Outcome {
+        final List<Integer> failed = new ArrayList<>();
+        String lastError;
+
+        ServerErrorException exhausted(int total, int retry) {
+            return new ServerErrorException(String.format("%d of %d items failed after %d retries: %s",
+                    failed.size(), total, retry, lastError));
+        }
+    }
+
+    /**
+     * Invokes a chunk, reporting a server error of the whole request as the retriable failure of each item.
+     */
+    private List<BatchResult> invokeChunk(List<Param> chunk) {
+        try {
+            return invokeCrypto(chunk);
+        } catch (ServerErrorException e) {
+            final String error = e.getMessage() == null ? e.toString() : e.getMessage();
+            return Collections.nCopies(chunk.size(), BatchResult.failure(error, true));
+        }
+    }
+
+    /**
+     * Splits the parameters into chunks bounded by the configured number of items and bytes, sends them concurrently,
+     * and returns the results in the order of the parameters.
+     */
+    private List<BatchResult> invokeChunked(List<Param> params) {
+        final List<List<Param>> chunks = chunk(params);
+        if (chunks.size() <= 1) {
+            return invokeChunk(params);
+        }
+        if (executor == null) {
+            throw new ClientErrorException("service is not initialized");
+        }
+
+        log.debug("batch of {} items is split into {} chunks", params.size(), chunks.size());
+
+        final List<CompletableFuture<List<BatchResult>>> futures = new ArrayList<>(chunks.size());
+        for (List<Param> chunk : chunks) {
+            try {
+                futures.add(CompletableFuture.supplyAsync(() -> invokeChunk(chunk), executor));
+            } catch (RejectedExecutionException e) {
+                if (executor.isShutdown()) {
+                    throw new ServerErrorException("unable to schedule the request", e);
+                }
+                // the queue is full, so the calling thread sends the chunk itself to apply back pressure
+                futures.add(CompletableFuture.completedFuture(invokeChunk(chunk)));
+            }
+        }
+
+        final List<BatchResult> results = new ArrayList<>(params.size());
+        try {
+            for (CompletableFuture<List<BatchResult>> future : futures) {
+                results.addAll(future.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
+            }
+            throw new ServiceException(e);
+        }
         return results;
     }
 
+    List<List<Param>> chunk(List<Param> params) {
+        final List<List<Param>> chunks = new ArrayList<>();
+        List<Param> current = new ArrayList<>();
+        long currentBytes = 0;
+        for (Param param : params) {
+            final int size = estimatedSize(param);
+            if (!current.isEmpty() && (current.size() >= config.getBatchMaxItems() || currentBytes + size > config.getBatchMaxBytes())) {
+                chunks.add(current);
+                current = new ArrayList<>();
+                currentBytes = 0;
+            }
+            current.add(param);
+            currentBytes += size;
+        }
+        if (!current.isEmpty()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
     public static final class EncryptService extends VaultService<EncryptParameter> {
         public EncryptService(VaultClient client, VaultCryptoConfig config) {
             super(client, config);
@@ -67,27 +392,32 @@ public abstract class VaultService<Param> implements Service {
 
         @Override
         protected EncryptParameter newParameter(Object item) {
-            String base64Text;
+            // the plain text is encoded in base64 by the client, which may write it straight into the request
+            byte[] plainText;
             if (item instanceof String) {
-                String s = (String) item;
-                base64Text = Base64.getEncoder().encodeToString(s.getBytes(Charset.defaultCharset()));
+                plainText = ((String) item).getBytes(Charset.defaultCharset());
             } else if (item instanceof byte[]) {
-                base64Text = Base64.getEncoder().encodeToString((byte[]) item);
+                plainText = (byte[]) item;
             } else {
                 throw new ClientErrorException("not supported field type: " + item.getClass());
             }
 
-            return new EncryptParameter(base64Text, config.getContext());
+            return new EncryptParameter(plainText, config.getContext());
+        }
+
+        @Override
+        protected int estimatedSize(EncryptParameter param) {
+            return param.estimatedSize();
         }
 
         @Override
         protected Item newItemResult(String result) {
-            return new Item.CipherText(result);
+            return config.isCompactCipherText() ? new CompactCipherText(result) : new Item.CipherText(result);
         }
 
         @Override
-        protected List<String> invokeCrypto(List<EncryptParameter> params) {
-            return client.encrypt(config.getKeyName(), params);
+        protected List<BatchResult> invokeCrypto(List<EncryptParameter> params) {
+            return client.encryptBatch(config.getKeyName(), params);
         }
     }
 
@@ -102,13 +432,23 @@ public abstract class VaultService<Param> implements Service {
             if (item instanceof String) {
                 text = (String) item;
             } else if (item instanceof byte[]) {
-                text = new String((byte[]) item, Charset.defaultCharset());
+                // either compact or the bytes of the text, so fields written before compact cipher text was enabled are read too
+                try {
+                    text = CompactCipherText.decode((byte[]) item);
+                } catch (IllegalArgumentException e) {
+                    throw new ClientErrorException(e.getMessage(), e);
+                }
             } else {
                 throw new ClientErrorException("not supported field type: " + item.getClass());
             }
             return new DecryptParameter(text, config.getContext());
         }
 
+        @Override
+        protected int estimatedSize(DecryptParameter param) {
+            return param.estimatedSize();
+        }
+
         @Override
         protected Item newItemResult(String result) {
             byte[] bytes = Base64.getDecoder().decode(result);
@@ -117,8 +457,8 @@ public abstract class VaultService<Param> implements Service {
         }
 
         @Override
-        protected List<String> invokeCrypto(List<DecryptParameter> params) {
-            return client.decrypt(config.getKeyName(), params);
+        protected List<BatchResult> invokeCrypto(List<DecryptParameter> params) {
+            return client.decryptBatch(config.getKeyName(), params);
         }
     }
 }
@@ -0,0 +1,68 @@
+package io.github.rerorero.kafka.vault.client;
+
+import java.util.Objects;
+import java.util.Optional;
+
+/**
+ * Result of an item in a batch request, which is either the output text or the error respond by Vault.
+ */
+public class BatchResult {
+    private final Optional<String> value;
+    private final Optional<String> error;
+    private final boolean retriable;
+
+    private BatchResult(Optional<String> value, Optional<String> error, boolean retriable) {
+        this.value = value;
+        this.error = error;
+        this.retriable = retriable;
+    }
+
+    public static BatchResult success(String value) {
+        return new BatchResult(Optional.of(value), Optional.empty(), false);
+    }
+
+    /**
+     * @param retriable Whether the item may succeed when it is sent again
+     */
+    public static BatchResult failure(String error, boolean retriable) {
+        return new BatchResult(Optional.empty(), Optional.of(error), retriable);
+    }
+
+    public boolean isSuccess() {
+        return value.isPresent();
+    }
+
+    public boolean isRetriable() {
+        return retriable;
+    }
+
+    public Optional<String> getValue() {
+        return value;
+    }
+
+    public Optional<String> getError() {
+        return error;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BatchResult that = (BatchResult) o;
+        return retriable == that.retriable && Objects.equals(value, that.value) && Objects.equals(error, that.error);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(value, error, retriable);
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult{" +
+                "value=" + value +
+                ", error=" + error +
+                ", retriable=" + retriable +
+                '}';
+    }
+}
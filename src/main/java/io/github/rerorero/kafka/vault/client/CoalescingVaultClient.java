@@ -0,0 +1,291 @@
+package io.github.rerorero.kafka.vault.client;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServiceException;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Client which coalesces the batch requests for the same key, issued by many threads within a short window,
+ * into a single request to Vault. Each item carries its own context, so the items of different contexts share
+ * a request as well.
+ * <p>
+ * The first caller of a window waits for the window to pass, or for the window to be full, and then sends
+ * the request on behalf of the others, who wait for their part of the results. A window takes the items of a caller
+ * only if they fit within the limits of the number of items and bytes, otherwise the window is sent and the caller
+ * starts another one. No thread is added, and a request takes at most the window longer than it would alone.
+ * <p>
+ * {@link #shared} gives the tasks of a worker a single instance for the same Vault, so that their requests are
+ * coalesced across the tasks.
+ */
+public class CoalescingVaultClient implements VaultClient {
+    private static final Map<String, CoalescingVaultClient> SHARED = new HashMap<>();
+
+    private final VaultClient delegate;
+    private final long windowMs;
+    private final int maxItems;
+    private final int maxBytes;
+    // windows collecting items, by the operation and the key
+    private final Map<String, Window<?>> open = new HashMap<>();
+    // number of the leases of the shared instance
+    private int leases;
+
+    /**
+     * @param delegate The client which sends the coalesced requests
+     * @param windowMs Time in milliseconds the first request of a window waits for the others
+     * @param maxItems Maximum number of items in a request
+     * @param maxBytes Maximum estimated size in bytes of the items in a request
+     */
+    public CoalescingVaultClient(VaultClient delegate, long windowMs, int maxItems, int maxBytes) {
+        this.delegate = delegate;
+        this.windowMs = windowMs;
+        this.maxItems = maxItems;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Leases the instance shared in the JVM for the target, creating it with the client of the factory if there is
+     * none. Closing the lease closes the shared instance and its client once all the leases are closed.
+     *
+     * @param target Identifies the Vault and the configurations of the client, e.g. the URLs and the token
+     */
+    public static VaultClient shared(String target, long windowMs, int maxItems, int maxBytes, Supplier<VaultClient> factory) {
+        synchronized (SHARED) {
+            final CoalescingVaultClient client = SHARED.computeIfAbsent(target,
+                    t -> new CoalescingVaultClient(factory.get(), windowMs, maxItems, maxBytes));
+            client.leases++;
+            return new Lease(target, client);
+        }
+    }
+
+    @Override
+    public List<String> encrypt(String keyName, List<EncryptParameter> items) {
+        return delegate.encrypt(keyName, items);
+    }
+
+    @Override
+    public List<String> decrypt(String keyName, List<DecryptParameter> items) {
+        return delegate.decrypt(keyName, items);
+    }
+
+    @Override
+    public List<BatchResult> encryptBatch(String keyName, List<EncryptParameter> items) {
+        return coalesce("encrypt|" + keyName, items, EncryptParameter::estimatedSize,
+                coalesced -> delegate.encryptBatch(keyName, coalesced));
+    }
+
+    @Override
+    public List<BatchResult> decryptBatch(String keyName, List<DecryptParameter> items) {
+        return coalesce("decrypt|" + keyName, items, DecryptParameter::estimatedSize,
+                coalesced -> delegate.decryptBatch(keyName, coalesced));
+    }
+
+    @Override
+    public DataKeyResponse generateDataKey(String keyName, Optional<String> context, int bits) {
+        return delegate.generateDataKey(keyName, context, bits);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    private <P> List<BatchResult> coalesce(String key, List<P> items, ToIntFunction<P> size,
+                                           Function<List<P>, List<BatchResult>> send) {
+        if (items.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        long bytes = 0;
+        for (P item : items) {
+            bytes += size.applyAsInt(item);
+        }
+        final Part<P> part = new Part<>(items, bytes);
+        final Window<P> window;
+        final boolean leader;
+        synchronized (open) {
+            @SuppressWarnings("unchecked")
+            final Window<P> current = (Window<P>) open.get(key);
+            if (current != null && !current.fits(part, maxItems, maxBytes)) {
+                // sent by its leader right away, and this part starts another window
+                open.remove(key);
+                open.notifyAll();
+            }
+            leader = open.get(key) == null;
+            window = leader ? new Window<>() : current;
+            window.add(part);
+            if (leader) {
+                open.put(key, window);
+            }
+            if (window.items >= maxItems || window.bytes >= maxBytes) {
+                // closed to new items, the next request starts another window
+                open.remove(key);
+                open.notifyAll();
+            }
+        }
+
+        if (leader) {
+            awaitWindow(key, window);
+            window.send(send);
+        }
+        return part.await();
+    }
+
+    private void awaitWindow(String key, Window<?> window) {
+        final long deadline = System.nanoTime() + windowMs * 1_000_000L;
+        synchronized (open) {
+            try {
+                long remaining;
+                while (open.get(key) == window && (remaining = deadline - System.nanoTime()) > 0) {
+                    open.wait(remaining / 1_000_000L, (int) (remaining % 1_000_000L));
+                }
+            } catch (InterruptedException e) {
+                // sends the items collected so far
+                Thread.currentThread().interrupt();
+            } finally {
+                if (open.get(key) == window) {
+                    open.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Items of a caller, and the future of its results.
+     */
+    private static final class Part<P> {
+        final List<P> items;
+        final long bytes;
+        final CompletableFuture<List<BatchResult>> results = new CompletableFuture<>();
+
+        Part(List<P> items, long bytes) {
+            this.items = items;
+            this.bytes = bytes;
+        }
+
+        List<BatchResult> await() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return results.get();
+                    } catch (InterruptedException e) {
+                        // the results come no later than the request of the leader
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ServiceException) {
+                    throw (ServiceException) e.getCause();
+                }
+                throw new ServerErrorException("coalesced request failed", e.getCause());
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Parts collected within a window, which are sent in a single request.
+     */
+    private static final class Window<P> {
+        final List<Part<P>> parts = new ArrayList<>();
+        int items;
+        long bytes;
+
+        boolean fits(Part<P> part, int maxItems, int maxBytes) {
+            return items + part.items.size() <= maxItems && bytes + part.bytes <= maxBytes;
+        }
+
+        void add(Part<P> part) {
+            parts.add(part);
+            items += part.items.size();
+            bytes += part.bytes;
+        }
+
+        void send(Function<List<P>, List<BatchResult>> send) {
+            try {
+                final List<P> coalesced;
+                if (parts.size() == 1) {
+                    coalesced = parts.get(0).items;
+                } else {
+                    coalesced = new ArrayList<>(items);
+                    parts.forEach(p -> coalesced.addAll(p.items));
+                }
+
+                final List<BatchResult> results = send.apply(coalesced);
+                if (results.size() != items) {
+                    throw new ServerErrorException("Vault returned " + results.size() + " results for " + items + " items");
+                }
+                int offset = 0;
+                for (Part<P> p : parts) {
+                    p.results.complete(results.subList(offset, offset + p.items.size()));
+                    offset += p.items.size();
+                }
+            } catch (RuntimeException e) {
+                parts.forEach(p -> p.results.completeExceptionally(e));
+            }
+        }
+    }
+
+    /**
+     * Lease of the shared instance, which releases it on close.
+     */
+    private static final class Lease implements VaultClient {
+        private final String target;
+        private final CoalescingVaultClient client;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Lease(String target, CoalescingVaultClient client) {
+            this.target = target;
+            this.client = client;
+        }
+
+        @Override
+        public List<String> encrypt(String keyName, List<EncryptParameter> items) {
+            return client.encrypt(keyName, items);
+        }
+
+        @Override
+        public List<String> decrypt(String keyName, List<DecryptParameter> items) {
+            return client.decrypt(keyName, items);
+        }
+
+        @Override
+        public List<BatchResult> encryptBatch(String keyName, List<EncryptParameter> items) {
+            return client.encryptBatch(keyName, items);
+        }
+
+        @Override
+        public List<BatchResult> decryptBatch(String keyName, List<DecryptParameter> items) {
+            return client.decryptBatch(keyName, items);
+        }
+
+        @Override
+        public DataKeyResponse generateDataKey(String keyName, Optional<String> context, int bits) {
+            return client.generateDataKey(keyName, context, bits);
+        }
+
+        @Override
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (SHARED) {
+                if (--client.leases > 0) {
+                    return;
+                }
+                SHARED.remove(target);
+            }
+            client.close();
+        }
+    }
+}
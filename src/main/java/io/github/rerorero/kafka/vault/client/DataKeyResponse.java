@@ -0,0 +1,45 @@
+package io.github.rerorero.kafka.vault.client;
+
+import java.util.Objects;
+
+/**
+ * Data key generated by the vault datakey api
+ */
+public class DataKeyResponse {
+    private final String plainTextBase64;
+    private final String cipherText;
+
+    public DataKeyResponse(String plainTextBase64, String cipherText) {
+        this.plainTextBase64 = plainTextBase64;
+        this.cipherText = cipherText;
+    }
+
+    public String getPlainTextBase64() {
+        return plainTextBase64;
+    }
+
+    public String getCipherText() {
+        return cipherText;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        DataKeyResponse that = (DataKeyResponse) o;
+        return Objects.equals(plainTextBase64, that.plainTextBase64) && Objects.equals(cipherText, that.cipherText);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(plainTextBase64, cipherText);
+    }
+
+    @Override
+    public String toString() {
+        // never print the plaintext key
+        return "DataKeyResponse{" +
+                "cipherText='" + cipherText + '\'' +
+                '}';
+    }
+}
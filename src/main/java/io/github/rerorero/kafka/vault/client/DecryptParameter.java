@@ -7,6 +7,9 @@ import java.util.Optional;
  * Cipher item information to be decrypted, passed to the vault decryption api
  */
 public class DecryptParameter {
+    // JSON keys, quotes and separators of an item
+    private static final int ITEM_OVERHEAD_BYTES = 48;
+
     final String cipherText;
     final Optional<String> context;
 
@@ -15,6 +18,13 @@ public class DecryptParameter {
         this.context = context;
     }
 
+    /**
+     * Returns the approximate size in bytes of this item in a batch request.
+     */
+    public int estimatedSize() {
+        return ITEM_OVERHEAD_BYTES + cipherText.length() + context.map(String::length).orElse(0);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -1,5 +1,6 @@
 package io.github.rerorero.kafka.vault.client;
 
+import java.util.Base64;
 import java.util.Objects;
 import java.util.Optional;
 
@@ -7,11 +8,29 @@ import java.util.Optional;
  * Plain data information to be encrypted, passed to the vault encryption api
  */
 public class EncryptParameter {
-    final String plainTextBase64;
+    // JSON keys, quotes and separators of an item
+    private static final int ITEM_OVERHEAD_BYTES = 48;
+
+    // either of them is given, and the base64 text is encoded from the plain text when it is needed
+    final byte[] plainText;
+    private String plainTextBase64;
     final Optional<Integer> keyVersion;
     final Optional<String> context;
 
     public EncryptParameter(String plainTextBase64, Optional<String> context) {
+        this(null, plainTextBase64, context);
+    }
+
+    /**
+     * Takes the plain text as is, so a client can encode it straight into the request.
+     * The array must not be modified afterwards.
+     */
+    public EncryptParameter(byte[] plainText, Optional<String> context) {
+        this(plainText, null, context);
+    }
+
+    private EncryptParameter(byte[] plainText, String plainTextBase64, Optional<String> context) {
+        this.plainText = plainText;
         this.plainTextBase64 = plainTextBase64;
         this.context = context;
         // bug: as of writing this, key_version doesn't work with batch input.
@@ -19,23 +38,40 @@ public class EncryptParameter {
         this.keyVersion = Optional.empty();
     }
 
+    String plainTextBase64() {
+        String s = plainTextBase64;
+        if (s == null) {
+            s = Base64.getEncoder().encodeToString(plainText);
+            plainTextBase64 = s;
+        }
+        return s;
+    }
+
+    /**
+     * Returns the approximate size in bytes of this item in a batch request.
+     */
+    public int estimatedSize() {
+        final int textSize = plainText != null ? (plainText.length + 2) / 3 * 4 : plainTextBase64.length();
+        return ITEM_OVERHEAD_BYTES + textSize + context.map(String::length).orElse(0);
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         EncryptParameter that = (EncryptParameter) o;
-        return Objects.equals(plainTextBase64, that.plainTextBase64) && Objects.equals(keyVersion, that.keyVersion) && Objects.equals(context, that.context);
+        return Objects.equals(plainTextBase64(), that.plainTextBase64()) && Objects.equals(keyVersion, that.keyVersion) && Objects.equals(context, that.context);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(plainTextBase64, keyVersion, context);
+        return Objects.hash(plainTextBase64(), keyVersion, context);
     }
 
     @Override
     public String toString() {
         return "EncryptParameter{" +
-                "plainTextBase64='" + plainTextBase64 + '\'' +
+                "plainTextBase64='" + plainTextBase64() + '\'' +
                 ", keyVersion=" + keyVersion +
                 ", context=" + context +
                 '}';
@@ -0,0 +1,63 @@
+package io.github.rerorero.kafka.vault.client;
+
+import java.util.Objects;
+
+/**
+ * Settings of the pooled HTTP connections to Vault.
+ */
+public class HttpConfig {
+    public static final int DEFAULT_MAX_CONNECTIONS = 32;
+    public static final long DEFAULT_KEEP_ALIVE_MS = 300000;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30000;
+    public static final HttpConfig DEFAULT = new HttpConfig(DEFAULT_MAX_CONNECTIONS, DEFAULT_KEEP_ALIVE_MS,
+            DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS);
+
+    private final int maxConnections;
+    private final long keepAliveMs;
+    private final int connectTimeoutMs;
+    private final int readTimeoutMs;
+
+    /**
+     * @param maxConnections Maximum number of connections, which bounds the requests in flight at once
+     * @param keepAliveMs Time in milliseconds an idle connection is kept open to be reused
+     * @param connectTimeoutMs Timeout in milliseconds to connect, and to wait for a connection when all of them are in use
+     * @param readTimeoutMs Timeout in milliseconds to wait for the response data
+     */
+    public HttpConfig(int maxConnections, long keepAliveMs, int connectTimeoutMs, int readTimeoutMs) {
+        this.maxConnections = maxConnections;
+        this.keepAliveMs = keepAliveMs;
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public long getKeepAliveMs() {
+        return keepAliveMs;
+    }
+
+    public int getConnectTimeoutMs() {
+        return connectTimeoutMs;
+    }
+
+    public int getReadTimeoutMs() {
+        return readTimeoutMs;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        HttpConfig that = (HttpConfig) o;
+        return maxConnections == that.maxConnections && keepAliveMs == that.keepAliveMs
+                && connectTimeoutMs == that.connectTimeoutMs && readTimeoutMs == that.readTimeoutMs;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxConnections, keepAliveMs, connectTimeoutMs, readTimeoutMs);
+    }
+}
@@ -0,0 +1,118 @@
+package io.github.rerorero.kafka.vault.client;
+
+import com.bettercloud.vault.SslConfig;
+import com.bettercloud.vault.VaultConfig;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.EntityTemplate;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.ssl.SSLContexts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transport on a pool of keep-alive connections, which are shared by the requests in flight at once.
+ * Idle connections are kept open up to the keep-alive time, so requests after a quiet period don't pay for
+ * a new connection and TLS handshake.
+ */
+public class PooledHttpTransport implements VaultTransport {
+    private final Logger log = LoggerFactory.getLogger(PooledHttpTransport.class);
+
+    private final VaultConfig config;
+    private final PoolingHttpClientConnectionManager connections;
+    private final CloseableHttpClient client;
+
+    /**
+     * @param config The address, token, namespace and TLS settings of Vault, which must be built
+     */
+    public PooledHttpTransport(VaultConfig config, HttpConfig httpConfig) {
+        this.config = config;
+
+        final SslConfig ssl = config.getSslConfig();
+        final SSLContext sslContext = ssl != null && ssl.getSslContext() != null ? ssl.getSslContext() : SSLContexts.createDefault();
+        connections = new PoolingHttpClientConnectionManager(RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext))
+                .build());
+        // all the requests go to the same route
+        connections.setMaxTotal(httpConfig.getMaxConnections());
+        connections.setDefaultMaxPerRoute(httpConfig.getMaxConnections());
+
+        final long keepAliveMs = httpConfig.getKeepAliveMs();
+        client = HttpClients.custom()
+                .setConnectionManager(connections)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(httpConfig.getConnectTimeoutMs())
+                        .setConnectionRequestTimeout(httpConfig.getConnectTimeoutMs())
+                        .setSocketTimeout(httpConfig.getReadTimeoutMs())
+                        .build())
+                // a shorter keep-alive given by the server wins
+                .setKeepAliveStrategy((response, context) -> {
+                    final long serverMs = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return serverMs > 0 ? Math.min(serverMs, keepAliveMs) : keepAliveMs;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAliveMs, TimeUnit.MILLISECONDS)
+                .disableCookieManagement()
+                .build();
+    }
+
+    @Override
+    public <T> T post(String path, RequestWriter body, ResponseReader<T> reader) throws IOException {
+        final HttpPost request = new HttpPost(config.getAddress() + "/v1/" + path);
+        request.setHeader("X-Vault-Request", "true");
+        if (config.getToken() != null) {
+            request.setHeader("X-Vault-Token", config.getToken());
+        }
+        if (config.getNameSpace() != null) {
+            request.setHeader("X-Vault-Namespace", config.getNameSpace());
+        }
+
+        // the body is sent as it is written, instead of being buffered to know its length
+        final EntityTemplate entity = new EntityTemplate(body::write);
+        entity.setContentType(ContentType.APPLICATION_JSON.toString());
+        entity.setChunked(true);
+        request.setEntity(entity);
+
+        try (CloseableHttpResponse response = client.execute(request)) {
+            final HttpEntity responseEntity = response.getEntity();
+            // closing the content reads it to the end, and returns the connection to the pool
+            try (InputStream in = responseEntity == null ? new ByteArrayInputStream(new byte[0]) : responseEntity.getContent()) {
+                return reader.read(response.getStatusLine().getStatusCode(), in);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            client.close();
+        } catch (IOException e) {
+            log.warn("failed to close the connections to Vault", e);
+        }
+    }
+
+    int leasedConnections() {
+        return connections.getTotalStats().getLeased();
+    }
+
+    int availableConnections() {
+        return connections.getTotalStats().getAvailable();
+    }
+}
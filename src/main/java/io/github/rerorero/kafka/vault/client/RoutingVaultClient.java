@@ -0,0 +1,183 @@
+package io.github.rerorero.kafka.vault.client;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Client which spreads the requests over several Vault nodes, e.g. the active node and its performance standbys.
+ * Each request goes to the healthy node with the fewest requests in flight, and ties are broken in turn.
+ * A node which fails with a server error is ejected for a while, and the request fails over to another healthy node.
+ * When all the nodes are ejected, the one whose ejection ends first is tried anyway, and its success ends the ejection.
+ */
+public class RoutingVaultClient implements VaultClient {
+    private final Logger log = LoggerFactory.getLogger(RoutingVaultClient.class);
+
+    private final Endpoint[] endpoints;
+    private final long ejectionMs;
+    private final LongSupplier clock;
+    private final AtomicInteger turn = new AtomicInteger();
+
+    /**
+     * @param clients The clients of each node
+     * @param ejectionMs Time in milliseconds a node is skipped after it failed with a server error
+     */
+    public RoutingVaultClient(List<VaultClient> clients, long ejectionMs) {
+        this(clients, ejectionMs, System::currentTimeMillis);
+    }
+
+    RoutingVaultClient(List<VaultClient> clients, long ejectionMs, LongSupplier clock) {
+        if (clients.isEmpty()) {
+            throw new IllegalArgumentException("no Vault clients to route to");
+        }
+        this.endpoints = new Endpoint[clients.size()];
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i] = new Endpoint(clients.get(i));
+        }
+        this.ejectionMs = ejectionMs;
+        this.clock = clock;
+    }
+
+    @Override
+    public List<String> encrypt(String keyName, List<EncryptParameter> items) {
+        return route(c -> c.encrypt(keyName, items));
+    }
+
+    @Override
+    public List<String> decrypt(String keyName, List<DecryptParameter> items) {
+        return route(c -> c.decrypt(keyName, items));
+    }
+
+    @Override
+    public List<BatchResult> encryptBatch(String keyName, List<EncryptParameter> items) {
+        return route(c -> c.encryptBatch(keyName, items));
+    }
+
+    @Override
+    public List<BatchResult> decryptBatch(String keyName, List<DecryptParameter> items) {
+        return route(c -> c.decryptBatch(keyName, items));
+    }
+
+    @Override
+    public DataKeyResponse generateDataKey(String keyName, Optional<String> context, int bits) {
+        return route(c -> c.generateDataKey(keyName, context, bits));
+    }
+
+    @Override
+    public void close() {
+        for (Endpoint e : endpoints) {
+            e.client.close();
+        }
+    }
+
+    /**
+     * Sends the request to the nodes in order of preference until one of them responds, trying each node at most once.
+     * Client errors are thrown as they are, since the other nodes would fail in the same way.
+     */
+    private <T> T route(Function<VaultClient, T> request) {
+        final List<Endpoint> tried = new ArrayList<>(1);
+        while (true) {
+            final Endpoint endpoint = select(tried);
+            // a success only ends the ejection seen when the request was sent, not one by a later failure
+            final long ejectedUntil = endpoint.ejectedUntil.get();
+            endpoint.inFlight.incrementAndGet();
+            try {
+                final T result = request.apply(endpoint.client);
+                if (ejectedUntil != 0) {
+                    endpoint.ejectedUntil.compareAndSet(ejectedUntil, 0);
+                }
+                return result;
+            } catch (ServerErrorException e) {
+                endpoint.ejectedUntil.set(clock.getAsLong() + ejectionMs);
+                tried.add(endpoint);
+                if (tried.size() >= endpoints.length || !hasHealthy(tried)) {
+                    throw e;
+                }
+                log.warn("Vault node failed and is ejected for {} ms, failing over to another node", ejectionMs, e);
+            } finally {
+                endpoint.inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private Endpoint select(List<Endpoint> excluded) {
+        final long now = clock.getAsLong();
+        int minInFlight = Integer.MAX_VALUE;
+        int ties = 0;
+        Endpoint soonest = null;
+        for (Endpoint e : endpoints) {
+            if (excluded.contains(e)) {
+                continue;
+            }
+            final long ejectedUntil = e.ejectedUntil.get();
+            if (ejectedUntil > now) {
+                if (soonest == null || ejectedUntil < soonest.ejectedUntil.get()) {
+                    soonest = e;
+                }
+                continue;
+            }
+            final int inFlight = e.inFlight.get();
+            if (inFlight < minInFlight) {
+                minInFlight = inFlight;
+                ties = 1;
+            } else if (inFlight == minInFlight) {
+                ties++;
+            }
+        }
+        if (ties == 0) {
+            return soonest;
+        }
+
+        // takes the healthy nodes with the fewest requests in flight in turn
+        int k = Math.floorMod(turn.getAndIncrement(), ties);
+        Endpoint fallback = soonest;
+        for (Endpoint e : endpoints) {
+            if (excluded.contains(e) || e.ejectedUntil.get() > now) {
+                continue;
+            }
+            if (e.inFlight.get() <= minInFlight && k-- == 0) {
+                return e;
+            }
+            fallback = e;
+        }
+        // the nodes have changed meanwhile by other requests
+        return fallback != null ? fallback : endpoints[0];
+    }
+
+    private boolean hasHealthy(List<Endpoint> excluded) {
+        final long now = clock.getAsLong();
+        for (Endpoint e : endpoints) {
+            if (!excluded.contains(e) && e.ejectedUntil.get() <= now) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int inFlight(int endpoint) {
+        return endpoints[endpoint].inFlight.get();
+    }
+
+    long ejectedUntil(int endpoint) {
+        return endpoints[endpoint].ejectedUntil.get();
+    }
+
+    private static final class Endpoint {
+        final VaultClient client;
+        final AtomicInteger inFlight = new AtomicInteger();
+        // time until which the node is skipped, 0 if it is healthy
+        final AtomicLong ejectedUntil = new AtomicLong();
+
+        Endpoint(VaultClient client) {
+            this.client = client;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package io.github.rerorero.kafka.vault.client;
+
+import com.bettercloud.vault.VaultConfig;
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Client of the transit API, which writes the batch input straight into the request body and reads the batch results
+ * from the response body as they arrive, without building a JSON document of the whole batch.
+ * The HTTP connections are made by a {@link VaultTransport}.
+ */
+public class StreamingVaultClient implements VaultClient {
+    private final Logger log = LoggerFactory.getLogger(StreamingVaultClient.class);
+
+    // the streams are owned by the transport
+    private static final JsonFactory jsonFactory = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    private final VaultTransport transport;
+
+    /**
+     * @param config The address, token, namespace, timeouts and TLS settings of Vault, which must be built
+     */
+    public StreamingVaultClient(VaultConfig config) {
+        this(new UrlConnectionTransport(config));
+    }
+
+    public StreamingVaultClient(VaultTransport transport) {
+        this.transport = transport;
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+    }
+
+    @Override
+    public List<String> encrypt(String keyName, List<EncryptParameter> items) {
+        return valuesOf(encryptBatch(keyName, items));
+    }
+
+    @Override
+    public List<String> decrypt(String keyName, List<DecryptParameter> items) {
+        return valuesOf(decryptBatch(keyName, items));
+    }
+
+    @Override
+    public List<BatchResult> encryptBatch(String keyName, List<EncryptParameter> items) {
+        // ref. https://github.com/hashicorp/vault/blob/v1.7.1/builtin/logical/transit/path_encrypt.go#L17-L39
+        return batchRequest("transit/encrypt/" + keyName, items.size(), "ciphertext", gen -> {
+            for (EncryptParameter i : items) {
+                gen.writeStartObject();
+                if (i.plainText != null) {
+                    gen.writeFieldName("plaintext");
+                    gen.writeBinary(Base64Variants.MIME_NO_LINEFEEDS, i.plainText, 0, i.plainText.length);
+                } else {
+                    gen.writeStringField("plaintext", i.plainTextBase64());
+                }
+                if (i.context.isPresent()) {
+                    gen.writeStringField("context", i.context.get());
+                }
+                if (i.keyVersion.isPresent()) {
+                    gen.writeNumberField("key_version", i.keyVersion.get());
+                }
+                gen.writeEndObject();
+            }
+        });
+    }
+
+    @Override
+    public List<BatchResult> decryptBatch(String keyName, List<DecryptParameter> items) {
+        // ref. https://github.com/hashicorp/vault/blob/v1.7.1/builtin/logical/transit/path_decrypt.go#L17-L39
+        return batchRequest("transit/decrypt/" + keyName, items.size(), "plaintext", gen -> {
+            for (DecryptParameter i : items) {
+                gen.writeStartObject();
+                gen.writeStringField("ciphertext", i.cipherText);
+                if (i.context.isPresent()) {
+                    gen.writeStringField("context", i.context.get());
+                }
+                gen.writeEndObject();
+            }
+        });
+    }
+
+    @Override
+    public DataKeyResponse generateDataKey(String keyName, Optional<String> context, int bits) {
+        // ref. https://www.vaultproject.io/api/secret/transit#generate-data-key
+        final String path = "transit/datakey/plaintext/" + keyName;
+        final String[] keys = new String[2];
+        final Response res = post(path, gen -> {
+            gen.writeNumberField("bits", bits);
+            if (context.isPresent()) {
+                gen.writeStringField("context", context.get());
+            }
+        }, (name, parser) -> {
+            if (name.equals("plaintext") && parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+                keys[0] = parser.getText();
+            } else if (name.equals("ciphertext") && parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+                keys[1] = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        });
+
+        res.ensureSuccess();
+        if (keys[0] == null || keys[1] == null) {
+            throw new ServerErrorException("Unexpected vault response for datakey: " + keyName);
+        }
+        return new DataKeyResponse(keys[0], keys[1]);
+    }
+
+    private List<BatchResult> batchRequest(String path, int size, String outField, BodyWriter batchInput) {
+        if (size == 0) {
+            return new ArrayList<>();
+        }
+
+        log.debug("vault request: path={}, batch_input size={}", path, size);
+
+        final BatchResult[] results = new BatchResult[size];
+        final int[] count = {-1};
+        final Response res = post(path, gen -> {
+            gen.writeArrayFieldStart("batch_input");
+            batchInput.write(gen);
+            gen.writeEndArray();
+        }, (name, parser) -> {
+            if (name.equals("batch_results") && parser.getCurrentToken() == JsonToken.START_ARRAY) {
+                count[0] = readBatchResults(parser, results, outField);
+            } else {
+                parser.skipChildren();
+            }
+        });
+
+        if (count[0] < 0) {
+            res.ensureSuccess();
+        }
+        // some items of the batch may have failed with 4xx or 5xx, which are reported in the batch results
+        if (count[0] != size) {
+            throw new ServerErrorException(String.format("Unexpected vault response: status=%d, %d of %d batch results",
+                    res.status, count[0], size));
+        }
+        if (res.status / 100 == 5) {
+            // the failed items include an internal error of Vault, so they may succeed when sent again
+            for (int i = 0; i < size; i++) {
+                if (!results[i].isSuccess()) {
+                    results[i] = BatchResult.failure(results[i].getError().orElse(""), true);
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Reads the elements of the batch results into the array, and returns the number of the elements.
+     */
+    private static int readBatchResults(JsonParser parser, BatchResult[] results, String outField) throws IOException {
+        int count = 0;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.getCurrentToken() != JsonToken.START_OBJECT || count >= results.length) {
+                throw new ServerErrorException("Unexpected vault response: malformed batch results");
+            }
+
+            String out = null;
+            String error = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+                if (name.equals(outField) && token == JsonToken.VALUE_STRING) {
+                    out = parser.getText();
+                } else if (name.equals("error") && token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+                    error = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            if (error != null && !error.isEmpty()) {
+                // errors of an item are caused by its input, e.g. malformed cipher text, unless the status is 5xx
+                results[count] = BatchResult.failure(error, false);
+            } else if (out != null) {
+                results[count] = BatchResult.success(out);
+            } else {
+                throw new ServerErrorException("Unexpected vault response: " + outField + " is missing in batch results");
+            }
+            count++;
+        }
+        return count;
+    }
+
+    private static List<String> valuesOf(List<BatchResult> results) {
+        final List<String> values = new ArrayList<>(results.size());
+        for (BatchResult r : results) {
+            if (!r.isSuccess()) {
+                throw new ClientErrorException("Vault respond error: " + r.getError().orElse(""));
+            }
+            values.add(r.getValue().get());
+        }
+        return values;
+    }
+
+    /**
+     * Sends the JSON object written by the body writer, and passes each field of the data object of the response
+     * to the data reader.
+     */
+    private Response post(String path, BodyWriter body, DataReader data) {
+        try {
+            return transport.post(path, out -> {
+                try (JsonGenerator gen = jsonFactory.createGenerator(out)) {
+                    gen.writeStartObject();
+                    body.write(gen);
+                    gen.writeEndObject();
+                }
+            }, (status, in) -> {
+                log.debug("vault response: status={}", status);
+
+                if (status / 100 == 2) {
+                    readData(in, data);
+                    return new Response(status, null);
+                }
+
+                // error responses are small, and kept for the error message
+                final byte[] errorBody = readAll(in);
+                try {
+                    readData(new ByteArrayInputStream(errorBody), data);
+                } catch (JsonProcessingException | ServerErrorException e) {
+                    log.debug("vault error response is not a JSON object", e);
+                }
+                return new Response(status, errorBody);
+            });
+        } catch (JsonProcessingException e) {
+            throw new ServerErrorException("Unexpected vault response", e);
+        } catch (IOException e) {
+            // connection failures may succeed on retry
+            throw new ServerErrorException("Failed to access Vault", e);
+        }
+    }
+
+    private static void readData(InputStream in, DataReader data) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new ServerErrorException("Unexpected vault response: not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String name = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+                if (!name.equals("data") || token != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = parser.getCurrentName();
+                    parser.nextToken();
+                    data.read(field, parser);
+                }
+            }
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @FunctionalInterface
+    private interface BodyWriter {
+        void write(JsonGenerator gen) throws IOException;
+    }
+
+    /**
+     * Reads a field of the data object. The parser is at the first token of the value, and the reader must consume
+     * the whole value.
+     */
+    @FunctionalInterface
+    private interface DataReader {
+        void read(String name, JsonParser parser) throws IOException;
+    }
+
+    private static final class Response {
+        final int status;
+        final byte[] errorBody;
+
+        Response(int status, byte[] errorBody) {
+            this.status = status;
+            this.errorBody = errorBody;
+        }
+
+        void ensureSuccess() {
+            if (status / 100 == 2) {
+                return;
+            }
+            final String message = String.format("Vault respond error: status=%d, %s",
+                    status, new String(errorBody, StandardCharsets.UTF_8));
+            if (status / 100 == 4) {
+                throw new ClientErrorException(message);
+            }
+            throw new ServerErrorException(message);
+        }
+    }
+}
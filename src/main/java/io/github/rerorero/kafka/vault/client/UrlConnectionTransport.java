@@ -0,0 +1,67 @@
+package io.github.rerorero.kafka.vault.client;
+
+import com.bettercloud.vault.SslConfig;
+import com.bettercloud.vault.VaultConfig;
+
+import javax.net.ssl.HttpsURLConnection;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Transport on {@link HttpURLConnection}, which relies on the keep-alive cache of the JVM to reuse connections.
+ */
+public class UrlConnectionTransport implements VaultTransport {
+    private final VaultConfig config;
+
+    /**
+     * @param config The address, token, namespace, timeouts and TLS settings of Vault, which must be built
+     */
+    public UrlConnectionTransport(VaultConfig config) {
+        this.config = config;
+    }
+
+    @Override
+    public <T> T post(String path, RequestWriter body, ResponseReader<T> reader) throws IOException {
+        final HttpURLConnection conn = open(path);
+        try (OutputStream out = conn.getOutputStream()) {
+            body.write(out);
+        }
+
+        final int status = conn.getResponseCode();
+        final InputStream in = status / 100 == 2 ? conn.getInputStream() : conn.getErrorStream();
+        try (InputStream i = in == null ? new ByteArrayInputStream(new byte[0]) : in) {
+            return reader.read(status, i);
+        }
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        final HttpURLConnection conn = (HttpURLConnection) new URL(config.getAddress() + "/v1/" + path).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        // the body is sent as it is written, instead of being buffered to know its length
+        conn.setChunkedStreamingMode(0);
+        conn.setRequestProperty("Content-Type", "application/json");
+        conn.setRequestProperty("X-Vault-Request", "true");
+        if (config.getToken() != null) {
+            conn.setRequestProperty("X-Vault-Token", config.getToken());
+        }
+        if (config.getNameSpace() != null) {
+            conn.setRequestProperty("X-Vault-Namespace", config.getNameSpace());
+        }
+        if (config.getOpenTimeout() != null) {
+            conn.setConnectTimeout(config.getOpenTimeout() * 1000);
+        }
+        if (config.getReadTimeout() != null) {
+            conn.setReadTimeout(config.getReadTimeout() * 1000);
+        }
+        final SslConfig ssl = config.getSslConfig();
+        if (conn instanceof HttpsURLConnection && ssl != null && ssl.getSslContext() != null) {
+            ((HttpsURLConnection) conn).setSSLSocketFactory(ssl.getSslContext().getSocketFactory());
+        }
+        return conn;
+    }
+}
@@ -1,6 +1,7 @@
 package io.github.rerorero.kafka.vault.client;
 
 import java.util.List;
+import java.util.Optional;
 
 public interface VaultClient {
     /**
@@ -20,4 +21,40 @@ public interface VaultClient {
      * @return {@link List} of plain item.
      */
     List<String> decrypt(String keyName, List<DecryptParameter> items);
+
+    /**
+     * Encrypt multiple plain items with the given key, and returns the result of each item
+     * instead of failing when some of the items fail.
+     *
+     * @param keyName The Vault key name
+     * @param items The plain item information to be encrypted
+     * @return {@link List} of results containing cipher text.
+     */
+    List<BatchResult> encryptBatch(String keyName, List<EncryptParameter> items);
+
+    /**
+     * Decrypt multiple cipher text with the given key, and returns the result of each item
+     * instead of failing when some of the items fail.
+     *
+     * @param keyName The Vault key name
+     * @param items The cipher item information to be decrypted
+     * @return {@link List} of results containing plain item.
+     */
+    List<BatchResult> decryptBatch(String keyName, List<DecryptParameter> items);
+
+    /**
+     * Generate a new data key wrapped by the given key.
+     *
+     * @param keyName The Vault key name
+     * @param context The Base64 context for key derivation
+     * @param bits The number of bits of the data key
+     * @return The plaintext and the cipher text of the data key.
+     */
+    DataKeyResponse generateDataKey(String keyName, Optional<String> context, int bits);
+
+    /**
+     * Releases the connections held by the client.
+     */
+    default void close() {
+    }
 }
@@ -14,7 +14,10 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 
 public class VaultClientImpl implements VaultClient {
     private final Logger log = LoggerFactory.getLogger(VaultClientImpl.class);
@@ -27,10 +30,20 @@ public class VaultClientImpl implements VaultClient {
 
     @Override
     public List<String> encrypt(String keyName, List<EncryptParameter> items) {
+        return valuesOf(encryptBatch(keyName, items));
+    }
+
+    @Override
+    public List<String> decrypt(String keyName, List<DecryptParameter> items) {
+        return valuesOf(decryptBatch(keyName, items));
+    }
+
+    @Override
+    public List<BatchResult> encryptBatch(String keyName, List<EncryptParameter> items) {
         // ref. https://github.com/hashicorp/vault/blob/v1.7.1/builtin/logical/transit/path_encrypt.go#L17-L39
         final JsonArray itemsJson = new JsonArray();
         for (EncryptParameter i : items) {
-            final JsonObject obj = new JsonObject().add("plaintext", i.plainTextBase64);
+            final JsonObject obj = new JsonObject().add("plaintext", i.plainTextBase64());
             i.context.ifPresent(c -> obj.add("context", c));
             i.keyVersion.ifPresent(version -> obj.add("key_version", version));
             itemsJson.add(obj);
@@ -40,7 +53,7 @@ public class VaultClientImpl implements VaultClient {
     }
 
     @Override
-    public List<String> decrypt(String keyName, List<DecryptParameter> items) {
+    public List<BatchResult> decryptBatch(String keyName, List<DecryptParameter> items) {
         // ref. https://github.com/hashicorp/vault/blob/v1.7.1/builtin/logical/transit/path_encrypt.go#L17-L39
         final JsonArray itemsJson = new JsonArray();
         for (DecryptParameter i : items) {
@@ -52,57 +65,106 @@ public class VaultClientImpl implements VaultClient {
         return batchRequest("transit/decrypt/" + keyName, itemsJson, "plaintext");
     }
 
-    private List<String> batchRequest(String path, JsonArray batchInput, String outField) {
-        if (batchInput.isEmpty()) {
-            return new ArrayList<>();
+    @Override
+    public DataKeyResponse generateDataKey(String keyName, Optional<String> context, int bits) {
+        // ref. https://www.vaultproject.io/api/secret/transit#generate-data-key
+        final Map<String, Object> params = new HashMap<>();
+        params.put("bits", bits);
+        context.ifPresent(c -> params.put("context", c));
+
+        final LogicalResponse logicalRes = write("transit/datakey/plaintext/" + keyName, params);
+        final JsonObject data = logicalRes.getDataObject();
+        final JsonValue plaintext = data.get("plaintext");
+        final JsonValue ciphertext = data.get("ciphertext");
+        if (plaintext == null || ciphertext == null) {
+            throw new ServerErrorException("Unexpected vault response for datakey: " + keyName);
         }
+        return new DataKeyResponse(plaintext.asString(), ciphertext.asString());
+    }
 
-        log.debug("vault request: path={}, batch_input size={}", path, batchInput.size());
-
-        LogicalResponse logicarlRes = null;
+    private LogicalResponse write(String path, Map<String, Object> params) {
+        LogicalResponse logicalRes = null;
         try {
-            logicarlRes = client.logical().write(path, Collections.singletonMap("batch_input", batchInput));
+            logicalRes = client.logical().write(path, params);
         } catch (VaultException e) {
-            throw new ClientErrorException("Failed to access Vault", e);
+            // the driver throws on 5xx and connection failures, which may succeed on retry. The batch results of
+            // a 5xx response are not available, so the whole batch fails.
+            if (e.getHttpStatusCode() / 100 == 4) {
+                throw new ClientErrorException("Failed to access Vault", e);
+            }
+            throw new ServerErrorException("Failed to access Vault", e);
         }
 
-        final RestResponse res = logicarlRes.getRestResponse();
+        final RestResponse res = logicalRes.getRestResponse();
 
         log.debug("vault response: status={}", res.getStatus());
 
-        if (res.getStatus() / 100 == 2) {
-            final JsonArray results = logicarlRes.getDataObject().get("batch_results").asArray();
-            if (results == null) {
-                throw new ServerErrorException(String.format("Unexpected vault response: %s", new String(res.getBody())));
+        if (res.getStatus() / 100 == 4 && batchResultsOf(logicalRes) != null) {
+            // some items of the batch have failed, which are reported in the batch results
+            return logicalRes;
+        } else if (res.getStatus() / 100 == 4) {
+            throw new ClientErrorException(String.format("Vault respond error: status=%d, %s",
+                    res.getStatus(), new String(res.getBody())));
+        } else if (res.getStatus() / 100 != 2) {
+            throw new ServerErrorException(String.format("Vault respond error: status=%d, %s",
+                    res.getStatus(), new String(res.getBody())));
+        }
+        return logicalRes;
+    }
+
+    private static JsonValue batchResultsOf(LogicalResponse res) {
+        final JsonObject data = res.getDataObject();
+        return data == null ? null : data.get("batch_results");
+    }
+
+    private static List<String> valuesOf(List<BatchResult> results) {
+        final List<String> values = new ArrayList<>(results.size());
+        for (BatchResult r : results) {
+            if (!r.isSuccess()) {
+                throw new ClientErrorException("Vault respond error: " + r.getError().orElse(""));
             }
+            values.add(r.getValue().get());
+        }
+        return values;
+    }
+
+    private List<BatchResult> batchRequest(String path, JsonArray batchInput, String outField) {
+        if (batchInput.isEmpty()) {
+            return new ArrayList<>();
+        }
 
-            final List<String> batchResponses = new ArrayList<>();
-            for (JsonValue r : results) {
-                if (!r.isObject()) {
-                    throw new ServerErrorException(String.format("Unexpected vault response: %s", new String(res.getBody())));
-                }
+        log.debug("vault request: path={}, batch_input size={}", path, batchInput.size());
 
-                final JsonObject obj = r.asObject();
-                if (obj.get("error") != null) {
-                    throw new ClientErrorException("Vault respond error: " + obj.get("error"));
-                }
+        final LogicalResponse logicarlRes = write(path, Collections.<String, Object>singletonMap("batch_input", batchInput));
+        final RestResponse res = logicarlRes.getRestResponse();
 
-                JsonValue out = obj.get(outField);
-                if (out == null) {
-                    throw new ServerErrorException(String.format("Unexpected vault response: %s", new String(res.getBody())));
-                }
+        final JsonValue resultsValue = batchResultsOf(logicarlRes);
+        if (resultsValue == null || !resultsValue.isArray() || resultsValue.asArray().size() != batchInput.size()) {
+            throw new ServerErrorException(String.format("Unexpected vault response: %s", new String(res.getBody())));
+        }
 
-                batchResponses.add(out.asString());
+        final List<BatchResult> batchResponses = new ArrayList<>();
+        for (JsonValue r : resultsValue.asArray()) {
+            if (!r.isObject()) {
+                throw new ServerErrorException(String.format("Unexpected vault response: %s", new String(res.getBody())));
             }
 
-            return batchResponses;
+            final JsonObject obj = r.asObject();
+            final JsonValue error = obj.get("error");
+            if (error != null && !(error.isString() && error.asString().isEmpty())) {
+                // errors of an item are caused by its input, e.g. malformed cipher text
+                batchResponses.add(BatchResult.failure(error.isString() ? error.asString() : error.toString(), false));
+                continue;
+            }
 
-        } else if (res.getStatus() / 100 == 4) {
-            throw new ClientErrorException(String.format("Vault respond error: status=%d, %s",
-                    res.getStatus(), new String(res.getBody())));
-        } else {
-            throw new ServerErrorException(String.format("Vault respond error: status=%d, %s",
-                    res.getStatus(), new String(res.getBody())));
+            JsonValue out = obj.get(outField);
+            if (out == null) {
+                throw new ServerErrorException(String.format("Unexpected vault response: %s", new String(res.getBody())));
+            }
+
+            batchResponses.add(BatchResult.success(out.asString()));
         }
+
+        return batchResponses;
     }
 }
@@ -0,0 +1,38 @@
+package io.github.rerorero.kafka.vault.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * HTTP connection to Vault, which posts a request body and passes the response body to the caller as a stream.
+ * Implementations must be thread-safe, so that several requests can be in flight at once.
+ */
+public interface VaultTransport extends Closeable {
+    /**
+     * Posts the body written by the writer to the path under {@code /v1/}, and returns what the reader reads from
+     * the response. The streams are owned by the transport, and must not be closed by the writer or the reader.
+     */
+    <T> T post(String path, RequestWriter body, ResponseReader<T> reader) throws IOException;
+
+    /**
+     * Releases the connections held by the transport.
+     */
+    @Override
+    default void close() {
+    }
+
+    @FunctionalInterface
+    interface RequestWriter {
+        void write(OutputStream out) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface ResponseReader<T> {
+        /**
+         * @param body The response body, which is empty if the response has no body
+         */
+        T read(int status, InputStream body) throws IOException;
+    }
+}
@@ -5,6 +5,7 @@ import com.amazonaws.auth.BasicAWSCredentials;
 import com.bettercloud.vault.json.Json;
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import io.github.rerorero.kafka.kms.ExecutorConfig;
 import io.github.rerorero.kafka.kms.Item;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
@@ -16,10 +17,17 @@ import org.testcontainers.utility.DockerImageName;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -69,7 +77,9 @@ class AWSKeyManagementServiceTest {
                 Optional.of(kmsAddr)
         );
         AWSKeyManagementService.EncryptService encryptor = new AWSKeyManagementService.EncryptService(config);
+        encryptor.init();
         AWSKeyManagementService.DecryptService decryptor = new AWSKeyManagementService.DecryptService(config);
+        decryptor.init();
 
         Map<String, Object> encParams = new HashMap<>();
         encParams.put("item1", "Kafka");
@@ -100,7 +110,9 @@ class AWSKeyManagementServiceTest {
                 Optional.of(kmsAddr)
         );
         AWSKeyManagementService.EncryptService encryptor = new AWSKeyManagementService.EncryptService(config);
+        encryptor.init();
         AWSKeyManagementService.DecryptService decryptor = new AWSKeyManagementService.DecryptService(config);
+        decryptor.init();
 
         Map<String, Object> encParams = new HashMap<>();
         encParams.put("item1", "Kafka".getBytes(Charset.defaultCharset()));
@@ -120,6 +132,69 @@ class AWSKeyManagementServiceTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    void testEncryptWithDataKeyCache() {
+        AWSKMSCryptoConfig config = new AWSKMSCryptoConfig(
+                Optional.of(creds),
+                Optional.of("us-west-1"),
+                keyArn,
+                Collections.singletonMap("dummy", "context"),
+                Optional.empty(),
+                Optional.of(kmsAddr),
+                Optional.of(new AWSKMSCryptoConfig.DataKeyCache(10, 60000, 100, Long.MAX_VALUE)),
+                ExecutorConfig.DEFAULT
+        );
+        AWSKeyManagementService.EncryptService encryptor = new AWSKeyManagementService.EncryptService(config);
+        encryptor.init();
+        AWSKeyManagementService.DecryptService decryptor = new AWSKeyManagementService.DecryptService(config);
+        decryptor.init();
+
+        Map<String, Object> encParams = new HashMap<>();
+        encParams.put("item1", "Kafka");
+        encParams.put("item2", "Frantz");
+
+        Map<String, Item> encrypted = encryptor.doCrypto(encParams);
+
+        Map<String, Object> decParams = new HashMap<>();
+        decParams.put("item1", encrypted.get("item1").asObject(Item.Encoding.STRING));
+        decParams.put("item2", encrypted.get("item2").asObject(Item.Encoding.STRING));
+        Map<String, Item> actual = decryptor.doCrypto(decParams);
+
+        Map<String, Item> expected = new HashMap<>();
+        expected.put("item1", new Item.PlainBytes("Kafka".getBytes()));
+        expected.put("item2", new Item.PlainBytes("Frantz".getBytes()));
+
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    void testDecryptWithDataKeyCache() {
+        AWSKMSCryptoConfig config = new AWSKMSCryptoConfig(
+                Optional.of(creds),
+                Optional.of("us-west-1"),
+                keyArn,
+                Collections.singletonMap("dummy", "context"),
+                Optional.empty(),
+                Optional.of(kmsAddr),
+                Optional.of(new AWSKMSCryptoConfig.DataKeyCache(10, 60000, 100, Long.MAX_VALUE)),
+                ExecutorConfig.DEFAULT
+        );
+        AWSKeyManagementService.EncryptService encryptor = new AWSKeyManagementService.EncryptService(config);
+        encryptor.init();
+        AWSKeyManagementService.DecryptService decryptor = new AWSKeyManagementService.DecryptService(config);
+        decryptor.init();
+
+        // both fields share the same data key
+        Object encrypted1 = encryptor.doCrypto(Collections.<String, Object>singletonMap("item1", "Kafka")).get("item1").asObject(Item.Encoding.BINARY);
+        Object encrypted2 = encryptor.doCrypto(Collections.<String, Object>singletonMap("item2", "Frantz")).get("item2").asObject(Item.Encoding.BINARY);
+
+        assertEquals(new Item.PlainBytes("Kafka".getBytes()), decryptor.doCrypto(Collections.singletonMap("item1", encrypted1)).get("item1"));
+        assertEquals(new Item.PlainBytes("Frantz".getBytes()), decryptor.doCrypto(Collections.singletonMap("item2", encrypted2)).get("item2"));
+
+        assertEquals(1, decryptor.getDataKeyCacheStats().get().misses());
+        assertEquals(1, decryptor.getDataKeyCacheStats().get().hits());
+    }
+
     @Test
     void testFailToEncryptDueToWrongEndpoint() {
         AWSKMSCryptoConfig config = new AWSKMSCryptoConfig(
@@ -131,6 +206,7 @@ class AWSKeyManagementServiceTest {
                 Optional.of("http://unknownunknownunknown.comcom:9999/")
         );
         AWSKeyManagementService.EncryptService encryptor = new AWSKeyManagementService.EncryptService(config);
+        encryptor.init();
         assertThrows(ServerErrorException.class, () -> encryptor.doCrypto(Collections.singletonMap("item1", "Kafka")));
     }
 
@@ -153,9 +229,49 @@ class AWSKeyManagementServiceTest {
                 Optional.of(kmsAddr)
         );
         AWSKeyManagementService.EncryptService encryptor = new AWSKeyManagementService.EncryptService(config1);
+        encryptor.init();
         AWSKeyManagementService.DecryptService decryptor = new AWSKeyManagementService.DecryptService(config2);
+        decryptor.init();
 
         Map<String, Item> encrypted = encryptor.doCrypto(Collections.<String, Object>singletonMap("item1", "Kafka"));
         assertThrows(ClientErrorException.class, () -> decryptor.doCrypto(Collections.singletonMap("item1", encrypted.get("item1"))));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testAsyncExecutorFull() throws Exception {
+        // the first field occupies the thread, the second one the queue, and the third one is rejected
+        AWSKMSCryptoConfig config = new AWSKMSCryptoConfig(Optional.of(creds), Optional.of("us-west-1"), keyArn,
+                Collections.emptyMap(), Optional.empty(), Optional.of(kmsAddr),
+                Optional.empty(), new ExecutorConfig(1, 1), Optional.empty());
+        List<Thread> callers = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        AWSKeyManagementService sut = new AWSKeyManagementService(config) {
+            @Override
+            protected Item callEndpoint(String field, Object item) {
+                callers.add(Thread.currentThread());
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new Item.CipherBytes((byte[]) item);
+            }
+        };
+        sut.init();
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("item1", "Kafka".getBytes());
+        params.put("item2", "Frantz".getBytes());
+        params.put("item3", "Kafka".getBytes());
+        try {
+            CompletableFuture<Map<String, Item>> future = sut.doCryptoAsync(params, Duration.ofSeconds(10)).toCompletableFuture();
+            ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof ServerErrorException);
+            // the call never runs on the calling thread
+            assertFalse(callers.contains(Thread.currentThread()));
+        } finally {
+            release.countDown();
+            sut.close();
+        }
+    }
+}
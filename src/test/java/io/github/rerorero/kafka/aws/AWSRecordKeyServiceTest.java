@@ -0,0 +1,103 @@
+package io.github.rerorero.kafka.aws;
+
+import com.amazonaws.services.kms.AWSKMS;
+import com.amazonaws.services.kms.model.DecryptRequest;
+import com.amazonaws.services.kms.model.DecryptResult;
+import com.amazonaws.services.kms.model.GenerateDataKeyRequest;
+import com.amazonaws.services.kms.model.GenerateDataKeyResult;
+import com.amazonaws.services.kms.model.KMSInternalException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import io.github.rerorero.kafka.kms.ExecutorConfig;
+import io.github.rerorero.kafka.kms.Item;
+import io.github.rerorero.kafka.kms.envelope.DataKey;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class AWSRecordKeyServiceTest {
+    private static final String KEY_ID = "arn:aws:kms:us-west-1:111122223333:key/mykey";
+    private static final byte[] WRAPPED = "wrapped-key".getBytes(StandardCharsets.UTF_8);
+
+    private static AWSKMSCryptoConfig config() {
+        return new AWSKMSCryptoConfig(Optional.empty(), Optional.of("us-west-1"), KEY_ID,
+                Collections.singletonMap("dummy", "context"), Optional.empty(), Optional.empty(),
+                Optional.empty(), ExecutorConfig.DEFAULT, Optional.of("data-key"));
+    }
+
+    // KMS which unwraps only its own data key
+    private static AWSKMS mockKms(byte[] plaintextKey) {
+        AWSKMS kms = mock(AWSKMS.class);
+        when(kms.generateDataKey(any(GenerateDataKeyRequest.class))).thenAnswer(inv -> new GenerateDataKeyResult()
+                .withKeyId(KEY_ID)
+                .withPlaintext(ByteBuffer.wrap(plaintextKey.clone()))
+                .withCiphertextBlob(ByteBuffer.wrap(WRAPPED)));
+        when(kms.decrypt(any(DecryptRequest.class))).thenAnswer(inv -> {
+            DecryptRequest req = inv.getArgument(0);
+            assertEquals(ByteBuffer.wrap(WRAPPED), req.getCiphertextBlob());
+            assertEquals(Collections.singletonMap("dummy", "context"), req.getEncryptionContext());
+            return new DecryptResult().withKeyId(KEY_ID).withPlaintext(ByteBuffer.wrap(plaintextKey.clone()));
+        });
+        return kms;
+    }
+
+    @Test
+    void testEncryptAndDecryptRecord() {
+        AWSKMS kms = mockKms(DataKey.newPlaintextKey());
+        AWSRecordKeyService.EncryptService encryptor = new AWSRecordKeyService.EncryptService(config(), () -> kms);
+        encryptor.init();
+        AWSRecordKeyService.DecryptService decryptor = new AWSRecordKeyService.DecryptService(config(), () -> kms);
+        decryptor.init();
+        assertEquals("data-key", encryptor.getHeaderName());
+
+        Object[] values = {"Kafka", "Frantz".getBytes(StandardCharsets.UTF_8), "Kafka"};
+        Item[] encrypted = new Item[values.length];
+        byte[] header = encryptor.doRecordCrypto(null, values, encrypted, values.length);
+
+        // a single data key for all the fields of the record
+        verify(kms, times(1)).generateDataKey(any(GenerateDataKeyRequest.class));
+        assertNotNull(header);
+
+        Object[] cipherTexts = {
+                encrypted[0].asObject(Item.Encoding.BINARY),
+                encrypted[1].asObject(Item.Encoding.STRING),
+                encrypted[2].asObject(Item.Encoding.BINARY)};
+        Item[] decrypted = new Item[values.length];
+        assertNull(decryptor.doRecordCrypto(header, cipherTexts, decrypted, values.length));
+
+        verify(kms, times(1)).decrypt(any(DecryptRequest.class));
+        assertEquals("Kafka", new String((byte[]) decrypted[0].asObject(Item.Encoding.BINARY), StandardCharsets.UTF_8));
+        assertEquals("Frantz", new String((byte[]) decrypted[1].asObject(Item.Encoding.BINARY), StandardCharsets.UTF_8));
+        assertEquals("Kafka", new String((byte[]) decrypted[2].asObject(Item.Encoding.BINARY), StandardCharsets.UTF_8));
+
+        encryptor.close();
+        decryptor.close();
+        verify(kms, times(2)).shutdown();
+    }
+
+    @Test
+    void testFailure() {
+        AWSKMS kms = mockKms(DataKey.newPlaintextKey());
+        AWSRecordKeyService.DecryptService decryptor = new AWSRecordKeyService.DecryptService(config(), () -> kms);
+
+        Object[] values = {"Kafka".getBytes(StandardCharsets.UTF_8)};
+        assertThrows(ClientErrorException.class, () -> decryptor.doRecordCrypto(new byte[]{1, 2}, values, new Item[1], 1));
+
+        decryptor.init();
+        assertThrows(ClientErrorException.class, () -> decryptor.doRecordCrypto(null, values, new Item[1], 1));
+        assertThrows(ClientErrorException.class, () -> decryptor.doCrypto(values, new Item[1], 1));
+
+        AWSKMS failing = mock(AWSKMS.class);
+        when(failing.generateDataKey(any(GenerateDataKeyRequest.class))).thenThrow(new KMSInternalException("down"));
+        AWSRecordKeyService.EncryptService encryptor = new AWSRecordKeyService.EncryptService(config(), () -> failing);
+        encryptor.init();
+        assertThrows(ServerErrorException.class, () -> encryptor.doRecordCrypto(null, values, new Item[1], 1));
+    }
+}
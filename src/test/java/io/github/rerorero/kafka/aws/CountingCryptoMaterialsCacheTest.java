@@ -0,0 +1,29 @@
+package io.github.rerorero.kafka.aws;
+
+import com.amazonaws.encryptionsdk.caching.CryptoMaterialsCache;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CountingCryptoMaterialsCacheTest {
+    @Test
+    void testCountHitsAndMisses() {
+        CryptoMaterialsCache delegate = mock(CryptoMaterialsCache.class);
+        CryptoMaterialsCache.DecryptCacheEntry entry = mock(CryptoMaterialsCache.DecryptCacheEntry.class);
+        when(delegate.getEntryForDecrypt(any())).thenReturn(null, entry, entry);
+        when(delegate.getEntryForEncrypt(any(), any())).thenReturn(null);
+
+        CountingCryptoMaterialsCache sut = new CountingCryptoMaterialsCache(delegate);
+        assertEquals(null, sut.getEntryForDecrypt(new byte[]{1}));
+        assertEquals(entry, sut.getEntryForDecrypt(new byte[]{1}));
+        assertEquals(entry, sut.getEntryForDecrypt(new byte[]{1}));
+        assertEquals(null, sut.getEntryForEncrypt(new byte[]{2}, null));
+
+        assertEquals(2, sut.getStats().hits());
+        assertEquals(2, sut.getStats().misses());
+        assertEquals(0.5, sut.getStats().hitRate());
+    }
+}
@@ -7,8 +7,8 @@ import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorE
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
 import io.github.rerorero.kafka.kms.CryptoConfig;
 import io.github.rerorero.kafka.kms.Item;
+import io.github.rerorero.kafka.kms.RecordScopedService;
 import io.github.rerorero.kafka.kms.Service;
-import io.github.rerorero.kafka.util.Pair;
 import org.apache.kafka.common.config.ConfigException;
 import org.apache.kafka.connect.data.Schema;
 import org.apache.kafka.connect.data.SchemaBuilder;
@@ -17,12 +17,11 @@ import org.apache.kafka.connect.errors.DataException;
 import org.apache.kafka.connect.errors.RetriableException;
 import org.apache.kafka.connect.sink.SinkRecord;
 import org.junit.jupiter.api.Test;
-import org.mockito.ArgumentCaptor;
-import org.mockito.ArgumentMatchers;
 
 import java.util.*;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.Mockito.*;
 
 class TransformTest {
@@ -78,7 +77,15 @@ class TransformTest {
     private Service mockedService;
 
     private Transform<SinkRecord> setUp(List<String> fieldList, Item.Encoding enc, Conditions conds) {
-        this.mockedService = mock(Service.class);
+        return setUp(fieldList, enc, conds, null);
+    }
+
+    private Transform<SinkRecord> setUp(List<String> fieldList, Item.Encoding enc, Conditions conds, String recordField) {
+        return setUp(fieldList, enc, conds, recordField, mock(Service.class));
+    }
+
+    private Transform<SinkRecord> setUp(List<String> fieldList, Item.Encoding enc, Conditions conds, String recordField, Service service) {
+        this.mockedService = service;
         Set<String> fields = new HashSet<>(fieldList);
         CryptoConfig cryptoConf = new CryptoConfig(enc);
         Config config = new Config() {
@@ -89,7 +96,7 @@ class TransformTest {
 
             @Override
             public FieldSelector fieldSelector() {
-                return newFieldSelector(new HashSet<>(fieldList));
+                return newFieldSelector(new HashSet<>(fieldList), recordField, false);
             }
 
             @Override
@@ -107,25 +114,41 @@ class TransformTest {
         return sut;
     }
 
+    /**
+     * Mocks the service to return the result for each value, and records the requested values.
+     * Binary values are looked up as strings.
+     */
+    private List<Object> mockResults(Map<String, Item> resultsByValue) {
+        List<Object> requested = new ArrayList<>();
+        doAnswer(inv -> {
+            Object[] values = inv.getArgument(0);
+            Item[] results = inv.getArgument(1);
+            int size = inv.getArgument(2);
+            for (int i = 0; i < size; i++) {
+                requested.add(values[i]);
+                String key = values[i] instanceof byte[] ? new String((byte[]) values[i]) : (String) values[i];
+                results[i] = resultsByValue.get(key);
+            }
+            return null;
+        }).when(mockedService).doCrypto(any(Object[].class), any(Item[].class), anyInt());
+        return requested;
+    }
+
     @Test
     public void testApplyWithSchemaTextUsingJsonPath() {
         Transform sut = setUp(Arrays.asList("$.text", "$.struct.array[*]", "$.unknown"), Item.Encoding.STRING, new Conditions("$.text", "PLAINTEXT"));
 
-        Map<Pair<String, String>, Item> mockedResult = new HashMap<>();
-        mockedResult.put(new Pair("$.text", "$.text"), new Item.CipherText("encrypted_text"));
-        mockedResult.put(new Pair("$.struct.array[*]", "$.struct.array[0]"), new Item.CipherText("encrypted_array1"));
-        mockedResult.put(new Pair("$.struct.array[*]", "$.struct.array[1]"), new Item.CipherText("encrypted_array2"));
-        ArgumentCaptor<Map<Pair<String, String>, Object>> mockArg = ArgumentCaptor.forClass(Map.class);
-        when(mockedService.doCrypto(ArgumentMatchers.<Map<Pair<String, String>, Object>>any())).thenReturn(mockedResult);
+        Map<String, Item> mockedResult = new HashMap<>();
+        mockedResult.put("PLAINTEXT", new Item.CipherText("encrypted_text"));
+        mockedResult.put("PLAIN_ELEMENT1", new Item.CipherText("encrypted_array1"));
+        mockedResult.put("PLAIN_ELEMENT2", new Item.CipherText("encrypted_array2"));
+        List<Object> requested = mockResults(mockedResult);
 
         Struct actual = (Struct) sut.apply(record(SCHEMA, newStruct())).value();
 
-        verify(mockedService).doCrypto(mockArg.capture());
-        Map<Pair<String, String>, Object> expectedMockArg = new HashMap<>();
-        expectedMockArg.put(new Pair("$.text", "$.text"), "PLAINTEXT");
-        expectedMockArg.put(new Pair("$.struct.array[*]", "$.struct.array[0]"), "PLAIN_ELEMENT1");
-        expectedMockArg.put(new Pair("$.struct.array[*]", "$.struct.array[1]"), "PLAIN_ELEMENT2");
-        assertEquals(expectedMockArg, mockArg.getValue());
+        verify(mockedService, times(1)).doCrypto(any(Object[].class), any(Item[].class), anyInt());
+        assertEquals(new HashSet<>(Arrays.asList("PLAINTEXT", "PLAIN_ELEMENT1", "PLAIN_ELEMENT2")), new HashSet<>(requested));
+        assertEquals(3, requested.size());
 
         Struct expected = newStruct();
         expected.put("text", "encrypted_text");
@@ -139,21 +162,19 @@ class TransformTest {
     public void testApplyWithoutSchemaBinaryUsingJsonPath() {
         Transform sut = setUp(Arrays.asList("$.byte", "$.struct.array[*]", "$.unknown"), Item.Encoding.BINARY, new Conditions());
 
-        Map<Pair<String, String>, Item> mockedResult = new HashMap<>();
-        mockedResult.put(new Pair("$.byte", "$.byte"), new Item.CipherBytes("encrypted".getBytes()));
-        mockedResult.put(new Pair("$.struct.array[*]", "$.struct.array[0]"), new Item.CipherBytes("encrypted_binary1".getBytes()));
-        mockedResult.put(new Pair("$.struct.array[*]", "$.struct.array[1]"), new Item.CipherBytes("encrypted_binary2".getBytes()));
-        ArgumentCaptor<Map<Pair<String, String>, Object>> mockArg = ArgumentCaptor.forClass(Map.class);
-        when(mockedService.doCrypto(ArgumentMatchers.<Map<Pair<String, String>, Object>>any())).thenReturn(mockedResult);
+        Map<String, Item> mockedResult = new HashMap<>();
+        mockedResult.put("plain", new Item.CipherBytes("encrypted".getBytes()));
+        mockedResult.put("PLAIN_ELEMENT1", new Item.CipherBytes("encrypted_binary1".getBytes()));
+        mockedResult.put("PLAIN_ELEMENT2", new Item.CipherBytes("encrypted_binary2".getBytes()));
+        List<Object> requested = mockResults(mockedResult);
 
         Map<String, Object> actual = (Map<String, Object>) sut.apply(record(null, newMap())).value();
 
-        verify(mockedService).doCrypto(mockArg.capture());
-        Map<Pair<String, String>, Object> expectedMockArg = new HashMap<>();
-        expectedMockArg.put(new Pair("$.byte", "$.byte"), "plain".getBytes());
-        expectedMockArg.put(new Pair("$.struct.array[*]", "$.struct.array[0]"), "PLAIN_ELEMENT1".getBytes());
-        expectedMockArg.put(new Pair("$.struct.array[*]", "$.struct.array[1]"), "PLAIN_ELEMENT2".getBytes());
-        expectedMockArg.entrySet().stream().forEach(e -> assertArrayEquals((byte[]) e.getValue(), (byte[]) mockArg.getValue().get(e.getKey())));
+        verify(mockedService, times(1)).doCrypto(any(Object[].class), any(Item[].class), anyInt());
+        Set<String> requestedStrings = new HashSet<>();
+        requested.forEach(v -> requestedStrings.add(new String((byte[]) v)));
+        assertEquals(new HashSet<>(Arrays.asList("plain", "PLAIN_ELEMENT1", "PLAIN_ELEMENT2")), requestedStrings);
+        assertEquals(3, requested.size());
 
         assertArrayEquals("encrypted".getBytes(), (byte[]) actual.get("byte"));
         assertArrayEquals("encrypted_binary1".getBytes(), ((List<byte[]>) ((Map<String, Object>) actual.get("struct")).get("array")).get(0));
@@ -161,6 +182,101 @@ class TransformTest {
         assertNull(actual.get("unknown"));
     }
 
+    @Test
+    public void testApplyWholeRecord() {
+        Transform sut = setUp(Arrays.asList("$.text", "$.struct"), Item.Encoding.STRING, new Conditions(), "sealed");
+        List<Object> requested = new ArrayList<>();
+        doAnswer(inv -> {
+            Object[] values = inv.getArgument(0);
+            requested.add(values[0]);
+            ((Item[]) inv.getArgument(1))[0] = new Item.CipherText("encrypted_record");
+            return null;
+        }).when(mockedService).doCrypto(any(Object[].class), any(Item[].class), anyInt());
+
+        Struct actual = (Struct) sut.apply(record(SCHEMA, newStruct())).value();
+
+        // the fields are packed into a single item
+        verify(mockedService, times(1)).doCrypto(any(Object[].class), any(Item[].class), eq(1));
+        assertTrue(requested.get(0) instanceof byte[]);
+        assertEquals(2, actual.schema().fields().size());
+        assertNull(actual.get("optional"));
+        assertEquals("encrypted_record", actual.get("sealed"));
+
+        Map<String, Object> actualMap = (Map<String, Object>) sut.apply(record(null, newMap())).value();
+        assertEquals(new HashSet<>(Arrays.asList("byte", "sealed")), actualMap.keySet());
+    }
+
+    @Test
+    public void testApplyWithRecordScopedService() {
+        RecordScopedService service = mock(RecordScopedService.class);
+        when(service.getHeaderName()).thenReturn("data-key");
+        Transform sut = setUp(Arrays.asList("$.text", "$.struct.array[*]"), Item.Encoding.STRING, new Conditions("$.text", "PLAINTEXT"), null, service);
+        when(service.doRecordCrypto(any(), any(Object[].class), any(Item[].class), anyInt())).thenAnswer(inv -> {
+            Item[] results = inv.getArgument(2);
+            int size = inv.getArgument(3);
+            for (int i = 0; i < size; i++) {
+                results[i] = new Item.CipherText("encrypted" + i);
+            }
+            return "new-header".getBytes();
+        });
+
+        SinkRecord org = record(SCHEMA, newStruct());
+        org.headers().addBytes("data-key", "old-header".getBytes());
+        SinkRecord actual = (SinkRecord) sut.apply(org);
+
+        verify(service, times(1)).doRecordCrypto(aryEq("old-header".getBytes()), any(Object[].class), any(Item[].class), eq(3));
+        assertTrue(((Struct) actual.value()).getString("text").startsWith("encrypted"));
+        assertEquals(1, actual.headers().size());
+        assertArrayEquals("new-header".getBytes(), (byte[]) actual.headers().lastWithName("data-key").value());
+        // the header of the original record is kept
+        assertArrayEquals("old-header".getBytes(), (byte[]) org.headers().lastWithName("data-key").value());
+
+        // the header is removed if the service returns none, and left as it is if the service is not called
+        when(service.doRecordCrypto(any(), any(Object[].class), any(Item[].class), anyInt())).thenReturn(null);
+        assertEquals(0, ((SinkRecord) sut.apply(org)).headers().size());
+        Struct skipped = newStruct();
+        skipped.put("text", "OTHER");
+        SinkRecord skippedRecord = record(SCHEMA, skipped);
+        skippedRecord.headers().addBytes("data-key", "old-header".getBytes());
+        assertEquals(1, ((SinkRecord) sut.apply(skippedRecord)).headers().size());
+    }
+
+    @Test
+    public void testApplyBatch() {
+        Transform<SinkRecord> sut = setUp(Arrays.asList("$.text", "$.struct.array[*]"), Item.Encoding.STRING, new Conditions("$.text", "PLAINTEXT"));
+
+        Map<String, Item> mockedResult = new HashMap<>();
+        mockedResult.put("PLAINTEXT", new Item.CipherText("encrypted_text"));
+        mockedResult.put("PLAIN_ELEMENT1", new Item.CipherText("encrypted_array1"));
+        mockedResult.put("PLAIN_ELEMENT2", new Item.CipherText("encrypted_array2"));
+        List<Object> requested = mockResults(mockedResult);
+        // the default implementation packs the fields of the records into a single call
+        doCallRealMethod().when(mockedService).doCryptoBatch(any(), any(), any(), anyInt());
+
+        Struct skipped = newStruct();
+        skipped.put("text", "OTHER");
+        List<SinkRecord> records = Arrays.asList(
+                record(SCHEMA, newStruct()), record(null, null), record(SCHEMA, skipped), record(SCHEMA, newStruct()));
+        List<SinkRecord> actual = sut.applyBatch(records);
+
+        verify(mockedService, times(1)).doCryptoBatch(any(), any(), any(), eq(2));
+        verify(mockedService, times(1)).doCrypto(any(Object[].class), any(Item[].class), eq(6));
+        assertEquals(6, requested.size());
+
+        Struct expected = newStruct();
+        expected.put("text", "encrypted_text");
+        expected.getStruct("struct").getArray("array").set(0, "encrypted_array1");
+        expected.getStruct("struct").getArray("array").set(1, "encrypted_array2");
+        assertEquals(4, actual.size());
+        assertEquals(expected, actual.get(0).value());
+        assertNull(actual.get(1).value());
+        assertEquals(skipped, actual.get(2).value());
+        assertEquals(expected, actual.get(3).value());
+
+        // the slots are reused by the next batch
+        assertEquals(expected, sut.applyBatch(Arrays.asList(record(SCHEMA, newStruct()))).get(0).value());
+    }
+
     @Test
     public void testApplyWithFalseCondition() {
         Transform sut = setUp(Arrays.asList("$.text"), Item.Encoding.STRING, new Conditions("$.text", "out"));
@@ -197,14 +313,14 @@ class TransformTest {
     @Test
     public void testFailureWithServiceServerError() {
         Transform sut = setUp(Arrays.asList("$.text"), Item.Encoding.STRING, new Conditions());
-        when(mockedService.doCrypto(ArgumentMatchers.<Map<Pair<String, String>, Object>>any())).thenThrow(new ServerErrorException("fail"));
+        doThrow(new ServerErrorException("fail")).when(mockedService).doCrypto(any(Object[].class), any(Item[].class), anyInt());
         assertThrows(RetriableException.class, () -> sut.apply(record(SCHEMA, newStruct())));
     }
 
     @Test
     public void testFailureWithServiceClientError() {
         Transform sut = setUp(Arrays.asList("$.text"), Item.Encoding.STRING, new Conditions());
-        when(mockedService.doCrypto(ArgumentMatchers.<Map<Pair<String, String>, Object>>any())).thenThrow(new ClientErrorException("fail"));
+        doThrow(new ClientErrorException("fail")).when(mockedService).doCrypto(any(Object[].class), any(Item[].class), anyInt());
         assertThrows(DataException.class, () -> sut.apply(record(SCHEMA, newStruct())));
     }
 }
\ No newline at end of file
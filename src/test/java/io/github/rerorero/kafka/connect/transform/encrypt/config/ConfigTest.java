@@ -1,6 +1,8 @@
 package io.github.rerorero.kafka.connect.transform.encrypt.config;
 
 import io.github.rerorero.kafka.aws.AWSKeyManagementService;
+import io.github.rerorero.kafka.aws.AWSRecordKeyService;
+import io.github.rerorero.kafka.kms.CachingEncryptService;
 import io.github.rerorero.kafka.vault.VaultService;
 import org.apache.kafka.common.config.ConfigException;
 import org.junit.jupiter.api.Test;
@@ -8,6 +10,7 @@ import org.junit.jupiter.api.Test;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -23,6 +26,40 @@ class ConfigTest {
         assertTrue(conf.cryptoService() instanceof VaultService.EncryptService);
     }
 
+    @Test
+    public void testConfigVaultWithSeveralUrls() {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Config.SERVICE, "vault");
+        props.put(Config.MODE, Config.MODE_ENCRYPT);
+        props.put(Config.VAULT_URL, "http://vault1:8200,http://vault2:8200");
+        props.put(Config.VAULT_KEY_NAME, "mykey");
+        props.put(Config.VAULT_CLIENT, Config.VAULT_CLIENT_POOLED);
+        Config conf = new Config.ConfigImpl(props);
+        assertTrue(conf.cryptoService() instanceof VaultService.EncryptService);
+
+        props.put(Config.VAULT_URL, "");
+        assertThrows(ConfigException.class, () -> new Config.ConfigImpl(props));
+    }
+
+    @Test
+    public void testConfigRecordField() {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Config.SERVICE, "vault");
+        props.put(Config.MODE, Config.MODE_DECRYPT);
+        props.put(Config.VAULT_URL, "http://localhost");
+        props.put(Config.VAULT_KEY_NAME, "mykey");
+        props.put(Config.RECORD_FIELD, "sealed");
+        props.put(Config.FIELDS, "$.name,$['address']");
+        Config conf = new Config.ConfigImpl(props);
+        assertEquals("sealed", conf.fieldSelector().recordField);
+        assertTrue(conf.fieldSelector().unpackRecord);
+
+        props.put(Config.FIELDS, "$.address.city");
+        assertThrows(ConfigException.class, () -> new Config.ConfigImpl(props));
+        props.put(Config.FIELDS, "$.sealed");
+        assertThrows(ConfigException.class, () -> new Config.ConfigImpl(props));
+    }
+
     @Test
     public void testConfigAWSKMS() {
         Map<String, Object> props = new HashMap<>();
@@ -33,6 +70,50 @@ class ConfigTest {
         assertTrue(conf.cryptoService() instanceof AWSKeyManagementService.DecryptService);
     }
 
+    @Test
+    public void testConfigAWSKMSWithDataKeyCache() {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Config.SERVICE, "awskms");
+        props.put(Config.MODE, Config.MODE_ENCRYPT);
+        props.put(Config.AWSKMS_CMK_KEYID, "arn:aws:kms:eu-west-2:111122223333:key/c2bf6ecc-def2-4036-86b0-ba3e73fdbcf9");
+        props.put(Config.AWSKMS_DATA_KEY_CACHE_ENABLED, "true");
+        props.put(Config.AWSKMS_DATA_KEY_CACHE_MAX_MESSAGES, "1000");
+        Config conf = new Config.ConfigImpl(props);
+        assertTrue(conf.cryptoService() instanceof AWSKeyManagementService.EncryptService);
+
+        props.put(Config.AWSKMS_DATA_KEY_CACHE_MAX_MESSAGES, "0");
+        assertThrows(ConfigException.class, () -> new Config.ConfigImpl(props));
+    }
+
+    @Test
+    public void testConfigAWSKMSWithRecordKey() {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Config.SERVICE, "awskms");
+        props.put(Config.MODE, Config.MODE_DECRYPT);
+        props.put(Config.AWSKMS_CMK_KEYID, "arn:aws:kms:eu-west-2:111122223333:key/c2bf6ecc-def2-4036-86b0-ba3e73fdbcf9");
+        props.put(Config.AWSKMS_RECORD_KEY_HEADER, "data-key");
+        Config conf = new Config.ConfigImpl(props);
+        assertTrue(conf.cryptoService() instanceof AWSRecordKeyService.DecryptService);
+
+        props.put(Config.DECRYPT_CACHE_ENABLED, "true");
+        assertThrows(ConfigException.class, () -> new Config.ConfigImpl(props));
+    }
+
+    @Test
+    public void testConfigEncryptCache() {
+        Map<String, Object> props = new HashMap<>();
+        props.put(Config.SERVICE, "vault");
+        props.put(Config.MODE, Config.MODE_ENCRYPT);
+        props.put(Config.VAULT_URL, "http://localhost");
+        props.put(Config.VAULT_KEY_NAME, "mykey");
+        props.put(Config.ENCRYPT_CACHE_ENABLED, "true");
+        Config conf = new Config.ConfigImpl(props);
+        assertTrue(conf.cryptoService() instanceof CachingEncryptService);
+
+        props.put(Config.MODE, Config.MODE_DECRYPT);
+        assertThrows(ConfigException.class, () -> new Config.ConfigImpl(props));
+    }
+
     @Test
     public void testFailWithInvalidConfig() {
         Map<String, Object> props = new HashMap<>();
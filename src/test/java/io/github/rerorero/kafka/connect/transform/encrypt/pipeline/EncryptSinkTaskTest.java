@@ -0,0 +1,254 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.pipeline;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.Transform;
+import io.github.rerorero.kafka.connect.transform.encrypt.condition.Conditions;
+import io.github.rerorero.kafka.connect.transform.encrypt.config.Config;
+import io.github.rerorero.kafka.connect.transform.encrypt.config.FieldSelector;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import io.github.rerorero.kafka.kms.CryptoConfig;
+import io.github.rerorero.kafka.kms.Item;
+import io.github.rerorero.kafka.kms.Service;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.connect.connector.ConnectRecord;
+import org.apache.kafka.connect.errors.RetriableException;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.apache.kafka.connect.sink.SinkTask;
+import org.apache.kafka.connect.sink.SinkTaskContext;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class EncryptSinkTaskTest {
+    /**
+     * Wrapped task which records the batches put to it.
+     */
+    public static class RecordingSinkTask extends SinkTask {
+        static RecordingSinkTask last;
+        final List<List<String>> puts = new ArrayList<>();
+        final List<String> events = new ArrayList<>();
+        int failPuts;
+        // offsets which the next put resets
+        Map<TopicPartition, Long> rewindOnPut;
+
+        public RecordingSinkTask() {
+            last = this;
+        }
+
+        @Override
+        public String version() {
+            return "test";
+        }
+
+        @Override
+        public void start(Map<String, String> props) {
+            events.add("start");
+        }
+
+        @Override
+        public void put(Collection<SinkRecord> records) {
+            if (failPuts-- > 0) {
+                throw new RetriableException("busy");
+            }
+            List<String> values = new ArrayList<>();
+            records.forEach(r -> values.add((String) ((Map<?, ?>) r.value()).get("text")));
+            puts.add(values);
+            if (rewindOnPut != null) {
+                context.offset(rewindOnPut);
+                rewindOnPut = null;
+            }
+        }
+
+        @Override
+        public Map<TopicPartition, OffsetAndMetadata> preCommit(Map<TopicPartition, OffsetAndMetadata> currentOffsets) {
+            events.add("preCommit");
+            return currentOffsets;
+        }
+
+        @Override
+        public void close(Collection<TopicPartition> partitions) {
+            events.add("close");
+        }
+
+        @Override
+        public void stop() {
+            events.add("stop");
+        }
+    }
+
+    /**
+     * Service which prefixes the values, failing with a server error as many times as requested.
+     */
+    static class PrefixService implements Service {
+        final AtomicInteger failures = new AtomicInteger();
+
+        @Override
+        public <F> Map<F, Item> doCrypto(Map<F, Object> items) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void doCrypto(Object[] values, Item[] results, int size) {
+            if (failures.getAndDecrement() > 0) {
+                throw new ServerErrorException("unavailable");
+            }
+            for (int i = 0; i < size; i++) {
+                results[i] = new Item.CipherText("enc:" + values[i]);
+            }
+        }
+
+        @Override
+        public void init() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static <R extends ConnectRecord<R>> Transform<R> newTransform(Service service) {
+        return new Transform.Value<R>() {
+            @Override
+            protected Config newConfig(Map<String, ?> props) {
+                return new Config() {
+                    @Override
+                    public Service cryptoService() {
+                        return service;
+                    }
+
+                    @Override
+                    public FieldSelector fieldSelector() {
+                        return newFieldSelector(Collections.singleton("$.text"));
+                    }
+
+                    @Override
+                    public Conditions conditions() {
+                        return new Conditions();
+                    }
+
+                    @Override
+                    public CryptoConfig cryptoCOnfig() {
+                        return new CryptoConfig(Item.Encoding.STRING);
+                    }
+                };
+            }
+        };
+    }
+
+    private final PrefixService service = new PrefixService();
+    private EncryptSinkTask sut;
+
+    private final SinkTaskContext context = mock(SinkTaskContext.class);
+
+    private EncryptSinkTask start() {
+        sut = new EncryptSinkTask() {
+            @Override
+            protected Transform<SinkRecord> newTransform(Map<String, String> props) {
+                Transform<SinkRecord> t = EncryptSinkTaskTest.newTransform(service);
+                t.configure(props);
+                return t;
+            }
+        };
+        sut.initialize(context);
+        sut.start(Collections.singletonMap(PipelineConfig.DELEGATE_TASK_CLASS, RecordingSinkTask.class.getName()));
+        return sut;
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (sut != null) {
+            sut.stop();
+        }
+    }
+
+    private static List<SinkRecord> batch(long offset, String... texts) {
+        List<SinkRecord> out = new ArrayList<>();
+        for (String text : texts) {
+            out.add(new SinkRecord("topic", 0, null, null, null, Collections.singletonMap("text", text), offset++));
+        }
+        return out;
+    }
+
+    @Test
+    void testPipelined() {
+        start();
+        RecordingSinkTask delegate = RecordingSinkTask.last;
+
+        sut.put(batch(0, "a", "b"));
+        // the first batch is delivered while the next one is transformed
+        assertTrue(delegate.puts.isEmpty());
+        sut.put(batch(2, "c"));
+        assertEquals(Arrays.asList(Arrays.asList("enc:a", "enc:b")), delegate.puts);
+
+        Map<TopicPartition, OffsetAndMetadata> offsets = Collections.singletonMap(new TopicPartition("topic", 0), new OffsetAndMetadata(3));
+        assertEquals(offsets, sut.preCommit(offsets));
+        assertEquals(Arrays.asList(Arrays.asList("enc:a", "enc:b"), Arrays.asList("enc:c")), delegate.puts);
+        assertEquals(Arrays.asList("start", "preCommit"), delegate.events);
+    }
+
+    @Test
+    void testEmptyPutDrains() {
+        start();
+        RecordingSinkTask delegate = RecordingSinkTask.last;
+
+        sut.put(batch(0, "a"));
+        sut.put(Collections.emptyList());
+        assertEquals(Arrays.asList(Arrays.asList("enc:a"), Collections.emptyList()), delegate.puts);
+    }
+
+    @Test
+    void testRetriableFailure() {
+        start();
+        RecordingSinkTask delegate = RecordingSinkTask.last;
+        service.failures.set(1);
+
+        sut.put(batch(0, "a"));
+        // the worker puts the same batch again on a retriable error
+        assertThrows(RetriableException.class, () -> sut.put(batch(1, "b")));
+        sut.put(batch(1, "b"));
+        sut.close(Collections.singleton(new TopicPartition("topic", 0)));
+
+        assertEquals(Arrays.asList(Arrays.asList("enc:a"), Arrays.asList("enc:b")), delegate.puts);
+        assertEquals(Arrays.asList("start", "close"), delegate.events);
+    }
+
+    @Test
+    void testDelegateFailure() {
+        start();
+        RecordingSinkTask delegate = RecordingSinkTask.last;
+        delegate.failPuts = 1;
+
+        sut.put(batch(0, "a"));
+        assertThrows(RetriableException.class, () -> sut.put(batch(1, "b")));
+        // the records which the wrapped task rejected are put again before the next ones
+        sut.put(batch(1, "b"));
+        sut.preCommit(Collections.emptyMap());
+
+        assertEquals(Arrays.asList(Arrays.asList("enc:a"), Arrays.asList("enc:b")), delegate.puts);
+    }
+
+    @Test
+    void testDropRewoundRecordsInFlight() {
+        start();
+        RecordingSinkTask delegate = RecordingSinkTask.last;
+        Map<TopicPartition, Long> rewind = Collections.singletonMap(new TopicPartition("topic", 0), 1L);
+
+        sut.put(batch(0, "a"));
+        List<SinkRecord> second = batch(1, "b");
+        second.add(new SinkRecord("topic", 1, null, null, null, Collections.singletonMap("text", "x"), 0));
+        delegate.rewindOnPut = rewind;
+        sut.put(second);
+        verify(context).offset(rewind);
+
+        // the worker delivers the records of the partition again from the new offset
+        sut.put(batch(1, "b"));
+        sut.preCommit(Collections.emptyMap());
+        assertEquals(Arrays.asList(Arrays.asList("enc:a"), Arrays.asList("enc:x"), Arrays.asList("enc:b")), delegate.puts);
+    }
+}
@@ -0,0 +1,174 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.pipeline;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.Transform;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.connect.errors.RetriableException;
+import org.apache.kafka.connect.source.SourceRecord;
+import org.apache.kafka.connect.source.SourceTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EncryptSourceTaskTest {
+    /**
+     * Wrapped task which returns the queued batches.
+     */
+    public static class QueuedSourceTask extends SourceTask {
+        static QueuedSourceTask last;
+        final Deque<List<SourceRecord>> batches = new ArrayDeque<>();
+        // thrown by the next poll
+        Exception failure;
+        boolean stopped;
+        final List<SourceRecord> committed = new ArrayList<>();
+
+        public QueuedSourceTask() {
+            last = this;
+        }
+
+        @Override
+        public String version() {
+            return "test";
+        }
+
+        @Override
+        public void start(Map<String, String> props) {
+        }
+
+        @Override
+        public List<SourceRecord> poll() throws InterruptedException {
+            final Exception e = failure;
+            failure = null;
+            if (e instanceof InterruptedException) {
+                throw (InterruptedException) e;
+            } else if (e != null) {
+                throw (RuntimeException) e;
+            }
+            return batches.poll();
+        }
+
+        @Override
+        public void commitRecord(SourceRecord record, RecordMetadata metadata) {
+            committed.add(record);
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+    }
+
+    private final EncryptSinkTaskTest.PrefixService service = new EncryptSinkTaskTest.PrefixService();
+    private EncryptSourceTask sut;
+
+    private void start() {
+        sut = new EncryptSourceTask() {
+            @Override
+            protected Transform<SourceRecord> newTransform(Map<String, String> props) {
+                Transform<SourceRecord> t = EncryptSinkTaskTest.newTransform(service);
+                t.configure(props);
+                return t;
+            }
+        };
+        sut.start(Collections.singletonMap(PipelineConfig.DELEGATE_TASK_CLASS, QueuedSourceTask.class.getName()));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (sut != null) {
+            sut.stop();
+        }
+    }
+
+    private static List<SourceRecord> batch(long offset, String... texts) {
+        List<SourceRecord> out = new ArrayList<>();
+        for (String text : texts) {
+            out.add(new SourceRecord(Collections.singletonMap("file", "f"), Collections.singletonMap("pos", offset++),
+                    "topic", null, Collections.singletonMap("text", text)));
+        }
+        return out;
+    }
+
+    private static List<Object> texts(List<SourceRecord> records) {
+        List<Object> out = new ArrayList<>();
+        records.forEach(r -> out.add(((Map<?, ?>) r.value()).get("text")));
+        return out;
+    }
+
+    @Test
+    void testPipelined() throws Exception {
+        start();
+        QueuedSourceTask delegate = QueuedSourceTask.last;
+        delegate.batches.add(batch(0, "a", "b"));
+        delegate.batches.add(batch(2, "c"));
+
+        // each batch is returned on the next poll
+        assertNull(sut.poll());
+        List<SourceRecord> first = sut.poll();
+        assertEquals(Arrays.asList("enc:a", "enc:b"), texts(first));
+        assertEquals(Collections.singletonMap("pos", 1L), first.get(1).sourceOffset());
+        assertEquals(Arrays.asList("enc:c"), texts(sut.poll()));
+        assertNull(sut.poll());
+    }
+
+    @Test
+    void testRetriableFailure() throws Exception {
+        start();
+        QueuedSourceTask delegate = QueuedSourceTask.last;
+        delegate.batches.add(batch(0, "a"));
+        delegate.batches.add(batch(1, "b"));
+        service.failures.set(1);
+
+        assertNull(sut.poll());
+        assertThrows(RetriableException.class, () -> sut.poll());
+        // the failed batch is transformed again, and the wrapped task is not polled meanwhile
+        assertEquals(1, delegate.batches.size());
+        assertEquals(Arrays.asList("enc:a"), texts(sut.poll()));
+        assertEquals(Arrays.asList("enc:b"), texts(sut.poll()));
+
+        sut.stop();
+        sut = null;
+        assertTrue(delegate.stopped);
+    }
+
+    @Test
+    void testWrappedTaskFailure() throws Exception {
+        start();
+        QueuedSourceTask delegate = QueuedSourceTask.last;
+        delegate.batches.add(batch(0, "a"));
+        delegate.batches.add(batch(1, "b"));
+        delegate.batches.add(batch(2, "c"));
+
+        assertNull(sut.poll());
+        // the transformed batch is returned although the wrapped task fails with a retriable error
+        delegate.failure = new RetriableException("not ready");
+        assertEquals(Arrays.asList("enc:a"), texts(sut.poll()));
+        assertNull(sut.poll());
+
+        // the transformed batch is kept for the next poll if the wrapped task is interrupted
+        delegate.failure = new InterruptedException();
+        assertThrows(InterruptedException.class, () -> sut.poll());
+        assertEquals(Arrays.asList("enc:b"), texts(sut.poll()));
+        assertEquals(Arrays.asList("enc:c"), texts(sut.poll()));
+        assertNull(sut.poll());
+    }
+
+    @Test
+    void testCommitOriginalRecord() throws Exception {
+        start();
+        QueuedSourceTask delegate = QueuedSourceTask.last;
+        List<SourceRecord> originals = batch(0, "a", "b");
+        delegate.batches.add(originals);
+
+        assertNull(sut.poll());
+        List<SourceRecord> transformed = sut.poll();
+        assertEquals(Arrays.asList("enc:a", "enc:b"), texts(transformed));
+
+        sut.commitRecord(transformed.get(1), null);
+        sut.commitRecord(transformed.get(0), null);
+        assertSame(originals.get(1), delegate.committed.get(0));
+        assertSame(originals.get(0), delegate.committed.get(1));
+    }
+}
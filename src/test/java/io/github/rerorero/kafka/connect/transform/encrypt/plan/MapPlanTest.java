@@ -0,0 +1,69 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.plan;
+
+import io.github.rerorero.kafka.kms.Item;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MapPlanTest {
+    private static List<JsonPath> paths(String... paths) {
+        List<JsonPath> out = new ArrayList<>();
+        Arrays.stream(paths).forEach(p -> out.add(JsonPath.parse(p)));
+        return out;
+    }
+
+    private static Map<String, Object> sub(String secret) {
+        Map<String, Object> m = new HashMap<>();
+        m.put("secret", secret);
+        m.put("plain", 1);
+        return m;
+    }
+
+    private static Map<String, Object> newMap() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("id", 10L);
+        m.put("text", "plain");
+        m.put("subs", Arrays.asList(sub("s1"), sub("s2")));
+        m.put("other", sub("s3"));
+        return m;
+    }
+
+    @Test
+    void testExtractAndRewrite() {
+        MapPlan sut = MapPlan.compile(paths("$.text", "$.subs[*].secret", "$.subs[1].secret", "$.unknown", "$.id.child"), Item.Encoding.STRING);
+        Map<String, Object> value = newMap();
+
+        Fields fields = new Fields();
+        sut.extract(value, fields);
+        assertEquals(Arrays.asList("plain", "s1", "s2"), StructPlanTest.valuesOf(fields));
+
+        Map<String, Item> results = new HashMap<>();
+        results.put("plain", new Item.CipherText("c0"));
+        results.put("s2", new Item.CipherText("c2"));
+        StructPlanTest.fillResults(fields, results);
+        Map<String, Object> actual = sut.rewrite(value, fields);
+
+        assertEquals("c0", actual.get("text"));
+        List<?> subs = (List<?>) actual.get("subs");
+        assertEquals("c2", ((Map<?, ?>) subs.get(1)).get("secret"));
+        // untouched branches are shared and the original value is not modified
+        assertSame(((List<?>) value.get("subs")).get(0), subs.get(0));
+        assertSame(value.get("other"), actual.get("other"));
+        assertEquals(newMap(), value);
+    }
+
+    @Test
+    void testNoResult() {
+        MapPlan sut = MapPlan.compile(paths("$.subs[*].secret"), Item.Encoding.BINARY);
+        Map<String, Object> value = newMap();
+        Fields fields = new Fields();
+        sut.extract(value, fields);
+        assertSame(value, sut.rewrite(value, fields));
+
+        fields.clear();
+        sut.extract(new HashMap<>(), fields);
+        assertTrue(fields.isEmpty());
+    }
+}
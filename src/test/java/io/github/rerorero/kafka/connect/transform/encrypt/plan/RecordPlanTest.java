@@ -0,0 +1,231 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.plan;
+
+import io.github.rerorero.kafka.kms.Item;
+import org.apache.kafka.connect.data.Decimal;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.data.Timestamp;
+import org.apache.kafka.connect.errors.DataException;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecordPlanTest {
+    private static final Schema SUB_SCHEMA = SchemaBuilder.struct().name("sub")
+            .field("secret", Schema.STRING_SCHEMA)
+            .field("count", SchemaBuilder.int32().optional().defaultValue(7).build())
+            .build();
+
+    private static final Schema SCHEMA = SchemaBuilder.struct().name("record").version(2)
+            .field("id", Schema.INT64_SCHEMA)
+            .field("name", Schema.OPTIONAL_STRING_SCHEMA)
+            .field("bin", Schema.BYTES_SCHEMA)
+            .field("amount", Decimal.schema(2))
+            .field("at", Timestamp.SCHEMA)
+            .field("tags", SchemaBuilder.map(Schema.STRING_SCHEMA, Schema.FLOAT64_SCHEMA).build())
+            .field("subs", SchemaBuilder.array(SUB_SCHEMA).build())
+            .build();
+
+    private static List<JsonPath> paths(String... paths) {
+        List<JsonPath> out = new ArrayList<>();
+        Arrays.stream(paths).forEach(p -> out.add(JsonPath.parse(p)));
+        return out;
+    }
+
+    private static Struct newStruct() {
+        Struct sub = new Struct(SUB_SCHEMA);
+        sub.put("secret", "s1");
+
+        Map<String, Double> tags = new HashMap<>();
+        tags.put("b", 2.5);
+        tags.put("a", -1.0);
+
+        Struct s = new Struct(SCHEMA);
+        s.put("id", 10L);
+        s.put("bin", new byte[]{1, 2, 3});
+        s.put("amount", new BigDecimal("-12.34"));
+        s.put("at", new Date(1600000000000L));
+        s.put("tags", tags);
+        s.put("subs", Collections.singletonList(sub));
+        return s;
+    }
+
+    private static Map<String, Object> newMap() {
+        Map<String, Object> m = new HashMap<>();
+        m.put("id", 10L);
+        m.put("text", "plain");
+        m.put("list", Arrays.asList(1, "two", null, true));
+        m.put("nested", Collections.singletonMap("k", 1.5f));
+        return m;
+    }
+
+    /**
+     * Fills the result of the only slot as the crypto service would, with the bytes as they are.
+     */
+    private static byte[] crypt(Fields fields) {
+        assertEquals(1, fields.size());
+        byte[] blob = (byte[]) fields.values()[0];
+        fields.results()[0] = new Item.PlainBytes(blob);
+        return blob;
+    }
+
+    @Test
+    void testMapRoundTrip() {
+        RecordPlan pack = RecordPlan.compile("sealed", paths(), Item.Encoding.BINARY, false);
+        Map<String, Object> value = newMap();
+
+        Fields fields = new Fields();
+        pack.extract(value, fields);
+        byte[] blob = crypt(fields);
+        Map<String, Object> packed = pack.rewrite(value, fields);
+        assertEquals(Collections.singletonMap("sealed", blob), packed);
+        assertEquals(newMap(), value);
+
+        RecordPlan unpack = RecordPlan.compile("sealed", paths(), Item.Encoding.BINARY, true);
+        Fields unpackFields = new Fields();
+        unpack.extract(packed, unpackFields);
+        crypt(unpackFields);
+        assertEquals(newMap(), unpack.rewrite(packed, unpackFields));
+    }
+
+    @Test
+    void testMapSelectedFields() {
+        RecordPlan pack = RecordPlan.compile("sealed", paths("$.text", "$['list']", "$.unknown"), Item.Encoding.BINARY, false);
+        Fields fields = new Fields();
+        pack.extract(newMap(), fields);
+        crypt(fields);
+        Map<String, Object> packed = pack.rewrite(newMap(), fields);
+        assertEquals(new HashSet<>(Arrays.asList("id", "nested", "sealed")), packed.keySet());
+
+        RecordPlan unpack = RecordPlan.compile("sealed", paths("$.text", "$['list']"), Item.Encoding.BINARY, true);
+        Fields unpackFields = new Fields();
+        unpack.extract(packed, unpackFields);
+        crypt(unpackFields);
+        assertEquals(newMap(), unpack.rewrite(packed, unpackFields));
+    }
+
+    @Test
+    void testDeterministic() {
+        Map<String, Object> a = new HashMap<>();
+        Map<String, Object> b = new TreeMap<>(Comparator.reverseOrder());
+        for (int i = 0; i < 50; i++) {
+            a.put("key" + i, i);
+            b.put("key" + i, i);
+        }
+
+        RecordPlan pack = RecordPlan.compile("sealed", paths(), Item.Encoding.BINARY, false);
+        Fields fa = new Fields();
+        pack.extract(a, fa);
+        Fields fb = new Fields();
+        pack.extract(b, fb);
+        assertArrayEquals((byte[]) fa.values()[0], (byte[]) fb.values()[0]);
+    }
+
+    @Test
+    void testStructRoundTrip() {
+        RecordPlan pack = RecordPlan.compile("sealed", paths("$.name", "$.amount", "$.at", "$.tags", "$.subs"), Item.Encoding.BINARY, false);
+        Struct value = newStruct();
+
+        Fields fields = new Fields();
+        pack.extract(value, fields);
+        crypt(fields);
+        Struct packed = pack.rewrite(value, fields);
+        assertEquals(Arrays.asList("id", "bin", "sealed"), fieldNames(packed.schema()));
+        assertEquals(Schema.BYTES_SCHEMA, packed.schema().field("sealed").schema());
+        assertEquals("record", packed.schema().name());
+        packed.validate();
+
+        RecordPlan unpack = RecordPlan.compile("sealed", paths(), Item.Encoding.BINARY, true);
+        Fields unpackFields = new Fields();
+        unpack.extract(packed, unpackFields);
+        crypt(unpackFields);
+        Struct actual = unpack.rewrite(packed, unpackFields);
+
+        assertEquals(SCHEMA, actual.schema());
+        assertEquals(newStruct(), actual);
+        // the restored schema is cached and shared across records
+        unpackFields.clear();
+        unpack.extract(packed, unpackFields);
+        crypt(unpackFields);
+        assertSame(actual.schema(), unpack.rewrite(packed, unpackFields).schema());
+    }
+
+    @Test
+    void testLayoutByEqualSchema() {
+        RecordPlan pack = RecordPlan.compile("sealed", paths("$.text"), Item.Encoding.BINARY, false);
+        Schema[] outputs = new Schema[2];
+        for (int i = 0; i < 2; i++) {
+            // converters which build the schema for each record share the layout
+            Schema schema = SchemaBuilder.struct().field("id", Schema.INT64_SCHEMA).field("text", Schema.STRING_SCHEMA).build();
+            Struct value = new Struct(schema).put("id", 1L).put("text", "plain");
+            Fields fields = new Fields();
+            pack.extract(value, fields);
+            crypt(fields);
+            outputs[i] = pack.rewrite(value, fields).schema();
+        }
+        assertSame(outputs[0], outputs[1]);
+    }
+
+    @Test
+    void testStructAllFields() {
+        RecordPlan pack = RecordPlan.compile("sealed", paths(), Item.Encoding.STRING, false);
+        Fields fields = new Fields();
+        pack.extract(newStruct(), fields);
+        fields.results()[0] = new Item.CipherText("vault:v1:abc");
+        Struct packed = pack.rewrite(newStruct(), fields);
+        assertEquals(Arrays.asList("sealed"), fieldNames(packed.schema()));
+        assertEquals("vault:v1:abc", packed.get("sealed"));
+    }
+
+    @Test
+    void testNoResult() {
+        RecordPlan pack = RecordPlan.compile("sealed", paths(), Item.Encoding.BINARY, false);
+        Struct value = newStruct();
+        Fields fields = new Fields();
+        pack.extract(value, fields);
+        assertSame(value, pack.rewrite(value, fields));
+
+        // a record without the envelope field is passed through when unpacking
+        RecordPlan unpack = RecordPlan.compile("sealed", paths(), Item.Encoding.BINARY, true);
+        Fields unpackFields = new Fields();
+        unpack.extract(value, unpackFields);
+        assertTrue(unpackFields.isEmpty());
+        assertSame(value, unpack.rewrite(value, unpackFields));
+    }
+
+    @Test
+    void testInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> RecordPlan.compile("sealed", paths("$.a.b"), Item.Encoding.BINARY, false));
+        assertThrows(IllegalArgumentException.class, () -> RecordPlan.compile("sealed", paths("$.sealed"), Item.Encoding.BINARY, false));
+
+        RecordPlan pack = RecordPlan.compile("id", paths("$.text"), Item.Encoding.BINARY, false);
+        assertThrows(DataException.class, () -> pack.extract(newMap(), new Fields()));
+        assertThrows(DataException.class, () -> pack.extract(newStruct(), new Fields()));
+
+        // a blob of a schemaless value can't be unpacked into a Struct, nor a broken one
+        RecordPlan mapPack = RecordPlan.compile("sealed", paths(), Item.Encoding.BINARY, false);
+        Fields fields = new Fields();
+        mapPack.extract(newMap(), fields);
+        byte[] blob = crypt(fields);
+
+        Schema envelope = SchemaBuilder.struct().field("sealed", Schema.BYTES_SCHEMA).build();
+        RecordPlan unpack = RecordPlan.compile("sealed", paths(), Item.Encoding.BINARY, true);
+        for (byte[] b : Arrays.asList(blob, Arrays.copyOf(blob, blob.length - 1), new byte[]{9})) {
+            Struct packed = new Struct(envelope).put("sealed", b);
+            Fields unpackFields = new Fields();
+            unpack.extract(packed, unpackFields);
+            crypt(unpackFields);
+            assertThrows(DataException.class, () -> unpack.rewrite(packed, unpackFields));
+        }
+    }
+
+    private static List<String> fieldNames(Schema schema) {
+        List<String> out = new ArrayList<>();
+        schema.fields().forEach(f -> out.add(f.name()));
+        return out;
+    }
+}
@@ -0,0 +1,217 @@
+package io.github.rerorero.kafka.connect.transform.encrypt.plan;
+
+import io.github.rerorero.kafka.jsonpath.JsonPathException;
+import io.github.rerorero.kafka.kms.Item;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.data.Struct;
+import org.apache.kafka.connect.errors.DataException;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StructPlanTest {
+    private static final Schema SUB_SCHEMA = SchemaBuilder.struct()
+            .field("secret", Schema.STRING_SCHEMA)
+            .field("plain", Schema.INT32_SCHEMA)
+            .build();
+
+    private static final Schema SCHEMA = SchemaBuilder.struct().name("record").version(2)
+            .field("id", Schema.INT64_SCHEMA)
+            .field("bin", Schema.OPTIONAL_BYTES_SCHEMA)
+            .field("subs", SchemaBuilder.array(SUB_SCHEMA))
+            .field("tags", SchemaBuilder.map(Schema.STRING_SCHEMA, Schema.STRING_SCHEMA))
+            .build();
+
+    private static List<JsonPath> paths(String... paths) {
+        List<JsonPath> out = new ArrayList<>();
+        Arrays.stream(paths).forEach(p -> out.add(JsonPath.parse(p)));
+        return out;
+    }
+
+    private static Struct newStruct() {
+        Struct sub1 = new Struct(SUB_SCHEMA).put("secret", "s1").put("plain", 1);
+        Struct sub2 = new Struct(SUB_SCHEMA).put("secret", "s2").put("plain", 2);
+        Map<String, String> tags = new HashMap<>();
+        tags.put("owner", "alice");
+        tags.put("env", "prod");
+        return new Struct(SCHEMA)
+                .put("id", 10L)
+                .put("bin", "binary".getBytes())
+                .put("subs", Arrays.asList(sub1, sub2))
+                .put("tags", tags);
+    }
+
+    /**
+     * Returns the extracted values in the order of the slots, with binary values as strings.
+     */
+    static List<String> valuesOf(Fields fields) {
+        List<String> out = new ArrayList<>();
+        for (int i = 0; i < fields.size(); i++) {
+            Object v = fields.values()[i];
+            out.add(v instanceof byte[] ? new String((byte[]) v) : (String) v);
+        }
+        return out;
+    }
+
+    /**
+     * Fills the result of each slot by its value.
+     */
+    static void fillResults(Fields fields, Map<String, Item> resultsByValue) {
+        List<String> values = valuesOf(fields);
+        for (int i = 0; i < values.size(); i++) {
+            fields.results()[i] = resultsByValue.get(values.get(i));
+        }
+    }
+
+    @Test
+    void testExtractAndRewrite() {
+        StructPlan sut = StructPlan.compile(SCHEMA, paths("$.bin", "$.subs[*].secret", "$.tags.owner", "$.unknown"), Item.Encoding.STRING);
+
+        Schema out = sut.getOutputSchema();
+        assertEquals(Schema.Type.STRING, out.field("bin").schema().type());
+        assertTrue(out.field("bin").schema().isOptional());
+        assertEquals("record", out.name());
+        assertEquals(2, out.version());
+        // unchanged schemas are shared
+        assertSame(SCHEMA.field("subs").schema(), out.field("subs").schema());
+        assertSame(SCHEMA.field("tags").schema(), out.field("tags").schema());
+
+        Struct value = newStruct();
+        Fields fields = new Fields(2);
+        sut.extract(value, fields);
+        assertEquals(Arrays.asList("binary", "s1", "s2", "alice"), valuesOf(fields));
+
+        Map<String, Item> results = new HashMap<>();
+        results.put("binary", new Item.CipherText("c0"));
+        results.put("s1", new Item.CipherText("c1"));
+        results.put("s2", new Item.CipherText("c2"));
+        results.put("alice", new Item.CipherText("c3"));
+        fillResults(fields, results);
+        Struct actual = sut.rewrite(value, fields);
+
+        actual.validate();
+        assertSame(out, actual.schema());
+        assertEquals(10L, actual.getInt64("id"));
+        assertEquals("c0", actual.getString("bin"));
+        assertEquals("c1", ((Struct) actual.getArray("subs").get(0)).getString("secret"));
+        assertEquals(1, ((Struct) actual.getArray("subs").get(0)).getInt32("plain"));
+        assertEquals("c2", ((Struct) actual.getArray("subs").get(1)).getString("secret"));
+        assertEquals("c3", actual.getMap("tags").get("owner"));
+        assertEquals("prod", actual.getMap("tags").get("env"));
+        // the original value is not modified
+        assertEquals(newStruct().getArray("subs"), value.getArray("subs"));
+        assertEquals("alice", value.getMap("tags").get("owner"));
+
+        fields.clear();
+        assertTrue(fields.isEmpty());
+        assertNull(fields.values()[0]);
+        assertNull(fields.results()[0]);
+    }
+
+    @Test
+    void testIndexAndWildcard() {
+        StructPlan sut = StructPlan.compile(SCHEMA, paths("$.subs[1].secret", "$.subs[*].secret"), Item.Encoding.STRING);
+
+        // a field selected by several paths is extracted once
+        Fields fields = new Fields();
+        sut.extract(newStruct(), fields);
+        assertEquals(Arrays.asList("s1", "s2"), valuesOf(fields));
+    }
+
+    @Test
+    void testNullAndMissingResult() {
+        StructPlan sut = StructPlan.compile(SCHEMA, paths("$.bin", "$.subs[0].secret"), Item.Encoding.STRING);
+
+        Struct value = newStruct().put("bin", null);
+        Fields fields = new Fields();
+        sut.extract(value, fields);
+        assertEquals(Collections.singletonList("s1"), valuesOf(fields));
+
+        // a field without its result keeps the value
+        Struct actual = sut.rewrite(value, fields);
+        assertNull(actual.get("bin"));
+        assertEquals("s1", ((Struct) actual.getArray("subs").get(0)).getString("secret"));
+    }
+
+    @Test
+    void testSchemaConflict() {
+        assertSame(SCHEMA, StructPlan.compile(SCHEMA, paths("$.bin"), Item.Encoding.BINARY).getOutputSchema());
+        // only the first element would be bytes
+        assertThrows(DataException.class, () -> StructPlan.compile(SCHEMA, paths("$.subs[0].secret"), Item.Encoding.BINARY));
+        assertThrows(DataException.class, () -> StructPlan.compile(SCHEMA, paths("$.tags.owner"), Item.Encoding.BINARY));
+    }
+
+    @Test
+    void testShareUntouchedBranches() {
+        StructPlan sut = StructPlan.compile(SCHEMA, paths("$.subs[1].secret", "$.tags.owner"), Item.Encoding.STRING);
+        Struct value = newStruct();
+        Fields fields = new Fields();
+        sut.extract(value, fields);
+
+        fillResults(fields, Collections.singletonMap("s2", new Item.CipherText("c1")));
+        Struct actual = sut.rewrite(value, fields);
+
+        assertNotSame(value, actual);
+        assertSame(value.getArray("subs").get(0), actual.getArray("subs").get(0));
+        assertSame(value.getBytes("bin"), actual.getBytes("bin"));
+        assertSame(value.getMap("tags"), actual.getMap("tags"));
+        assertEquals("c1", ((Struct) actual.getArray("subs").get(1)).getString("secret"));
+
+        // nothing is copied without results
+        fillResults(fields, Collections.emptyMap());
+        assertSame(value, sut.rewrite(value, fields));
+    }
+
+    @Test
+    void testNoTarget() {
+        StructPlan sut = StructPlan.compile(SCHEMA, paths("$.unknown", "$.id.child"), Item.Encoding.STRING);
+        Struct value = newStruct();
+        Fields fields = new Fields();
+        sut.extract(value, fields);
+        assertTrue(fields.isEmpty());
+        assertSame(value, sut.rewrite(value, fields));
+    }
+
+    @Test
+    void testCacheBySchemaIdentity() {
+        StructPlanCache sut = new StructPlanCache(paths("$.bin"), Item.Encoding.STRING, 2);
+        StructPlan plan = sut.get(SCHEMA);
+        assertSame(plan, sut.get(SCHEMA));
+
+        Schema other1 = SchemaBuilder.struct().field("bin", Schema.BYTES_SCHEMA).build();
+        Schema other2 = SchemaBuilder.struct().field("bin", Schema.STRING_SCHEMA).build();
+        sut.get(other1);
+        sut.get(other2);
+        assertEquals(2, sut.size());
+        assertNotSame(plan, sut.get(SCHEMA));
+    }
+
+    @Test
+    void testCacheByEqualSchema() {
+        StructPlanCache sut = new StructPlanCache(paths("$.bin"), Item.Encoding.STRING, 2);
+        StructPlan plan = sut.get(SchemaBuilder.struct().field("bin", Schema.BYTES_SCHEMA).build());
+        sut.get(SchemaBuilder.struct().field("bin", Schema.STRING_SCHEMA).build());
+
+        // converters which build the schema for each record share the plan
+        assertSame(plan, sut.get(SchemaBuilder.struct().field("bin", Schema.BYTES_SCHEMA).build()));
+        assertEquals(2, sut.size());
+    }
+
+    @Test
+    void testParseJsonPath() {
+        JsonPath path = JsonPath.parse("$.a['b.c'][2][*]");
+        assertEquals("$.a['b.c'][2][*]", path.getExpression());
+        assertEquals("a", path.getSegments().get(0).getName());
+        assertEquals("b.c", path.getSegments().get(1).getName());
+        assertEquals(2, path.getSegments().get(2).getIndex());
+        assertTrue(path.getSegments().get(3).isWildcard());
+
+        assertThrows(JsonPathException.class, () -> JsonPath.parse("a"));
+        assertThrows(JsonPathException.class, () -> JsonPath.parse("$.a[x]"));
+        assertThrows(JsonPathException.class, () -> JsonPath.parse("$.a[0"));
+        assertThrows(JsonPathException.class, () -> JsonPath.parse("$..a"));
+    }
+}
@@ -2,9 +2,14 @@ package io.github.rerorero.kafka.gcp;
 
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import io.github.rerorero.kafka.kms.ExecutorConfig;
 import io.github.rerorero.kafka.kms.Item;
+import io.github.rerorero.kafka.kms.envelope.EnvelopeConfig;
+import com.google.api.core.ApiFutures;
 import com.google.api.gax.grpc.GrpcStatusCode;
 import com.google.api.gax.rpc.NotFoundException;
+import com.google.api.gax.rpc.UnaryCallable;
+import com.google.api.gax.rpc.UnavailableException;
 import com.google.cloud.kms.v1.PublicKey;
 import com.google.cloud.kms.v1.*;
 import com.google.common.io.BaseEncoding;
@@ -20,13 +25,23 @@ import javax.crypto.NoSuchPaddingException;
 import java.security.*;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.RSAPrivateKeySpec;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
 
 class GCPKeyManagementServiceTest {
     private static KeyPair rsaPair;
@@ -35,7 +50,11 @@ class GCPKeyManagementServiceTest {
         private final KeyManagementServiceClient client;
 
         TestConfig(Optional<String> keyVersion, KeyManagementServiceClient client) {
-            super("project", "us-east1", "keyring", "my-key", keyVersion);
+            this(keyVersion, client, ExecutorConfig.DEFAULT);
+        }
+
+        TestConfig(Optional<String> keyVersion, KeyManagementServiceClient client, ExecutorConfig executorConfig) {
+            super("project", "us-east1", "keyring", "my-key", keyVersion, executorConfig);
             this.client = client;
         }
 
@@ -59,10 +78,12 @@ class GCPKeyManagementServiceTest {
         GCPKeyManagementService.EncryptService sut = new GCPKeyManagementService.EncryptService(config);
         sut.init();
 
-        when(cli.encrypt(config.getEncryptKeyName(), ByteString.copyFromUtf8("Kafka")))
-                .thenReturn(EncryptResponse.newBuilder().setCiphertext(ByteString.copyFromUtf8("akfaK")).build());
-        when(cli.encrypt(config.getEncryptKeyName(), ByteString.copyFromUtf8("Frantz")))
-                .thenReturn(EncryptResponse.newBuilder().setCiphertext(ByteString.copyFromUtf8("ztnarF")).build());
+        UnaryCallable<EncryptRequest, EncryptResponse> callable = mock(UnaryCallable.class);
+        when(cli.encryptCallable()).thenReturn(callable);
+        when(callable.futureCall(encryptRequest(config, "Kafka")))
+                .thenReturn(ApiFutures.immediateFuture(EncryptResponse.newBuilder().setCiphertext(ByteString.copyFromUtf8("akfaK")).build()));
+        when(callable.futureCall(encryptRequest(config, "Frantz")))
+                .thenReturn(ApiFutures.immediateFuture(EncryptResponse.newBuilder().setCiphertext(ByteString.copyFromUtf8("ztnarF")).build()));
 
         Map<String, Object> params = new HashMap<>();
         params.put("item1", "Kafka");
@@ -84,10 +105,12 @@ class GCPKeyManagementServiceTest {
         GCPKeyManagementService.DecryptService sut = new GCPKeyManagementService.DecryptService(config);
         sut.init();
 
-        when(cli.decrypt(config.getKeyName(), ByteString.copyFromUtf8("Kafka")))
-                .thenReturn(DecryptResponse.newBuilder().setPlaintext(ByteString.copyFromUtf8("akfaK")).build());
-        when(cli.decrypt(config.getKeyName(), ByteString.copyFromUtf8("Frantz")))
-                .thenReturn(DecryptResponse.newBuilder().setPlaintext(ByteString.copyFromUtf8("ztnarF")).build());
+        UnaryCallable<DecryptRequest, DecryptResponse> callable = mock(UnaryCallable.class);
+        when(cli.decryptCallable()).thenReturn(callable);
+        when(callable.futureCall(decryptRequest(config, "Kafka")))
+                .thenReturn(ApiFutures.immediateFuture(DecryptResponse.newBuilder().setPlaintext(ByteString.copyFromUtf8("akfaK")).build()));
+        when(callable.futureCall(decryptRequest(config, "Frantz")))
+                .thenReturn(ApiFutures.immediateFuture(DecryptResponse.newBuilder().setPlaintext(ByteString.copyFromUtf8("ztnarF")).build()));
 
         Map<String, Object> params = new HashMap<>();
         params.put("item1", "Kafka".getBytes());
@@ -102,6 +125,112 @@ class GCPKeyManagementServiceTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    void testEnvelopeEncryptAndDecrypt() {
+        KeyManagementServiceClient cli = mock(KeyManagementServiceClient.class);
+        GCPKMSCryptoConfig config = new TestConfig(Optional.empty(), cli);
+        EnvelopeConfig envelopeConfig = new EnvelopeConfig(100, 60000, 10, 60000);
+        GCPKeyManagementService.EnvelopeEncryptService encryptor = new GCPKeyManagementService.EnvelopeEncryptService(config, envelopeConfig);
+        GCPKeyManagementService.EnvelopeDecryptService decryptor = new GCPKeyManagementService.EnvelopeDecryptService(config, envelopeConfig);
+        encryptor.init();
+        decryptor.init();
+
+        // the mocked KMS wraps a data key by prepending a marker
+        ByteString marker = ByteString.copyFromUtf8("wrapped:");
+        when(cli.encrypt(eq(config.getEncryptKeyName()), any(ByteString.class))).thenAnswer(inv ->
+                EncryptResponse.newBuilder().setCiphertext(marker.concat(inv.getArgument(1))).build());
+        when(cli.decrypt(eq(config.getKeyName()), any(ByteString.class))).thenAnswer(inv ->
+                DecryptResponse.newBuilder().setPlaintext(((ByteString) inv.getArgument(1)).substring(marker.size())).build());
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("item1", "Kafka");
+        params.put("item2", "Frantz".getBytes());
+        Map<String, Item> encrypted = encryptor.doCrypto(params);
+        verify(cli, times(1)).encrypt(eq(config.getEncryptKeyName()), any(ByteString.class));
+
+        Map<String, Object> decParams = new HashMap<>();
+        decParams.put("item1", encrypted.get("item1").asObject(Item.Encoding.STRING));
+        decParams.put("item2", encrypted.get("item2").asObject(Item.Encoding.BINARY));
+        Map<String, Item> actual = decryptor.doCrypto(decParams);
+
+        Map<String, Item> expected = new HashMap<>();
+        expected.put("item1", new Item.PlainBytes("Kafka".getBytes()));
+        expected.put("item2", new Item.PlainBytes("Frantz".getBytes()));
+        assertEquals(expected, actual);
+        verify(cli, times(1)).decrypt(eq(config.getKeyName()), any(ByteString.class));
+    }
+
+    @Test
+    void testAsyncExecutorFull() throws Exception {
+        KeyManagementServiceClient cli = mock(KeyManagementServiceClient.class);
+        // the first field occupies the thread wrapping the data key, the second one the queue, and the third one is rejected
+        GCPKMSCryptoConfig config = new TestConfig(Optional.empty(), cli, new ExecutorConfig(1, 1));
+        GCPKeyManagementService.EnvelopeEncryptService sut = new GCPKeyManagementService.EnvelopeEncryptService(config, new EnvelopeConfig(100, 60000, 10, 60000));
+        sut.init();
+
+        List<Thread> callers = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        when(cli.encrypt(eq(config.getEncryptKeyName()), any(ByteString.class))).thenAnswer(inv -> {
+            callers.add(Thread.currentThread());
+            release.await();
+            return EncryptResponse.newBuilder().setCiphertext(inv.getArgument(1)).build();
+        });
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("item1", "Kafka");
+        params.put("item2", "Frantz");
+        params.put("item3", "Kafka");
+        try {
+            CompletableFuture<Map<String, Item>> future = sut.doCryptoAsync(params, Duration.ofSeconds(10)).toCompletableFuture();
+            ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof ServerErrorException);
+            // the operation never runs on the calling thread
+            assertFalse(callers.contains(Thread.currentThread()));
+        } finally {
+            release.countDown();
+            sut.close();
+        }
+    }
+
+    @Test
+    void testSymmetricEncryptError() {
+        KeyManagementServiceClient cli = mock(KeyManagementServiceClient.class);
+        GCPKMSCryptoConfig config = new TestConfig(Optional.empty(), cli);
+        GCPKeyManagementService.EncryptService sut = new GCPKeyManagementService.EncryptService(config);
+        sut.init();
+
+        UnaryCallable<EncryptRequest, EncryptResponse> callable = mock(UnaryCallable.class);
+        when(cli.encryptCallable()).thenReturn(callable);
+        when(callable.futureCall(encryptRequest(config, "Kafka")))
+                .thenReturn(ApiFutures.immediateFailedFuture(new NotFoundException(new RuntimeException(), GrpcStatusCode.of(Status.Code.NOT_FOUND), false)));
+        when(callable.futureCall(encryptRequest(config, "Frantz")))
+                .thenReturn(ApiFutures.immediateFailedFuture(new UnavailableException(new RuntimeException(), GrpcStatusCode.of(Status.Code.UNAVAILABLE), true)));
+
+        assertThrows(ClientErrorException.class, () -> sut.doCrypto(Collections.singletonMap("item1", "Kafka")));
+        assertThrows(ServerErrorException.class, () -> sut.doCrypto(Collections.singletonMap("item1", "Frantz")));
+    }
+
+    private static EncryptRequest encryptRequest(GCPKMSCryptoConfig config, String plaintext) {
+        return EncryptRequest.newBuilder()
+                .setName(config.getEncryptKeyName().toString())
+                .setPlaintext(ByteString.copyFromUtf8(plaintext))
+                .build();
+    }
+
+    private static DecryptRequest decryptRequest(GCPKMSCryptoConfig config, String ciphertext) {
+        return DecryptRequest.newBuilder()
+                .setName(config.getKeyName().toString())
+                .setCiphertext(ByteString.copyFromUtf8(ciphertext))
+                .build();
+    }
+
+    @Test
+    void testFailWithoutInit() {
+        KeyManagementServiceClient cli = mock(KeyManagementServiceClient.class);
+        GCPKeyManagementService.EncryptService sut = new GCPKeyManagementService.EncryptService(new TestConfig(Optional.empty(), cli));
+        assertThrows(ClientErrorException.class, () -> sut.doCrypto(Collections.singletonMap("item1", "Kafka")));
+    }
+
     @Test
     void testAsymmetricEncrypt() throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException, InvalidAlgorithmParameterException {
         KeyManagementServiceClient cli = mock(KeyManagementServiceClient.class);
@@ -135,10 +264,14 @@ class GCPKeyManagementServiceTest {
         GCPKeyManagementService.AsymmetricDecryptService sut = new GCPKeyManagementService.AsymmetricDecryptService(config);
         sut.init();
 
-        when(cli.asymmetricDecrypt(config.getVersionedKeyName().get(), ByteString.copyFromUtf8("Kafka")))
-                .thenReturn(AsymmetricDecryptResponse.newBuilder().setPlaintext(ByteString.copyFromUtf8("akfaK")).build());
-        when(cli.asymmetricDecrypt(config.getVersionedKeyName().get(), ByteString.copyFromUtf8("Frantz")))
-                .thenReturn(AsymmetricDecryptResponse.newBuilder().setPlaintext(ByteString.copyFromUtf8("ztnarF")).build());
+        UnaryCallable<AsymmetricDecryptRequest, AsymmetricDecryptResponse> callable = mock(UnaryCallable.class);
+        when(cli.asymmetricDecryptCallable()).thenReturn(callable);
+        when(callable.futureCall(AsymmetricDecryptRequest.newBuilder()
+                .setName(config.getVersionedKeyName().get().toString()).setCiphertext(ByteString.copyFromUtf8("Kafka")).build()))
+                .thenReturn(ApiFutures.immediateFuture(AsymmetricDecryptResponse.newBuilder().setPlaintext(ByteString.copyFromUtf8("akfaK")).build()));
+        when(callable.futureCall(AsymmetricDecryptRequest.newBuilder()
+                .setName(config.getVersionedKeyName().get().toString()).setCiphertext(ByteString.copyFromUtf8("Frantz")).build()))
+                .thenReturn(ApiFutures.immediateFuture(AsymmetricDecryptResponse.newBuilder().setPlaintext(ByteString.copyFromUtf8("ztnarF")).build()));
 
         Map<String, Object> params = new HashMap<>();
         params.put("item1", "Kafka".getBytes());
@@ -153,6 +286,46 @@ class GCPKeyManagementServiceTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    void testAsymmetricEnvelopeEncryptAndDecrypt() throws NoSuchPaddingException, NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException, InvalidAlgorithmParameterException {
+        KeyManagementServiceClient cli = mock(KeyManagementServiceClient.class);
+        GCPKMSCryptoConfig config = new TestConfig(Optional.of("123"), cli);
+        EnvelopeConfig envelopeConfig = new EnvelopeConfig(100, 60000, 10, 60000);
+        GCPKeyManagementService.AsymmetricEnvelopeEncryptService encryptor = new GCPKeyManagementService.AsymmetricEnvelopeEncryptService(config, envelopeConfig);
+        GCPKeyManagementService.AsymmetricEnvelopeDecryptService decryptor = new GCPKeyManagementService.AsymmetricEnvelopeDecryptService(config, envelopeConfig);
+
+        when(cli.getPublicKey(CryptoKeyVersionName.of("project", "us-east1", "keyring", "my-key", "123")))
+                .thenReturn(generatePublicKeyCert());
+        // the mocked KMS unwraps a data key with the private key
+        Cipher cipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        KeyFactory factory = KeyFactory.getInstance("RSA");
+        PrivateKey privateKey = factory.generatePrivate(factory.getKeySpec(rsaPair.getPrivate(), RSAPrivateKeySpec.class));
+        cipher.init(Cipher.DECRYPT_MODE, privateKey, config.getOAEPSpec());
+        when(cli.asymmetricDecrypt(eq(config.getVersionedKeyName().get()), any(ByteString.class))).thenAnswer(inv ->
+                AsymmetricDecryptResponse.newBuilder().setPlaintext(ByteString.copyFrom(cipher.doFinal(((ByteString) inv.getArgument(1)).toByteArray()))).build());
+        encryptor.init();
+        decryptor.init();
+
+        // larger than the limit of RSA-OAEP
+        byte[] large = new byte[4096];
+        new Random(1).nextBytes(large);
+        Map<String, Object> params = new HashMap<>();
+        params.put("item1", "Kafka");
+        params.put("item2", large);
+        Map<String, Item> encrypted = encryptor.doCrypto(params);
+
+        Map<String, Object> decParams = new HashMap<>();
+        decParams.put("item1", encrypted.get("item1").asObject(Item.Encoding.STRING));
+        decParams.put("item2", encrypted.get("item2").asObject(Item.Encoding.BINARY));
+        Map<String, Item> actual = decryptor.doCrypto(decParams);
+
+        Map<String, Item> expected = new HashMap<>();
+        expected.put("item1", new Item.PlainBytes("Kafka".getBytes()));
+        expected.put("item2", new Item.PlainBytes(large));
+        assertEquals(expected, actual);
+        verify(cli, times(1)).asymmetricDecrypt(eq(config.getVersionedKeyName().get()), any(ByteString.class));
+    }
+
     private static PublicKey generatePublicKeyCert() {
         // Format the public key into a PEM encoded Certificate.
         final String cert = "-----BEGIN RSA PUBLIC KEY-----\n"
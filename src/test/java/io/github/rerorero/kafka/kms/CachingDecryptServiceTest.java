@@ -0,0 +1,149 @@
+package io.github.rerorero.kafka.kms;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class CachingDecryptServiceTest {
+    private static Service newDelegate() {
+        Service delegate = mock(Service.class);
+        when(delegate.doCrypto(any())).thenAnswer(inv -> {
+            Map<Object, Object> items = inv.getArgument(0);
+            Map<Object, Item> out = new HashMap<>();
+            items.forEach((field, item) -> out.put(field, new Item.PlainBytes(((String) item).replace("encrypted-", "").getBytes())));
+            return out;
+        });
+        when(delegate.doCryptoAsync(any(), any())).thenAnswer(inv -> CompletableFuture.completedFuture(delegate.doCrypto(inv.getArgument(0))));
+        doAnswer(inv -> {
+            Object[] values = inv.getArgument(0);
+            Item[] results = inv.getArgument(1);
+            for (int i = 0; i < (int) inv.getArgument(2); i++) {
+                results[i] = decrypted((String) values[i]);
+            }
+            return null;
+        }).when(delegate).doCrypto(any(Object[].class), any(Item[].class), anyInt());
+        doAnswer(inv -> {
+            Object[][] values = inv.getArgument(0);
+            Item[][] results = inv.getArgument(1);
+            int[] sizes = inv.getArgument(2);
+            for (int r = 0; r < (int) inv.getArgument(3); r++) {
+                for (int i = 0; i < sizes[r]; i++) {
+                    results[r][i] = decrypted((String) values[r][i]);
+                }
+            }
+            return null;
+        }).when(delegate).doCryptoBatch(any(), any(), any(), anyInt());
+        return delegate;
+    }
+
+    private static Item decrypted(String cipherText) {
+        return new Item.PlainBytes(cipherText.replace("encrypted-", "").getBytes());
+    }
+
+    @Test
+    public void testCacheHit() {
+        Service delegate = newDelegate();
+        CachingDecryptService sut = new CachingDecryptService(delegate, 1024, 60000);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("item1", "encrypted-Kafka");
+        params.put("item2", "encrypted-Frantz");
+        Map<String, Item> expected = new HashMap<>();
+        expected.put("item1", new Item.PlainBytes("Kafka".getBytes()));
+        expected.put("item2", new Item.PlainBytes("Frantz".getBytes()));
+
+        assertEquals(expected, sut.doCrypto(params));
+        assertEquals(expected, sut.doCrypto(params));
+        verify(delegate, times(1)).doCrypto(any());
+        assertEquals(2, sut.getStats().hits());
+    }
+
+    @Test
+    public void testReturnCopy() {
+        CachingDecryptService sut = new CachingDecryptService(newDelegate(), 1024, 60000);
+
+        byte[] first = (byte[]) sut.doCrypto(Collections.singletonMap(1, "encrypted-Kafka")).get(1).asObject(Item.Encoding.BINARY);
+        first[0] = 'X';
+        byte[] second = (byte[]) sut.doCrypto(Collections.singletonMap(1, "encrypted-Kafka")).get(1).asObject(Item.Encoding.BINARY);
+        assertArrayEquals("Kafka".getBytes(), second);
+    }
+
+    @Test
+    public void testBoundedByBytes() {
+        Service delegate = newDelegate();
+        // room for only one entry
+        CachingDecryptService sut = new CachingDecryptService(delegate, CachingDecryptService.ENTRY_OVERHEAD_BYTES + 10, 60000);
+
+        sut.doCrypto(Collections.singletonMap(1, "encrypted-Kafka"));
+        sut.doCrypto(Collections.singletonMap(1, "encrypted-Frantz"));
+        sut.doCrypto(Collections.singletonMap(1, "encrypted-Kafka"));
+        verify(delegate, times(3)).doCrypto(any());
+    }
+
+    @Test
+    public void testAsyncSendsOnlyMisses() throws Exception {
+        Service delegate = newDelegate();
+        CachingDecryptService sut = new CachingDecryptService(delegate, 1024, 60000);
+
+        Map<Integer, Object> params = new HashMap<>();
+        params.put(1, "encrypted-Kafka");
+        params.put(2, "encrypted-Frantz");
+        Map<Integer, Item> expected = new HashMap<>();
+        expected.put(1, new Item.PlainBytes("Kafka".getBytes()));
+        expected.put(2, new Item.PlainBytes("Frantz".getBytes()));
+
+        assertEquals(expected, sut.doCryptoAsync(params, Duration.ofSeconds(1)).toCompletableFuture().get());
+        verify(delegate).doCryptoAsync(argThat(m -> m.size() == 2), eq(Duration.ofSeconds(1)));
+
+        params.put(4, "encrypted-Franz");
+        expected.put(4, new Item.PlainBytes("Franz".getBytes()));
+        assertEquals(expected, sut.doCryptoAsync(params, Duration.ofSeconds(1)).toCompletableFuture().get());
+        verify(delegate).doCryptoAsync(argThat(m -> m.equals(Collections.singletonMap(4, "encrypted-Franz"))), any());
+        verify(delegate, times(2)).doCryptoAsync(any(), any());
+    }
+
+    @Test
+    public void testArraySendsOnlyMisses() {
+        Service delegate = newDelegate();
+        CachingDecryptService sut = new CachingDecryptService(delegate, 1024, 60000);
+
+        Item[] results = new Item[2];
+        sut.doCrypto(new Object[]{"encrypted-Kafka", "encrypted-Frantz"}, results, 2);
+        assertArrayEquals(new Item[]{decrypted("Kafka"), decrypted("Frantz")}, results);
+
+        results = new Item[3];
+        sut.doCrypto(new Object[]{"encrypted-Frantz", "encrypted-Franz", "encrypted-Kafka"}, results, 3);
+        assertArrayEquals(new Item[]{decrypted("Frantz"), decrypted("Franz"), decrypted("Kafka")}, results);
+        verify(delegate).doCrypto(argThat((Object[] v) -> v[0].equals("encrypted-Franz")), any(Item[].class), eq(1));
+        verify(delegate, times(2)).doCrypto(any(Object[].class), any(Item[].class), anyInt());
+        verify(delegate, never()).doCrypto(any());
+    }
+
+    @Test
+    public void testBatchSendsOnlyMisses() {
+        Service delegate = newDelegate();
+        CachingDecryptService sut = new CachingDecryptService(delegate, 1024, 60000);
+        sut.doCrypto(new Object[]{"encrypted-Kafka"}, new Item[1], 1);
+
+        Object[][] values = {{"encrypted-Kafka"}, {"encrypted-Franz", "encrypted-Kafka"}};
+        Item[][] results = {new Item[1], new Item[2]};
+        sut.doCryptoBatch(values, results, new int[]{1, 2}, 2);
+
+        assertArrayEquals(new Item[]{decrypted("Kafka")}, results[0]);
+        assertArrayEquals(new Item[]{decrypted("Franz"), decrypted("Kafka")}, results[1]);
+        // only the second record has a miss
+        verify(delegate).doCryptoBatch(argThat(v -> v[0][0].equals("encrypted-Franz")), any(), argThat(sizes -> sizes[0] == 1), eq(1));
+        assertEquals(2, sut.getStats().hits());
+    }
+}
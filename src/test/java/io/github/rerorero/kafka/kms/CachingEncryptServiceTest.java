@@ -0,0 +1,162 @@
+package io.github.rerorero.kafka.kms;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class CachingEncryptServiceTest {
+    private static Service newDelegate() {
+        Service delegate = mock(Service.class);
+        when(delegate.doCrypto(any())).thenAnswer(inv -> {
+            Map<Object, Object> items = inv.getArgument(0);
+            Map<Object, Item> out = new HashMap<>();
+            items.forEach((field, item) -> out.put(field, new Item.CipherText("encrypted-" + (item instanceof String ? item : "bytes"))));
+            return out;
+        });
+        when(delegate.doCryptoAsync(any(), any())).thenAnswer(inv -> CompletableFuture.completedFuture(delegate.doCrypto(inv.getArgument(0))));
+        doAnswer(inv -> {
+            Object[] values = inv.getArgument(0);
+            Item[] results = inv.getArgument(1);
+            for (int i = 0; i < (int) inv.getArgument(2); i++) {
+                results[i] = new Item.CipherBytes(("encrypted-" + values[i]).getBytes());
+            }
+            return null;
+        }).when(delegate).doCrypto(any(Object[].class), any(Item[].class), anyInt());
+        doAnswer(inv -> {
+            Object[][] values = inv.getArgument(0);
+            Item[][] results = inv.getArgument(1);
+            int[] sizes = inv.getArgument(2);
+            for (int r = 0; r < (int) inv.getArgument(3); r++) {
+                for (int i = 0; i < sizes[r]; i++) {
+                    results[r][i] = new Item.CipherBytes(("encrypted-" + values[r][i]).getBytes());
+                }
+            }
+            return null;
+        }).when(delegate).doCryptoBatch(any(), any(), any(), anyInt());
+        return delegate;
+    }
+
+    private static Item encrypted(String plaintext) {
+        return new Item.CipherBytes(("encrypted-" + plaintext).getBytes());
+    }
+
+    @Test
+    public void testCacheHit() {
+        Service delegate = newDelegate();
+        CachingEncryptService sut = new CachingEncryptService(delegate, "vault|key", 10, 60000);
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("country1", "JP");
+        params.put("country2", "JP");
+        params.put("country3", "US");
+        Map<String, Item> expected = new HashMap<>();
+        expected.put("country1", new Item.CipherText("encrypted-JP"));
+        expected.put("country2", new Item.CipherText("encrypted-JP"));
+        expected.put("country3", new Item.CipherText("encrypted-US"));
+
+        assertEquals(expected, sut.doCrypto(params));
+        // the same plaintext in a record is encrypted once
+        verify(delegate).doCrypto(argThat(m -> m.size() == 2));
+
+        assertEquals(expected, sut.doCrypto(params));
+        verify(delegate, times(1)).doCrypto(any());
+        assertEquals(3, sut.getStats().hits());
+        assertEquals(3, sut.getStats().misses());
+    }
+
+    @Test
+    public void testStringAndBytesAreDistinguished() {
+        Service delegate = newDelegate();
+        CachingEncryptService sut = new CachingEncryptService(delegate, "vault|key", 10, 60000);
+
+        assertEquals(Collections.singletonMap(1, new Item.CipherText("encrypted-JP")), sut.doCrypto(Collections.singletonMap(1, "JP")));
+        assertEquals(Collections.singletonMap(1, new Item.CipherText("encrypted-bytes")), sut.doCrypto(Collections.singletonMap(1, "JP".getBytes())));
+        verify(delegate, times(2)).doCrypto(any());
+    }
+
+    @Test
+    public void testAsyncSendsOnlyMisses() throws Exception {
+        Service delegate = newDelegate();
+        CachingEncryptService sut = new CachingEncryptService(delegate, "vault|key", 10, 60000);
+
+        Map<Integer, Object> params = new HashMap<>();
+        params.put(1, "JP");
+        params.put(2, "JP");
+        params.put(3, "US");
+        Map<Integer, Item> expected = new HashMap<>();
+        expected.put(1, new Item.CipherText("encrypted-JP"));
+        expected.put(2, new Item.CipherText("encrypted-JP"));
+        expected.put(3, new Item.CipherText("encrypted-US"));
+
+        assertEquals(expected, sut.doCryptoAsync(params, Duration.ofSeconds(1)).toCompletableFuture().get());
+        verify(delegate).doCryptoAsync(argThat(m -> m.size() == 2), eq(Duration.ofSeconds(1)));
+
+        params.put(4, "DE");
+        expected.put(4, new Item.CipherText("encrypted-DE"));
+        assertEquals(expected, sut.doCryptoAsync(params, Duration.ofSeconds(1)).toCompletableFuture().get());
+        verify(delegate).doCryptoAsync(argThat(m -> m.equals(Collections.singletonMap(4, "DE"))), any());
+        verify(delegate, times(2)).doCryptoAsync(any(), any());
+    }
+
+    @Test
+    public void testArraySendsOnlyMisses() {
+        Service delegate = newDelegate();
+        CachingEncryptService sut = new CachingEncryptService(delegate, "vault|key", 10, 60000);
+
+        Item[] results = new Item[3];
+        sut.doCrypto(new Object[]{"JP", "JP", "US"}, results, 3);
+        assertArrayEquals(new Item[]{encrypted("JP"), encrypted("JP"), encrypted("US")}, results);
+        verify(delegate).doCrypto(argThat((Object[] v) -> v[0].equals("JP") && v[1].equals("US")), any(Item[].class), eq(2));
+
+        results = new Item[3];
+        sut.doCrypto(new Object[]{"US", "DE", "JP", null}, results, 3);
+        assertArrayEquals(new Item[]{encrypted("US"), encrypted("DE"), encrypted("JP")}, results);
+        verify(delegate).doCrypto(argThat((Object[] v) -> v[0].equals("DE")), any(Item[].class), eq(1));
+        verify(delegate, never()).doCrypto(any());
+    }
+
+    @Test
+    public void testBatchSendsOnlyMisses() {
+        Service delegate = newDelegate();
+        CachingEncryptService sut = new CachingEncryptService(delegate, "vault|key", 10, 60000);
+        sut.doCrypto(new Object[]{"JP"}, new Item[1], 1);
+
+        Object[][] values = {{"JP"}, {"US", "JP", "DE"}, {"US"}};
+        Item[][] results = {new Item[1], new Item[3], new Item[1]};
+        sut.doCryptoBatch(values, results, new int[]{1, 3, 1}, 3);
+
+        assertArrayEquals(new Item[]{encrypted("JP")}, results[0]);
+        assertArrayEquals(new Item[]{encrypted("US"), encrypted("JP"), encrypted("DE")}, results[1]);
+        assertArrayEquals(new Item[]{encrypted("US")}, results[2]);
+        // only the second record has misses, which are deduplicated across the records
+        verify(delegate).doCryptoBatch(
+                argThat(v -> v[0][0].equals("US") && v[0][1].equals("DE")),
+                any(), argThat(sizes -> sizes[0] == 2), eq(1));
+        assertEquals(2, sut.getStats().hits());
+    }
+
+    @Test
+    public void testReturnCopy() {
+        CachingEncryptService sut = new CachingEncryptService(newDelegate(), "vault|key", 10, 60000);
+
+        Item[] results = new Item[2];
+        sut.doCrypto(new Object[]{"JP", "JP"}, results, 2);
+        assertNotSame(results[0], results[1]);
+        byte[] first = (byte[]) results[0].asObject(Item.Encoding.BINARY);
+        first[0] = 'X';
+
+        sut.doCrypto(new Object[]{"JP"}, results, 1);
+        assertArrayEquals("encrypted-JP".getBytes(), (byte[]) results[0].asObject(Item.Encoding.BINARY));
+        assertArrayEquals("encrypted-JP".getBytes(), (byte[]) results[1].asObject(Item.Encoding.BINARY));
+    }
+}
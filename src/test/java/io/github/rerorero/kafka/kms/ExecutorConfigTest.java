@@ -0,0 +1,94 @@
+package io.github.rerorero.kafka.kms;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ExecutorConfigTest {
+    @Test
+    void testNamedThreads() throws Exception {
+        ExecutorService sut = new ExecutorConfig(2, 10).newExecutor("test-pool");
+        try {
+            String name = sut.submit(() -> Thread.currentThread().getName()).get();
+            assertTrue(name.startsWith("test-pool-"), name);
+        } finally {
+            sut.shutdown();
+        }
+    }
+
+    @Test
+    void testRunOnCallerWhenQueueIsFull() throws Exception {
+        ExecutorService sut = new ExecutorConfig(1, 1).newExecutor("test-pool");
+        CountDownLatch blocker = new CountDownLatch(1);
+        try {
+            sut.submit(() -> {
+                blocker.await(); // occupies the thread
+                return null;
+            });
+            sut.submit(() -> {
+                blocker.await(); // occupies the queue
+                return null;
+            });
+            String name = sut.submit(() -> Thread.currentThread().getName()).get();
+            assertEquals(Thread.currentThread().getName(), name);
+        } finally {
+            blocker.countDown();
+            sut.shutdown();
+        }
+    }
+
+    @Test
+    void testRejectWhenQueueIsFull() {
+        ExecutorService sut = new ExecutorConfig(1, 1).newExecutor("test-pool", false);
+        CountDownLatch blocker = new CountDownLatch(1);
+        try {
+            sut.submit(() -> {
+                blocker.await(); // occupies the thread
+                return null;
+            });
+            sut.submit(() -> {
+                blocker.await(); // occupies the queue
+                return null;
+            });
+            assertThrows(RejectedExecutionException.class, () -> sut.submit(() -> 1));
+        } finally {
+            blocker.countDown();
+            sut.shutdown();
+        }
+    }
+
+    @Test
+    void testCallerRunsWhenFull() throws Exception {
+        ExecutorService rejecting = new ExecutorConfig(1, 1).newExecutor("test-pool", false);
+        Executor sut = ExecutorConfig.callerRunsWhenFull(rejecting);
+        CountDownLatch blocker = new CountDownLatch(1);
+        try {
+            sut.execute(() -> awaitQuietly(blocker)); // occupies the thread
+            sut.execute(() -> awaitQuietly(blocker)); // occupies the queue
+            String name = CompletableFuture.supplyAsync(() -> Thread.currentThread().getName(), sut).get();
+            assertEquals(Thread.currentThread().getName(), name);
+        } finally {
+            blocker.countDown();
+            rejecting.shutdown();
+        }
+        assertThrows(RejectedExecutionException.class, () -> sut.execute(() -> {
+        }));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    void testRejectAfterShutdown() {
+        ExecutorService sut = new ExecutorConfig(1, 1).newExecutor("test-pool");
+        sut.shutdown();
+        assertThrows(RejectedExecutionException.class, () -> sut.submit(() -> 1));
+    }
+}
@@ -0,0 +1,58 @@
+package io.github.rerorero.kafka.kms;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ItemTest {
+    @Test
+    void testBytesAreNotCopied() {
+        byte[] value = "Frantz".getBytes();
+        Item sut = new Item.PlainBytes(value);
+        assertSame(value, sut.asObject(Item.Encoding.BINARY));
+        assertEquals("Frantz", sut.asObject(Item.Encoding.STRING));
+        assertTrue(sut.asByteBuffer().isReadOnly());
+    }
+
+    @Test
+    void testWrapSlice() {
+        ByteBuffer buf = ByteBuffer.wrap("__Kafka__".getBytes());
+        buf.position(2).limit(7);
+        Item sut = new Item.CipherBytes(buf);
+
+        // the buffer is sliced when wrapped
+        buf.position(0);
+        assertEquals("S2Fma2E=", sut.asObject(Item.Encoding.STRING));
+        byte[] bytes = (byte[]) sut.asObject(Item.Encoding.BINARY);
+        assertArrayEquals("Kafka".getBytes(), bytes);
+        // each encoding is computed once
+        assertSame(bytes, sut.asObject(Item.Encoding.BINARY));
+        assertSame(sut.asObject(Item.Encoding.STRING), sut.asObject(Item.Encoding.STRING));
+
+        assertEquals(new Item.CipherBytes("Kafka".getBytes()), sut);
+        assertEquals(new Item.CipherBytes("Kafka".getBytes()).hashCode(), sut.hashCode());
+        assertNotEquals(new Item.PlainBytes("Kafka".getBytes()), sut);
+    }
+
+    @Test
+    void testReadOnlyBuffer() {
+        Item sut = new Item.PlainBytes(ByteBuffer.wrap("Kafka".getBytes()).asReadOnlyBuffer());
+        assertEquals("Kafka", sut.asObject(Item.Encoding.STRING));
+        assertArrayEquals("Kafka".getBytes(), (byte[]) sut.asObject(Item.Encoding.BINARY));
+    }
+
+    @Test
+    void testCopy() {
+        byte[] value = "Kafka".getBytes();
+        Item sut = new Item.CipherBytes(value);
+        Item copy = sut.copy();
+        assertEquals(sut, copy);
+        assertNotSame(value, copy.asObject(Item.Encoding.BINARY));
+
+        Item text = new Item.CipherText("vault:v1:abc");
+        assertEquals(text, text.copy());
+        assertNotSame(text.asObject(Item.Encoding.BINARY), text.copy().asObject(Item.Encoding.BINARY));
+    }
+}
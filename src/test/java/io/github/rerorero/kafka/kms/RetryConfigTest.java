@@ -0,0 +1,17 @@
+package io.github.rerorero.kafka.kms;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RetryConfigTest {
+    @Test
+    public void testBackoff() {
+        RetryConfig sut = new RetryConfig(10, 100, 1000);
+        assertEquals(100, sut.backoffMs(0));
+        assertEquals(200, sut.backoffMs(1));
+        assertEquals(800, sut.backoffMs(3));
+        assertEquals(1000, sut.backoffMs(4));
+        assertEquals(1000, sut.backoffMs(100));
+    }
+}
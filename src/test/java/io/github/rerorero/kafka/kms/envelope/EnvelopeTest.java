@@ -0,0 +1,55 @@
+package io.github.rerorero.kafka.kms.envelope;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EnvelopeTest {
+    private static final byte[] WRAPPED = "wrapped-key".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void testSealAndOpen() {
+        DataKey key = new DataKey(DataKey.newPlaintextKey(), WRAPPED);
+
+        byte[] sealed1 = Envelope.seal(key, "Kafka".getBytes(StandardCharsets.UTF_8));
+        byte[] sealed2 = Envelope.seal(key, "Kafka".getBytes(StandardCharsets.UTF_8));
+        assertFalse(java.util.Arrays.equals(sealed1, sealed2), "IV should be random");
+
+        Envelope envelope = Envelope.parse(sealed1);
+        assertArrayEquals(WRAPPED, envelope.getWrappedKey());
+        assertArrayEquals("Kafka".getBytes(StandardCharsets.UTF_8), envelope.open(key.getKey()));
+    }
+
+    @Test
+    void testSealEmpty() {
+        DataKey key = new DataKey(DataKey.newPlaintextKey(), WRAPPED);
+        assertArrayEquals(new byte[0], Envelope.parse(Envelope.seal(key, new byte[0])).open(key.getKey()));
+    }
+
+    @Test
+    void testFailToOpenTamperedHeader() {
+        DataKey key = new DataKey(DataKey.newPlaintextKey(), WRAPPED);
+        byte[] sealed = Envelope.seal(key, "Kafka".getBytes(StandardCharsets.UTF_8));
+        sealed[4] ^= 1; // a byte of the wrapped key
+
+        assertThrows(ClientErrorException.class, () -> Envelope.parse(sealed).open(key.getKey()));
+    }
+
+    @Test
+    void testFailToOpenWithWrongKey() {
+        DataKey key = new DataKey(DataKey.newPlaintextKey(), WRAPPED);
+        DataKey other = new DataKey(DataKey.newPlaintextKey(), WRAPPED);
+        byte[] sealed = Envelope.seal(key, "Kafka".getBytes(StandardCharsets.UTF_8));
+
+        assertThrows(ClientErrorException.class, () -> Envelope.parse(sealed).open(other.getKey()));
+    }
+
+    @Test
+    void testFailToParseUnknownFormat() {
+        assertThrows(ClientErrorException.class, () -> Envelope.parse("vault:v1:abc".getBytes(StandardCharsets.UTF_8)));
+        assertThrows(ClientErrorException.class, () -> Envelope.parse(new byte[]{Envelope.VERSION, 0, 1, 2}));
+    }
+}
@@ -0,0 +1,60 @@
+package io.github.rerorero.kafka.kms.envelope;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RecordEnvelopeTest {
+    private static final byte[] WRAPPED = "wrapped-key".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void testSealAndOpen() {
+        byte[] plaintextKey = DataKey.newPlaintextKey();
+        RecordEnvelope sealer = RecordEnvelope.of(new DataKey(plaintextKey, WRAPPED));
+        byte[] field1 = sealer.seal("Kafka".getBytes(StandardCharsets.UTF_8));
+        byte[] field2 = sealer.seal("Kafka".getBytes(StandardCharsets.UTF_8));
+        byte[] empty = sealer.seal(new byte[0]);
+
+        // a counter byte and the tag
+        assertEquals(1 + 5 + 16, field1.length);
+        assertFalse(java.util.Arrays.equals(field1, field2), "each field should have its own IV");
+        assertArrayEquals(WRAPPED, RecordEnvelope.wrappedKeyOf(sealer.getHeader()));
+
+        RecordEnvelope opener = RecordEnvelope.of(plaintextKey, sealer.getHeader());
+        assertArrayEquals("Kafka".getBytes(StandardCharsets.UTF_8), opener.open(field2));
+        assertArrayEquals("Kafka".getBytes(StandardCharsets.UTF_8), opener.open(field1));
+        assertArrayEquals(new byte[0], opener.open(empty));
+    }
+
+    @Test
+    void testManyFields() {
+        byte[] plaintextKey = DataKey.newPlaintextKey();
+        RecordEnvelope sealer = RecordEnvelope.of(new DataKey(plaintextKey, WRAPPED));
+        byte[][] fields = new byte[300][];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = sealer.seal(new byte[]{(byte) i});
+        }
+
+        RecordEnvelope opener = RecordEnvelope.of(plaintextKey, sealer.getHeader());
+        for (int i = 0; i < fields.length; i++) {
+            assertArrayEquals(new byte[]{(byte) i}, opener.open(fields[i]));
+        }
+    }
+
+    @Test
+    void testFailToOpenWithAnotherHeader() {
+        byte[] plaintextKey = DataKey.newPlaintextKey();
+        RecordEnvelope sealer = RecordEnvelope.of(new DataKey(plaintextKey, WRAPPED));
+        byte[] field = sealer.seal("Kafka".getBytes(StandardCharsets.UTF_8));
+
+        byte[] header = sealer.getHeader().clone();
+        header[1] ^= 1;
+        assertThrows(ClientErrorException.class, () -> RecordEnvelope.of(plaintextKey, header).open(field));
+        assertThrows(ClientErrorException.class, () -> RecordEnvelope.of(DataKey.newPlaintextKey(), sealer.getHeader()).open(field));
+        assertThrows(ClientErrorException.class, () -> RecordEnvelope.of(plaintextKey, new byte[]{9, 1}));
+        assertThrows(ClientErrorException.class, () -> RecordEnvelope.of(plaintextKey, sealer.getHeader()).open(new byte[]{0, 1}));
+    }
+}
@@ -0,0 +1,91 @@
+package io.github.rerorero.kafka.kms.envelope;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RotatingDataKeyTest {
+    @Test
+    void testRotateByUses() {
+        AtomicInteger generated = new AtomicInteger();
+        RotatingDataKey sut = new RotatingDataKey(() -> {
+            generated.incrementAndGet();
+            return new DataKey(DataKey.newPlaintextKey(), new byte[]{1});
+        }, 2, Long.MAX_VALUE, () -> 0L);
+
+        DataKey first = sut.acquire();
+        assertSame(first, sut.acquire());
+        assertNotSame(first, sut.acquire());
+        assertEquals(2, generated.get());
+    }
+
+    @Test
+    void testRotateByAge() {
+        AtomicLong now = new AtomicLong(1000);
+        RotatingDataKey sut = new RotatingDataKey(() -> new DataKey(DataKey.newPlaintextKey(), new byte[]{1}),
+                Long.MAX_VALUE, 100, now::get);
+
+        DataKey first = sut.acquire();
+        now.addAndGet(99);
+        assertSame(first, sut.acquire());
+        now.addAndGet(1);
+        assertNotSame(first, sut.acquire());
+    }
+
+    @Test
+    void testGenerateInBackground() throws Exception {
+        AtomicInteger generated = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            RotatingDataKey sut = new RotatingDataKey(() -> {
+                if (generated.incrementAndGet() > 1) {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return new DataKey(DataKey.newPlaintextKey(), new byte[]{1});
+            }, 4, Long.MAX_VALUE, () -> 0L, executor);
+
+            DataKey first = sut.acquire();
+            sut.acquire();
+            // the third use starts generating the next key, which does not block the remaining use
+            assertSame(first, sut.acquire());
+            assertSame(first, CompletableFuture.supplyAsync(sut::acquire).get(5, TimeUnit.SECONDS));
+            assertEquals(2, generated.get());
+
+            // the exhausted key waits for the generation in progress instead of starting another one
+            CompletableFuture<DataKey> waiting = CompletableFuture.supplyAsync(sut::acquire);
+            Thread.sleep(100);
+            assertFalse(waiting.isDone());
+            release.countDown();
+            assertNotSame(first, waiting.get(5, TimeUnit.SECONDS));
+            assertEquals(2, generated.get());
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void testGenerationFailure() {
+        AtomicInteger calls = new AtomicInteger();
+        RotatingDataKey sut = new RotatingDataKey(() -> {
+            if (calls.incrementAndGet() == 1) {
+                throw new ServerErrorException("unavailable");
+            }
+            return new DataKey(DataKey.newPlaintextKey(), new byte[]{1});
+        }, 10, Long.MAX_VALUE, () -> 0L, Runnable::run);
+
+        assertThrows(ServerErrorException.class, sut::acquire);
+        // the next call generates the key again
+        assertNotNull(sut.acquire());
+    }
+}
@@ -0,0 +1,71 @@
+package io.github.rerorero.kafka.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ExpiringCacheTest {
+    @Test
+    void testEvictLeastRecentlyUsed() {
+        ExpiringCache<String, Integer> sut = new ExpiringCache<>(2, Long.MAX_VALUE, () -> 0L);
+        sut.put("a", 1);
+        sut.put("b", 2);
+        assertEquals(1, sut.get("a"));
+        sut.put("c", 3);
+
+        assertNull(sut.get("b"));
+        assertEquals(1, sut.get("a"));
+        assertEquals(3, sut.get("c"));
+        assertEquals(2, sut.size());
+        assertEquals(3, sut.getStats().hits());
+        assertEquals(1, sut.getStats().misses());
+    }
+
+    @Test
+    void testExpire() {
+        AtomicLong now = new AtomicLong();
+        ExpiringCache<String, Integer> sut = new ExpiringCache<>(10, 100, now::get);
+        sut.put("a", 1);
+        now.set(99);
+        assertEquals(1, sut.get("a"));
+        now.set(100);
+        assertNull(sut.get("a"));
+        assertEquals(0, sut.size());
+    }
+
+    @Test
+    void testEvictByWeight() {
+        List<String> removed = new ArrayList<>();
+        ExpiringCache<String, String> sut = new ExpiringCache<>(10, Long.MAX_VALUE,
+                (k, v) -> v.length(), (k, v) -> removed.add(k), () -> 0L);
+        sut.put("a", "1234");
+        sut.put("b", "1234");
+        sut.put("c", "12");
+        assertEquals(10, sut.weight());
+
+        sut.put("d", "12345");
+        assertNull(sut.get("a"));
+        assertNull(sut.get("b"));
+        assertEquals(Arrays.asList("a", "b"), removed);
+        assertEquals(7, sut.weight());
+
+        // too heavy to be cached
+        sut.put("e", "12345678901");
+        assertNull(sut.get("e"));
+        assertEquals(Arrays.asList("a", "b", "e"), removed);
+
+        sut.put("c", "123");
+        assertEquals(Arrays.asList("a", "b", "e", "c"), removed);
+        assertEquals(8, sut.weight());
+
+        sut.clear();
+        assertEquals(0, sut.weight());
+        assertEquals(6, removed.size());
+    }
+}
@@ -0,0 +1,89 @@
+package io.github.rerorero.kafka.util;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FuturesTest {
+    @Test
+    void testWithTimeout() {
+        CompletableFuture<String> pending = Futures.withTimeout(new CompletableFuture<>(), Duration.ofMillis(10));
+        ExecutionException e = assertThrows(ExecutionException.class, () -> pending.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof ServerErrorException);
+
+        CompletableFuture<String> completed = Futures.withTimeout(new CompletableFuture<>(), Duration.ofMillis(10));
+        completed.complete("done");
+        assertEquals("done", completed.join());
+    }
+
+    @Test
+    void testDelay() throws Exception {
+        long start = System.nanoTime();
+        Futures.delay(20).get(10, TimeUnit.SECONDS);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    void testAllAsList() {
+        CompletableFuture<Integer> a = new CompletableFuture<>();
+        CompletableFuture<Integer> b = new CompletableFuture<>();
+        CompletableFuture<List<Integer>> all = Futures.allAsList(Arrays.asList(a, b));
+        b.complete(2);
+        assertFalse(all.isDone());
+        a.complete(1);
+        assertEquals(Arrays.asList(1, 2), all.join());
+    }
+
+    @Test
+    void testAllAsListFailsFast() {
+        CompletableFuture<Integer> a = new CompletableFuture<>();
+        CompletableFuture<Integer> b = new CompletableFuture<>();
+        CompletableFuture<List<Integer>> all = Futures.allAsList(Arrays.asList(a, b));
+        b.completeExceptionally(new ClientErrorException("broken"));
+
+        assertThrows(ClientErrorException.class, () -> Futures.join(all));
+        assertTrue(a.isCancelled());
+    }
+
+    @Test
+    void testAllAsListCancel() {
+        CompletableFuture<Integer> a = new CompletableFuture<>();
+        CompletableFuture<List<Integer>> all = Futures.allAsList(Arrays.asList(a));
+        all.cancel(true);
+        assertTrue(a.isCancelled());
+    }
+
+    @Test
+    void testCancelling() {
+        CompletableFuture<Integer> source = new CompletableFuture<>();
+        CompletableFuture<Integer> dependent = Futures.cancelling(source.thenApply(i -> i + 1), source);
+        dependent.cancel(true);
+        assertTrue(source.isCancelled());
+    }
+
+    @Test
+    void testUnwrap() {
+        ServerErrorException server = new ServerErrorException("unavailable");
+        assertSame(server, Futures.unwrap(new CompletionException(server)));
+
+        CancellationException cancelled = new CancellationException();
+        assertSame(cancelled, Futures.unwrap(cancelled));
+
+        RuntimeException other = new IllegalStateException();
+        RuntimeException wrapped = Futures.unwrap(new ExecutionException(other));
+        assertEquals(ServiceException.class, wrapped.getClass());
+        assertSame(other, wrapped.getCause());
+    }
+}
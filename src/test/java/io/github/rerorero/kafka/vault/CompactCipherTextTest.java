@@ -0,0 +1,67 @@
+package io.github.rerorero.kafka.vault;
+
+import io.github.rerorero.kafka.kms.Item;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompactCipherTextTest {
+    private static final byte[] RAW = {1, 2, 3, (byte) 0xff, 0, 42, 7, 8, 9, 10, 11, 12, 13};
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 127, 128, 300, 16384, Integer.MAX_VALUE})
+    public void testRoundTrip(int version) {
+        final String text = "vault:v" + version + ":" + Base64.getEncoder().encodeToString(RAW);
+        final byte[] compact = CompactCipherText.encode(text);
+
+        assertEquals(CompactCipherText.MARKER, compact[0]);
+        assertTrue(compact.length < text.length(), text);
+        assertEquals(text, CompactCipherText.decode(compact));
+    }
+
+    @Test
+    public void testLayout() {
+        final byte[] compact = CompactCipherText.encode("vault:v300:" + Base64.getEncoder().encodeToString(RAW));
+
+        // 300 = 0b10_0101100
+        assertArrayEquals(new byte[]{0, (byte) 0xac, 0x02}, java.util.Arrays.copyOf(compact, 3));
+        assertArrayEquals(RAW, java.util.Arrays.copyOfRange(compact, 3, compact.length));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"vault:v1", "vault:vx:AAAA", "vault:v01:AAAA", "vault:v-1:AAAA", "vault:v1:not base64", "plain text", ""})
+    public void testNotTransitFormat(String text) {
+        // kept as the bytes of the text, which are decoded as they are
+        final byte[] bytes = CompactCipherText.encode(text);
+        assertArrayEquals(text.getBytes(StandardCharsets.UTF_8), bytes);
+        assertEquals(text, CompactCipherText.decode(bytes));
+    }
+
+    @Test
+    public void testDecodeLegacy() {
+        final String text = "vault:v1:" + Base64.getEncoder().encodeToString(RAW);
+        assertEquals(text, CompactCipherText.decode(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testDecodeTruncated() {
+        assertThrows(IllegalArgumentException.class, () -> CompactCipherText.decode(new byte[]{0}));
+        assertThrows(IllegalArgumentException.class, () -> CompactCipherText.decode(new byte[]{0, (byte) 0x80}));
+        assertThrows(IllegalArgumentException.class, () -> CompactCipherText.decode(new byte[]{0, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1}));
+    }
+
+    @Test
+    public void testItem() {
+        final String text = "vault:v2:" + Base64.getEncoder().encodeToString(RAW);
+        final CompactCipherText item = new CompactCipherText(text);
+
+        assertEquals(text, item.asObject(Item.Encoding.STRING));
+        assertArrayEquals(CompactCipherText.encode(text), (byte[]) item.asObject(Item.Encoding.BINARY));
+        assertEquals(new CompactCipherText(text), item);
+    }
+}
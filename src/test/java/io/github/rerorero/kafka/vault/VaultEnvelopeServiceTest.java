@@ -0,0 +1,114 @@
+package io.github.rerorero.kafka.vault;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import io.github.rerorero.kafka.kms.Item;
+import io.github.rerorero.kafka.kms.envelope.DataKey;
+import io.github.rerorero.kafka.kms.envelope.Envelope;
+import io.github.rerorero.kafka.kms.envelope.EnvelopeConfig;
+import io.github.rerorero.kafka.vault.client.DataKeyResponse;
+import io.github.rerorero.kafka.vault.client.DecryptParameter;
+import io.github.rerorero.kafka.vault.client.VaultClient;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class VaultEnvelopeServiceTest {
+    private static final String keyName = "key";
+    private static final EnvelopeConfig envelopeConfig = new EnvelopeConfig(100, 60000, 10, 60000);
+
+    @Test
+    public void testEncryptAndDecrypt() {
+        String dataKey = Base64.getEncoder().encodeToString(DataKey.newPlaintextKey());
+        VaultClient vault = mock(VaultClient.class);
+        when(vault.generateDataKey(keyName, Optional.of("context"), 256))
+                .thenReturn(new DataKeyResponse(dataKey, "vault:v1:wrapped"));
+        when(vault.decrypt(eq(keyName), any()))
+                .thenReturn(Collections.singletonList(dataKey));
+
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.of("context"));
+        VaultEnvelopeService.EncryptService encryptor = new VaultEnvelopeService.EncryptService(vault, conf, envelopeConfig);
+        VaultEnvelopeService.DecryptService decryptor = new VaultEnvelopeService.DecryptService(vault, conf, envelopeConfig);
+        encryptor.init();
+
+        Map<Integer, Object> params = new HashMap<>();
+        params.put(1, "Frantz");
+        params.put(2, "Kafka".getBytes());
+        Map<Integer, Item> encrypted = encryptor.doCrypto(params);
+        encryptor.close();
+
+        Map<Integer, Object> decParams = new HashMap<>();
+        decParams.put(1, encrypted.get(1).asObject(Item.Encoding.STRING));
+        decParams.put(2, encrypted.get(2).asObject(Item.Encoding.BINARY));
+        Map<Integer, Item> actual = decryptor.doCrypto(decParams);
+
+        Map<Integer, Item> expected = new HashMap<>();
+        expected.put(1, new Item.PlainBytes("Frantz".getBytes()));
+        expected.put(2, new Item.PlainBytes("Kafka".getBytes()));
+        assertEquals(expected, actual);
+
+        verify(vault, times(1)).generateDataKey(any(), any(), anyInt());
+        verify(vault, times(1)).decrypt(keyName, Collections.singletonList(new DecryptParameter("vault:v1:wrapped", Optional.of("context"))));
+        assertEquals(1, decryptor.getDataKeyCacheStats().hits());
+        assertEquals(1, decryptor.getDataKeyCacheStats().misses());
+    }
+
+    @Test
+    public void testFailToDecryptNonEnvelope() {
+        VaultClient vault = mock(VaultClient.class);
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty());
+        VaultEnvelopeService.DecryptService decryptor = new VaultEnvelopeService.DecryptService(vault, conf, envelopeConfig);
+
+        assertThrows(ClientErrorException.class,
+                () -> decryptor.doCrypto(Collections.singletonMap(1, "vault:v1:abc".getBytes())));
+    }
+
+    @Test
+    public void testDecryptAsync() throws Exception {
+        byte[] dataKey = DataKey.newPlaintextKey();
+        byte[] sealed = Envelope.seal(new DataKey(dataKey, "vault:v1:wrapped".getBytes()), "Kafka".getBytes());
+        VaultClient vault = mock(VaultClient.class);
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty());
+        // unwrapping the data key blocks until the test is finished
+        CountDownLatch release = new CountDownLatch(1);
+        List<Thread> callers = Collections.synchronizedList(new ArrayList<>());
+        when(vault.decrypt(eq(keyName), any())).thenAnswer(inv -> {
+            callers.add(Thread.currentThread());
+            release.await(10, TimeUnit.SECONDS);
+            return Collections.singletonList(Base64.getEncoder().encodeToString(dataKey));
+        });
+        VaultEnvelopeService.DecryptService decryptor = new VaultEnvelopeService.DecryptService(vault, conf, envelopeConfig);
+
+        CompletableFuture<Map<Integer, Item>> notInitialized =
+                decryptor.doCryptoAsync(Collections.<Integer, Object>singletonMap(1, sealed), Duration.ofSeconds(1)).toCompletableFuture();
+        ExecutionException e = assertThrows(ExecutionException.class, notInitialized::get);
+        assertTrue(e.getCause() instanceof ClientErrorException);
+
+        decryptor.init();
+        try {
+            CompletableFuture<Map<Integer, Item>> timedOut =
+                    decryptor.doCryptoAsync(Collections.<Integer, Object>singletonMap(1, sealed), Duration.ofMillis(100)).toCompletableFuture();
+            e = assertThrows(ExecutionException.class, () -> timedOut.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof ServerErrorException);
+            assertFalse(callers.contains(Thread.currentThread()));
+            release.countDown();
+
+            Map<Integer, Item> actual = decryptor.doCryptoAsync(Collections.<Integer, Object>singletonMap(1, sealed), Duration.ofSeconds(5))
+                    .toCompletableFuture().get(5, TimeUnit.SECONDS);
+            assertEquals(Collections.singletonMap(1, new Item.PlainBytes("Kafka".getBytes())), actual);
+        } finally {
+            release.countDown();
+            decryptor.close();
+        }
+    }
+}
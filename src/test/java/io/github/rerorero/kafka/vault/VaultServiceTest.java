@@ -1,7 +1,12 @@
 package io.github.rerorero.kafka.vault;
 
 import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServiceException;
+import io.github.rerorero.kafka.kms.ExecutorConfig;
 import io.github.rerorero.kafka.kms.Item;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import io.github.rerorero.kafka.kms.RetryConfig;
+import io.github.rerorero.kafka.vault.client.BatchResult;
 import io.github.rerorero.kafka.vault.client.DecryptParameter;
 import io.github.rerorero.kafka.vault.client.EncryptParameter;
 import io.github.rerorero.kafka.vault.client.VaultClient;
@@ -12,11 +17,21 @@ import org.junit.jupiter.params.provider.MethodSource;
 import org.mockito.ArgumentCaptor;
 
 import java.nio.charset.Charset;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 class VaultServiceTest {
@@ -123,14 +138,14 @@ class VaultServiceTest {
     ) {
         VaultClient vault = mock(VaultClient.class);
         ArgumentCaptor<List<EncryptParameter>> paramCaptor = ArgumentCaptor.forClass(List.class);
-        when(vault.encrypt(any(), any())).thenReturn(mockResult);
+        when(vault.encryptBatch(any(), any())).thenReturn(successes(mockResult));
 
         VaultService sut = new VaultService.EncryptService(vault, conf);
         Map<Integer, Item> actual = sut.doCrypto(param);
 
         assertEquals(expected, actual);
 
-        verify(vault).encrypt(eq(keyName), paramCaptor.capture());
+        verify(vault).encryptBatch(eq(keyName), paramCaptor.capture());
         assertEquals(expectedMockArgs, paramCaptor.getValue());
     }
 
@@ -145,21 +160,60 @@ class VaultServiceTest {
     ) {
         VaultClient vault = mock(VaultClient.class);
         ArgumentCaptor<List<DecryptParameter>> paramCaptor = ArgumentCaptor.forClass(List.class);
-        when(vault.decrypt(any(), any())).thenReturn(mockResult);
+        when(vault.decryptBatch(any(), any())).thenReturn(successes(mockResult));
 
         VaultService sut = new VaultService.DecryptService(vault, conf);
         Map<Integer, Item> actual = sut.doCrypto(param);
 
         assertEquals(expected, actual);
 
-        verify(vault).decrypt(eq(keyName), paramCaptor.capture());
+        verify(vault).decryptBatch(eq(keyName), paramCaptor.capture());
         assertEquals(expectedMockArgs, paramCaptor.getValue());
     }
 
+    @Test
+    public void testEncryptIndexed() {
+        VaultClient vault = mock(VaultClient.class);
+        when(vault.encryptBatch(any(), any())).thenReturn(successes(Arrays.asList("encrypted-Frantz", "encrypted-Kafka")));
+        VaultService sut = new VaultService.EncryptService(vault, new VaultCryptoConfig(keyName, Optional.empty()));
+
+        // only the first size values are sent
+        Object[] values = new Object[]{"Frantz", "Kafka", "unused"};
+        Item[] results = new Item[values.length];
+        sut.doCrypto(values, results, 2);
+
+        verify(vault).encryptBatch(keyName, Arrays.asList(
+                new EncryptParameter("RnJhbnR6", Optional.empty()),
+                new EncryptParameter("S2Fma2E=", Optional.empty())));
+        assertArrayEquals(new Item[]{new Item.CipherText("encrypted-Frantz"), new Item.CipherText("encrypted-Kafka"), null}, results);
+    }
+
+    @Test
+    public void testCompactCipherText() {
+        String cipherText = "vault:v3:" + Base64.getEncoder().encodeToString(new byte[]{1, 2, 3, 4, 5, 6});
+        VaultClient vault = mock(VaultClient.class);
+        when(vault.encryptBatch(any(), any())).thenReturn(successes(Arrays.asList(cipherText)));
+        when(vault.decryptBatch(any(), any())).thenReturn(successes(Arrays.asList("RnJhbnR6", "RnJhbnR6")));
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty(), 100, Integer.MAX_VALUE, ExecutorConfig.DEFAULT, RetryConfig.DEFAULT, true);
+
+        Item[] encrypted = new Item[1];
+        new VaultService.EncryptService(vault, conf).doCrypto(new Object[]{"Frantz"}, encrypted, 1);
+        byte[] compact = (byte[]) encrypted[0].asObject(Item.Encoding.BINARY);
+        assertEquals(cipherText, encrypted[0].asObject(Item.Encoding.STRING));
+        assertEquals(1 + 1 + 6, compact.length);
+
+        // both the compact form and the bytes of the text are decrypted
+        Item[] decrypted = new Item[2];
+        new VaultService.DecryptService(vault, conf).doCrypto(new Object[]{compact, cipherText.getBytes(Charset.defaultCharset())}, decrypted, 2);
+        verify(vault).decryptBatch(keyName, Arrays.asList(
+                new DecryptParameter(cipherText, Optional.empty()),
+                new DecryptParameter(cipherText, Optional.empty())));
+    }
+
     @Test
     public void testEncryptFailure() {
         VaultClient vault = mock(VaultClient.class);
-        when(vault.encrypt(any(), any())).thenThrow(new ServiceException("failed"));
+        when(vault.encryptBatch(any(), any())).thenThrow(new ServiceException("failed"));
 
         VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty());
         VaultService sut = new VaultService.EncryptService(vault, conf);
@@ -170,11 +224,309 @@ class VaultServiceTest {
     @Test
     public void testDecryptFailure() {
         VaultClient vault = mock(VaultClient.class);
-        when(vault.decrypt(any(), any())).thenThrow(new ServiceException("failed"));
+        when(vault.decryptBatch(any(), any())).thenThrow(new ServiceException("failed"));
 
         VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty());
         VaultService sut = new VaultService.DecryptService(vault, conf);
 
         assertThrows(ServiceException.class, () -> sut.doCrypto(new HashMap()));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testEncryptInChunks() {
+        VaultClient vault = mock(VaultClient.class);
+        when(vault.encryptBatch(any(), any())).thenAnswer(inv -> {
+            List<EncryptParameter> params = inv.getArgument(1);
+            List<BatchResult> res = new ArrayList<>();
+            params.forEach(p -> res.add(BatchResult.success("encrypted-" + p.toString())));
+            return res;
+        });
+
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty(), 3, Integer.MAX_VALUE, new ExecutorConfig(4, 10));
+        VaultService sut = new VaultService.EncryptService(vault, conf);
+        sut.init();
+
+        Map<Integer, Object> param = new HashMap<>();
+        Map<Integer, Item> expected = new HashMap<>();
+        for (int i = 0; i < 10; i++) {
+            param.put(i, "item" + i);
+            String base64 = Base64.getEncoder().encodeToString(("item" + i).getBytes(Charset.defaultCharset()));
+            expected.put(i, new Item.CipherText("encrypted-" + new EncryptParameter(base64, Optional.empty())));
+        }
+
+        Map<Integer, Item> actual = sut.doCrypto(param);
+        sut.close();
+
+        assertEquals(expected, actual);
+        verify(vault, times(4)).encryptBatch(eq(keyName), any());
+    }
+
+    @Test
+    public void testEncryptBatchOfRecords() {
+        VaultClient vault = mock(VaultClient.class);
+        when(vault.encryptBatch(any(), any())).thenAnswer(inv -> {
+            List<EncryptParameter> params = inv.getArgument(1);
+            List<BatchResult> res = new ArrayList<>();
+            params.forEach(p -> res.add(BatchResult.success("encrypted-" + p.toString())));
+            return res;
+        });
+
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty());
+        VaultService sut = new VaultService.EncryptService(vault, conf);
+
+        Object[][] values = {{"a", "b"}, {}, {"c", "unused"}};
+        Item[][] results = {new Item[2], new Item[0], new Item[2]};
+        sut.doCryptoBatch(values, results, new int[]{2, 0, 1}, 3);
+
+        // a single transit call for all the records
+        ArgumentCaptor<List<EncryptParameter>> paramCaptor = ArgumentCaptor.forClass(List.class);
+        verify(vault, times(1)).encryptBatch(eq(keyName), paramCaptor.capture());
+        assertEquals(3, paramCaptor.getValue().size());
+        assertEquals(new Item.CipherText("encrypted-" + paramCaptor.getValue().get(0)), results[0][0]);
+        assertEquals(new Item.CipherText("encrypted-" + paramCaptor.getValue().get(1)), results[0][1]);
+        assertEquals(new Item.CipherText("encrypted-" + paramCaptor.getValue().get(2)), results[2][0]);
+        assertNull(results[2][1]);
+    }
+
+    @Test
+    public void testChunkBySize() {
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty(), 100, 200, ExecutorConfig.DEFAULT);
+        VaultService.DecryptService sut = new VaultService.DecryptService(mock(VaultClient.class), conf);
+
+        DecryptParameter small = new DecryptParameter("small", Optional.empty());
+        DecryptParameter large = new DecryptParameter(String.join("", Collections.nCopies(300, "x")), Optional.empty());
+        List<List<DecryptParameter>> chunks = sut.chunk(Arrays.asList(small, small, large, small));
+
+        // an item larger than the limit is sent alone
+        assertEquals(Arrays.asList(Arrays.asList(small, small), Arrays.asList(large), Arrays.asList(small)), chunks);
+    }
+
+    @Test
+    public void testChunkFailure() {
+        VaultClient vault = mock(VaultClient.class);
+        when(vault.decryptBatch(any(), any())).thenThrow(new ServiceException("failed"));
+
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty(), 1, Integer.MAX_VALUE, ExecutorConfig.DEFAULT);
+        VaultService sut = new VaultService.DecryptService(vault, conf);
+        sut.init();
+
+        Map<Integer, Object> param = new HashMap<>();
+        param.put(1, "encrypted-Frantz");
+        param.put(2, "encrypted-Kafka");
+        assertThrows(ServiceException.class, () -> sut.doCrypto(param));
+        sut.close();
+    }
+
+    @Test
+    public void testRetryOnlyFailedItems() {
+        VaultClient vault = mock(VaultClient.class);
+        DecryptParameter frantz = new DecryptParameter("encrypted-Frantz", Optional.empty());
+        DecryptParameter kafka = new DecryptParameter("encrypted-Kafka", Optional.empty());
+        when(vault.decryptBatch(any(), any()))
+                .thenReturn(Arrays.asList(BatchResult.success("RnJhbnR6"), BatchResult.failure("unavailable", true)))
+                .thenReturn(Arrays.asList(BatchResult.success("S2Fma2E=")));
+
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty(), 10, Integer.MAX_VALUE, ExecutorConfig.DEFAULT, new RetryConfig(2, 1, 1));
+        VaultService sut = new VaultService.DecryptService(vault, conf);
+
+        Map<Integer, Object> param = new LinkedHashMap<>();
+        param.put(1, "encrypted-Frantz");
+        param.put(2, "encrypted-Kafka");
+        Map<Integer, Item> actual = sut.doCrypto(param);
+
+        Map<Integer, Item> expected = new HashMap<>();
+        expected.put(1, new Item.PlainBytes("Frantz".getBytes(Charset.defaultCharset())));
+        expected.put(2, new Item.PlainBytes("Kafka".getBytes(Charset.defaultCharset())));
+        assertEquals(expected, actual);
+
+        ArgumentCaptor<List<DecryptParameter>> paramCaptor = ArgumentCaptor.forClass(List.class);
+        verify(vault, times(2)).decryptBatch(eq(keyName), paramCaptor.capture());
+        assertEquals(Arrays.asList(Arrays.asList(frantz, kafka), Arrays.asList(kafka)), paramCaptor.getAllValues());
+    }
+
+    @Test
+    public void testCloseDuringBackoff() throws Exception {
+        VaultClient vault = mock(VaultClient.class);
+        CountDownLatch failed = new CountDownLatch(1);
+        when(vault.encryptBatch(any(), any())).thenAnswer(inv -> {
+            failed.countDown();
+            throw new ServerErrorException("unavailable");
+        });
+
+        // the backoff would be too long for the test to pass without the close
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty(), 10, Integer.MAX_VALUE, ExecutorConfig.DEFAULT, new RetryConfig(1, 60_000, 60_000));
+        VaultService<?> sut = new VaultService.EncryptService(vault, conf);
+        sut.init();
+
+        CompletableFuture<Map<Integer, Item>> result = CompletableFuture.supplyAsync(() -> sut.doCrypto(Collections.singletonMap(1, "Kafka")));
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        sut.close();
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> result.get(5, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof ServerErrorException);
+        verify(vault, times(1)).encryptBatch(eq(keyName), any());
+    }
+
+    @Test
+    public void testRetryOnServerError() {
+        VaultClient vault = mock(VaultClient.class);
+        when(vault.encryptBatch(any(), any()))
+                .thenThrow(new ServerErrorException("unavailable"))
+                .thenReturn(Arrays.asList(BatchResult.success("encrypted-Kafka")));
+
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty(), 10, Integer.MAX_VALUE, ExecutorConfig.DEFAULT, new RetryConfig(1, 1, 1));
+        VaultService sut = new VaultService.EncryptService(vault, conf);
+
+        Map<Integer, Item> actual = sut.doCrypto(Collections.singletonMap(1, "Kafka"));
+        assertEquals(Collections.singletonMap(1, new Item.CipherText("encrypted-Kafka")), actual);
+        verify(vault, times(2)).encryptBatch(eq(keyName), any());
+    }
+
+    @Test
+    public void testRetryBudgetExhausted() {
+        VaultClient vault = mock(VaultClient.class);
+        when(vault.encryptBatch(any(), any())).thenReturn(Arrays.asList(BatchResult.failure("unavailable", true)));
+
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty(), 10, Integer.MAX_VALUE, ExecutorConfig.DEFAULT, new RetryConfig(2, 1, 1));
+        VaultService sut = new VaultService.EncryptService(vault, conf);
+
+        assertThrows(ServerErrorException.class, () -> sut.doCrypto(Collections.singletonMap(1, "Kafka")));
+        verify(vault, times(3)).encryptBatch(eq(keyName), any());
+    }
+
+    @Test
+    public void testNoRetryOnClientError() {
+        VaultClient vault = mock(VaultClient.class);
+        when(vault.decryptBatch(any(), any())).thenReturn(Arrays.asList(BatchResult.failure("invalid ciphertext", false)));
+
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty());
+        VaultService sut = new VaultService.DecryptService(vault, conf);
+
+        assertThrows(ClientErrorException.class, () -> sut.doCrypto(Collections.singletonMap(1, "broken")));
+        verify(vault, times(1)).decryptBatch(eq(keyName), any());
+    }
+
+    @Test
+    public void testAsyncRetryOnlyFailedItems() throws Exception {
+        VaultClient vault = mock(VaultClient.class);
+        when(vault.encryptBatch(any(), any()))
+                .thenReturn(Arrays.asList(BatchResult.success("encrypted-Frantz"), BatchResult.failure("unavailable", true)))
+                .thenReturn(Arrays.asList(BatchResult.success("encrypted-Kafka")));
+
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty(), 10, Integer.MAX_VALUE, ExecutorConfig.DEFAULT, new RetryConfig(2, 1, 1));
+        VaultService<?> sut = new VaultService.EncryptService(vault, conf);
+        sut.init();
+
+        Map<Integer, Object> param = new LinkedHashMap<>();
+        param.put(1, "Frantz");
+        param.put(2, "Kafka");
+        Map<Integer, Item> actual = sut.doCryptoAsync(param, Duration.ofSeconds(10)).toCompletableFuture().get();
+        sut.close();
+
+        Map<Integer, Item> expected = new HashMap<>();
+        expected.put(1, new Item.CipherText("encrypted-Frantz"));
+        expected.put(2, new Item.CipherText("encrypted-Kafka"));
+        assertEquals(expected, actual);
+        verify(vault, times(2)).encryptBatch(eq(keyName), any());
+    }
+
+    @Test
+    public void testAsyncTimeout() throws Exception {
+        VaultClient vault = mock(VaultClient.class);
+        CountDownLatch release = new CountDownLatch(1);
+        when(vault.encryptBatch(any(), any())).thenAnswer(inv -> {
+            release.await();
+            return Arrays.asList(BatchResult.failure("unavailable", true));
+        });
+
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty(), 10, Integer.MAX_VALUE, ExecutorConfig.DEFAULT, new RetryConfig(5, 1, 1));
+        VaultService<?> sut = new VaultService.EncryptService(vault, conf);
+        sut.init();
+
+        CompletableFuture<Map<Integer, Item>> future = sut.doCryptoAsync(Collections.singletonMap(1, "Kafka"), Duration.ofMillis(50))
+                .toCompletableFuture();
+        ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof ServerErrorException);
+
+        // the attempt in flight is not retried once the result is given up
+        release.countDown();
+        sut.close();
+        Thread.sleep(50);
+        verify(vault, times(1)).encryptBatch(eq(keyName), any());
+    }
+
+    @Test
+    public void testAsyncCancel() throws Exception {
+        VaultClient vault = mock(VaultClient.class);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        when(vault.decryptBatch(any(), any())).thenAnswer(inv -> {
+            started.countDown();
+            release.await();
+            return Arrays.asList(BatchResult.success("S2Fma2E="));
+        });
+
+        // the second chunk waits in the queue behind the first one on a single thread
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty(), 1, Integer.MAX_VALUE, new ExecutorConfig(1, 10));
+        VaultService<?> sut = new VaultService.DecryptService(vault, conf);
+        sut.init();
+
+        Map<Integer, Object> param = new LinkedHashMap<>();
+        param.put(1, "encrypted-Frantz");
+        param.put(2, "encrypted-Kafka");
+        CompletableFuture<Map<Integer, Item>> future = sut.doCryptoAsync(param, Duration.ofSeconds(10)).toCompletableFuture();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(future.cancel(true));
+
+        release.countDown();
+        sut.close();
+        Thread.sleep(50);
+        verify(vault, times(1)).decryptBatch(eq(keyName), any());
+    }
+
+    @Test
+    public void testAsyncExecutorFull() throws Exception {
+        VaultClient vault = mock(VaultClient.class);
+        List<Thread> callers = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch release = new CountDownLatch(1);
+        when(vault.decryptBatch(any(), any())).thenAnswer(inv -> {
+            callers.add(Thread.currentThread());
+            release.await();
+            return Arrays.asList(BatchResult.success("S2Fma2E="));
+        });
+
+        // the first chunk occupies the thread, the second one the queue, and the third one is rejected
+        VaultCryptoConfig conf = new VaultCryptoConfig(keyName, Optional.empty(), 1, Integer.MAX_VALUE, new ExecutorConfig(1, 1));
+        VaultService<?> sut = new VaultService.DecryptService(vault, conf);
+        sut.init();
+
+        Map<Integer, Object> param = new LinkedHashMap<>();
+        param.put(1, "encrypted-Frantz");
+        param.put(2, "encrypted-Kafka");
+        param.put(3, "encrypted-Kafka");
+        try {
+            CompletableFuture<Map<Integer, Item>> future = sut.doCryptoAsync(param, Duration.ofSeconds(10)).toCompletableFuture();
+            ExecutionException e = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+            assertTrue(e.getCause() instanceof ServerErrorException);
+            // the request never runs on the calling thread, and the chunks not started yet are skipped
+            assertTrue(callers.size() <= 1);
+            assertFalse(callers.contains(Thread.currentThread()));
+        } finally {
+            release.countDown();
+            sut.close();
+        }
+    }
+
+    @Test
+    public void testAsyncNotInitialized() {
+        VaultService<?> sut = new VaultService.EncryptService(mock(VaultClient.class), new VaultCryptoConfig(keyName, Optional.empty()));
+        CompletableFuture<Map<Integer, Item>> future = sut.doCryptoAsync(Collections.singletonMap(1, "Kafka"), Duration.ofSeconds(1))
+                .toCompletableFuture();
+        ExecutionException e = assertThrows(ExecutionException.class, future::get);
+        assertTrue(e.getCause() instanceof ClientErrorException);
+    }
+
+    private static List<BatchResult> successes(List<String> values) {
+        return values.stream().map(BatchResult::success).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,210 @@
+package io.github.rerorero.kafka.vault.client;
+
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class CoalescingVaultClientTest {
+    private static List<EncryptParameter> params(String... plainTexts) {
+        return Arrays.stream(plainTexts).map(p -> new EncryptParameter(p, Optional.empty())).collect(Collectors.toList());
+    }
+
+    // echoes the plain texts back as the ciphertexts, and counts the requests
+    private static VaultClient echo(AtomicInteger requests) {
+        return echo(requests, new ArrayList<>());
+    }
+
+    // same as above, and records the number of the items of each request
+    private static VaultClient echo(AtomicInteger requests, List<Integer> sizes) {
+        final VaultClient client = mock(VaultClient.class);
+        when(client.encryptBatch(anyString(), any())).thenAnswer(inv -> {
+            requests.incrementAndGet();
+            final List<EncryptParameter> items = inv.getArgument(1);
+            synchronized (sizes) {
+                sizes.add(items.size());
+            }
+            return items.stream().map(p -> BatchResult.success(p.plainTextBase64())).collect(Collectors.toList());
+        });
+        return client;
+    }
+
+    private static List<String> values(List<BatchResult> results) {
+        return results.stream().map(r -> r.getValue().get()).collect(Collectors.toList());
+    }
+
+    private static <T> List<T> runConcurrently(int n, Callable<T> task) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(n);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<T>> futures = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return task.call();
+                }));
+            }
+            start.countDown();
+            final List<T> out = new ArrayList<>();
+            for (Future<T> f : futures) {
+                out.add(f.get(10, TimeUnit.SECONDS));
+            }
+            return out;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testCoalesceConcurrentRequests() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        final CoalescingVaultClient sut = new CoalescingVaultClient(echo(requests), 500, 100, Integer.MAX_VALUE);
+        final AtomicInteger seq = new AtomicInteger();
+
+        final List<Boolean> ok = runConcurrently(4, () -> {
+            final String a = "a" + seq.incrementAndGet();
+            final String b = "b" + seq.get();
+            return values(sut.encryptBatch("mykey", params(a, b))).equals(Arrays.asList(a, b));
+        });
+
+        assertEquals(Arrays.asList(true, true, true, true), ok);
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testSendOnMaxItems() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        // the window would be too long for the test to pass without the limit
+        final CoalescingVaultClient sut = new CoalescingVaultClient(echo(requests), 60_000, 4, Integer.MAX_VALUE);
+
+        final long start = System.nanoTime();
+        final List<List<String>> results = runConcurrently(2, () -> values(sut.encryptBatch("mykey", params("x", "y"))));
+
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        assertEquals(Arrays.asList(Arrays.asList("x", "y"), Arrays.asList("x", "y")), results);
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testSendOnOverflowingItems() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        final List<Integer> sizes = new ArrayList<>();
+        final CoalescingVaultClient sut = new CoalescingVaultClient(echo(requests, sizes), 10_000, 4, Integer.MAX_VALUE);
+        final ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            final long start = System.nanoTime();
+            final Future<List<String>> first = executor.submit(() -> values(sut.encryptBatch("mykey", params("a", "b", "c"))));
+            Thread.sleep(200);
+            // does not fit in the window of the first one, which is sent right away
+            final Future<List<String>> second = executor.submit(() -> values(sut.encryptBatch("mykey", params("d", "e"))));
+            assertEquals(Arrays.asList("a", "b", "c"), first.get(5, TimeUnit.SECONDS));
+            // fills the window of the second one
+            final Future<List<String>> third = executor.submit(() -> values(sut.encryptBatch("mykey", params("f", "g"))));
+
+            assertEquals(Arrays.asList("d", "e"), second.get(5, TimeUnit.SECONDS));
+            assertEquals(Arrays.asList("f", "g"), third.get(5, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+            assertEquals(Arrays.asList(3, 4), sizes);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSendOnOverflowingBytes() throws Exception {
+        final AtomicInteger requests = new AtomicInteger();
+        final List<Integer> sizes = new ArrayList<>();
+        // a window holds one item but not two
+        final int itemBytes = params("x").get(0).estimatedSize();
+        final CoalescingVaultClient sut = new CoalescingVaultClient(echo(requests, sizes), 500, 100, itemBytes * 3 / 2);
+
+        final List<List<String>> results = runConcurrently(2, () -> values(sut.encryptBatch("mykey", params("x"))));
+
+        assertEquals(Arrays.asList(Arrays.asList("x"), Arrays.asList("x")), results);
+        assertEquals(Arrays.asList(1, 1), sizes);
+    }
+
+    @Test
+    public void testSeparateRequestsByKey() {
+        final AtomicInteger requests = new AtomicInteger();
+        final VaultClient delegate = echo(requests);
+        final CoalescingVaultClient sut = new CoalescingVaultClient(delegate, 1, 100, Integer.MAX_VALUE);
+
+        assertEquals(Arrays.asList("x"), values(sut.encryptBatch("key1", params("x"))));
+        assertEquals(Arrays.asList("y"), values(sut.encryptBatch("key2", params("y"))));
+        verify(delegate).encryptBatch("key1", params("x"));
+        verify(delegate).encryptBatch("key2", params("y"));
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testPropagateErrorToAllCallers() throws Exception {
+        final VaultClient delegate = mock(VaultClient.class);
+        final AtomicInteger requests = new AtomicInteger();
+        when(delegate.encryptBatch(anyString(), any())).thenAnswer(inv -> {
+            requests.incrementAndGet();
+            throw new ServerErrorException("unavailable");
+        });
+        final CoalescingVaultClient sut = new CoalescingVaultClient(delegate, 500, 100, Integer.MAX_VALUE);
+
+        final List<Boolean> failed = runConcurrently(3, () -> {
+            try {
+                sut.encryptBatch("mykey", params("x"));
+                return false;
+            } catch (ServerErrorException e) {
+                return "unavailable".equals(e.getMessage());
+            }
+        });
+
+        assertEquals(Arrays.asList(true, true, true), failed);
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testMismatchedResults() {
+        final VaultClient delegate = mock(VaultClient.class);
+        when(delegate.encryptBatch(anyString(), any())).thenReturn(Collections.emptyList());
+        final CoalescingVaultClient sut = new CoalescingVaultClient(delegate, 1, 100, Integer.MAX_VALUE);
+
+        assertThrows(ServerErrorException.class, () -> sut.encryptBatch("mykey", params("x")));
+    }
+
+    @Test
+    public void testSharedInstance() {
+        final AtomicInteger created = new AtomicInteger();
+        final VaultClient delegate = echo(new AtomicInteger());
+        final String target = "CoalescingVaultClientTest-" + UUID.randomUUID();
+
+        final VaultClient lease1 = CoalescingVaultClient.shared(target, 1, 100, Integer.MAX_VALUE, () -> {
+            created.incrementAndGet();
+            return delegate;
+        });
+        final VaultClient lease2 = CoalescingVaultClient.shared(target, 1, 100, Integer.MAX_VALUE, () -> {
+            created.incrementAndGet();
+            return delegate;
+        });
+        assertEquals(1, created.get());
+        assertEquals(Arrays.asList("x"), values(lease2.encryptBatch("mykey", params("x"))));
+
+        lease1.close();
+        lease1.close();
+        verify(delegate, never()).close();
+        lease2.close();
+        verify(delegate).close();
+
+        // a new instance after all the leases are closed
+        CoalescingVaultClient.shared(target, 1, 100, Integer.MAX_VALUE, () -> {
+            created.incrementAndGet();
+            return delegate;
+        }).close();
+        assertEquals(2, created.get());
+    }
+}
@@ -0,0 +1,168 @@
+package io.github.rerorero.kafka.vault.client;
+
+import com.bettercloud.vault.VaultConfig;
+import com.bettercloud.vault.VaultException;
+import com.sun.net.httpserver.HttpServer;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PooledHttpTransportTest {
+    private HttpServer server;
+    private ExecutorService serverThreads;
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverThreads = Executors.newCachedThreadPool();
+        server.setExecutor(serverThreads);
+        server.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+    }
+
+    private PooledHttpTransport newSUT(HttpConfig httpConfig) {
+        try {
+            return new PooledHttpTransport(new VaultConfig()
+                    .address(String.format("http://127.0.0.1:%d", server.getAddress().getPort()))
+                    .token("dev")
+                    .build(), httpConfig);
+        } catch (VaultException e) {
+            return fail(e);
+        }
+    }
+
+    // responds a single encrypted item after the latch is released
+    private void routeEncrypt(CountDownLatch latch) {
+        server.createContext("/v1/transit/encrypt/mykey", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read() >= 0) {
+                }
+            }
+            try {
+                latch.countDown();
+                latch.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final byte[] body = "{\"data\":{\"batch_results\":[{\"ciphertext\":\"vault:v1:abc\"}]}}".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    private static List<EncryptParameter> params() {
+        return Arrays.asList(new EncryptParameter("RnJhbnR6", Optional.empty()));
+    }
+
+    @Test
+    public void testReuseConnection() {
+        routeEncrypt(new CountDownLatch(0));
+        final PooledHttpTransport transport = newSUT(HttpConfig.DEFAULT);
+        final StreamingVaultClient sut = new StreamingVaultClient(transport);
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(Arrays.asList("vault:v1:abc"), sut.encrypt("mykey", params()));
+        }
+        assertEquals(1, clientPorts.size());
+        assertEquals(0, transport.leasedConnections());
+        assertEquals(1, transport.availableConnections());
+
+        sut.close();
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        // every request waits until all of them have arrived, which needs as many connections
+        final int concurrency = 4;
+        routeEncrypt(new CountDownLatch(concurrency));
+        final PooledHttpTransport transport = newSUT(new HttpConfig(concurrency, 60000, 5000, 30000));
+        final StreamingVaultClient sut = new StreamingVaultClient(transport);
+
+        final ExecutorService callers = Executors.newFixedThreadPool(concurrency);
+        try {
+            final List<Future<List<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                futures.add(callers.submit(() -> sut.encrypt("mykey", params())));
+            }
+            for (Future<List<String>> future : futures) {
+                assertEquals(Arrays.asList("vault:v1:abc"), future.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        assertEquals(concurrency, clientPorts.size());
+        assertEquals(concurrency, transport.availableConnections());
+
+        sut.close();
+    }
+
+    @Test
+    public void testPoolExhausted() throws Exception {
+        // the second request can't get the only connection while the first one holds it
+        final CountDownLatch latch = new CountDownLatch(2);
+        routeEncrypt(latch);
+        final StreamingVaultClient sut = new StreamingVaultClient(newSUT(new HttpConfig(1, 60000, 200, 30000)));
+
+        final ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            final Future<List<String>> first = callers.submit(() -> sut.encrypt("mykey", params()));
+            final Future<List<String>> second = callers.submit(() -> sut.encrypt("mykey", params()));
+
+            final ExecutionException e = assertThrows(ExecutionException.class, () -> {
+                first.get(10, TimeUnit.SECONDS);
+                second.get(10, TimeUnit.SECONDS);
+            });
+            assertTrue(e.getCause() instanceof ServerErrorException, e.toString());
+        } finally {
+            while (latch.getCount() > 0) {
+                latch.countDown();
+            }
+            callers.shutdownNow();
+        }
+
+        sut.close();
+    }
+
+    @Test
+    public void testReadTimeout() {
+        routeEncrypt(new CountDownLatch(2));
+        final StreamingVaultClient sut = new StreamingVaultClient(newSUT(new HttpConfig(1, 60000, 5000, 200)));
+
+        assertThrows(ServerErrorException.class, () -> sut.encrypt("mykey", params()));
+
+        sut.close();
+    }
+
+    @Test
+    public void testClosed() {
+        routeEncrypt(new CountDownLatch(0));
+        final StreamingVaultClient sut = new StreamingVaultClient(newSUT(HttpConfig.DEFAULT));
+        sut.close();
+
+        assertThrows(IllegalStateException.class, () -> sut.encrypt("mykey", params()));
+    }
+}
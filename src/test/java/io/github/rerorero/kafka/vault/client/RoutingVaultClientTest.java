@@ -0,0 +1,239 @@
+package io.github.rerorero.kafka.vault.client;
+
+import com.bettercloud.vault.VaultConfig;
+import com.bettercloud.vault.VaultException;
+import com.sun.net.httpserver.HttpServer;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class RoutingVaultClientTest {
+    private static final List<EncryptParameter> PARAMS = Arrays.asList(new EncryptParameter("RnJhbnR6", Optional.empty()));
+
+    private static VaultClient nodeReturning(String cipherText) {
+        final VaultClient client = mock(VaultClient.class);
+        when(client.encrypt(anyString(), any())).thenReturn(Arrays.asList(cipherText));
+        return client;
+    }
+
+    @Test
+    public void testSpreadRequestsInTurn() {
+        final VaultClient node1 = nodeReturning("from-1");
+        final VaultClient node2 = nodeReturning("from-2");
+        final RoutingVaultClient sut = new RoutingVaultClient(Arrays.asList(node1, node2), 1000);
+
+        for (int i = 0; i < 10; i++) {
+            sut.encrypt("mykey", PARAMS);
+        }
+        verify(node1, times(5)).encrypt("mykey", PARAMS);
+        verify(node2, times(5)).encrypt("mykey", PARAMS);
+    }
+
+    @Test
+    public void testLeastInFlight() throws Exception {
+        // node1 holds the first request until released, so the others go to node2
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch held = new CountDownLatch(1);
+        final VaultClient node1 = mock(VaultClient.class);
+        when(node1.encrypt(anyString(), any())).thenAnswer(inv -> {
+            held.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return Arrays.asList("from-1");
+        });
+        final VaultClient node2 = nodeReturning("from-2");
+        final RoutingVaultClient sut = new RoutingVaultClient(Arrays.asList(node1, node2), 1000);
+
+        final ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            final Future<List<String>> first = caller.submit(() -> sut.encrypt("mykey", PARAMS));
+            assertTrue(held.await(5, TimeUnit.SECONDS));
+            assertEquals(1, sut.inFlight(0));
+
+            for (int i = 0; i < 4; i++) {
+                assertEquals(Arrays.asList("from-2"), sut.encrypt("mykey", PARAMS));
+            }
+            release.countDown();
+            assertEquals(Arrays.asList("from-1"), first.get(5, TimeUnit.SECONDS));
+        } finally {
+            caller.shutdownNow();
+        }
+        assertEquals(0, sut.inFlight(0));
+        assertEquals(0, sut.inFlight(1));
+    }
+
+    @Test
+    public void testEjectAndFailover() {
+        final AtomicLong now = new AtomicLong(0);
+        final VaultClient node1 = mock(VaultClient.class);
+        when(node1.encrypt(anyString(), any())).thenThrow(new ServerErrorException("sealed"));
+        final VaultClient node2 = nodeReturning("from-2");
+        final RoutingVaultClient sut = new RoutingVaultClient(Arrays.asList(node1, node2), 1000, now::get);
+
+        // the first request fails over from node1, which is skipped while it is ejected
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Arrays.asList("from-2"), sut.encrypt("mykey", PARAMS));
+        }
+        verify(node1, times(1)).encrypt("mykey", PARAMS);
+
+        // node1 is tried again after the ejection, and is back once it recovers
+        now.set(1000);
+        reset(node1);
+        when(node1.encrypt(anyString(), any())).thenReturn(Arrays.asList("from-1"));
+        for (int i = 0; i < 4; i++) {
+            sut.encrypt("mykey", PARAMS);
+        }
+        verify(node1, times(2)).encrypt("mykey", PARAMS);
+    }
+
+    @Test
+    public void testAllEjected() {
+        final AtomicLong now = new AtomicLong(0);
+        final VaultClient node1 = mock(VaultClient.class);
+        when(node1.encrypt(anyString(), any())).thenThrow(new ServerErrorException("down-1"));
+        final VaultClient node2 = mock(VaultClient.class);
+        when(node2.encrypt(anyString(), any())).thenThrow(new ServerErrorException("down-2"));
+        final RoutingVaultClient sut = new RoutingVaultClient(Arrays.asList(node1, node2), 1000, now::get);
+
+        assertThrows(ServerErrorException.class, () -> sut.encrypt("mykey", PARAMS));
+        verify(node1, times(1)).encrypt("mykey", PARAMS);
+        verify(node2, times(1)).encrypt("mykey", PARAMS);
+
+        // the node whose ejection ends first is still tried, but only once
+        now.set(10);
+        reset(node1);
+        when(node1.encrypt(anyString(), any())).thenReturn(Arrays.asList("from-1"));
+        assertEquals(Arrays.asList("from-1"), sut.encrypt("mykey", PARAMS));
+        verify(node2, times(1)).encrypt("mykey", PARAMS);
+    }
+
+    @Test
+    public void testSuccessKeepsLaterEjection() throws Exception {
+        // the first request is held until released, and the second one fails meanwhile
+        final AtomicLong now = new AtomicLong(0);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch held = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        final VaultClient node = mock(VaultClient.class);
+        when(node.encrypt(anyString(), any())).thenAnswer(inv -> {
+            final int call = calls.incrementAndGet();
+            if (call == 1) {
+                held.countDown();
+                release.await(5, TimeUnit.SECONDS);
+            } else if (call == 2) {
+                throw new ServerErrorException("sealed");
+            }
+            return Arrays.asList("from-1");
+        });
+        final RoutingVaultClient sut = new RoutingVaultClient(Arrays.asList(node), 1000, now::get);
+
+        final ExecutorService caller = Executors.newSingleThreadExecutor();
+        try {
+            final Future<List<String>> first = caller.submit(() -> sut.encrypt("mykey", PARAMS));
+            assertTrue(held.await(5, TimeUnit.SECONDS));
+            assertThrows(ServerErrorException.class, () -> sut.encrypt("mykey", PARAMS));
+            assertEquals(1000, sut.ejectedUntil(0));
+
+            // the request sent before the failure does not end the ejection
+            release.countDown();
+            assertEquals(Arrays.asList("from-1"), first.get(5, TimeUnit.SECONDS));
+            assertEquals(1000, sut.ejectedUntil(0));
+        } finally {
+            caller.shutdownNow();
+        }
+
+        // a request sent while the node is ejected does
+        assertEquals(Arrays.asList("from-1"), sut.encrypt("mykey", PARAMS));
+        assertEquals(0, sut.ejectedUntil(0));
+    }
+
+    @Test
+    public void testClientErrorIsNotFailedOver() {
+        final VaultClient node1 = mock(VaultClient.class);
+        when(node1.encrypt(anyString(), any())).thenThrow(new ClientErrorException("permission denied"));
+        final VaultClient node2 = mock(VaultClient.class);
+        when(node2.encrypt(anyString(), any())).thenThrow(new ClientErrorException("permission denied"));
+        final RoutingVaultClient sut = new RoutingVaultClient(Arrays.asList(node1, node2), 1000);
+
+        assertThrows(ClientErrorException.class, () -> sut.encrypt("mykey", PARAMS));
+        assertThrows(ClientErrorException.class, () -> sut.encrypt("mykey", PARAMS));
+        verify(node1, times(1)).encrypt("mykey", PARAMS);
+        verify(node2, times(1)).encrypt("mykey", PARAMS);
+    }
+
+    @Test
+    public void testClose() {
+        final VaultClient node1 = mock(VaultClient.class);
+        final VaultClient node2 = mock(VaultClient.class);
+        new RoutingVaultClient(Arrays.asList(node1, node2), 1000).close();
+        verify(node1).close();
+        verify(node2).close();
+    }
+
+    private static HttpServer startNode(String name, AtomicInteger hits) throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v1/transit/encrypt/mykey", exchange -> {
+            hits.incrementAndGet();
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read() >= 0) {
+                }
+            }
+            final byte[] body = ("{\"data\":{\"batch_results\":[{\"ciphertext\":\"" + name + "\"}]}}").getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private static VaultClient clientOf(int port) throws VaultException {
+        return new StreamingVaultClient(new VaultConfig().address("http://127.0.0.1:" + port).token("dev").build());
+    }
+
+    @Test
+    public void testRouteToLocalNodes() throws Exception {
+        final AtomicInteger hits1 = new AtomicInteger();
+        final AtomicInteger hits2 = new AtomicInteger();
+        final HttpServer node1 = startNode("vault:v1:node1", hits1);
+        final HttpServer node2 = startNode("vault:v1:node2", hits2);
+        final int deadPort;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            deadPort = socket.getLocalPort();
+        }
+
+        try {
+            final RoutingVaultClient sut = new RoutingVaultClient(Arrays.asList(
+                    clientOf(node1.getAddress().getPort()),
+                    clientOf(deadPort),
+                    clientOf(node2.getAddress().getPort())), 60000);
+
+            for (int i = 0; i < 20; i++) {
+                assertEquals(1, sut.encrypt("mykey", PARAMS).size());
+            }
+            assertEquals(20, hits1.get() + hits2.get());
+            assertTrue(hits1.get() >= 9 && hits2.get() >= 9, hits1.get() + " and " + hits2.get());
+        } finally {
+            node1.stop(0);
+            node2.stop(0);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package io.github.rerorero.kafka.vault.client;
+
+import com.bettercloud.vault.VaultConfig;
+import com.bettercloud.vault.VaultException;
+import com.bettercloud.vault.json.Json;
+import com.bettercloud.vault.json.JsonArray;
+import com.bettercloud.vault.json.JsonObject;
+import com.bettercloud.vault.json.JsonValue;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ClientErrorException;
+import io.github.rerorero.kafka.connect.transform.encrypt.exception.ServerErrorException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StreamingVaultClientTest {
+    private HttpServer server;
+    private final AtomicReference<HttpExchange> lastExchange = new AtomicReference<>();
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.start();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private StreamingVaultClient newSUT() {
+        return newSUT(String.format("http://127.0.0.1:%d", server.getAddress().getPort()));
+    }
+
+    private StreamingVaultClient newSUT(String address) {
+        try {
+            return new StreamingVaultClient(new VaultConfig().address(address).token("dev").build());
+        } catch (VaultException e) {
+            return fail(e);
+        }
+    }
+
+    private interface Handler {
+        // returns the status and the response body
+        Object[] handle(JsonObject request);
+    }
+
+    private void route(String path, Handler handler) {
+        server.createContext(path, exchange -> {
+            lastExchange.set(exchange);
+            final JsonObject request = Json.parse(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)).asObject();
+            final Object[] res = handler.handle(request);
+            final byte[] body = res[1].toString().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders((int) res[0], body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+    }
+
+    private static JsonObject dataOf(JsonValue data) {
+        return new JsonObject().add("request_id", "id").add("data", data).add("warnings", Json.NULL);
+    }
+
+    // a stand-in of transit which encrypts a plain text to "vault:v1:<plaintext>:<context>"
+    private void routeTransit() {
+        route("/v1/transit/encrypt/mykey", req -> {
+            final JsonArray results = new JsonArray();
+            for (JsonValue item : req.get("batch_input").asArray()) {
+                final JsonValue context = item.asObject().get("context");
+                results.add(new JsonObject()
+                        .add("ciphertext", "vault:v1:" + item.asObject().get("plaintext").asString() + ":" + (context == null ? "" : context.asString()))
+                        .add("key_version", 1));
+            }
+            return new Object[]{200, dataOf(new JsonObject().add("batch_results", results))};
+        });
+        route("/v1/transit/decrypt/mykey", req -> {
+            final JsonArray results = new JsonArray();
+            boolean failed = false;
+            for (JsonValue item : req.get("batch_input").asArray()) {
+                final String[] parts = item.asObject().get("ciphertext").asString().split(":");
+                if (parts.length < 3) {
+                    results.add(new JsonObject().add("error", "invalid ciphertext: no prefix"));
+                    failed = true;
+                } else {
+                    results.add(new JsonObject().add("plaintext", parts[2]).add("error", ""));
+                }
+            }
+            return new Object[]{failed ? 400 : 200, dataOf(new JsonObject().add("batch_results", results))};
+        });
+    }
+
+    @Test
+    public void testEncryptAndDecrypt() {
+        routeTransit();
+        final StreamingVaultClient sut = newSUT();
+
+        final List<BatchResult> encrypted = sut.encryptBatch("mykey", Arrays.asList(
+                new EncryptParameter("Franz".getBytes(StandardCharsets.UTF_8), Optional.of("Y29udGV4dA==")),
+                new EncryptParameter("S2Fma2E=", Optional.empty()),
+                new EncryptParameter(new byte[0], Optional.empty())));
+        assertEquals(Arrays.asList(
+                BatchResult.success("vault:v1:RnJhbno=:Y29udGV4dA=="),
+                BatchResult.success("vault:v1:S2Fma2E=:"),
+                BatchResult.success("vault:v1::")), encrypted);
+
+        final HttpExchange exchange = lastExchange.get();
+        assertEquals("POST", exchange.getRequestMethod());
+        assertEquals("dev", exchange.getRequestHeaders().getFirst("X-Vault-Token"));
+        assertEquals("chunked", exchange.getRequestHeaders().getFirst("Transfer-Encoding"));
+
+        final List<String> decrypted = sut.decrypt("mykey", Arrays.asList(
+                new DecryptParameter("vault:v1:RnJhbno=:Y29udGV4dA==", Optional.of("Y29udGV4dA==")),
+                new DecryptParameter("vault:v1:S2Fma2E=:", Optional.empty())));
+        assertEquals(Arrays.asList("RnJhbno=", "S2Fma2E="), decrypted);
+    }
+
+    @Test
+    public void testLargeBatch() {
+        routeTransit();
+        final StreamingVaultClient sut = newSUT();
+
+        final EncryptParameter[] params = new EncryptParameter[5000];
+        for (int i = 0; i < params.length; i++) {
+            params[i] = new EncryptParameter(("value-" + i).getBytes(StandardCharsets.UTF_8), Optional.empty());
+        }
+        final List<String> encrypted = sut.encrypt("mykey", Arrays.asList(params));
+
+        assertEquals(params.length, encrypted.size());
+        for (int i = 0; i < params.length; i++) {
+            final String base64 = Base64.getEncoder().encodeToString(("value-" + i).getBytes(StandardCharsets.UTF_8));
+            assertEquals("vault:v1:" + base64 + ":", encrypted.get(i));
+        }
+    }
+
+    @Test
+    public void testEmptyBatch() {
+        assertTrue(newSUT().encryptBatch("mykey", Arrays.asList()).isEmpty());
+    }
+
+    @Test
+    public void testPartialFailure() {
+        routeTransit();
+        final StreamingVaultClient sut = newSUT();
+
+        final List<BatchResult> results = sut.decryptBatch("mykey", Arrays.asList(
+                new DecryptParameter("vault:v1:RnJhbnR6:", Optional.empty()),
+                new DecryptParameter("malformed", Optional.empty())));
+        assertEquals(Arrays.asList(
+                BatchResult.success("RnJhbnR6"),
+                BatchResult.failure("invalid ciphertext: no prefix", false)), results);
+
+        assertThrows(ClientErrorException.class, () -> sut.decrypt("mykey", Arrays.asList(new DecryptParameter("malformed", Optional.empty()))));
+    }
+
+    @Test
+    public void testPartialServerFailure() {
+        route("/v1/transit/encrypt/mykey", req -> new Object[]{500, dataOf(new JsonObject().add("batch_results", new JsonArray()
+                .add(new JsonObject().add("ciphertext", "vault:v1:RnJhbnR6"))
+                .add(new JsonObject().add("error", "internal error"))))});
+        final StreamingVaultClient sut = newSUT();
+
+        final List<BatchResult> results = sut.encryptBatch("mykey", Arrays.asList(
+                new EncryptParameter("RnJhbnR6", Optional.empty()),
+                new EncryptParameter("RnJhbnR6", Optional.empty())));
+        assertEquals(Arrays.asList(
+                BatchResult.success("vault:v1:RnJhbnR6"),
+                BatchResult.failure("internal error", true)), results);
+    }
+
+    @Test
+    public void testErrorResponses() {
+        route("/v1/transit/encrypt/denied", req -> new Object[]{403, new JsonObject().add("errors", new JsonArray().add("permission denied"))});
+        route("/v1/transit/encrypt/sealed", req -> new Object[]{503, new JsonObject().add("errors", new JsonArray().add("Vault is sealed"))});
+        route("/v1/transit/encrypt/short", req -> new Object[]{200, dataOf(new JsonObject().add("batch_results", new JsonArray()))});
+        route("/v1/transit/encrypt/broken", req -> new Object[]{200, "{\"data\": {\"batch_results\": [{\"ciphertext\""});
+        final StreamingVaultClient sut = newSUT();
+        final List<EncryptParameter> params = Arrays.asList(new EncryptParameter("RnJhbnR6", Optional.empty()));
+
+        final ClientErrorException denied = assertThrows(ClientErrorException.class, () -> sut.encryptBatch("denied", params));
+        assertTrue(denied.getMessage().contains("permission denied"), denied.getMessage());
+        assertThrows(ServerErrorException.class, () -> sut.encryptBatch("sealed", params));
+        assertThrows(ServerErrorException.class, () -> sut.encryptBatch("short", params));
+        assertThrows(ServerErrorException.class, () -> sut.encryptBatch("broken", params));
+    }
+
+    @Test
+    public void testConnectionFailure() throws IOException {
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        final StreamingVaultClient sut = newSUT(String.format("http://127.0.0.1:%d", port));
+
+        assertThrows(ServerErrorException.class,
+                () -> sut.encryptBatch("mykey", Arrays.asList(new EncryptParameter("RnJhbnR6", Optional.empty()))));
+    }
+
+    @Test
+    public void testGenerateDataKey() {
+        route("/v1/transit/datakey/plaintext/mykey", req -> {
+            assertEquals(256, req.get("bits").asInt());
+            assertEquals("Y29udGV4dA==", req.get("context").asString());
+            return new Object[]{200, dataOf(new JsonObject().add("plaintext", "cGxhaW4=").add("ciphertext", "vault:v1:abc").add("key_version", 1))};
+        });
+        route("/v1/transit/datakey/plaintext/nokey", req -> new Object[]{200, dataOf(new JsonObject())});
+        final StreamingVaultClient sut = newSUT();
+
+        assertEquals(new DataKeyResponse("cGxhaW4=", "vault:v1:abc"), sut.generateDataKey("mykey", Optional.of("Y29udGV4dA=="), 256));
+        assertThrows(ServerErrorException.class, () -> sut.generateDataKey("nokey", Optional.empty(), 256));
+    }
+}
@@ -11,6 +11,7 @@ import org.testcontainers.vault.VaultContainer;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
 import java.util.Optional;
 import java.util.stream.Collectors;
@@ -102,6 +103,16 @@ public class VaultClientImplTest {
         assertArrayEquals(expected, decrypted.toArray());
     }
 
+    @Test
+    public void testGenerateDataKey() {
+        VaultClientImpl sut = newSUT();
+        DataKeyResponse dataKey = sut.generateDataKey(NORMAL_KEY, Optional.empty(), 256);
+        assertEquals(32, Base64.getDecoder().decode(dataKey.getPlainTextBase64()).length);
+
+        List<String> decrypted = sut.decrypt(NORMAL_KEY, Arrays.asList(new DecryptParameter(dataKey.getCipherText(), Optional.empty())));
+        assertEquals(dataKey.getPlainTextBase64(), decrypted.get(0));
+    }
+
     @Test
     public void testEncryptEmptyArgument() throws InterruptedException, IOException {
         VaultClientImpl sut = newSUT();